@@ -19,7 +19,12 @@
  */
 package org.neo4j.util;
 
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -31,11 +36,25 @@ import org.neo4j.graphdb.Node;
  */
 public abstract class NodeWrapperImpl implements NodeWrapper
 {
+	/**
+	 * The constructors used by {@link #newInstance(Class, Node)}, looked up
+	 * once per class. The classes are weakly referenced, and a constructor
+	 * references its class so it's softly referenced, to not keep classes
+	 * (and their class loaders) which are no longer used alive.
+	 */
+	private static final Map<Class<?>, SoftReference<WrapperConstructor>> 
+		CONSTRUCTORS = Collections.synchronizedMap( 
+		new WeakHashMap<Class<?>, SoftReference<WrapperConstructor>>() );
+	
 	private final Node node;
 	
 	/**
 	 * Utility method for instantiating a new node wrapper instance, using
-	 * the class' constructor which takes a {@link Node}.
+	 * the class' constructor which takes a {@link Node}, or else the one
+	 * which takes a {@link GraphDatabaseService} and a {@link Node}. The
+	 * constructor is looked up the first time a class is instantiated. An
+	 * exception thrown by the constructor is rethrown if it's unchecked,
+	 * otherwise wrapped in a {@link RuntimeException}.
 	 * @param <T> the resulting instance's class type.
 	 * @param instanceClass the resulting instance's class type.
 	 * @param node the node to wrap, the node returned from
@@ -45,29 +64,18 @@ public abstract class NodeWrapperImpl implements NodeWrapper
 	public static <T extends NodeWrapper> T newInstance(
 		Class<T> instanceClass, Node node )
 	{
-		try
-		{
-			Constructor<T> constructor = null;
-			try
-			{
-                constructor = instanceClass.getConstructor( Node.class );
-			}
-			catch ( NoSuchMethodException e )
-			{
-                constructor = instanceClass.getConstructor( GraphDatabaseService.class,
-                        Node.class );
-			}
-			T result = constructor.newInstance( node );
-			return result;
-		}
-		catch ( RuntimeException e )
+		SoftReference<WrapperConstructor> reference = 
+			CONSTRUCTORS.get( instanceClass );
+		WrapperConstructor constructor = 
+			reference != null ? reference.get() : null;
+		if ( constructor == null )
 		{
-			throw e;
-		}
-		catch ( Exception e )
-		{
-			throw new RuntimeException( e );
+			// a race only means that the constructor is looked up twice
+			constructor = new WrapperConstructor( instanceClass );
+			CONSTRUCTORS.put( instanceClass, 
+				new SoftReference<WrapperConstructor>( constructor ) );
 		}
+		return instanceClass.cast( constructor.newInstance( node ) );
 	}
 	
     /**
@@ -112,4 +120,76 @@ public abstract class NodeWrapperImpl implements NodeWrapper
 	{
 		return getUnderlyingNode().hashCode();
 	}
+	
+	/**
+	 * The constructor of a node wrapper class, either one which takes a
+	 * {@link Node} or one which takes a {@link GraphDatabaseService} and a
+	 * {@link Node}.
+	 */
+	private static class WrapperConstructor
+	{
+		private final Constructor<?> constructor;
+		private final boolean takesGraphDb;
+		
+		WrapperConstructor( Class<?> instanceClass )
+		{
+			Constructor<?> found = findConstructor( instanceClass, Node.class );
+			this.takesGraphDb = found == null;
+			if ( found == null )
+			{
+				found = findConstructor( instanceClass, 
+					GraphDatabaseService.class, Node.class );
+			}
+			if ( found == null )
+			{
+				throw new RuntimeException( instanceClass + 
+					" has no constructor taking a Node" );
+			}
+			this.constructor = found;
+		}
+		
+		private static Constructor<?> findConstructor( Class<?> instanceClass,
+			Class<?>... parameterTypes )
+		{
+			try
+			{
+				return instanceClass.getConstructor( parameterTypes );
+			}
+			catch ( NoSuchMethodException e )
+			{
+				return null;
+			}
+		}
+		
+		Object newInstance( Node node )
+		{
+			try
+			{
+				return takesGraphDb ? constructor.newInstance( 
+					node.getGraphDatabase(), node ) : 
+					constructor.newInstance( node );
+			}
+			catch ( InvocationTargetException e )
+			{
+				Throwable cause = e.getCause();
+				if ( cause instanceof RuntimeException )
+				{
+					throw (RuntimeException) cause;
+				}
+				if ( cause instanceof Error )
+				{
+					throw (Error) cause;
+				}
+				throw new RuntimeException( cause );
+			}
+			catch ( InstantiationException e )
+			{
+				throw new RuntimeException( e );
+			}
+			catch ( IllegalAccessException e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+	}
 }
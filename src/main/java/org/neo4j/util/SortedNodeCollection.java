@@ -21,30 +21,52 @@ package org.neo4j.util;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.helpers.collection.IterableWrapper;
 import org.neo4j.util.tree.btree.BTree.RelTypes;
+import org.neo4j.util.tree.sortedtree.SortKeyExtractor;
 import org.neo4j.util.tree.sortedtree.SortedTree;
 
 public class SortedNodeCollection<T extends NodeWrapper>
-	extends AbstractSet<T>
+	extends AbstractSet<T> implements NavigableSet<T>
 {
 	private Node rootNode;
 	private Class<T> instanceClass;
 	private Comparator<T> comparator;
+	private SortKeyExtractor sortKeyExtractor;
 	private SortedTree index;
+	private final SubSet all = new SubSet( null, false, null, false, false );
 	
 	public SortedNodeCollection( Node rootNode,
 		Comparator<T> comparator, Class<T> instanceClass )
+	{
+		this( rootNode, comparator, instanceClass, null );
+	}
+	
+	/**
+	 * Creates a collection which stores a sort key, extracted by
+	 * {@code sortKeyExtractor}, with every item so that {@code comparator}
+	 * only is used for items with equal sort keys, see
+	 * {@link SortKeyExtractor}.
+	 */
+	public SortedNodeCollection( Node rootNode,
+		Comparator<T> comparator, Class<T> instanceClass,
+		SortKeyExtractor sortKeyExtractor )
 	{
 		this.rootNode = rootNode;
 		this.instanceClass = instanceClass;
 		this.comparator = comparator;
+		this.sortKeyExtractor = sortKeyExtractor;
 		instantiateIndex();
 	}
 	
@@ -69,7 +91,7 @@ public class SortedNodeCollection<T extends NodeWrapper>
 	{
 		Node treeRootNode = ensureTheresARoot();
 		this.index = new SortedTree( rootNode.getGraphDatabase(), treeRootNode,
-			new ComparatorWrapper( this.comparator ) );
+			new ComparatorWrapper( this.comparator ), this.sortKeyExtractor );
 	}
 	
 	protected Node rootNode()
@@ -92,27 +114,96 @@ public class SortedNodeCollection<T extends NodeWrapper>
 		return index().addNode( item.getUnderlyingNode() );
 	}
 
+	/**
+	 * Adds the items in sorted order, see {@link SortedTree#addAll(Iterable)}.
+	 */
+	@Override
+	public boolean addAll( Collection<? extends T> items )
+	{
+		return index().addAll( nodesOf( items ) ) > 0;
+	}
+	
+	/**
+	 * Adds the items, for example the members of a
+	 * {@link NodeWrapperRelationshipSet}, to this collection. An empty
+	 * collection is built bottom up from the items, whose sort keys are
+	 * sorted in parallel by {@code executor}, see 
+	 * {@link SortedTree#load(Iterable, ExecutorService)}. Otherwise the
+	 * items are added like {@link #addAll(Collection)} does.
+	 * 
+	 * @param items the items to add, in any order.
+	 * @param executor sorts the sort keys of the items, or {@code null} to
+	 * sort them in the calling thread.
+	 * @return {@code true} if this collection changed.
+	 */
+	public boolean addAll( Collection<? extends T> items, 
+		ExecutorService executor )
+	{
+		return index().load( nodesOf( items ), executor ) > 0;
+	}
+	
+	/**
+	 * Removes the items in sorted order, see
+	 * {@link SortedTree#removeAll(Iterable)}.
+	 */
+	@Override
+	public boolean removeAll( Collection<?> items )
+	{
+		return index().removeAll( nodesOf( items ) ) > 0;
+	}
+	
+	private Collection<Node> nodesOf( Collection<?> items )
+	{
+		Collection<Node> nodes = new ArrayList<Node>( items.size() );
+		for ( Object item : items )
+		{
+			// items of other types can't be in this collection
+			if ( instanceClass.isInstance( item ) )
+			{
+				nodes.add( instanceClass.cast( item ).getUnderlyingNode() );
+			}
+		}
+		return nodes;
+	}
+
 	public void clear()
 	{
-		index().delete();
-		instantiateIndex();
+		index().clear();
 	}
 
 	public boolean contains( Object item )
 	{
-		T nodeItem = ( T ) item;
-		return index().containsNode( nodeItem.getUnderlyingNode() );
+		if ( !instanceClass.isInstance( item ) )
+		{
+			return false;
+		}
+		return index().containsNode( 
+			instanceClass.cast( item ).getUnderlyingNode() );
 	}
 
 	public boolean isEmpty()
 	{
-		return index().getSortedNodes().iterator().hasNext();
+		return index().isEmpty();
 	}
 
+	/**
+	 * Returns an iterator which reads the items from the tree as it goes,
+	 * it's not a snapshot of this collection. Modifying this collection
+	 * while iterating over it therefore gives undefined results, collect 
+	 * the items first if they are to be added or removed, like
+	 * {@link #retainAll(Collection)} does.
+	 */
 	public Iterator<T> iterator()
 	{
-		return new IterableWrapper<T, Node>(
-			index().getSortedNodes() )
+		return all.iterator();
+	}
+	
+	private Iterator<T> iterator( T fromItem, boolean fromInclusive, 
+		T toItem, boolean toInclusive, boolean descending )
+	{
+		return new IterableWrapper<T, Node>( index().getSortedNodes( 
+			nodeOf( fromItem ), fromInclusive, nodeOf( toItem ), toInclusive,
+			descending ) )
 		{
 			@Override
 			protected T underlyingObjectToObject( Node node )
@@ -124,26 +215,39 @@ public class SortedNodeCollection<T extends NodeWrapper>
 
 	public boolean remove( Object item )
 	{
-		T nodeItem = ( T ) item;
-		return index().removeNode( nodeItem.getUnderlyingNode() );
+		if ( !instanceClass.isInstance( item ) )
+		{
+			return false;
+		}
+		return index().removeNode( 
+			instanceClass.cast( item ).getUnderlyingNode() );
 	}
 
 	public boolean retainAll( Collection<?> items )
 	{
-		throw new UnsupportedOperationException( "Not implemented yet" );
+		// collected first since the tree can't be modified while iterating
+		Collection<T> itemsToRemove = new ArrayList<T>();
+		for ( T item : this )
+		{
+			if ( !items.contains( item ) )
+			{
+				itemsToRemove.add( item );
+			}
+		}
+		return removeAll( itemsToRemove );
 	}
 
 	public int size()
 	{
-		return toArray().length;
+		return (int) Math.min( index().size(), Integer.MAX_VALUE );
 	}
 	
-	private <R> Collection<R> toCollection()
+	private Collection<T> toCollection()
 	{
-		Collection<R> result = new ArrayList<R>();
+		Collection<T> result = new ArrayList<T>();
 		for ( Node node : index().getSortedNodes() )
 		{
-			result.add( ( R ) instantiateItem( node ) );
+			result.add( instantiateItem( node ) );
 		}
 		return result;
 	}
@@ -168,6 +272,130 @@ public class SortedNodeCollection<T extends NodeWrapper>
 		index().delete();
 	}
 	
+	public Comparator<? super T> comparator()
+	{
+		return this.comparator;
+	}
+	
+	public T first()
+	{
+		Node node = index().getFirstNode();
+		if ( node == null )
+		{
+			throw new NoSuchElementException();
+		}
+		return instantiateItem( node );
+	}
+	
+	public T last()
+	{
+		Node node = index().getLastNode();
+		if ( node == null )
+		{
+			throw new NoSuchElementException();
+		}
+		return instantiateItem( node );
+	}
+	
+	public T ceiling( T item )
+	{
+		return all.ceiling( item );
+	}
+	
+	public T floor( T item )
+	{
+		return all.floor( item );
+	}
+	
+	public T higher( T item )
+	{
+		return all.higher( item );
+	}
+	
+	public T lower( T item )
+	{
+		return all.lower( item );
+	}
+	
+	public T pollFirst()
+	{
+		return all.pollFirst();
+	}
+	
+	public T pollLast()
+	{
+		return all.pollLast();
+	}
+	
+	public Iterator<T> descendingIterator()
+	{
+		return all.descendingIterator();
+	}
+	
+	/**
+	 * Returns a reverse order view of this collection. Like the other
+	 * views it reads from this collection, so it sees changes made to it.
+	 */
+	public NavigableSet<T> descendingSet()
+	{
+		return all.descendingSet();
+	}
+	
+	/**
+	 * Returns a view of the items from {@code fromItem} up to
+	 * {@code toItem}. The view reads from this collection, so it sees 
+	 * changes made to it. Navigation in the view goes down the tree like
+	 * for this collection, but {@link NavigableSet#size()} of the view goes
+	 * through the items in the range.
+	 */
+	public NavigableSet<T> subSet( T fromItem, boolean fromInclusive, 
+		T toItem, boolean toInclusive )
+	{
+		return all.subSet( fromItem, fromInclusive, toItem, toInclusive );
+	}
+	
+	public NavigableSet<T> headSet( T toItem, boolean inclusive )
+	{
+		return all.headSet( toItem, inclusive );
+	}
+	
+	/**
+	 * Returns a view of the items equal to {@code item} according to the
+	 * comparator of this collection, in node id order, see
+	 * {@link SortedTree#getEqualNodes(Node)}. Items which are equal
+	 * according to the comparator but have different nodes are all kept
+	 * in this collection.
+	 */
+	public NavigableSet<T> equalRange( T item )
+	{
+		return all.subSet( item, true, item, true );
+	}
+	
+	public NavigableSet<T> tailSet( T fromItem, boolean inclusive )
+	{
+		return all.tailSet( fromItem, inclusive );
+	}
+	
+	public SortedSet<T> subSet( T fromItem, T toItem )
+	{
+		return all.subSet( fromItem, toItem );
+	}
+	
+	public SortedSet<T> headSet( T toItem )
+	{
+		return all.headSet( toItem );
+	}
+	
+	public SortedSet<T> tailSet( T fromItem )
+	{
+		return all.tailSet( fromItem );
+	}
+	
+	private static Node nodeOf( NodeWrapper item )
+	{
+		return item != null ? item.getUnderlyingNode() : null;
+	}
+	
 	private class ComparatorWrapper implements Comparator<Node>
 	{
 		private Comparator<T> source;
@@ -185,4 +413,331 @@ public class SortedNodeCollection<T extends NodeWrapper>
 				NodeWrapperImpl.newInstance( instanceClass, o2 ) );
 		}
 	}
+	
+	/**
+	 * A range view of this collection, in sorted or reverse sorted order.
+	 * The bounds are always in sorted order and {@code null} bounds are 
+	 * open. Navigation is done with single descents of the tree, which are
+	 * then checked against the bounds.
+	 */
+	private class SubSet extends java.util.AbstractSet<T>
+		implements NavigableSet<T>
+	{
+		private final T fromItem;
+		private final boolean fromInclusive;
+		private final T toItem;
+		private final boolean toInclusive;
+		private final boolean descending;
+		
+		SubSet( T fromItem, boolean fromInclusive, T toItem, 
+			boolean toInclusive, boolean descending )
+		{
+			this.fromItem = fromItem;
+			this.fromInclusive = fromInclusive;
+			this.toItem = toItem;
+			this.toInclusive = toInclusive;
+			this.descending = descending;
+		}
+		
+		private boolean isUnbounded()
+		{
+			return fromItem == null && toItem == null;
+		}
+		
+		private boolean isBelowRange( T item )
+		{
+			if ( fromItem == null )
+			{
+				return false;
+			}
+			int result = comparator.compare( item, fromItem );
+			return result < 0 || ( result == 0 && !fromInclusive );
+		}
+		
+		private boolean isAboveRange( T item )
+		{
+			if ( toItem == null )
+			{
+				return false;
+			}
+			int result = comparator.compare( item, toItem );
+			return result > 0 || ( result == 0 && !toInclusive );
+		}
+		
+		private boolean inRange( T item )
+		{
+			return !isBelowRange( item ) && !isAboveRange( item );
+		}
+		
+		private T inRangeItem( Node node )
+		{
+			if ( node == null )
+			{
+				return null;
+			}
+			T item = instantiateItem( node );
+			return inRange( item ) ? item : null;
+		}
+		
+		// the abs* methods navigate in sorted order regardless of descending
+		private T absLowest()
+		{
+			return inRangeItem( fromItem == null ? index().getFirstNode() :
+				fromInclusive ? index().getCeilingNode( nodeOf( fromItem ) ) :
+				index().getHigherNode( nodeOf( fromItem ) ) );
+		}
+		
+		private T absHighest()
+		{
+			return inRangeItem( toItem == null ? index().getLastNode() :
+				toInclusive ? index().getFloorNode( nodeOf( toItem ) ) :
+				index().getLowerNode( nodeOf( toItem ) ) );
+		}
+		
+		private T absCeiling( T item )
+		{
+			return isBelowRange( item ) ? absLowest() : 
+				inRangeItem( index().getCeilingNode( nodeOf( item ) ) );
+		}
+		
+		private T absHigher( T item )
+		{
+			return isBelowRange( item ) ? absLowest() : 
+				inRangeItem( index().getHigherNode( nodeOf( item ) ) );
+		}
+		
+		private T absFloor( T item )
+		{
+			return isAboveRange( item ) ? absHighest() : 
+				inRangeItem( index().getFloorNode( nodeOf( item ) ) );
+		}
+		
+		private T absLower( T item )
+		{
+			return isAboveRange( item ) ? absHighest() : 
+				inRangeItem( index().getLowerNode( nodeOf( item ) ) );
+		}
+		
+		private void checkBound( T item )
+		{
+			if ( ( fromItem != null && 
+				comparator.compare( item, fromItem ) < 0 ) ||
+				( toItem != null && comparator.compare( item, toItem ) > 0 ) )
+			{
+				throw new IllegalArgumentException( item + " out of range" );
+			}
+		}
+		
+		// creates a view of the intersection of this range and a new one,
+		// both in sorted order
+		private NavigableSet<T> absSubSet( T newFromItem, 
+			boolean newFromInclusive, T newToItem, boolean newToInclusive )
+		{
+			if ( newFromItem == null )
+			{
+				newFromItem = fromItem;
+				newFromInclusive = fromInclusive;
+			}
+			else
+			{
+				checkBound( newFromItem );
+				if ( fromItem != null && 
+					comparator.compare( newFromItem, fromItem ) == 0 )
+				{
+					newFromInclusive &= fromInclusive;
+				}
+			}
+			if ( newToItem == null )
+			{
+				newToItem = toItem;
+				newToInclusive = toInclusive;
+			}
+			else
+			{
+				checkBound( newToItem );
+				if ( toItem != null && 
+					comparator.compare( newToItem, toItem ) == 0 )
+				{
+					newToInclusive &= toInclusive;
+				}
+			}
+			if ( newFromItem != null && newToItem != null && 
+				comparator.compare( newFromItem, newToItem ) > 0 )
+			{
+				throw new IllegalArgumentException( newFromItem + " > " + 
+					newToItem );
+			}
+			return new SubSet( newFromItem, newFromInclusive, newToItem, 
+				newToInclusive, descending );
+		}
+		
+		@Override
+		public Iterator<T> iterator()
+		{
+			return SortedNodeCollection.this.iterator( fromItem, 
+				fromInclusive, toItem, toInclusive, descending );
+		}
+		
+		public Iterator<T> descendingIterator()
+		{
+			return SortedNodeCollection.this.iterator( fromItem, 
+				fromInclusive, toItem, toInclusive, !descending );
+		}
+		
+		@Override
+		public int size()
+		{
+			if ( isUnbounded() )
+			{
+				return SortedNodeCollection.this.size();
+			}
+			int size = 0;
+			for ( Iterator<T> items = iterator(); items.hasNext(); )
+			{
+				items.next();
+				size++;
+			}
+			return size;
+		}
+		
+		@Override
+		public boolean isEmpty()
+		{
+			return isUnbounded() ? SortedNodeCollection.this.isEmpty() :
+				absLowest() == null;
+		}
+		
+		@Override
+		public boolean add( T item )
+		{
+			if ( !inRange( item ) )
+			{
+				throw new IllegalArgumentException( item + " out of range" );
+			}
+			return SortedNodeCollection.this.add( item );
+		}
+		
+		@Override
+		public boolean contains( Object item )
+		{
+			return instanceClass.isInstance( item ) && 
+				inRange( instanceClass.cast( item ) ) && 
+				SortedNodeCollection.this.contains( item );
+		}
+		
+		@Override
+		public boolean remove( Object item )
+		{
+			return instanceClass.isInstance( item ) && 
+				inRange( instanceClass.cast( item ) ) && 
+				SortedNodeCollection.this.remove( item );
+		}
+		
+		public Comparator<? super T> comparator()
+		{
+			return descending ? Collections.reverseOrder( comparator ) : 
+				comparator;
+		}
+		
+		public T first()
+		{
+			T item = descending ? absHighest() : absLowest();
+			if ( item == null )
+			{
+				throw new NoSuchElementException();
+			}
+			return item;
+		}
+		
+		public T last()
+		{
+			T item = descending ? absLowest() : absHighest();
+			if ( item == null )
+			{
+				throw new NoSuchElementException();
+			}
+			return item;
+		}
+		
+		public T ceiling( T item )
+		{
+			return descending ? absFloor( item ) : absCeiling( item );
+		}
+		
+		public T floor( T item )
+		{
+			return descending ? absCeiling( item ) : absFloor( item );
+		}
+		
+		public T higher( T item )
+		{
+			return descending ? absLower( item ) : absHigher( item );
+		}
+		
+		public T lower( T item )
+		{
+			return descending ? absHigher( item ) : absLower( item );
+		}
+		
+		public T pollFirst()
+		{
+			T item = descending ? absHighest() : absLowest();
+			if ( item != null )
+			{
+				SortedNodeCollection.this.remove( item );
+			}
+			return item;
+		}
+		
+		public T pollLast()
+		{
+			T item = descending ? absLowest() : absHighest();
+			if ( item != null )
+			{
+				SortedNodeCollection.this.remove( item );
+			}
+			return item;
+		}
+		
+		public NavigableSet<T> descendingSet()
+		{
+			return new SubSet( fromItem, fromInclusive, toItem, toInclusive, 
+				!descending );
+		}
+		
+		public NavigableSet<T> subSet( T fromItem, boolean fromInclusive, 
+			T toItem, boolean toInclusive )
+		{
+			return descending ? 
+				absSubSet( toItem, toInclusive, fromItem, fromInclusive ) :
+				absSubSet( fromItem, fromInclusive, toItem, toInclusive );
+		}
+		
+		public NavigableSet<T> headSet( T toItem, boolean inclusive )
+		{
+			return descending ? absSubSet( toItem, inclusive, null, false ) :
+				absSubSet( null, false, toItem, inclusive );
+		}
+		
+		public NavigableSet<T> tailSet( T fromItem, boolean inclusive )
+		{
+			return descending ? absSubSet( null, false, fromItem, inclusive ) :
+				absSubSet( fromItem, inclusive, null, false );
+		}
+		
+		public SortedSet<T> subSet( T fromItem, T toItem )
+		{
+			return subSet( fromItem, true, toItem, false );
+		}
+		
+		public SortedSet<T> headSet( T toItem )
+		{
+			return headSet( toItem, false );
+		}
+		
+		public SortedSet<T> tailSet( T fromItem )
+		{
+			return tailSet( fromItem, true );
+		}
+	}
 }
@@ -0,0 +1,384 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * A Bloom filter over {@code long} keys, used to answer "definitely not
+ * there" for keys of a tree without descending it. The filter is stored
+ * on a node of its own, with a {@code BLOOM_FILTER} relationship from the
+ * node it belongs to (the owner), and its bits are split into chunks of
+ * {@value #CHUNK_SIZE} {@code long}s, each chunk on a node of its own. An
+ * added key therefore only locks the chunks it sets bits in, so writers
+ * adding different keys seldom contend for the filter. All chunk nodes
+ * are created with the filter.
+ * <p>
+ * A Bloom filter can't remove keys, removed keys only make the filter
+ * less selective. Removals are therefore counted, on the filter node, and
+ * {@link #needsRebuild(long)} tells when enough keys have been removed
+ * for a rebuild ({@link #clear()} and then adding all keys again) to be
+ * worth it.
+ * <p>
+ * Since a filter may be created after other instances of a tree have
+ * been created, trees should {@link #load(Node, PersistentBloomFilter)}
+ * the filter for every operation, and writers should do so after they
+ * have locked the owner, so that a filter created concurrently either is
+ * committed, and seen, or waits for the writer to commit.
+ */
+public class PersistentBloomFilter
+{
+	static enum RelTypes implements RelationshipType
+	{
+		BLOOM_FILTER,
+		BLOOM_FILTER_CHUNK
+	}
+	
+	static final String BITS = "bloom_filter_bits";
+	static final String HASH_COUNT = "bloom_filter_hashes";
+	static final String CHUNKS = "bloom_filter_chunks";
+	static final String CHUNK = "bloom_filter_chunk";
+	static final String REMOVED = "bloom_filter_removed";
+	static final int CHUNK_SIZE = 64;
+	private static final int CHUNK_BITS = CHUNK_SIZE * 64;
+	
+	private final GraphDatabaseService graphDb;
+	private final Relationship filterRel;
+	private final Node node;
+	private final long bitCount;
+	private final int hashCount;
+	private final long[] chunkIds;
+	
+	private PersistentBloomFilter( GraphDatabaseService graphDb, 
+		Relationship filterRel )
+	{
+		this.graphDb = graphDb;
+		this.filterRel = filterRel;
+		this.node = filterRel.getEndNode();
+		this.bitCount = (Long) node.getProperty( BITS );
+		this.hashCount = (Integer) node.getProperty( HASH_COUNT );
+		this.chunkIds = (long[]) node.getProperty( CHUNKS );
+	}
+	
+	/**
+	 * Creates a new, empty, filter for {@code owner}, replacing any 
+	 * existing filter. Must be called within a transaction.
+	 * 
+	 * @param graphDb the {@link GraphDatabaseService} instance.
+	 * @param owner the node the filter belongs to.
+	 * @param expectedKeys the number of keys the filter is sized for.
+	 * @param falsePositiveRate the wanted rate of false positives with
+	 * {@code expectedKeys} keys added, f.ex. {@code 0.01}.
+	 * @return the created filter.
+	 */
+	public static PersistentBloomFilter create( GraphDatabaseService graphDb,
+		Node owner, long expectedKeys, double falsePositiveRate )
+	{
+		if ( expectedKeys < 1 || falsePositiveRate <= 0 || 
+			falsePositiveRate >= 1 )
+		{
+			throw new IllegalArgumentException( "Invalid expected keys " + 
+				expectedKeys + " or false positive rate " + 
+				falsePositiveRate );
+		}
+		double ln2 = Math.log( 2 );
+		long bits = (long) Math.ceil( 
+			-expectedKeys * Math.log( falsePositiveRate ) / ( ln2 * ln2 ) );
+		// whole longs
+		bits = ( ( bits + 63 ) / 64 ) * 64;
+		int hashes = Math.max( 1, 
+			(int) Math.round( (double) bits / expectedKeys * ln2 ) );
+		PersistentBloomFilter filter = load( graphDb, owner );
+		if ( filter != null )
+		{
+			filter.delete();
+		}
+		Node filterNode = graphDb.createNode();
+		long[] chunkIds = new long[(int) ( ( bits + CHUNK_BITS - 1 ) / 
+			CHUNK_BITS )];
+		for ( int i = 0; i < chunkIds.length; i++ )
+		{
+			Node chunkNode = graphDb.createNode();
+			filterNode.createRelationshipTo( chunkNode, 
+				RelTypes.BLOOM_FILTER_CHUNK );
+			chunkIds[i] = chunkNode.getId();
+		}
+		filterNode.setProperty( BITS, bits );
+		filterNode.setProperty( HASH_COUNT, hashes );
+		filterNode.setProperty( CHUNKS, chunkIds );
+		filterNode.setProperty( REMOVED, 0L );
+		return new PersistentBloomFilter( graphDb, owner.createRelationshipTo( 
+			filterNode, RelTypes.BLOOM_FILTER ) );
+	}
+	
+	/**
+	 * @param graphDb the {@link GraphDatabaseService} instance.
+	 * @param owner the node the filter belongs to.
+	 * @return the filter of {@code owner} or {@code null} if there's none.
+	 */
+	public static PersistentBloomFilter load( GraphDatabaseService graphDb,
+		Node owner )
+	{
+		return load( graphDb, owner, null );
+	}
+	
+	/**
+	 * Like {@link #load(GraphDatabaseService, Node)}, but returns
+	 * {@code previous} if it still is the filter of {@code owner}, which
+	 * only costs a lookup of the relationship to the filter.
+	 * 
+	 * @param graphDb the {@link GraphDatabaseService} instance.
+	 * @param owner the node the filter belongs to.
+	 * @param previous a previously loaded filter of {@code owner}, or
+	 * {@code null}.
+	 * @return the filter of {@code owner} or {@code null} if there's none.
+	 */
+	public static PersistentBloomFilter load( GraphDatabaseService graphDb,
+		Node owner, PersistentBloomFilter previous )
+	{
+		Relationship rel = owner.getSingleRelationship( RelTypes.BLOOM_FILTER,
+			Direction.OUTGOING );
+		if ( rel == null )
+		{
+			return null;
+		}
+		return previous != null && previous.filterRel.equals( rel ) ? 
+			previous : new PersistentBloomFilter( graphDb, rel );
+	}
+	
+	/**
+	 * Adds a key to the filter.
+	 * 
+	 * @param key the key to add.
+	 */
+	public void add( long key )
+	{
+		long hash1 = mix( key );
+		long hash2 = mix( hash1 ) | 1;
+		int currentChunk = -1;
+		long[] chunk = null;
+		boolean changed = false;
+		for ( int i = 0; i < hashCount; i++ )
+		{
+			long bit = bitIndex( hash1 + i * hash2 );
+			int chunkIndex = (int) ( bit / CHUNK_BITS );
+			if ( chunkIndex != currentChunk )
+			{
+				if ( changed )
+				{
+					setChunk( currentChunk, chunk );
+				}
+				currentChunk = chunkIndex;
+				chunk = getChunk( chunkIndex );
+				changed = false;
+			}
+			int bitInChunk = (int) ( bit % CHUNK_BITS );
+			long mask = 1L << ( bitInChunk & 63 );
+			if ( ( chunk[bitInChunk >>> 6] & mask ) == 0 )
+			{
+				chunk[bitInChunk >>> 6] |= mask;
+				changed = true;
+			}
+		}
+		if ( changed )
+		{
+			setChunk( currentChunk, chunk );
+		}
+	}
+	
+	/**
+	 * @param key the key to check.
+	 * @return {@code false} if {@code key} definitely hasn't been added,
+	 * {@code true} if it may have been.
+	 */
+	public boolean mightContain( long key )
+	{
+		long hash1 = mix( key );
+		long hash2 = mix( hash1 ) | 1;
+		for ( int i = 0; i < hashCount; i++ )
+		{
+			long bit = bitIndex( hash1 + i * hash2 );
+			long[] chunk = (long[]) chunkNode( (int) ( bit / CHUNK_BITS ) ).
+				getProperty( CHUNK, null );
+			if ( chunk == null )
+			{
+				return false;
+			}
+			int bitInChunk = (int) ( bit % CHUNK_BITS );
+			if ( ( chunk[bitInChunk >>> 6] & ( 1L << ( bitInChunk & 63 ) ) ) 
+				== 0 )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Records that a key has been removed from the tree.
+	 */
+	public void removed()
+	{
+		node.setProperty( REMOVED, (Long) node.getProperty( REMOVED ) + 1 );
+	}
+	
+	/**
+	 * @param size the number of keys in the tree.
+	 * @return {@code true} if more keys have been removed than there are
+	 * keys left since the filter was last cleared, i.e. when a rebuild
+	 * costs less than the removals it makes up for.
+	 */
+	public boolean needsRebuild( long size )
+	{
+		long removed = (Long) node.getProperty( REMOVED );
+		return removed > 0 && removed > size;
+	}
+	
+	/**
+	 * Clears all bits and the removal counter, keeping the size of the
+	 * filter.
+	 */
+	public void clear()
+	{
+		for ( int i = 0; i < chunkIds.length; i++ )
+		{
+			Node chunkNode = chunkNode( i );
+			if ( chunkNode.hasProperty( CHUNK ) )
+			{
+				chunkNode.removeProperty( CHUNK );
+			}
+		}
+		node.setProperty( REMOVED, 0L );
+	}
+	
+	/**
+	 * Deletes the filter, its nodes and relationships.
+	 */
+	public void delete()
+	{
+		for ( Relationship rel : node.getRelationships( 
+			RelTypes.BLOOM_FILTER_CHUNK, Direction.OUTGOING ) )
+		{
+			Node chunkNode = rel.getEndNode();
+			rel.delete();
+			chunkNode.delete();
+		}
+		filterRel.delete();
+		node.delete();
+	}
+	
+	/**
+	 * Deletes the filter of {@code owner}, if there is one, in bounded
+	 * transactions. Transactions are started and committed internally so
+	 * this method must not be called from within a transaction. If it's
+	 * interrupted it can be resumed by calling it again.
+	 * 
+	 * @param graphDb the {@link GraphDatabaseService} instance.
+	 * @param owner the node the filter belongs to.
+	 * @param commitInterval number of nodes and relationships to delete
+	 * before the transaction is committed and a new one is started
+	 */
+	public static void deleteInBatches( GraphDatabaseService graphDb, 
+		Node owner, int commitInterval )
+	{
+		boolean done = false;
+		while ( !done )
+		{
+			Transaction tx = graphDb.beginTx();
+			try
+			{
+				Relationship filterRel = owner.getSingleRelationship( 
+					RelTypes.BLOOM_FILTER, Direction.OUTGOING );
+				done = filterRel == null || 
+					deleteSome( filterRel, commitInterval );
+				tx.success();
+			}
+			finally
+			{
+				tx.finish();
+			}
+		}
+	}
+	
+	// returns true when the whole filter has been deleted
+	private static boolean deleteSome( Relationship filterRel, 
+		int commitInterval )
+	{
+		Node filterNode = filterRel.getEndNode();
+		int count = 0;
+		for ( Relationship rel : filterNode.getRelationships( 
+			RelTypes.BLOOM_FILTER_CHUNK, Direction.OUTGOING ) )
+		{
+			if ( count >= commitInterval )
+			{
+				return false;
+			}
+			Node chunkNode = rel.getEndNode();
+			rel.delete();
+			chunkNode.delete();
+			count += 2;
+		}
+		filterRel.delete();
+		filterNode.delete();
+		return true;
+	}
+	
+	private Node chunkNode( int chunkIndex )
+	{
+		return graphDb.getNodeById( chunkIds[chunkIndex] );
+	}
+	
+	private long[] getChunk( int chunkIndex )
+	{
+		long[] chunk = (long[]) chunkNode( chunkIndex ).getProperty( CHUNK, 
+			null );
+		// never modify the array of a property in place
+		return chunk != null ? chunk.clone() : new long[CHUNK_SIZE];
+	}
+	
+	private void setChunk( int chunkIndex, long[] chunk )
+	{
+		chunkNode( chunkIndex ).setProperty( CHUNK, chunk );
+	}
+	
+	private long bitIndex( long hash )
+	{
+		return ( hash & Long.MAX_VALUE ) % bitCount;
+	}
+	
+	/**
+	 * The finalization step of MurmurHash3, so that keys which are close
+	 * to each other, like node ids, are spread over the whole filter.
+	 */
+	private static long mix( long hash )
+	{
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
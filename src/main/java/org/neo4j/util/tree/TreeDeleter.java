@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.AbstractGraphDatabase;
+import org.neo4j.util.GraphDatabaseUtil;
+
+/**
+ * Deletes a whole b-tree stored in the graph in bounded transactions, so
+ * that a large tree can be dropped without building one huge transaction
+ * or holding locks for the whole duration. It works on the same structure
+ * as {@link TreeEngine} and is used by both
+ * {@link org.neo4j.util.tree.btree.BTree} and
+ * {@link org.neo4j.util.tree.sortedtree.SortedTree}, which pass in their
+ * relationship types.
+ * <p>
+ * The tree is deleted post-order, one tree node at a time: the leftmost
+ * tree node which has no sub trees is found by descending from the
+ * current root and is then deleted, together with the {@code SUB_TREE}
+ * relationship to its parent, in the same transaction. A transaction is
+ * committed as soon as at least {@code commitInterval} nodes and
+ * relationships have been deleted in it. The tree is thereby always a
+ * proper (but partially deleted) tree between transactions and all state
+ * needed to continue lives in the graph itself. If the deletion is
+ * interrupted, f.ex. by a crash or by {@link #stop()}, it's resumed by
+ * just creating a new deleter for the same anchor node.
+ * <p>
+ * The deleter begins and commits its own transactions and must therefore
+ * not be invoked from within a transaction (that would make the
+ * transactions of the deleter nested and nothing would be committed until
+ * the outer transaction is). It implements {@link Runnable} so that it can
+ * run in a background thread.
+ */
+public class TreeDeleter implements Runnable
+{
+	/**
+	 * Gets notified about each entry just before it is deleted, while its
+	 * properties still can be read. Used to delete data which is referenced
+	 * from the entries, in the same transaction as the entries themselves.
+	 */
+	public static interface EntryHandler
+	{
+		/**
+		 * Called for each entry relationship before it is deleted.
+		 * 
+		 * @param entry the entry about to be deleted.
+		 * @return the number of nodes and relationships deleted by this
+		 * handler, counted towards the commit interval.
+		 */
+		int entryDeleted( Relationship entry );
+	}
+	
+	/**
+	 * Property set on the anchor node while a deletion is in progress.
+	 */
+	static final String DELETE_IN_PROGRESS = "tree_delete_in_progress";
+	
+	private final GraphDatabaseService graphDb;
+	private final Node anchorNode;
+	private final RelationshipType keyEntryType;
+	private final RelationshipType subTreeType;
+	private final RelationshipType treeRootType;
+	private final int commitInterval;
+	private final EntryHandler entryHandler;
+	private volatile boolean stopped;
+	private volatile long deletedCount;
+	
+	/**
+	 * @param graphDb the {@link GraphDatabaseService} instance.
+	 * @param anchorNode the node with the outgoing {@code TREE_ROOT}
+	 * relationship.
+	 * @param keyEntryType the type of the entry relationships.
+	 * @param subTreeType the type of the relationships to sub trees.
+	 * @param treeRootType the type of the relationship from the anchor
+	 * node to the root.
+	 * @param commitInterval the number of nodes and relationships to delete
+	 * in each transaction.
+	 * @param entryHandler notified about each entry before it's deleted,
+	 * may be {@code null}.
+	 */
+	public TreeDeleter( GraphDatabaseService graphDb, Node anchorNode, 
+		RelationshipType keyEntryType, RelationshipType subTreeType, 
+		RelationshipType treeRootType, int commitInterval, 
+		EntryHandler entryHandler )
+	{
+		if ( commitInterval < 1 )
+		{
+			throw new IllegalArgumentException( "Invalid commit interval " +
+				commitInterval );
+		}
+		this.graphDb = graphDb;
+		this.anchorNode = anchorNode;
+		this.keyEntryType = keyEntryType;
+		this.subTreeType = subTreeType;
+		this.treeRootType = treeRootType;
+		this.commitInterval = commitInterval;
+		this.entryHandler = entryHandler;
+	}
+	
+	/**
+	 * @param anchorNode the node with the outgoing {@code TREE_ROOT}
+	 * relationship.
+	 * @return whether or not a deletion of the tree was started, but not
+	 * completed.
+	 */
+	public static boolean isDeleteInProgress( Node anchorNode )
+	{
+		return anchorNode.hasProperty( DELETE_IN_PROGRESS );
+	}
+	
+	/**
+	 * Deletes the tree, or what's left of it, committing a transaction
+	 * every {@code commitInterval} deleted nodes and relationships. Returns
+	 * when the tree has been deleted or when {@link #stop()} has been
+	 * called.
+	 * 
+	 * @return {@code true} if the tree was completely deleted.
+	 */
+	public boolean deleteAll()
+	{
+		while ( !stopped )
+		{
+			if ( !deleteBatch() )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Deletes about {@code commitInterval} nodes and relationships of the
+	 * tree in one transaction.
+	 * 
+	 * @return {@code true} if there's more of the tree left to delete.
+	 */
+	public boolean deleteBatch()
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			boolean more = deleteInCurrentTransaction();
+			tx.success();
+			return more;
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Deletes the tree in the transaction of the caller, committing that
+	 * transaction and beginning a new one in its place every
+	 * {@code commitInterval} deleted nodes and relationships. The caller
+	 * finishes the last transaction as usual. This is how
+	 * {@link org.neo4j.util.tree.btree.BTree#delete(int)} and
+	 * {@link org.neo4j.util.tree.sortedtree.SortedTree#delete(int)} have
+	 * always worked, a deletion which doesn't involve the transaction of the
+	 * caller is done by {@link #deleteAll()}. Must be called within a
+	 * transaction.
+	 */
+	public void deleteAllCommittingCurrentTransaction()
+	{
+		while ( deleteInCurrentTransaction() )
+		{
+			try
+			{
+				javax.transaction.Transaction tx = ( (AbstractGraphDatabase) 
+					graphDb ).getTxManager().getTransaction();
+				if ( tx != null )
+				{
+					tx.commit();
+				}
+			}
+			catch ( Exception e )
+			{
+				throw new RuntimeException( e );
+			}
+			graphDb.beginTx();
+		}
+	}
+	
+	private boolean deleteInCurrentTransaction()
+	{
+		GraphDatabaseUtil.acquireWriteLock( anchorNode );
+		Relationship rootRel = anchorNode.getSingleRelationship( 
+			treeRootType, Direction.OUTGOING );
+		boolean more = rootRel != null;
+		if ( more && !anchorNode.hasProperty( DELETE_IN_PROGRESS ) )
+		{
+			anchorNode.setProperty( DELETE_IN_PROGRESS, true );
+		}
+		int count = 0;
+		while ( more && count < commitInterval )
+		{
+			count += deleteLeftmostLeaf( rootRel.getEndNode() );
+			rootRel = anchorNode.getSingleRelationship( 
+				treeRootType, Direction.OUTGOING );
+			more = rootRel != null;
+		}
+		if ( !more )
+		{
+			anchorNode.removeProperty( DELETE_IN_PROGRESS );
+		}
+		deletedCount += count;
+		return more;
+	}
+	
+	/**
+	 * Deletes the tree in the calling thread, see {@link #deleteAll()}.
+	 */
+	public void run()
+	{
+		deleteAll();
+	}
+	
+	/**
+	 * Makes {@link #deleteAll()} return after the current transaction has
+	 * been committed. The deletion can be resumed later with a new deleter.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+	
+	/**
+	 * @return the number of nodes and relationships deleted by this deleter
+	 * so far, including the ones deleted by the {@link EntryHandler}.
+	 */
+	public long getDeletedCount()
+	{
+		return deletedCount;
+	}
+	
+	private int deleteLeftmostLeaf( Node treeNode )
+	{
+		Node leaf = treeNode;
+		Node child = getFirstSubTree( leaf );
+		while ( child != null )
+		{
+			leaf = child;
+			child = getFirstSubTree( leaf );
+		}
+		return deleteTreeNode( leaf );
+	}
+	
+	private Node getFirstSubTree( Node treeNode )
+	{
+		Node node = treeNode;
+		while ( node != null )
+		{
+			Relationship subTree = node.getSingleRelationship( 
+				subTreeType, Direction.OUTGOING );
+			if ( subTree != null )
+			{
+				return subTree.getEndNode();
+			}
+			Relationship entry = node.getSingleRelationship( 
+				keyEntryType, Direction.OUTGOING );
+			node = entry != null ? entry.getEndNode() : null;
+		}
+		return null;
+	}
+	
+	private int deleteTreeNode( Node treeNode )
+	{
+		int count = 0;
+		Relationship toParent = treeNode.getSingleRelationship( 
+			subTreeType, Direction.INCOMING );
+		if ( toParent == null )
+		{
+			toParent = treeNode.getSingleRelationship( 
+				treeRootType, Direction.INCOMING );
+		}
+		toParent.delete();
+		count++;
+		Node node = treeNode;
+		while ( node != null )
+		{
+			Relationship entry = node.getSingleRelationship( 
+				keyEntryType, Direction.OUTGOING );
+			Node nextNode = null;
+			if ( entry != null )
+			{
+				if ( entryHandler != null )
+				{
+					count += entryHandler.entryDeleted( entry );
+				}
+				nextNode = entry.getEndNode();
+				entry.delete();
+				count++;
+			}
+			node.delete();
+			count++;
+			node = nextNode;
+		}
+		return count;
+	}
+}
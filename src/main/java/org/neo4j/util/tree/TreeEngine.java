@@ -0,0 +1,794 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree;
+
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * The structural part of the b-trees stored in the graph, shared by
+ * {@link org.neo4j.util.tree.btree.BTree} and
+ * {@link org.neo4j.util.tree.sortedtree.SortedTree}.
+ * <p>
+ * A tree node is a chain of nodes connected by {@code KEY_ENTRY}
+ * relationships, where each relationship is an entry. The sub tree
+ * before an entry hangs off its start node and the sub tree after the
+ * last entry off the last node of the chain, with {@code SUB_TREE}
+ * relationships. The root has an incoming {@code TREE_ROOT} relationship
+ * from the anchor node. Tree nodes are identified by the first node of
+ * their chain.
+ * <p>
+ * The engine only knows about this structure: how the entries are ordered
+ * is given by a {@link Target} for each descent and what an entry holds
+ * is the properties of its relationship, which are kept as the entry is
+ * moved around when the tree is rebalanced. A tree node is split when it
+ * has {@link #getOrder()} entries and is rebalanced, by borrowing from or
+ * merging with a sibling, when it has less than half of that.
+ */
+public abstract class TreeEngine
+{
+	/**
+	 * Where a descent is heading, relative to the entries it passes.
+	 */
+	public static interface Target
+	{
+		/**
+		 * @param entry an entry passed by the descent.
+		 * @return a negative value if the target is before {@code entry},
+		 * zero if {@code entry} is the target and a positive value if the
+		 * target is after it.
+		 */
+		int compareTo( Relationship entry );
+	}
+	
+	private final RelationshipType keyEntryType;
+	private final RelationshipType subTreeType;
+	private final RelationshipType treeRootType;
+	
+	/**
+	 * @param keyEntryType the type of the entry relationships.
+	 * @param subTreeType the type of the relationships to sub trees.
+	 * @param treeRootType the type of the relationship from the anchor
+	 * node to the root.
+	 */
+	protected TreeEngine( RelationshipType keyEntryType, 
+		RelationshipType subTreeType, RelationshipType treeRootType )
+	{
+		this.keyEntryType = keyEntryType;
+		this.subTreeType = subTreeType;
+		this.treeRootType = treeRootType;
+	}
+	
+	protected abstract GraphDatabaseService getGraphDb();
+	
+	/**
+	 * @return the number of entries which makes a tree node split.
+	 */
+	protected abstract int getOrder();
+	
+	/**
+	 * Called when the root has been replaced, the {@code TREE_ROOT}
+	 * relationship already points at {@code newRoot}.
+	 */
+	protected abstract void rootChanged( Node newRoot );
+	
+	/**
+	 * Called before a tree node is split or rebalanced because of an added
+	 * or removed entry.
+	 */
+	protected void structureChanged()
+	{
+	}
+	
+	/**
+	 * Called when a tree node has been split into {@code left} and
+	 * {@code right}, after the sub trees of both have been connected.
+	 */
+	protected void treeNodeSplit( Node left, Node right )
+	{
+	}
+	
+	/**
+	 * Called when the first node of a tree node has become an inner node
+	 * of the chain, so that anything stored on first nodes can be removed
+	 * from it.
+	 */
+	protected void firstNodeMoved( Node node )
+	{
+	}
+	
+	public Relationship getFirstEntry( Node treeNode )
+	{
+		return treeNode.getSingleRelationship( keyEntryType, 
+			Direction.OUTGOING );
+	}
+	
+	public Relationship getNextEntry( Relationship entry )
+	{
+		return getFirstEntry( entry.getEndNode() );
+	}
+	
+	public Relationship getPreviousEntry( Relationship entry )
+	{
+		return entry.getStartNode().getSingleRelationship( keyEntryType, 
+			Direction.INCOMING );
+	}
+	
+	public Relationship getLastEntry( Node treeNode )
+	{
+		Relationship last = null;
+		Relationship entry = getFirstEntry( treeNode );
+		while ( entry != null )
+		{
+			last = entry;
+			entry = getNextEntry( entry );
+		}
+		return last;
+	}
+	
+	/**
+	 * @return the last node in the chain of {@code treeNode}, the one with
+	 * the sub tree after the last entry.
+	 */
+	public Node getLastChainNode( Node treeNode )
+	{
+		Relationship last = getLastEntry( treeNode );
+		return last != null ? last.getEndNode() : treeNode;
+	}
+	
+	public int getEntryCount( Node treeNode )
+	{
+		int entryCount = 0;
+		Relationship entry = getFirstEntry( treeNode );
+		while ( entry != null )
+		{
+			entryCount++;
+			entry = getNextEntry( entry );
+		}
+		return entryCount;
+	}
+	
+	/**
+	 * @return the tree node connected to {@code chainNode} with a 
+	 * {@code SUB_TREE} relationship, or {@code null} if there's none.
+	 */
+	public Node getSubTree( Node chainNode )
+	{
+		Relationship subTree = chainNode.getSingleRelationship( subTreeType, 
+			Direction.OUTGOING );
+		return subTree != null ? subTree.getEndNode() : null;
+	}
+	
+	/**
+	 * @return the tree node which {@code chainNode} is part of, found by
+	 * walking back to the start of its chain.
+	 */
+	public Node getTreeNode( Node chainNode )
+	{
+		Relationship prevEntry = chainNode.getSingleRelationship( 
+			keyEntryType, Direction.INCOMING );
+		while ( prevEntry != null )
+		{
+			chainNode = prevEntry.getStartNode();
+			prevEntry = chainNode.getSingleRelationship( keyEntryType, 
+				Direction.INCOMING );
+		}
+		return chainNode;
+	}
+	
+	public Node getParent( Node treeNode )
+	{
+		Relationship toParent = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING );
+		return toParent != null ? 
+			getTreeNode( toParent.getStartNode() ) : null;
+	}
+	
+	public Node getLeftSibling( Node treeNode )
+	{
+		Relationship toParent = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING );
+		if ( toParent == null )
+		{
+			return null;
+		}
+		Relationship prevEntry = toParent.getStartNode().getSingleRelationship( 
+			keyEntryType, Direction.INCOMING );
+		return prevEntry != null ? 
+			getSubTree( prevEntry.getStartNode() ) : null;
+	}
+	
+	public Node getRightSibling( Node treeNode )
+	{
+		Relationship toParent = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING );
+		if ( toParent == null )
+		{
+			return null;
+		}
+		Relationship nextEntry = getFirstEntry( toParent.getStartNode() );
+		return nextEntry != null ? 
+			getSubTree( nextEntry.getEndNode() ) : null;
+	}
+	
+	public boolean isRoot( Node treeNode )
+	{
+		return treeNode.getSingleRelationship( treeRootType, 
+			Direction.INCOMING ) != null;
+	}
+	
+	public boolean isLeaf( Relationship entry )
+	{
+		return getSubTree( entry.getStartNode() ) == null;
+	}
+	
+	/**
+	 * Returns the entry which is {@code target}, or {@code null}.
+	 */
+	public Relationship findEntry( Node treeNode, Target target )
+	{
+		while ( treeNode != null )
+		{
+			Node chainNode = treeNode;
+			Relationship entry = getFirstEntry( chainNode );
+			while ( entry != null )
+			{
+				int compare = target.compareTo( entry );
+				if ( compare == 0 )
+				{
+					return entry;
+				}
+				if ( compare < 0 )
+				{
+					break;
+				}
+				chainNode = entry.getEndNode();
+				entry = getFirstEntry( chainNode );
+			}
+			treeNode = getSubTree( chainNode );
+		}
+		return null;
+	}
+	
+	/**
+	 * Adds an entry with {@code properties} where {@code target} leads,
+	 * splitting tree nodes as needed.
+	 * 
+	 * @return the added entry, or {@code null} if there already is an
+	 * entry which is {@code target}.
+	 */
+	public Relationship addEntry( Node treeNode, Target target, 
+		Map<String, Object> properties )
+	{
+		return addEntry( treeNode, target, properties, false );
+	}
+	
+	/**
+	 * Adds an entry with {@code properties} where {@code target} leads,
+	 * unless there already is an entry which is {@code target}, in one
+	 * descent of the tree.
+	 * 
+	 * @return the existing entry, or {@code null} if the entry was added.
+	 */
+	public Relationship addOrGetEntry( Node treeNode, Target target, 
+		Map<String, Object> properties )
+	{
+		return addEntry( treeNode, target, properties, true );
+	}
+	
+	private Relationship addEntry( Node treeNode, Target target, 
+		Map<String, Object> properties, boolean returnExisting )
+	{
+		while ( true )
+		{
+			Node chainNode = treeNode;
+			Relationship entry = getFirstEntry( chainNode );
+			while ( entry != null )
+			{
+				int compare = target.compareTo( entry );
+				if ( compare == 0 )
+				{
+					return returnExisting ? entry : null;
+				}
+				if ( compare < 0 )
+				{
+					break;
+				}
+				chainNode = entry.getEndNode();
+				entry = getFirstEntry( chainNode );
+			}
+			Node subTree = getSubTree( chainNode );
+			if ( subTree == null )
+			{
+				Relationship added = insertEntry( chainNode );
+				for ( Map.Entry<String, Object> property : 
+					properties.entrySet() )
+				{
+					added.setProperty( property.getKey(), 
+						property.getValue() );
+				}
+				if ( getEntryCount( treeNode ) == getOrder() )
+				{
+					added = split( treeNode, added );
+				}
+				return returnExisting ? null : added;
+			}
+			treeNode = subTree;
+		}
+	}
+	
+	// inserts a new entry right after chainNode, without properties
+	private Relationship insertEntry( Node chainNode )
+	{
+		Node blankNode = getGraphDb().createNode();
+		Relationship nextEntry = getFirstEntry( chainNode );
+		if ( nextEntry != null )
+		{
+			moveEntry( nextEntry, blankNode, nextEntry.getEndNode() );
+		}
+		return chainNode.createRelationshipTo( blankNode, keyEntryType );
+	}
+	
+	/**
+	 * Moves the middle entry of {@code treeNode} up to the parent, the
+	 * entries after it become a new tree node to the right. The middle
+	 * entry is inserted where {@code treeNode} hangs in the parent, so no
+	 * keys need to be compared. Splits the parent too if it becomes full.
+	 * 
+	 * @return the relationship of {@code tracked}, which is replaced if it
+	 * is moved.
+	 */
+	private Relationship split( Node treeNode, Relationship tracked )
+	{
+		structureChanged();
+		Node parentChainNode;
+		Relationship toParent = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING );
+		if ( toParent == null )
+		{
+			parentChainNode = getGraphDb().createNode();
+			makeRoot( treeNode, parentChainNode );
+		}
+		else
+		{
+			parentChainNode = toParent.getStartNode();
+			toParent.delete();
+		}
+		Relationship middleEntry = getFirstEntry( treeNode );
+		for ( int i = 0; i < getOrder() / 2; i++ )
+		{
+			middleEntry = getNextEntry( middleEntry );
+		}
+		Node right = middleEntry.getEndNode();
+		Relationship nextInParent = getFirstEntry( parentChainNode );
+		Node blankNode = getGraphDb().createNode();
+		if ( nextInParent != null )
+		{
+			Relationship moved = moveEntry( nextInParent, blankNode, 
+				nextInParent.getEndNode() );
+			tracked = nextInParent.equals( tracked ) ? moved : tracked;
+		}
+		Relationship moved = moveEntry( middleEntry, parentChainNode, 
+			blankNode );
+		tracked = middleEntry.equals( tracked ) ? moved : tracked;
+		parentChainNode.createRelationshipTo( treeNode, subTreeType );
+		blankNode.createRelationshipTo( right, subTreeType );
+		treeNodeSplit( treeNode, right );
+		Node parent = getTreeNode( parentChainNode );
+		if ( getEntryCount( parent ) == getOrder() )
+		{
+			tracked = split( parent, tracked );
+		}
+		return tracked;
+	}
+	
+	/**
+	 * Removes {@code entry} from the tree. An entry in a leaf is just
+	 * unlinked, any other entry is replaced by its successor, which is
+	 * the first entry of a leaf. The leaf is rebalanced if it becomes
+	 * underfull.
+	 */
+	public void removeEntry( Relationship entry )
+	{
+		Node leaf;
+		if ( isLeaf( entry ) )
+		{
+			leaf = getTreeNode( entry.getStartNode() );
+			Node endNode = entry.getEndNode();
+			Relationship nextEntry = getNextEntry( entry );
+			Node startNode = entry.getStartNode();
+			entry.delete();
+			if ( nextEntry != null )
+			{
+				moveEntry( nextEntry, startNode, nextEntry.getEndNode() );
+			}
+			endNode.delete();
+		}
+		else
+		{
+			leaf = getSubTree( entry.getEndNode() );
+			Node subTree = getSubTree( leaf );
+			while ( subTree != null )
+			{
+				leaf = subTree;
+				subTree = getSubTree( leaf );
+			}
+			Relationship successor = getFirstEntry( leaf );
+			Relationship nextEntry = getNextEntry( successor );
+			Node unusedNode = successor.getEndNode();
+			Node startNode = entry.getStartNode();
+			Node endNode = entry.getEndNode();
+			entry.delete();
+			moveEntry( successor, startNode, endNode );
+			if ( nextEntry != null )
+			{
+				moveEntry( nextEntry, leaf, nextEntry.getEndNode() );
+			}
+			unusedNode.delete();
+		}
+		if ( getEntryCount( leaf ) < getOrder() / 2 && !isRoot( leaf ) )
+		{
+			rebalance( leaf );
+		}
+	}
+	
+	/**
+	 * Moves an entry, with all its properties, so that it goes from
+	 * {@code startNode} to {@code endNode}.
+	 * 
+	 * @return the new relationship of the entry.
+	 */
+	public Relationship moveEntry( Relationship entry, Node startNode, 
+		Node endNode )
+	{
+		Relationship moved = startNode.createRelationshipTo( endNode, 
+			keyEntryType );
+		for ( String key : entry.getPropertyKeys() )
+		{
+			moved.setProperty( key, entry.getProperty( key ) );
+		}
+		entry.delete();
+		return moved;
+	}
+	
+	/**
+	 * Borrows an entry from a sibling of the underfull {@code treeNode},
+	 * or merges it with a sibling if they have no entries to spare.
+	 */
+	public void rebalance( Node treeNode )
+	{
+		structureChanged();
+		Node leftSibling = getLeftSibling( treeNode );
+		Node rightSibling = getRightSibling( treeNode );
+		if ( leftSibling != null && 
+			getEntryCount( leftSibling ) > getOrder() / 2 )
+		{
+			borrowFromLeftSibling( treeNode, leftSibling );
+		}
+		else if ( rightSibling != null && 
+			getEntryCount( rightSibling ) > getOrder() / 2 )
+		{
+			borrowFromRightSibling( treeNode, rightSibling );
+		}
+		else if ( leftSibling != null )
+		{
+			mergeWithLeftSibling( treeNode, leftSibling );
+		}
+		else if ( rightSibling != null )
+		{
+			mergeWithRightSibling( treeNode, rightSibling );
+		}
+		else
+		{
+			throw new IllegalStateException( "No sibling to rebalance " + 
+				treeNode + " with" );
+		}
+	}
+	
+	/**
+	 * Moves the last entry of {@code leftSibling} up to the parent and
+	 * the entry between them down, first in {@code treeNode}. The sub tree
+	 * after the moved up entry follows it.
+	 * 
+	 * @return the new first node of {@code treeNode}.
+	 */
+	public Node borrowFromLeftSibling( Node treeNode, Node leftSibling )
+	{
+		Node parentChainNode = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING ).getStartNode();
+		Relationship entryToMoveDown = parentChainNode.getSingleRelationship( 
+			keyEntryType, Direction.INCOMING );
+		Relationship entryToMoveUp = getLastEntry( leftSibling );
+		Node subTree = getSubTree( entryToMoveUp.getEndNode() );
+		if ( subTree != null )
+		{
+			disconnectFromParent( subTree );
+		}
+		Node downStartNode = entryToMoveDown.getStartNode();
+		Node newFirstNode = getGraphDb().createNode();
+		moveEntry( entryToMoveDown, newFirstNode, treeNode );
+		Node upEndNode = entryToMoveUp.getEndNode();
+		moveEntry( entryToMoveUp, downStartNode, parentChainNode );
+		upEndNode.delete();
+		disconnectFromParent( treeNode );
+		firstNodeMoved( treeNode );
+		parentChainNode.createRelationshipTo( newFirstNode, subTreeType );
+		if ( subTree != null )
+		{
+			newFirstNode.createRelationshipTo( subTree, subTreeType );
+		}
+		return newFirstNode;
+	}
+	
+	/**
+	 * Moves the first entry of {@code rightSibling} up to the parent and
+	 * the entry between them down, last in {@code treeNode}. The sub tree
+	 * before the moved up entry follows it.
+	 * 
+	 * @return the new first node of {@code rightSibling}.
+	 */
+	public Node borrowFromRightSibling( Node treeNode, Node rightSibling )
+	{
+		Node parentChainNode = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING ).getStartNode();
+		Relationship entryToMoveDown = getFirstEntry( parentChainNode );
+		Relationship entryToMoveUp = getFirstEntry( rightSibling );
+		Node subTree = getSubTree( rightSibling );
+		if ( subTree != null )
+		{
+			disconnectFromParent( subTree );
+		}
+		Node rightParentChainNode = disconnectFromParent( rightSibling );
+		Node newRightFirstNode = entryToMoveUp.getEndNode();
+		rightParentChainNode.createRelationshipTo( newRightFirstNode, 
+			subTreeType );
+		Node newLastNode = getGraphDb().createNode();
+		moveEntry( entryToMoveDown, getLastChainNode( treeNode ), 
+			newLastNode );
+		moveEntry( entryToMoveUp, parentChainNode, rightParentChainNode );
+		rightSibling.delete();
+		if ( subTree != null )
+		{
+			newLastNode.createRelationshipTo( subTree, subTreeType );
+		}
+		return newRightFirstNode;
+	}
+	
+	/**
+	 * Moves the entry between {@code leftSibling} and {@code treeNode}
+	 * down, last in {@code leftSibling}, followed by the entries of
+	 * {@code treeNode}. The parent is rebalanced if it becomes underfull.
+	 */
+	public void mergeWithLeftSibling( Node treeNode, Node leftSibling )
+	{
+		Node parentChainNode = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING ).getStartNode();
+		Relationship entryToMoveDown = parentChainNode.getSingleRelationship( 
+			keyEntryType, Direction.INCOMING );
+		merge( leftSibling, treeNode, entryToMoveDown );
+	}
+	
+	/**
+	 * Moves the entry between {@code treeNode} and {@code rightSibling}
+	 * down, last in {@code treeNode}, followed by the entries of
+	 * {@code rightSibling}. The parent is rebalanced if it becomes 
+	 * underfull.
+	 */
+	public void mergeWithRightSibling( Node treeNode, Node rightSibling )
+	{
+		Node parentChainNode = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING ).getStartNode();
+		merge( treeNode, rightSibling, getFirstEntry( parentChainNode ) );
+	}
+	
+	private void merge( Node left, Node right, Relationship entryToMoveDown )
+	{
+		Node leftParentChainNode = entryToMoveDown.getStartNode();
+		Node rightParentChainNode = entryToMoveDown.getEndNode();
+		Relationship nextInParent = getFirstEntry( rightParentChainNode );
+		Relationship firstEntry = getFirstEntry( right );
+		Node subTree = getSubTree( right );
+		if ( subTree != null )
+		{
+			disconnectFromParent( subTree );
+		}
+		disconnectFromParent( right );
+		Node blankNode = getGraphDb().createNode();
+		moveEntry( entryToMoveDown, getLastChainNode( left ), blankNode );
+		if ( nextInParent != null )
+		{
+			moveEntry( nextInParent, leftParentChainNode, 
+				nextInParent.getEndNode() );
+		}
+		rightParentChainNode.delete();
+		if ( firstEntry != null )
+		{
+			moveEntry( firstEntry, blankNode, firstEntry.getEndNode() );
+		}
+		right.delete();
+		if ( subTree != null )
+		{
+			blankNode.createRelationshipTo( subTree, subTreeType );
+		}
+		Node parent = getTreeNode( leftParentChainNode );
+		int entryCount = getEntryCount( parent );
+		if ( entryCount < getOrder() / 2 && !isRoot( parent ) )
+		{
+			assert entryCount > 0;
+			rebalance( parent );
+		}
+		else if ( entryCount == 0 )
+		{
+			assert isRoot( parent );
+			disconnectFromParent( left );
+			makeRoot( parent, left );
+		}
+	}
+	
+	// returns the chain node of the parent which treeNode was connected to
+	private Node disconnectFromParent( Node treeNode )
+	{
+		Relationship toParent = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING );
+		Node parentChainNode = toParent.getStartNode();
+		toParent.delete();
+		return parentChainNode;
+	}
+	
+	private void makeRoot( Node oldRoot, Node newRoot )
+	{
+		Relationship rootRel = oldRoot.getSingleRelationship( treeRootType, 
+			Direction.INCOMING );
+		Node anchorNode = rootRel.getStartNode();
+		rootRel.delete();
+		if ( !oldRoot.hasRelationship() )
+		{
+			// the old root was emptied by a merge of its last two sub trees
+			oldRoot.delete();
+		}
+		anchorNode.createRelationshipTo( newRoot, treeRootType );
+		rootChanged( newRoot );
+	}
+	
+	/**
+	 * Builds the tree bottom up from {@code entries}, which must be in
+	 * order, instead of descending the tree once per entry. The entries are
+	 * spread evenly over as few levels as they fit in, so no tree node is
+	 * split or rebalanced. Nothing but the entries is stored, so 
+	 * information kept on the tree nodes, like sub tree counts, isn't 
+	 * computed by this.
+	 * 
+	 * @param root the root of the tree, which must be empty.
+	 * @param entries the properties of each entry, in order.
+	 */
+	public void load( Node root, List<? extends Map<String, Object>> entries )
+	{
+		if ( getFirstEntry( root ) != null || getSubTree( root ) != null )
+		{
+			throw new IllegalStateException( "Tree isn't empty" );
+		}
+		int height = 0;
+		while ( getCapacity( height ) < entries.size() )
+		{
+			height++;
+		}
+		structureChanged();
+		load( root, entries, 0, entries.size(), height, true );
+	}
+	
+	private void load( Node treeNode, List<? extends Map<String, Object>> 
+		entries, int from, int to, int height, boolean isRoot )
+	{
+		Node chainNode = treeNode;
+		if ( height == 0 )
+		{
+			for ( int i = from; i < to; i++ )
+			{
+				chainNode = appendEntry( chainNode, entries.get( i ) );
+			}
+			return;
+		}
+		// as few sub trees as the entries fit in, but enough that each of
+		// them is at least half full
+		long subTreeCapacity = getCapacity( height - 1 );
+		int count = to - from;
+		int subTrees = (int) Math.max( isRoot ? 2 : getOrder() / 2 + 1, 
+			( count + subTreeCapacity + 1 ) / ( subTreeCapacity + 1 ) );
+		int subTreeEntries = count - ( subTrees - 1 );
+		int start = from;
+		for ( int i = 0; i < subTrees; i++ )
+		{
+			int size = subTreeEntries / subTrees + 
+				( i < subTreeEntries % subTrees ? 1 : 0 );
+			Node subTree = getGraphDb().createNode();
+			chainNode.createRelationshipTo( subTree, subTreeType );
+			load( subTree, entries, start, start + size, height - 1, false );
+			start += size;
+			if ( i < subTrees - 1 )
+			{
+				chainNode = appendEntry( chainNode, entries.get( start++ ) );
+			}
+		}
+	}
+	
+	// the number of entries which fit in a tree of the given height
+	private long getCapacity( int height )
+	{
+		long capacity = getOrder() - 1;
+		for ( int i = 0; i < height; i++ )
+		{
+			capacity = getOrder() - 1 + getOrder() * capacity;
+		}
+		return capacity;
+	}
+	
+	// adds an entry after the last node of a chain, returns the new last node
+	private Node appendEntry( Node lastChainNode, 
+		Map<String, Object> properties )
+	{
+		Node chainNode = getGraphDb().createNode();
+		Relationship entry = lastChainNode.createRelationshipTo( chainNode, 
+			keyEntryType );
+		for ( Map.Entry<String, Object> property : properties.entrySet() )
+		{
+			entry.setProperty( property.getKey(), property.getValue() );
+		}
+		return chainNode;
+	}
+	
+	/**
+	 * Deletes the sub tree of {@code treeNode}, including its entries and
+	 * the {@code SUB_TREE} relationship to its parent. The
+	 * {@code TREE_ROOT} relationship of a root is left for the caller.
+	 */
+	public void delete( Node treeNode )
+	{
+		Relationship toParent = treeNode.getSingleRelationship( subTreeType, 
+			Direction.INCOMING );
+		if ( toParent != null )
+		{
+			toParent.delete();
+		}
+		Node chainNode = treeNode;
+		while ( chainNode != null )
+		{
+			Node subTree = getSubTree( chainNode );
+			if ( subTree != null )
+			{
+				delete( subTree );
+			}
+			Relationship entry = getFirstEntry( chainNode );
+			Node nextNode = null;
+			if ( entry != null )
+			{
+				nextNode = entry.getEndNode();
+				entry.delete();
+			}
+			chainNode.delete();
+			chainNode = nextNode;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.tree.btree.BTreeMap.TransactionMode;
+
+/**
+ * Common parts of the maps which use a {@code long} key directly as the
+ * key in the underlying {@link BTree}, i.e. without any hashing, key copies
+ * or collision buckets.
+ */
+abstract class AbstractLongBTreeMap
+{
+	static final String MAP_NAME = "map_name";
+	static final String MAP_SIZE = "map_size";
+	
+	private final Node underlyingNode;
+	private final GraphDatabaseService graphDb;
+	private final TransactionMode transactionMode;
+	private final String name;
+	private BTree bTree;
+	
+	AbstractLongBTreeMap( String name, Node underlyingNode, 
+		GraphDatabaseService graphDb, TransactionMode transactionMode )
+	{
+		if ( underlyingNode == null || graphDb == null )
+		{
+			throw new IllegalArgumentException( 
+				"Null parameter underlyingNode=" + underlyingNode +
+				" graphDb=" + graphDb );
+		}
+		this.underlyingNode = underlyingNode;
+		this.graphDb = graphDb;
+		this.transactionMode = transactionMode;
+		Transaction tx = beginTx();
+		try
+		{
+			String storedName = (String) underlyingNode.getProperty( 
+				MAP_NAME, null );
+			if ( storedName != null && name != null && 
+				!storedName.equals( name ) )
+			{
+				throw new IllegalArgumentException( "Name of map " + 
+					"for node=" + underlyingNode.getId() + "," + 
+					storedName + " is not same as passed in name=" + name );
+			}
+			if ( storedName == null )
+			{
+				underlyingNode.setProperty( MAP_NAME, name );
+				storedName = name;
+			}
+			this.name = storedName;
+			Relationship bTreeRel = underlyingNode.getSingleRelationship( 
+				BTree.RelTypes.TREE_ROOT, Direction.OUTGOING );
+			if ( bTreeRel != null )
+			{
+				bTree = new BTree( graphDb, bTreeRel.getEndNode() );
+			}
+			else
+			{
+				createTree();
+			}
+			BTreeMap.success( tx );
+		}
+		finally
+		{
+			BTreeMap.finish( tx );
+		}
+	}
+	
+	private void createTree()
+	{
+		Node bTreeNode = graphDb.createNode();
+		underlyingNode.createRelationshipTo( bTreeNode, 
+			BTree.RelTypes.TREE_ROOT );
+		bTree = new BTree( graphDb, bTreeNode );
+		underlyingNode.setProperty( MAP_SIZE, 0L );
+	}
+	
+	/**
+	 * Returns the name of this map, given at construction time.
+	 * 
+	 * @return the name of this map.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+	
+	Node getUnderlyingNode()
+	{
+		return underlyingNode;
+	}
+	
+	BTree getBTree()
+	{
+		return bTree;
+	}
+	
+	/**
+	 * Returns {@code null} in {@link TransactionMode#CALLER}, see
+	 * {@link BTreeMap#success(Transaction)} and
+	 * {@link BTreeMap#finish(Transaction)}.
+	 */
+	Transaction beginTx()
+	{
+		return transactionMode == TransactionMode.CALLER ? null : 
+			graphDb.beginTx();
+	}
+	
+	/**
+	 * Sets the value of {@code key}, creating the entry if needed.
+	 * 
+	 * @return the previous value or {@code null} if the key was added.
+	 */
+	Object putValue( long key, Object value )
+	{
+		Transaction tx = beginTx();
+		try
+		{
+			Object oldValue = null;
+			KeyEntry entry = addOrGetEntry( key, value );
+			if ( entry != null )
+			{
+				oldValue = entry.getValue();
+				entry.setValue( value );
+			}
+			BTreeMap.success( tx );
+			return oldValue;
+		}
+		finally
+		{
+			BTreeMap.finish( tx );
+		}
+	}
+	
+	/**
+	 * Adds an entry for {@code key} unless there already is one, with a
+	 * single descent of the tree. Must be called in a transaction.
+	 * 
+	 * @return the existing entry, or {@code null} if the entry was added.
+	 */
+	KeyEntry addOrGetEntry( long key, Object value )
+	{
+		KeyEntry entry = bTree.addOrGetEntry( key, value );
+		if ( entry == null )
+		{
+			adjustSize( 1 );
+		}
+		return entry;
+	}
+	
+	Object getValue( long key )
+	{
+		return bTree.getEntry( key );
+	}
+	
+	Object removeValue( long key )
+	{
+		Transaction tx = beginTx();
+		try
+		{
+			Object oldValue = bTree.removeEntry( key );
+			if ( oldValue != null )
+			{
+				adjustSize( -1 );
+			}
+			BTreeMap.success( tx );
+			return oldValue;
+		}
+		finally
+		{
+			BTreeMap.finish( tx );
+		}
+	}
+	
+	private void adjustSize( long delta )
+	{
+		underlyingNode.setProperty( MAP_SIZE, 
+			(Long) underlyingNode.getProperty( MAP_SIZE, 0L ) + delta );
+	}
+	
+	/**
+	 * @param key the key to look for.
+	 * @return whether or not there's an entry for {@code key}.
+	 */
+	public boolean containsKey( long key )
+	{
+		return bTree.getAsKeyEntry( key ) != null;
+	}
+	
+	/**
+	 * Returns the number of entries in this map. The count is kept on the
+	 * underlying node, so this is a constant time operation.
+	 * 
+	 * @return the number of entries in this map.
+	 */
+	public long size()
+	{
+		return (Long) underlyingNode.getProperty( MAP_SIZE, 0L );
+	}
+	
+	/**
+	 * @return whether or not this map is empty.
+	 */
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+	
+	/**
+	 * Removes all entries from this map.
+	 */
+	public void clear()
+	{
+		Transaction tx = beginTx();
+		try
+		{
+			bTree.delete();
+			createTree();
+			BTreeMap.success( tx );
+		}
+		finally
+		{
+			BTreeMap.finish( tx );
+		}
+	}
+	
+	/**
+	 * Deletes this map and all its entries, even the underlyingNode.
+	 */
+	public void delete()
+	{
+		bTree.delete();
+		underlyingNode.delete();
+	}
+	
+	/**
+	 * Deletes this map and all its entries, even the underlyingNode, see
+	 * {@link BTreeDeleter#deleteAllCommittingCurrentTransaction()}.
+	 * 
+	 * @param commitInterval number of nodes and relationships to delete 
+	 * before the current transaction is committed and a new one is started
+	 * @deprecated Commits the transaction of the caller. Use
+	 * {@link #deleteInBatches(int)}, which runs in transactions of its own
+	 * and can be resumed, instead.
+	 */
+	@Deprecated
+	public void delete( int commitInterval )
+	{
+		new BTreeDeleter( graphDb, underlyingNode, commitInterval ).
+			deleteAllCommittingCurrentTransaction();
+		underlyingNode.delete();
+	}
+	
+	/**
+	 * Deletes this map and all its entries, even the underlyingNode, see
+	 * {@link BTreeDeleter}. Transactions are started and committed
+	 * internally so this method must not be called from within a
+	 * transaction. If it's interrupted it can be resumed by calling it
+	 * again.
+	 * 
+	 * @param commitInterval number of nodes and relationships to delete
+	 * before the transaction is committed and a new one is started
+	 */
+	public void deleteInBatches( int commitInterval )
+	{
+		new BTreeDeleter( graphDb, underlyingNode, commitInterval ).deleteAll();
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			underlyingNode.delete();
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+}
@@ -19,11 +19,18 @@
  */
 package org.neo4j.util.tree.btree;
 
+import java.util.AbstractList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.ReturnableEvaluator;
@@ -31,6 +38,7 @@ import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.TraversalPosition;
 import org.neo4j.graphdb.Traverser;
 import org.neo4j.graphdb.Traverser.Order;
+import org.neo4j.util.tree.TreeEngine;
 
 /**
  * A b-tree implementation on top of neo4j (using nodes/relationships 
@@ -67,8 +75,20 @@ public class BTree
 		KEY_ENTRY 
 	};
 	
+	/**
+	 * Property on the anchor node telling that the number of entries in
+	 * each sub tree is maintained, see {@link #enableOrderStatistics()}.
+	 */
+	static final String ORDER_STATISTICS = "tree_order_statistics";
+	
 	private GraphDatabaseService graphDb;
+	private final Node anchorNode;
+	private final KeyCodec<?> keyCodec;
+	private final SubTreeCounts subTreeCounts = new SubTreeCounts( this );
+	private boolean orderStatistics;
+	private int structureChanges;
 	private TreeNode treeRoot;
+	private final TreeEngine engine = new Engine();
 	
 	/**
 	 * Creates a b-tree using {@code rootNode} as root. The root node must have
@@ -80,194 +100,218 @@ public class BTree
 	 */
 	public BTree( GraphDatabaseService graphDb, Node rootNode )
 	{
-		this.graphDb = graphDb;
-		this.treeRoot = new TreeNode( this, rootNode );
+		this( graphDb, rootNode, KeyCodecs.LONG );
 	}
 	
-	void makeRoot( TreeNode newRoot )
+	/**
+	 * Creates a b-tree using {@code rootNode} as root, with keys encoded and
+	 * ordered by {@code keyCodec}. A tree must always be opened with the
+	 * same codec as it was created with. The methods taking {@code long}
+	 * keys can only be used with {@link KeyCodecs#LONG}, see
+	 * {@link OrderedBTree} for the other key types.
+	 * 
+	 * @param graphDb the embedded graph database instance
+	 * @param rootNode root node with incoming {@code TREE_ROOT} relationship.
+	 * @param keyCodec encodes and orders the keys of this tree.
+	 */
+	public BTree( GraphDatabaseService graphDb, Node rootNode,
+		KeyCodec<?> keyCodec )
 	{
-		Relationship rel = treeRoot.getUnderlyingNode().getSingleRelationship( 
-			RelTypes.TREE_ROOT, Direction.INCOMING );
-		Node startNode = rel.getStartNode();
-		rel.delete();
-		startNode.createRelationshipTo( newRoot.getUnderlyingNode(), 
-			RelTypes.TREE_ROOT );
-		treeRoot = newRoot;
+		this.graphDb = graphDb;
+		this.keyCodec = keyCodec;
+		this.treeRoot = new TreeNode( this, rootNode );
+		this.anchorNode = rootNode.getSingleRelationship( RelTypes.TREE_ROOT,
+			Direction.INCOMING ).getStartNode();
+		this.orderStatistics = anchorNode.hasProperty( ORDER_STATISTICS );
 	}
 	
 	/**
-	 * Deletes this b-tree.
+	 * @return the {@link KeyCodec} this tree was created with.
 	 */
-	public void delete()
+	public KeyCodec<?> getKeyCodec()
 	{
-		Relationship rel = treeRoot.getUnderlyingNode().getSingleRelationship( 
-			RelTypes.TREE_ROOT, Direction.INCOMING );
-		treeRoot.delete();
-		rel.delete();
+		return keyCodec;
 	}
 	
-	/**
-	 * Deletes this b-tree using a commit interval.
-	 * 
-	 * @param commitInterval number of entries to remove before a new 
-	 * transaction is started
-	 */
-	public void delete( int commitInterval )
+	int compareKeys( Object storedKey1, Object storedKey2 )
 	{
-		Relationship rel = treeRoot.getUnderlyingNode().getSingleRelationship( 
-			RelTypes.TREE_ROOT, Direction.INCOMING );
-		treeRoot.delete( commitInterval, 0);
-		rel.delete();
+		return keyCodec.compare( storedKey1, storedKey2 );
 	}
 	
 	/**
-	 * Public for testing purpose. Validates this b-tree making sure it is 
-	 * balanced and consistent.
+	 * Returns the cached root, unless it stopped being the root because the
+	 * transaction which changed the root was rolled back.
 	 */
-	public void validateTree()
+	TreeNode getRoot()
 	{
-		long currentValue = Long.MIN_VALUE;
-		KeyEntry entry = null;
-		KeyEntry keyEntry = treeRoot.getFirstEntry();
-		boolean hasSubTree = false;
-		int entryCount = 0;
-		while ( keyEntry != null )
+		TreeNode root = treeRoot;
+		try
 		{
-			entry = keyEntry;
-			entryCount++;
-			if ( entry.getKey() <= currentValue )
+			if ( root.getUnderlyingNode().hasRelationship( RelTypes.TREE_ROOT,
+				Direction.INCOMING ) )
 			{
-				throw new RuntimeException( "Key entry ordering inconsistency");
+				return root;
 			}
-			currentValue = entry.getKey();
-			TreeNode subTree = entry.getBeforeSubTree();
-			if ( subTree != null )
-			{
-				hasSubTree = true;
-				validateAllLessThan( subTree, currentValue );
-			}
-			else if ( hasSubTree )
-			{
-				throw new RuntimeException( "Leaf/no leaf inconsistency");
-			}
-			keyEntry = keyEntry.getNextKey();
 		}
-		// root so we don't validate to few entries
-		if ( entryCount >= getOrder() )
+		catch ( NotFoundException e )
 		{
-			throw new RuntimeException( "To many entries" );
-		}
-		if ( hasSubTree )
-		{
-			TreeNode subTree = entry.getAfterSubTree();
-			if ( subTree == null )
-			{
-				throw new RuntimeException( "Leaf/no leaf inconsistency" );
-			}
-			validateAllGreaterThan( subTree, currentValue );
+			// the root was created in the rolled back transaction
 		}
+		treeRoot = new TreeNode( this, anchorNode.getSingleRelationship(
+			RelTypes.TREE_ROOT, Direction.OUTGOING ).getEndNode() );
+		return treeRoot;
 	}
 	
-	private void validateAllLessThan( TreeNode treeNode, long value )
+	TreeEngine getEngine()
 	{
-		long currentValue = Long.MIN_VALUE;
-		KeyEntry entry = null;
-		KeyEntry keyEntry = treeNode.getFirstEntry();
-		boolean hasSubTree = false;
-		int entryCount = 0;
-		while ( keyEntry != null )
-		{
-			entryCount++;
-			entry = keyEntry;
-			if ( entry.getKey() >= value )
-			{
-				throw new RuntimeException( "Depth key inconsistency" );
-			}
-			if ( entry.getKey() <= currentValue )
-			{
-				throw new RuntimeException( "Key entry ordering inconsistency");
-			}
-			currentValue = entry.getKey();
-			TreeNode subTree = entry.getBeforeSubTree();
-			if ( subTree != null )
-			{
-				hasSubTree = true;
-				validateAllLessThan( subTree, currentValue );
-			}
-			else if ( hasSubTree )
-			{
-				throw new RuntimeException( "Leaf/no leaf inconsistency");
-			}
-			keyEntry = keyEntry.getNextKey();
-		}
-		if ( entryCount < getOrder() / 2 - 1 )
-		{
-			throw new RuntimeException( "To few entries" );
-		}
-		if ( entryCount >= getOrder() )
+		return engine;
+	}
+	
+	/**
+	 * Builds this b-tree bottom up from {@code entries}, see
+	 * {@link TreeEngine#load(Node, List)}, if it's empty. Sub tree counts
+	 * are computed afterwards if {@link #enableOrderStatistics() order
+	 * statistics} are maintained. Everything is written in the current
+	 * transaction.
+	 * 
+	 * @param entries the keys and values of the entries.
+	 * @return {@code false}, without writing anything, if this b-tree 
+	 * isn't empty.
+	 */
+	boolean loadIfEmpty( SortedMap<Long, Object> entries )
+	{
+		final Node rootNode = getRoot().getUnderlyingNode();
+		if ( engine.getFirstEntry( rootNode ) != null )
 		{
-			throw new RuntimeException( "To many entries" );
+			return false;
 		}
-		if ( hasSubTree )
+		final long[] keys = new long[entries.size()];
+		final Object[] values = new Object[entries.size()];
+		int i = 0;
+		for ( Map.Entry<Long, Object> entry : entries.entrySet() )
 		{
-			TreeNode subTree = entry.getAfterSubTree();
-			if ( subTree == null )
-			{
-				throw new RuntimeException( "Leaf/no leaf inconsistency" );
-			}
-			validateAllGreaterThan( subTree, currentValue );
+			keys[i] = entry.getKey();
+			values[i++] = entry.getValue();
 		}
-	}
-
-	private void validateAllGreaterThan( TreeNode treeNode, long value )
-	{
-		long currentValue = Long.MIN_VALUE;
-		KeyEntry entry = null;
-		KeyEntry keyEntry = treeNode.getFirstEntry();
-		boolean hasSubTree = false;
-		int entryCount = 0;
-		while ( keyEntry != null )
+		engine.load( rootNode, new AbstractList<Map<String, Object>>()
 		{
-			entryCount++;
-			entry = keyEntry;
-			if ( entry.getKey() <= value )
-			{
-				throw new RuntimeException( "Depth key inconsistency" );
-			}
-			if ( entry.getKey() <= currentValue )
+			@Override
+			public Map<String, Object> get( int index )
 			{
-				throw new RuntimeException( "Key entry ordering inconsistency");
+				Map<String, Object> properties = 
+					new HashMap<String, Object>();
+				properties.put( KeyEntry.KEY, keys[index] );
+				properties.put( KeyEntry.VALUE, values[index] );
+				return properties;
 			}
-			currentValue = entry.getKey();
-			TreeNode subTree = entry.getBeforeSubTree();
-			if ( subTree != null )
+			
+			@Override
+			public int size()
 			{
-				hasSubTree = true;
-				validateAllLessThan( subTree, currentValue );
+				return keys.length;
 			}
-			else if ( hasSubTree )
-			{
-				throw new RuntimeException( "Leaf/no leaf inconsistency");
-			}
-			keyEntry = keyEntry.getNextKey();
-		}
-		if ( entryCount < getOrder() / 2 - 1 )
+		} );
+		if ( orderStatistics )
 		{
-			throw new RuntimeException( "To few entries" );
+			SubTreeCounts.rebuild( rootNode );
 		}
-		if ( entryCount >= getOrder() )
-		{
-			throw new RuntimeException( "To many entries" );
-		}
-		if ( hasSubTree )
+		return true;
+	}
+	
+	/**
+	 * Deletes this b-tree.
+	 */
+	public void delete()
+	{
+		TreeNode root = getRoot();
+		Relationship rel = root.getUnderlyingNode().getSingleRelationship( 
+			RelTypes.TREE_ROOT, Direction.INCOMING );
+		root.delete();
+		rel.delete();
+	}
+	
+	/**
+	 * Deletes this b-tree using a commit interval, see
+	 * {@link BTreeDeleter#deleteAllCommittingCurrentTransaction()}.
+	 * 
+	 * @param commitInterval number of nodes and relationships to delete 
+	 * before the current transaction is committed and a new one is started
+	 * @deprecated Commits the transaction of the caller. Use
+	 * {@link #deleteInBatches(int)}, which runs in transactions of its own
+	 * and can be resumed, instead.
+	 */
+	@Deprecated
+	public void delete( int commitInterval )
+	{
+		new BTreeDeleter( graphDb, anchorNode, commitInterval ).
+			deleteAllCommittingCurrentTransaction();
+	}
+	
+	/**
+	 * Deletes this b-tree in bounded transactions, see {@link BTreeDeleter}.
+	 * Transactions are started and committed internally so this method
+	 * must not be called from within a transaction. If it's interrupted it
+	 * can be resumed by calling it again.
+	 * 
+	 * @param commitInterval number of nodes and relationships to delete
+	 * before the transaction is committed and a new one is started
+	 */
+	public void deleteInBatches( int commitInterval )
+	{
+		new BTreeDeleter( graphDb, anchorNode, commitInterval ).deleteAll();
+	}
+	
+	Node getAnchorNode()
+	{
+		return anchorNode;
+	}
+	
+	/**
+	 * Returns all entries in key order, read {@code batchSize} entries at a
+	 * time so that long scans can run alongside writers. Each batch
+	 * continues after the last key of the previous one, so entries which
+	 * exist during the whole scan are returned exactly once even if the
+	 * tree is rebalanced in between. The returned entries are copies. The
+	 * scan takes no locks, so it doesn't hold up writers.
+	 * 
+	 * @param batchSize the number of entries to read at a time.
+	 * @return all entries in key order.
+	 */
+	public Iterable<Map.Entry<Long,Object>> scan( final int batchSize )
+	{
+		return new Iterable<Map.Entry<Long,Object>>()
 		{
-			TreeNode subTree = entry.getAfterSubTree();
-			if ( subTree == null )
+			@SuppressWarnings( "unchecked" )
+			public Iterator<Map.Entry<Long,Object>> iterator()
 			{
-				throw new RuntimeException( "Leaf/no leaf inconsistency" );
+				// the stored keys of a tree with long keys are Longs
+				Iterator<?> entries = new KeyScanIterator( BTree.this, null, 
+					null, batchSize );
+				return (Iterator<Map.Entry<Long,Object>>) entries;
 			}
-			validateAllGreaterThan( subTree, currentValue );
-		}
+		};
+	}
+	
+	/**
+	 * Public for testing purpose. Validates this b-tree making sure it is 
+	 * balanced and consistent.
+	 */
+	public void validateTree()
+	{
+		new BTreeValidator( this ).validate();
+	}
+	
+	/**
+	 * Validates this b-tree making sure it is balanced and consistent,
+	 * validating sub trees in parallel.
+	 * 
+	 * @param executor executes the validation of the sub trees.
+	 * @return structural statistics about this b-tree.
+	 * @see BTreeValidator
+	 */
+	public TreeStatistics validateTree( ExecutorService executor )
+	{
+		return new BTreeValidator( this, executor ).validate();
 	}
 	
 	/**
@@ -280,7 +324,7 @@ public class BTree
 	 */
 	public KeyEntry addEntry( long key, Object value )
 	{
-		return treeRoot.addEntry( key, value );
+		return addStoredEntry( key, value, false );
 	}
 	
 	/**
@@ -294,7 +338,41 @@ public class BTree
 	 */
 	public KeyEntry addIfAbsent( long key, Object value )
 	{
-		return treeRoot.addEntry( key, value, true );
+		return addStoredEntry( key, value, true );
+	}
+	
+	/**
+	 * Adds the entry to this b-tree unless there already is an entry for
+	 * {@code key}, in one descent of the tree. Unlike
+	 * {@link #addIfAbsent(long, Object)} the existing entry is returned, so
+	 * that it can be updated without looking it up again.
+	 * 
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 * @return the existing entry, or {@code null} if the entry was added
+	 */
+	KeyEntry addOrGetEntry( long key, Object value )
+	{
+		TreeNode root = getRoot();
+		int changesBefore = structureChanges;
+		KeyEntry existing = root.addOrGetEntry( key, value );
+		if ( existing == null && orderStatistics )
+		{
+			subTreeCounts.update( key, 1, changesBefore != structureChanges );
+		}
+		return existing;
+	}
+	
+	KeyEntry addStoredEntry( Object key, Object value, boolean ignoreIfExist )
+	{
+		TreeNode root = getRoot();
+		int changesBefore = structureChanges;
+		KeyEntry entry = root.addEntry( key, value, ignoreIfExist );
+		if ( entry != null && orderStatistics )
+		{
+			subTreeCounts.update( key, 1, changesBefore != structureChanges );
+		}
+		return entry;
 	}
 	
 	/**
@@ -305,10 +383,10 @@ public class BTree
 	 */
 	public Object getEntry( long key )
 	{
-		KeyEntry entry = treeRoot.getEntry( key );
+		Relationship entry = getRoot().findEntry( key );
 		if ( entry != null )
 		{
-			return entry.getValue();
+			return entry.getProperty( KeyEntry.VALUE );
 		}
 		return null;
 	}
@@ -322,10 +400,10 @@ public class BTree
 	 */
 	public Object getClosestLowerEntry( long key )
 	{
-		KeyEntry entry = treeRoot.getClosestLowerEntry( null, key );
+		Relationship entry = getRoot().findClosestLowerEntry( key );
 		if ( entry != null )
 		{
-			return entry.getValue();
+			return entry.getProperty( KeyEntry.VALUE );
 		}
 		return null;
 	}
@@ -339,10 +417,10 @@ public class BTree
 	 */
 	public Object getClosestHigherEntry( long key )
 	{
-		KeyEntry entry = treeRoot.getClosestHigherEntry( null, key );
+		Relationship entry = getRoot().findClosestHigherEntry( key );
 		if ( entry != null )
 		{
-			return entry.getValue();
+			return entry.getProperty( KeyEntry.VALUE );
 		}
 		return null;
 	}
@@ -355,7 +433,7 @@ public class BTree
 	 */
 	public KeyEntry getAsKeyEntry( long key )
 	{
-		return treeRoot.getEntry( key );
+		return getRoot().getEntry( key );
 	}
 	
 	/**
@@ -367,7 +445,144 @@ public class BTree
 	 */
 	public Object removeEntry( long key )
 	{
-		return treeRoot.removeEntry( key );
+		return removeStoredEntry( key );
+	}
+	
+	Object removeStoredEntry( Object key )
+	{
+		TreeNode root = getRoot();
+		if ( !orderStatistics )
+		{
+			return root.removeEntry( key );
+		}
+		// the entry physically removed from a leaf is the successor if the
+		// key is in an internal tree node
+		Relationship entry = root.findEntry( key );
+		if ( entry == null )
+		{
+			return null;
+		}
+		Object pathKey = key;
+		Relationship subTree = entry.getEndNode().getSingleRelationship( 
+			RelTypes.SUB_TREE, Direction.OUTGOING );
+		while ( subTree != null )
+		{
+			Relationship firstEntry = subTree.getEndNode().
+				getSingleRelationship( RelTypes.KEY_ENTRY, Direction.OUTGOING );
+			pathKey = firstEntry.getProperty( KeyEntry.KEY );
+			subTree = subTree.getEndNode().getSingleRelationship( 
+				RelTypes.SUB_TREE, Direction.OUTGOING );
+		}
+		Object value = entry.getProperty( KeyEntry.VALUE );
+		int changesBefore = structureChanges;
+		engine.removeEntry( entry );
+		subTreeCounts.update( pathKey, -1, changesBefore != structureChanges );
+		return value;
+	}
+	
+	void subTreesChanged( Object pathKey )
+	{
+		if ( orderStatistics )
+		{
+			subTreeCounts.update( pathKey, 0, true );
+		}
+	}
+	
+	/**
+	 * Starts maintaining the number of entries in each sub tree of this
+	 * b-tree, which makes {@link #rank(long)}, {@link #select(long)} and
+	 * {@link #count(long, long)} possible. The counts of the whole tree are
+	 * computed in the current transaction and are then kept up to date by
+	 * all following writes. This is recorded in the graph, so it only has
+	 * to be done once per tree.
+	 */
+	public void enableOrderStatistics()
+	{
+		TreeNode root = getRoot();
+		if ( !anchorNode.hasProperty( ORDER_STATISTICS ) )
+		{
+			SubTreeCounts.rebuild( root.getUnderlyingNode() );
+			anchorNode.setProperty( ORDER_STATISTICS, true );
+		}
+		orderStatistics = true;
+	}
+	
+	/**
+	 * @return whether or not the number of entries in each sub tree is
+	 * maintained, see {@link #enableOrderStatistics()}.
+	 */
+	public boolean hasOrderStatistics()
+	{
+		return orderStatistics;
+	}
+	
+	private void assertOrderStatistics()
+	{
+		if ( !orderStatistics )
+		{
+			throw new IllegalStateException( 
+				"Order statistics not enabled for this tree" );
+		}
+	}
+	
+	/**
+	 * Returns the number of entries with a key less than {@code key}.
+	 * Requires {@link #enableOrderStatistics() order statistics}.
+	 * 
+	 * @param key the key
+	 * @return the number of entries before {@code key}.
+	 */
+	public long rank( long key )
+	{
+		return rankOfStoredKey( key );
+	}
+	
+	long rankOfStoredKey( Object key )
+	{
+		assertOrderStatistics();
+		return subTreeCounts.rank( key );
+	}
+	
+	/**
+	 * Returns the entry at {@code index} in key order, where the entry with
+	 * the lowest key is at index {@code 0}. Requires
+	 * {@link #enableOrderStatistics() order statistics}.
+	 * 
+	 * @param index the index of the entry
+	 * @return the entry at {@code index} or {@code null} if there are no
+	 * more than {@code index} entries.
+	 */
+	public KeyEntry select( long index )
+	{
+		assertOrderStatistics();
+		Relationship entry = subTreeCounts.select( index );
+		return entry != null ? TreeNode.toKeyEntry( this, entry ) : null;
+	}
+	
+	/**
+	 * Returns the number of entries with keys from {@code fromKey} 
+	 * (inclusive) to {@code toKey} (exclusive). Requires
+	 * {@link #enableOrderStatistics() order statistics}.
+	 * 
+	 * @param fromKey the start of the range
+	 * @param toKey the end of the range
+	 * @return the number of entries in the range.
+	 */
+	public long count( long fromKey, long toKey )
+	{
+		return Math.max( 0, rank( toKey ) - rank( fromKey ) );
+	}
+	
+	/**
+	 * Returns the number of entries in this b-tree. Requires
+	 * {@link #enableOrderStatistics() order statistics}.
+	 * 
+	 * @return the number of entries in this b-tree.
+	 */
+	public long size()
+	{
+		assertOrderStatistics();
+		return SubTreeCounts.getCount( getRoot().getUnderlyingNode() );
 	}
 	
 	int getOrder()
@@ -388,7 +603,7 @@ public class BTree
 	 */
 	public Iterable<Object> values()
 	{
-		Traverser trav = treeRoot.getUnderlyingNode().traverse( 
+		Traverser trav = getRoot().getUnderlyingNode().traverse( 
 			Order.DEPTH_FIRST, StopEvaluator.END_OF_GRAPH, 
 			new ReturnableEvaluator()
 			{
@@ -407,6 +622,56 @@ public class BTree
 		return new ValueTraverser( trav );
 	}
 	
+	private class Engine extends TreeEngine
+	{
+		Engine()
+		{
+			super( RelTypes.KEY_ENTRY, RelTypes.SUB_TREE, RelTypes.TREE_ROOT );
+		}
+		
+		@Override
+		protected GraphDatabaseService getGraphDb()
+		{
+			return graphDb;
+		}
+		
+		@Override
+		protected int getOrder()
+		{
+			return BTree.this.getOrder();
+		}
+		
+		@Override
+		protected void rootChanged( Node newRoot )
+		{
+			treeRoot = new TreeNode( BTree.this, newRoot );
+		}
+		
+		@Override
+		protected void structureChanged()
+		{
+			structureChanges++;
+		}
+		
+		@Override
+		protected void treeNodeSplit( Node left, Node right )
+		{
+			// the counts of the sub trees of both halves are up to date
+			// since splits propagate upwards
+			if ( orderStatistics )
+			{
+				SubTreeCounts.recompute( left );
+				SubTreeCounts.recompute( right );
+			}
+		}
+		
+		@Override
+		protected void firstNodeMoved( Node node )
+		{
+			node.removeProperty( SubTreeCounts.SUBTREE_COUNT );
+		}
+	}
+	
 	private static class ValueTraverser implements Iterable<Object>, 
 		Iterator<Object>
 	{
@@ -451,7 +716,7 @@ public class BTree
 		EntryReturnableEvaluator entryEvaluator = 
 			new EntryReturnableEvaluator();
 		
-		Traverser trav = treeRoot.getUnderlyingNode().traverse( 
+		Traverser trav = getRoot().getUnderlyingNode().traverse( 
 			Order.DEPTH_FIRST, StopEvaluator.END_OF_GRAPH, 
 			entryEvaluator, RelTypes.KEY_ENTRY, Direction.OUTGOING, 
 			RelTypes.SUB_TREE, Direction.OUTGOING );
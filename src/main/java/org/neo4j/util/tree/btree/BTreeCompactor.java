@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.tree.btree.BTree.RelTypes;
+
+/**
+ * Compacts a {@link BTree} incrementally, in small transactions, while the
+ * tree stays in use. After many removals tree nodes tend to be only about
+ * half full, which makes the tree deeper and wider than needed.
+ * <p>
+ * The compactor visits the tree nodes one level at a time, bottom up,
+ * starting with the parents of the leaves. For each visited tree node the
+ * entries of its sub trees are packed into as few sub trees as possible by
+ * merging adjacent sub trees and moving entries between them. When the
+ * last two sub trees of the root are merged the tree gets one level
+ * shallower. Merges which leave a tree node underfull are rebalanced the
+ * same way as after a removal.
+ * <p>
+ * Each transaction compacts at most {@code treeNodesPerTransaction} tree
+ * nodes. Between transactions the tree is consistent and can be read and
+ * modified by others. The position of the compactor is a key, so the
+ * tree nodes are found again by descending from the current root in each
+ * transaction. {@link BTree} has no concurrency control of its own, so
+ * other writers must not run at the same time as a compaction transaction.
+ * The compactor starts its own transactions and must not be invoked from
+ * within a transaction.
+ */
+public class BTreeCompactor implements Runnable
+{
+	private final BTree bTree;
+	private final int treeNodesPerTransaction;
+	private volatile boolean stopped;
+	// height of the tree nodes currently being compacted, leaves are at 1
+	private int height = 2;
+	// key of the entry right after the sub trees already compacted at this
+	// height
+	private Object position;
+	private volatile int compactedCount;
+	
+	/**
+	 * @param bTree the tree to compact.
+	 * @param treeNodesPerTransaction the maximum number of tree nodes to
+	 * compact in each transaction.
+	 */
+	public BTreeCompactor( BTree bTree, int treeNodesPerTransaction )
+	{
+		if ( treeNodesPerTransaction < 1 )
+		{
+			throw new IllegalArgumentException( 
+				"Invalid tree nodes per transaction " + 
+				treeNodesPerTransaction );
+		}
+		this.bTree = bTree;
+		this.treeNodesPerTransaction = treeNodesPerTransaction;
+	}
+	
+	/**
+	 * Compacts the whole tree, one transaction at a time. Returns when the
+	 * whole tree has been visited or when {@link #stop()} has been called.
+	 * 
+	 * @return {@code true} if the whole tree was visited.
+	 */
+	public boolean compactAll()
+	{
+		while ( !stopped )
+		{
+			if ( !compactBatch() )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Compacts at most {@code treeNodesPerTransaction} tree nodes in one
+	 * transaction.
+	 * 
+	 * @return {@code true} if there's more of the tree left to visit.
+	 */
+	public boolean compactBatch()
+	{
+		Transaction tx = bTree.getGraphDb().beginTx();
+		try
+		{
+			boolean more = true;
+			for ( int i = 0; more && i < treeNodesPerTransaction; i++ )
+			{
+				more = compactNext();
+			}
+			tx.success();
+			return more;
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Compacts the whole tree in the calling thread, see
+	 * {@link #compactAll()}.
+	 */
+	public void run()
+	{
+		compactAll();
+	}
+	
+	/**
+	 * Makes {@link #compactAll()} return after the current transaction has
+	 * been committed.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+	
+	/**
+	 * @return the number of tree nodes whose sub trees have been compacted
+	 * so far.
+	 */
+	public int getCompactedCount()
+	{
+		return compactedCount;
+	}
+	
+	private boolean compactNext()
+	{
+		TreeNode root = bTree.getRoot();
+		int treeHeight = getHeight( root );
+		if ( height > treeHeight )
+		{
+			return false;
+		}
+		TreeNode treeNode = root;
+		for ( int i = treeHeight; i > height; i-- )
+		{
+			treeNode = getSubTreeAfter( treeNode, position );
+		}
+		Object lastKey = getLastKey( treeNode );
+		Object nextPosition = getKeyAfter( treeNode );
+		treeNode.compactSubTrees();
+		bTree.subTreesChanged( lastKey );
+		compactedCount++;
+		if ( nextPosition == null )
+		{
+			height++;
+		}
+		position = nextPosition;
+		return true;
+	}
+	
+	// returns the key of the entry right after the sub tree of treeNode,
+	// which is in one of its ancestors, or null if treeNode holds the last
+	// keys at its height
+	private Object getKeyAfter( TreeNode treeNode )
+	{
+		while ( true )
+		{
+			Relationship toParent = treeNode.getUnderlyingNode().
+				getSingleRelationship( RelTypes.SUB_TREE, Direction.INCOMING );
+			if ( toParent == null )
+			{
+				return null;
+			}
+			Relationship next = toParent.getStartNode().getSingleRelationship( 
+				RelTypes.KEY_ENTRY, Direction.OUTGOING );
+			if ( next != null )
+			{
+				return next.getProperty( KeyEntry.KEY );
+			}
+			treeNode = treeNode.getParent();
+		}
+	}
+	
+	private int getHeight( TreeNode treeNode )
+	{
+		int treeHeight = 1;
+		KeyEntry entry = treeNode.getFirstEntry();
+		while ( entry != null && !entry.isLeaf() )
+		{
+			treeHeight++;
+			entry = entry.getBeforeSubTree().getFirstEntry();
+		}
+		return treeHeight;
+	}
+	
+	// returns the sub tree which holds the keys right after the entry with
+	// key, the first sub tree if key is null
+	private TreeNode getSubTreeAfter( TreeNode treeNode, Object key )
+	{
+		KeyEntry entry = treeNode.getFirstEntry();
+		while ( true )
+		{
+			if ( key == null || 
+				bTree.compareKeys( entry.getStoredKey(), key ) > 0 )
+			{
+				return entry.getBeforeSubTree();
+			}
+			KeyEntry next = entry.getNextKey();
+			if ( next == null )
+			{
+				return entry.getAfterSubTree();
+			}
+			entry = next;
+		}
+	}
+	
+	private Object getLastKey( TreeNode treeNode )
+	{
+		KeyEntry entry = treeNode.getLastEntry();
+		while ( !entry.isLeaf() )
+		{
+			entry = entry.getAfterSubTree().getLastEntry();
+		}
+		return entry.getStoredKey();
+	}
+}
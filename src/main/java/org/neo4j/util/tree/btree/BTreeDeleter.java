@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.tree.TreeDeleter;
+import org.neo4j.util.tree.btree.BTree.RelTypes;
+
+/**
+ * Deletes a whole {@link BTree} in bounded transactions, see
+ * {@link TreeDeleter}. {@link TreeDeleter.EntryHandler} gets the
+ * {@link RelTypes#KEY_ENTRY KEY_ENTRY} relationships of the tree.
+ */
+public class BTreeDeleter extends TreeDeleter
+{
+	/**
+	 * @param graphDb the {@link GraphDatabaseService} instance.
+	 * @param anchorNode the node with the outgoing
+	 * {@link RelTypes#TREE_ROOT TREE_ROOT} relationship.
+	 * @param commitInterval the number of nodes and relationships to delete
+	 * in each transaction.
+	 */
+	public BTreeDeleter( GraphDatabaseService graphDb, Node anchorNode, 
+		int commitInterval )
+	{
+		this( graphDb, anchorNode, commitInterval, null );
+	}
+	
+	/**
+	 * @param graphDb the {@link GraphDatabaseService} instance.
+	 * @param anchorNode the node with the outgoing
+	 * {@link RelTypes#TREE_ROOT TREE_ROOT} relationship.
+	 * @param commitInterval the number of nodes and relationships to delete
+	 * in each transaction.
+	 * @param entryHandler notified about each entry before it's deleted,
+	 * may be {@code null}.
+	 */
+	public BTreeDeleter( GraphDatabaseService graphDb, Node anchorNode, 
+		int commitInterval, EntryHandler entryHandler )
+	{
+		super( graphDb, anchorNode, RelTypes.KEY_ENTRY, RelTypes.SUB_TREE, 
+			RelTypes.TREE_ROOT, commitInterval, entryHandler );
+	}
+}
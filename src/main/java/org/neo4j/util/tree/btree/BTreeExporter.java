@@ -0,0 +1,563 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.tree.TreeEngine;
+
+/**
+ * Exports the contents of a {@link BTree} or {@link BTreeMap} to a file in
+ * a compact binary format and imports such a file into another tree or
+ * map. The file is written and read through memory mapped regions of the
+ * file instead of stream buffers.
+ * <p>
+ * The file starts with a header and then holds one record per entry, in
+ * the key order of the tree. A record is its length as an {@code int}
+ * followed by the key and the value. A value is a type byte followed by
+ * the value itself, which can be any valid neo4j property value. A record
+ * length of {@code 0} ends the file.
+ * <p>
+ * Imports start and commit their own transactions, one per
+ * {@code commitInterval} entries, and must not be invoked from within a
+ * transaction.
+ */
+public final class BTreeExporter
+{
+	private static final int MAGIC = 0x4e425452; // "NBTR"
+	private static final int VERSION = 1;
+	private static final int REGION_SIZE = 8 * 1024 * 1024;
+	
+	private static final byte BOOLEAN = 1;
+	private static final byte BYTE = 2;
+	private static final byte SHORT = 3;
+	private static final byte CHAR = 4;
+	private static final byte INT = 5;
+	private static final byte LONG = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte STRING = 9;
+	private static final byte ARRAY = 16;
+	
+	private BTreeExporter()
+	{
+	}
+	
+	/**
+	 * Exports all entries of {@code bTree} to {@code file}, overwriting
+	 * it. The tree is read in batches, see {@link BTree#scan(int)}.
+	 * 
+	 * @param bTree the tree to export.
+	 * @param file the file to write to.
+	 * @return the number of exported entries.
+	 * @throws IOException if the file couldn't be written.
+	 */
+	public static long exportTree( BTree bTree, File file ) throws IOException
+	{
+		return export( bTree.scan( 1000 ), file );
+	}
+	
+	/**
+	 * Exports all entries of {@code map} to {@code file}, overwriting it.
+	 * 
+	 * @param map the map to export.
+	 * @param file the file to write to.
+	 * @return the number of exported entries.
+	 * @throws IOException if the file couldn't be written.
+	 */
+	public static long exportMap( BTreeMap<?,?> map, File file ) 
+		throws IOException
+	{
+		return export( map.entrySet(), file );
+	}
+	
+	private static long export( Iterable<? extends Map.Entry<?,?>> entries, 
+		File file ) throws IOException
+	{
+		MappedOutput output = new MappedOutput( file );
+		try
+		{
+			output.ensure( 8 );
+			output.buffer.putInt( MAGIC );
+			output.buffer.putInt( VERSION );
+			long count = 0;
+			for ( Map.Entry<?,?> entry : entries )
+			{
+				int length = sizeOf( entry.getKey() ) + 
+					sizeOf( entry.getValue() );
+				output.ensure( 4 + length );
+				output.buffer.putInt( length );
+				write( output.buffer, entry.getKey() );
+				write( output.buffer, entry.getValue() );
+				count++;
+			}
+			output.ensure( 4 );
+			output.buffer.putInt( 0 );
+			return count;
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+	
+	/**
+	 * Imports the entries in {@code file} into {@code bTree}. Entries with
+	 * keys which already exist in the tree get their values replaced.
+	 * <p>
+	 * If {@code bTree} is empty the entries are read into memory and the
+	 * tree is built bottom up, see {@link TreeEngine#load(Node, List)},
+	 * which is a lot faster than adding them one at a time. That is done
+	 * in a single transaction, {@code commitInterval} is only used when
+	 * importing into a tree which already has entries.
+	 * 
+	 * @param file a file written by {@link #exportTree(BTree, File)}.
+	 * @param bTree the tree to import into.
+	 * @param commitInterval the number of entries to import in each
+	 * transaction, at least {@code 1}.
+	 * @return the number of imported entries.
+	 * @throws IOException if the file couldn't be read.
+	 */
+	public static long importTree( File file, BTree bTree, 
+		int commitInterval ) throws IOException
+	{
+		validateCommitInterval( commitInterval );
+		MappedInput input = new MappedInput( file );
+		try
+		{
+			if ( bTree.getEngine().getFirstEntry( 
+				bTree.getRoot().getUnderlyingNode() ) == null )
+			{
+				return load( input, bTree );
+			}
+			long count = 0;
+			Transaction tx = bTree.getGraphDb().beginTx();
+			try
+			{
+				while ( input.nextRecord() )
+				{
+					put( bTree, (Long) read( input.buffer ), 
+						read( input.buffer ) );
+					if ( ++count % commitInterval == 0 )
+					{
+						tx.success();
+						tx.finish();
+						tx = bTree.getGraphDb().beginTx();
+					}
+				}
+				tx.success();
+			}
+			finally
+			{
+				tx.finish();
+			}
+			return count;
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+	
+	private static long load( MappedInput input, BTree bTree )
+		throws IOException
+	{
+		// a later record for the same key replaces the earlier one, like
+		// it does when the records are imported one at a time
+		SortedMap<Long, Object> entries = new TreeMap<Long, Object>();
+		long count = 0;
+		while ( input.nextRecord() )
+		{
+			entries.put( (Long) read( input.buffer ), read( input.buffer ) );
+			count++;
+		}
+		Transaction tx = bTree.getGraphDb().beginTx();
+		try
+		{
+			if ( !bTree.loadIfEmpty( entries ) )
+			{
+				// written to since it was found empty
+				for ( Map.Entry<Long, Object> entry : entries.entrySet() )
+				{
+					put( bTree, entry.getKey(), entry.getValue() );
+				}
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+		return count;
+	}
+	
+	private static void put( BTree bTree, long key, Object value )
+	{
+		if ( bTree.addIfAbsent( key, value ) == null )
+		{
+			bTree.getAsKeyEntry( key ).setValue( value );
+		}
+	}
+	
+	private static void validateCommitInterval( int commitInterval )
+	{
+		if ( commitInterval < 1 )
+		{
+			throw new IllegalArgumentException( "Invalid commit interval " + 
+				commitInterval );
+		}
+	}
+	
+	/**
+	 * Imports the entries in {@code file} into {@code map}, using
+	 * {@link BTreeMap#putAll(Map)} for every {@code commitInterval} entries.
+	 * If {@code map} was created with {@link BTreeMap.TransactionMode#CALLER}
+	 * everything is imported in the transaction of the caller instead.
+	 * 
+	 * @param file a file written by {@link #exportMap(BTreeMap, File)}.
+	 * @param map the map to import into.
+	 * @param commitInterval the number of entries to import in each
+	 * transaction, at least {@code 1}.
+	 * @return the number of imported entries.
+	 * @throws IOException if the file couldn't be read.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static <K,V> long importMap( File file, BTreeMap<K,V> map, 
+		int commitInterval ) throws IOException
+	{
+		validateCommitInterval( commitInterval );
+		MappedInput input = new MappedInput( file );
+		try
+		{
+			long count = 0;
+			Map<K,V> batch = new LinkedHashMap<K,V>();
+			while ( input.nextRecord() )
+			{
+				batch.put( (K) read( input.buffer ), (V) read( input.buffer ) );
+				count++;
+				if ( batch.size() >= commitInterval )
+				{
+					map.putAll( batch );
+					batch.clear();
+				}
+			}
+			map.putAll( batch );
+			return count;
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+	
+	private static int sizeOf( Object value )
+	{
+		if ( value.getClass().isArray() )
+		{
+			int size = 1 + 4;
+			if ( value instanceof String[] )
+			{
+				for ( String string : (String[]) value )
+				{
+					size += 4 + string.length() * 2;
+				}
+				return size;
+			}
+			int length = java.lang.reflect.Array.getLength( value );
+			return length == 0 ? size : size + length * 
+				payloadSize( java.lang.reflect.Array.get( value, 0 ) );
+		}
+		return 1 + payloadSize( value );
+	}
+	
+	private static int payloadSize( Object value )
+	{
+		switch ( typeOf( value ) )
+		{
+		case BOOLEAN: case BYTE: return 1;
+		case SHORT: case CHAR: return 2;
+		case INT: case FLOAT: return 4;
+		case LONG: case DOUBLE: return 8;
+		default: return 4 + ( (String) value ).length() * 2;
+		}
+	}
+	
+	private static byte typeOf( Object value )
+	{
+		if ( value instanceof Boolean ) return BOOLEAN;
+		if ( value instanceof Byte ) return BYTE;
+		if ( value instanceof Short ) return SHORT;
+		if ( value instanceof Character ) return CHAR;
+		if ( value instanceof Integer ) return INT;
+		if ( value instanceof Long ) return LONG;
+		if ( value instanceof Float ) return FLOAT;
+		if ( value instanceof Double ) return DOUBLE;
+		if ( value instanceof String ) return STRING;
+		if ( value instanceof boolean[] ) return ARRAY + BOOLEAN;
+		if ( value instanceof byte[] ) return ARRAY + BYTE;
+		if ( value instanceof short[] ) return ARRAY + SHORT;
+		if ( value instanceof char[] ) return ARRAY + CHAR;
+		if ( value instanceof int[] ) return ARRAY + INT;
+		if ( value instanceof long[] ) return ARRAY + LONG;
+		if ( value instanceof float[] ) return ARRAY + FLOAT;
+		if ( value instanceof double[] ) return ARRAY + DOUBLE;
+		if ( value instanceof String[] ) return ARRAY + STRING;
+		throw new IllegalArgumentException( "Not a valid property value " + 
+			value );
+	}
+	
+	private static void write( ByteBuffer buffer, Object value )
+	{
+		byte type = typeOf( value );
+		buffer.put( type );
+		if ( type < ARRAY )
+		{
+			writeElement( buffer, type, value );
+			return;
+		}
+		int length = java.lang.reflect.Array.getLength( value );
+		buffer.putInt( length );
+		for ( int i = 0; i < length; i++ )
+		{
+			writeElement( buffer, (byte) ( type - ARRAY ), 
+				java.lang.reflect.Array.get( value, i ) );
+		}
+	}
+	
+	private static void writeElement( ByteBuffer buffer, byte type, 
+		Object value )
+	{
+		switch ( type )
+		{
+		case BOOLEAN: buffer.put( (Boolean) value ? (byte) 1 : 0 ); break;
+		case BYTE: buffer.put( (Byte) value ); break;
+		case SHORT: buffer.putShort( (Short) value ); break;
+		case CHAR: buffer.putChar( (Character) value ); break;
+		case INT: buffer.putInt( (Integer) value ); break;
+		case LONG: buffer.putLong( (Long) value ); break;
+		case FLOAT: buffer.putFloat( (Float) value ); break;
+		case DOUBLE: buffer.putDouble( (Double) value ); break;
+		default:
+			String string = (String) value;
+			buffer.putInt( string.length() );
+			for ( int i = 0; i < string.length(); i++ )
+			{
+				buffer.putChar( string.charAt( i ) );
+			}
+		}
+	}
+	
+	private static Object read( ByteBuffer buffer )
+	{
+		byte type = buffer.get();
+		if ( type < ARRAY )
+		{
+			return readElement( buffer, type );
+		}
+		byte elementType = (byte) ( type - ARRAY );
+		int length = buffer.getInt();
+		Object array = java.lang.reflect.Array.newInstance( 
+			elementClass( elementType ), length );
+		for ( int i = 0; i < length; i++ )
+		{
+			java.lang.reflect.Array.set( array, i, 
+				readElement( buffer, elementType ) );
+		}
+		return array;
+	}
+	
+	private static Class<?> elementClass( byte type )
+	{
+		switch ( type )
+		{
+		case BOOLEAN: return Boolean.TYPE;
+		case BYTE: return Byte.TYPE;
+		case SHORT: return Short.TYPE;
+		case CHAR: return Character.TYPE;
+		case INT: return Integer.TYPE;
+		case LONG: return Long.TYPE;
+		case FLOAT: return Float.TYPE;
+		case DOUBLE: return Double.TYPE;
+		case STRING: return String.class;
+		default: throw new IllegalArgumentException( "Unknown type " + type );
+		}
+	}
+	
+	private static Object readElement( ByteBuffer buffer, byte type )
+	{
+		switch ( type )
+		{
+		case BOOLEAN: return buffer.get() != 0;
+		case BYTE: return buffer.get();
+		case SHORT: return buffer.getShort();
+		case CHAR: return buffer.getChar();
+		case INT: return buffer.getInt();
+		case LONG: return buffer.getLong();
+		case FLOAT: return buffer.getFloat();
+		case DOUBLE: return buffer.getDouble();
+		case STRING:
+			char[] chars = new char[buffer.getInt()];
+			for ( int i = 0; i < chars.length; i++ )
+			{
+				chars[i] = buffer.getChar();
+			}
+			return new String( chars );
+		default: throw new IllegalArgumentException( "Unknown type " + type );
+		}
+	}
+	
+	/**
+	 * Writes to a file through a mapped region, mapping the next region
+	 * when there's no room left for the next write.
+	 */
+	private static class MappedOutput
+	{
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private MappedByteBuffer buffer;
+		private long regionStart;
+		
+		MappedOutput( File file ) throws IOException
+		{
+			this.file = new RandomAccessFile( file, "rw" );
+			this.file.setLength( 0 );
+			this.channel = this.file.getChannel();
+		}
+		
+		void ensure( int bytes ) throws IOException
+		{
+			if ( buffer == null || buffer.remaining() < bytes )
+			{
+				regionStart = position();
+				buffer = channel.map( MapMode.READ_WRITE, regionStart, 
+					Math.max( REGION_SIZE, bytes ) );
+			}
+		}
+		
+		long position()
+		{
+			return buffer != null ? regionStart + buffer.position() : 0;
+		}
+		
+		void close() throws IOException
+		{
+			try
+			{
+				long size = position();
+				if ( buffer != null )
+				{
+					buffer.force();
+				}
+				buffer = null;
+				// mapping may have grown the file past the written data
+				channel.truncate( size );
+			}
+			finally
+			{
+				file.close();
+			}
+		}
+	}
+	
+	/**
+	 * Reads from a file through a mapped region, mapping the next region
+	 * when the next record doesn't fit in what's left of the current one.
+	 */
+	private static class MappedInput
+	{
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long size;
+		private MappedByteBuffer buffer;
+		private long regionStart;
+		
+		MappedInput( File file ) throws IOException
+		{
+			this.file = new RandomAccessFile( file, "r" );
+			this.channel = this.file.getChannel();
+			this.size = channel.size();
+			ensure( 8 );
+			if ( buffer.getInt() != MAGIC )
+			{
+				close();
+				throw new IOException( file + " is not a b-tree export" );
+			}
+			int version = buffer.getInt();
+			if ( version != VERSION )
+			{
+				close();
+				throw new IOException( "Unsupported version " + version + 
+					" of " + file );
+			}
+		}
+		
+		void ensure( int bytes ) throws IOException
+		{
+			if ( buffer == null || buffer.remaining() < bytes )
+			{
+				regionStart = buffer != null ? 
+					regionStart + buffer.position() : 0;
+				if ( size - regionStart < bytes )
+				{
+					throw new IOException( "Unexpected end of file" );
+				}
+				buffer = channel.map( MapMode.READ_ONLY, regionStart, 
+					Math.min( size - regionStart, 
+						Math.max( REGION_SIZE, bytes ) ) );
+			}
+		}
+		
+		/**
+		 * Makes the next record available in {@link #buffer}.
+		 * 
+		 * @return {@code false} if there are no more records.
+		 */
+		boolean nextRecord() throws IOException
+		{
+			ensure( 4 );
+			int length = buffer.getInt();
+			if ( length == 0 )
+			{
+				return false;
+			}
+			ensure( length );
+			return true;
+		}
+		
+		void close() throws IOException
+		{
+			buffer = null;
+			file.close();
+		}
+	}
+}
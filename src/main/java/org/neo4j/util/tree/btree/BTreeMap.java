@@ -19,8 +19,16 @@
  */
 package org.neo4j.util.tree.btree;
 
+import java.lang.reflect.Array;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.neo4j.graphdb.Direction;
@@ -29,6 +37,8 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.GraphDatabaseUtil;
+import org.neo4j.util.tree.PersistentBloomFilter;
 
 /**
  * A map implementation using {@link org.neo4j.index.impl.btree.BTree BTree}
@@ -48,18 +58,68 @@ public class BTreeMap<K,V> implements Map<K,V>
 		MAP_ENTRY,
 	}
 	
+	/**
+	 * Controls which transactions the map operations run in.
+	 */
+	public static enum TransactionMode
+	{
+		/**
+		 * Each write operation is wrapped in its own (possibly nested)
+		 * transaction. This is the default.
+		 */
+		PER_OPERATION,
+		
+		/**
+		 * No transactions are started by the map, all operations run in
+		 * the transaction the caller has open. Write operations will fail
+		 * if there's no such transaction.
+		 */
+		CALLER
+	}
+	
 	private static final Object GOTO_NODE = Long.MIN_VALUE;
 	
 	private static final String MAP_NAME = "map_name";
 	private static final String MAP_KEY = "map_key";
 	private static final String MAP_VALUE = "map_value";
+	private static final String MAP_SIZE = "map_size";
+	private static final String MAP_FORMAT = "map_format";
+	private static final String MAP_KEYS = "map_keys";
+	
+	/**
+	 * Keys are hashed with {@link Object#hashCode()} and all collisions go
+	 * into bucket nodes. Maps without a stored format use this one.
+	 */
+	private static final int FORMAT_HASH_CODE = 1;
+	
+	/**
+	 * Keys are hashed with {@link KeyHashing#hash64(Object)} and small sets
+	 * of colliding keys are stored inline on the entry, as a keys array in
+	 * {@link #MAP_KEYS} and a parallel values array as the entry value.
+	 * New maps use this format.
+	 */
+	private static final int FORMAT_HASH64 = 2;
+	
+	/**
+	 * Marks an entry of a {@link #FORMAT_HASH64} map whose colliding keys
+	 * are stored in a bucket node, the entry value is the id of that node.
+	 * Maps of the older format mark such entries with {@link #GOTO_NODE}
+	 * as key value, which can't be told apart from a real key of the same
+	 * value.
+	 */
+	private static final String MAP_BUCKET = "map_bucket";
+	
+	private static final int MAX_INLINE_COLLISIONS = 8;
 	// private static final String GOTO_NODE = "goto_node";
 	
 	private final Node underlyingNode;
 	private BTree bTree;
 	private String name;
 	private GraphDatabaseService graphDb;
-	
+	private final TransactionMode transactionMode;
+	private int format;
+	// the last loaded filter, it's looked up again by every operation
+	private PersistentBloomFilter bloomFilter;
 	
 	/**
 	 * Creates/loads a persistent map based on a b-tree. 
@@ -77,6 +137,24 @@ public class BTreeMap<K,V> implements Map<K,V>
 	 */
 	public BTreeMap( String name, Node underlyingNode,
 	    GraphDatabaseService graphDb )
+	{
+	    this( name, underlyingNode, graphDb, TransactionMode.PER_OPERATION );
+	}
+	
+	/**
+	 * Creates/loads a persistent map based on a b-tree, where all
+	 * operations run in transactions according to {@code transactionMode}.
+	 *
+	 * @param name The unique name of the map or null if map already
+	 * created (using specified underlying node).
+	 * @param underlyingNode The underlying node representing the map
+	 * @param graphDb The {@link GraphDatabaseService} instante.
+	 * @param transactionMode which transactions the map operations run in.
+	 * @throws IllegalArgumentException if the underlying node is a map with
+	 * a different name set.
+	 */
+	public BTreeMap( String name, Node underlyingNode,
+	    GraphDatabaseService graphDb, TransactionMode transactionMode )
 	{
 		if ( underlyingNode == null || graphDb == null )
 		{
@@ -86,7 +164,8 @@ public class BTreeMap<K,V> implements Map<K,V>
 		}
 		this.underlyingNode = underlyingNode;
 		this.graphDb = graphDb;
-		Transaction tx = graphDb.beginTx();
+		this.transactionMode = transactionMode;
+		Transaction tx = beginTx();
 		try
 		{
 			if ( underlyingNode.hasProperty( MAP_NAME ) )
@@ -128,12 +207,16 @@ public class BTreeMap<K,V> implements Map<K,V>
 				underlyingNode.createRelationshipTo( bTreeNode, 
 					BTree.RelTypes.TREE_ROOT );
 				bTree = new BTree( graphDb, bTreeNode );
+				underlyingNode.setProperty( MAP_FORMAT, FORMAT_HASH64 );
+				underlyingNode.setProperty( MAP_SIZE, 0L );
 			}
-			tx.success();
+			format = (Integer) underlyingNode.getProperty( MAP_FORMAT, 
+				FORMAT_HASH_CODE );
+			success( tx );
 		}
 		finally
 		{
-			tx.finish();
+			finish( tx );
 		}
 	}
 	
@@ -152,6 +235,33 @@ public class BTreeMap<K,V> implements Map<K,V>
 		return underlyingNode;
 	}
 	
+	/**
+	 * Returns {@code null} in {@link TransactionMode#CALLER}, where the map
+	 * doesn't start any transaction, see {@link #success(Transaction)} and
+	 * {@link #finish(Transaction)}.
+	 */
+	private Transaction beginTx()
+	{
+		return transactionMode == TransactionMode.CALLER ? null : 
+			graphDb.beginTx();
+	}
+	
+	static void success( Transaction tx )
+	{
+		if ( tx != null )
+		{
+			tx.success();
+		}
+	}
+	
+	static void finish( Transaction tx )
+	{
+		if ( tx != null )
+		{
+			tx.finish();
+		}
+	}
+	
 	/**
 	 * If key or value is {@code null} {@link IllegalArgumentException} is 
 	 * thrown. Key and value must be valid neo4j properties.
@@ -162,121 +272,320 @@ public class BTreeMap<K,V> implements Map<K,V>
 		{
 			throw new IllegalArgumentException( "Null node" );
 		}
-		Transaction tx = graphDb.beginTx();
+		Transaction tx = beginTx();
 		try
 		{
-			int hashCode = key.hashCode();
-			KeyEntry entry = bTree.addIfAbsent( hashCode, value );
-			if ( entry != null )
+			V oldValue = doPut( key, value );
+			success( tx );
+			return oldValue;
+		}
+		finally
+		{
+			finish( tx );
+		}
+	}
+	
+	private long hash( Object key )
+	{
+		return format == FORMAT_HASH64 ? KeyHashing.hash64( key ) : 
+			key.hashCode();
+	}
+	
+	private V doPut( K key, V value )
+	{
+		long hash = hash( key );
+		KeyEntry entry = bTree.addIfAbsent( hash, value );
+		if ( entry != null )
+		{
+			entry.setKeyValue( key );
+			adjustSize( 1 );
+			// loaded after the size update has locked the underlying node
+			PersistentBloomFilter filter = bloomFilter();
+			if ( filter != null )
 			{
-				entry.setKeyValue( key );
+				filter.add( hash );
 			}
-			else
+			return null;
+		}
+		entry = bTree.getAsKeyEntry( hash );
+		if ( isInlineBucket( entry ) )
+		{
+			Object[] keys = toObjectArray( entry.getUnderlyingRelationship().
+				getProperty( MAP_KEYS ) );
+			Object[] values = toObjectArray( entry.getValue() );
+			for ( int i = 0; i < keys.length; i++ )
 			{
-				entry = bTree.getAsKeyEntry( hashCode );
-				Object goOtherNode = entry.getKeyValue();
-				Node bucketNode = null;
-				if ( !goOtherNode.equals( GOTO_NODE ) )
+				if ( keys[i].equals( key ) )
 				{
-					Object prevValue = entry.getValue();
-					Object prevKey = entry.getKeyValue();
-					if ( prevKey.equals( key ) )
-					{
-						Object oldValue = entry.getValue();
-						entry.setValue( value );
-						tx.success();
-						return (V) oldValue;
-					}
-					entry.setKeyValue( GOTO_NODE );
-					bucketNode = graphDb.createNode();
-					entry.setValue( bucketNode.getId() );
-					Node prevEntry = graphDb.createNode();
-					bucketNode.createRelationshipTo( prevEntry, 
-						RelTypes.MAP_ENTRY );
-					prevEntry.setProperty( MAP_KEY, prevKey );
-					prevEntry.setProperty( MAP_VALUE, prevValue );
-					Node newEntry = graphDb.createNode();
-					bucketNode.createRelationshipTo( newEntry, 
-						RelTypes.MAP_ENTRY );
-					newEntry.setProperty( MAP_KEY, key );
-					newEntry.setProperty( MAP_VALUE, value );
+					Object oldValue = values[i];
+					values[i] = value;
+					setCollisions( entry, keys, values );
+					return castValue( oldValue );
 				}
-				else
+			}
+			setCollisions( entry, append( keys, key ), 
+				append( values, value ) );
+			adjustSize( 1 );
+			return null;
+		}
+		if ( !isBucket( entry.getUnderlyingRelationship() ) )
+		{
+			Object prevValue = entry.getValue();
+			Object prevKey = entry.getKeyValue();
+			if ( prevKey.equals( key ) )
+			{
+				entry.setValue( value );
+				return castValue( prevValue );
+			}
+			setCollisions( entry, new Object[] { prevKey, key }, 
+				new Object[] { prevValue, value } );
+		}
+		else
+		{
+			Node bucketNode = graphDb.getNodeById( (Long) entry.getValue() );
+			for ( Relationship rel : bucketNode.getRelationships( 
+				RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
+			{
+				Node entryNode = rel.getEndNode();
+				if ( entryNode.getProperty( MAP_KEY ).equals( key ) )
 				{
-					bucketNode = graphDb.getNodeById( (Long) entry.getValue() );
-					for ( Relationship rel : bucketNode.getRelationships( 
-						RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
-					{
-						Node entryNode = rel.getEndNode();
-						if ( entryNode.getProperty( MAP_KEY ).equals( key ) )
-						{
-							entryNode.setProperty( MAP_VALUE, value );
-							tx.success();
-							return null;
-						}
-					}
-					Node newEntry = graphDb.createNode();
-					bucketNode.createRelationshipTo( newEntry, 
-						RelTypes.MAP_ENTRY );
-					newEntry.setProperty( MAP_KEY, key );
-					newEntry.setProperty( MAP_VALUE, value );
+					Object oldValue = entryNode.getProperty( MAP_VALUE );
+					entryNode.setProperty( MAP_VALUE, value );
+					return castValue( oldValue );
 				}
 			}
-			tx.success();
+			addToBucket( bucketNode, key, value );
+		}
+		adjustSize( 1 );
+		return null;
+	}
+	
+	/**
+	 * Stores two or more colliding keys on {@code entry}, inline if the map
+	 * format allows it and the keys and values fit, otherwise in a bucket
+	 * node.
+	 */
+	private void setCollisions( KeyEntry entry, Object[] keys, 
+		Object[] values )
+	{
+		Relationship rel = entry.getUnderlyingRelationship();
+		if ( format == FORMAT_HASH64 && keys.length <= MAX_INLINE_COLLISIONS )
+		{
+			Object keyArray = toPropertyArray( keys );
+			Object valueArray = toPropertyArray( values );
+			if ( keyArray != null && valueArray != null )
+			{
+				rel.removeProperty( KeyEntry.KEY_VALUE );
+				rel.setProperty( MAP_KEYS, keyArray );
+				entry.setValue( valueArray );
+				return;
+			}
+		}
+		rel.removeProperty( MAP_KEYS );
+		if ( format == FORMAT_HASH64 )
+		{
+			rel.removeProperty( KeyEntry.KEY_VALUE );
+			rel.setProperty( MAP_BUCKET, true );
+		}
+		else
+		{
+			entry.setKeyValue( GOTO_NODE );
+		}
+		Node bucketNode = graphDb.createNode();
+		entry.setValue( bucketNode.getId() );
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			addToBucket( bucketNode, keys[i], values[i] );
+		}
+	}
+	
+	private void addToBucket( Node bucketNode, Object key, Object value )
+	{
+		Node newEntry = graphDb.createNode();
+		bucketNode.createRelationshipTo( newEntry, RelTypes.MAP_ENTRY );
+		newEntry.setProperty( MAP_KEY, key );
+		newEntry.setProperty( MAP_VALUE, value );
+	}
+	
+	private boolean isInlineBucket( KeyEntry entry )
+	{
+		return format == FORMAT_HASH64 && 
+			entry.getUnderlyingRelationship().hasProperty( MAP_KEYS );
+	}
+	
+	/**
+	 * Returns whether or not the keys of {@code entry} are in a bucket node.
+	 */
+	private boolean isBucket( Relationship entry )
+	{
+		if ( format == FORMAT_HASH64 )
+		{
+			return entry.hasProperty( MAP_BUCKET );
+		}
+		return GOTO_NODE.equals( entry.getProperty( KeyEntry.KEY_VALUE, 
+			null ) );
+	}
+	
+	/**
+	 * Returns a primitive (or String) array of {@code items} if they all are
+	 * of the same, non-array, type. Otherwise {@code null} is returned.
+	 */
+	private static Object toPropertyArray( Object[] items )
+	{
+		Class<?> type = items[0].getClass();
+		for ( Object item : items )
+		{
+			if ( !item.getClass().equals( type ) )
+			{
+				return null;
+			}
+		}
+		Class<?> componentType = null;
+		if ( type.equals( String.class ) )
+		{
+			componentType = String.class;
+		}
+		else
+		{
+			for ( int i = 0; i < BOXED_TYPES.length; i++ )
+			{
+				if ( BOXED_TYPES[i].equals( type ) )
+				{
+					componentType = PRIMITIVE_TYPES[i];
+				}
+			}
+		}
+		if ( componentType == null )
+		{
 			return null;
 		}
-		finally
+		Object array = Array.newInstance( componentType, items.length );
+		for ( int i = 0; i < items.length; i++ )
 		{
-			tx.finish();
+			Array.set( array, i, items[i] );
+		}
+		return array;
+	}
+	
+	private static final Class<?>[] BOXED_TYPES = { Long.class, 
+		Integer.class, Short.class, Byte.class, Double.class, Float.class, 
+		Character.class, Boolean.class };
+	private static final Class<?>[] PRIMITIVE_TYPES = { long.class, 
+		int.class, short.class, byte.class, double.class, float.class, 
+		char.class, boolean.class };
+	
+	private static Object[] toObjectArray( Object array )
+	{
+		Object[] result = new Object[Array.getLength( array )];
+		for ( int i = 0; i < result.length; i++ )
+		{
+			result[i] = Array.get( array, i );
 		}
+		return result;
+	}
+	
+	private static Object[] append( Object[] array, Object item )
+	{
+		Object[] result = new Object[array.length + 1];
+		System.arraycopy( array, 0, result, 0, array.length );
+		result[array.length] = item;
+		return result;
 	}
 	
 	public V remove( Object key )
 	{
-		Transaction tx = graphDb.beginTx();
+		Transaction tx = beginTx();
 		try
 		{
-			int hashCode = key.hashCode();
-			KeyEntry entry = bTree.getAsKeyEntry( hashCode );
-			if ( entry != null )
+			V value = doRemove( key );
+			if ( value != null )
 			{
-				Object goOtherNode = entry.getKeyValue();
-				if ( !goOtherNode.equals( GOTO_NODE ) )
-				{
-					if ( goOtherNode.equals( key ) )
-					{
-						Object value = entry.getValue();
-						entry.remove();
-						tx.success();
-						return (V) value;
-					}
-				}
-				else
+				keyRemoved();
+			}
+			success( tx );
+			return value;
+		}
+		finally
+		{
+			finish( tx );
+		}
+	}
+	
+	private V doRemove( Object key )
+	{
+		long hash = hash( key );
+		KeyEntry entry = bTree.getAsKeyEntry( hash );
+		if ( entry == null )
+		{
+			return null;
+		}
+		if ( isInlineBucket( entry ) )
+		{
+			Relationship rel = entry.getUnderlyingRelationship();
+			Object[] keys = toObjectArray( rel.getProperty( MAP_KEYS ) );
+			Object[] values = toObjectArray( entry.getValue() );
+			for ( int i = 0; i < keys.length; i++ )
+			{
+				if ( keys[i].equals( key ) )
 				{
-					Node bucketNode = graphDb.getNodeById( 
-						(Long) entry.getValue() );
-					for ( Relationship rel : bucketNode.getRelationships( 
-						RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
+					Object[] remainingKeys = new Object[keys.length - 1];
+					Object[] remainingValues = new Object[keys.length - 1];
+					for ( int j = 0, k = 0; j < keys.length; j++ )
 					{
-						Node entryNode = rel.getEndNode();
-						if ( entryNode.getProperty( MAP_KEY ).equals( key ) )
+						if ( j != i )
 						{
-							Object value = entryNode.getProperty( MAP_VALUE );
-							rel.delete();
-							entryNode.delete();
-							tx.success();
-							return (V) value;
+							remainingKeys[k] = keys[j];
+							remainingValues[k++] = values[j];
 						}
 					}
+					if ( remainingKeys.length == 1 )
+					{
+						rel.removeProperty( MAP_KEYS );
+						entry.setKeyValue( remainingKeys[0] );
+						entry.setValue( remainingValues[0] );
+					}
+					else
+					{
+						setCollisions( entry, remainingKeys, remainingValues );
+					}
+					adjustSize( -1 );
+					return castValue( values[i] );
 				}
 			}
-			tx.success();
 			return null;
 		}
-		finally
+		if ( !isBucket( entry.getUnderlyingRelationship() ) )
 		{
-			tx.finish();
+			if ( entry.getKeyValue().equals( key ) )
+			{
+				Object value = entry.getValue();
+				bTree.removeEntry( hash );
+				adjustSize( -1 );
+				return castValue( value );
+			}
+			return null;
 		}
+		Node bucketNode = graphDb.getNodeById( (Long) entry.getValue() );
+		for ( Relationship rel : bucketNode.getRelationships( 
+			RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
+		{
+			Node entryNode = rel.getEndNode();
+			if ( entryNode.getProperty( MAP_KEY ).equals( key ) )
+			{
+				Object value = entryNode.getProperty( MAP_VALUE );
+				rel.delete();
+				entryNode.delete();
+				if ( !bucketNode.hasRelationship( RelTypes.MAP_ENTRY, 
+					Direction.OUTGOING ) )
+				{
+					bucketNode.delete();
+					bTree.removeEntry( hash );
+				}
+				adjustSize( -1 );
+				return castValue( value );
+			}
+		}
+		return null;
 	}
 	
 	void validate()
@@ -284,57 +593,232 @@ public class BTreeMap<K,V> implements Map<K,V>
 		bTree.validateTree();
 	}
 	
+	/**
+	 * Reads don't need a transaction, so no transaction is started here.
+	 */
 	public V get( Object key )
 	{
-		Transaction tx = graphDb.beginTx();
+		return doGet( key );
+	}
+	
+	/**
+	 * Looks up all the given keys. Like {@link #get(Object)} this doesn't
+	 * start any transaction.
+	 * 
+	 * @param keys the keys to look up.
+	 * @return a map with the keys which exists in this map and their values.
+	 */
+	public Map<K, V> getAll( Collection<? extends K> keys )
+	{
+		Map<K, V> result = new HashMap<K, V>();
+		for ( K key : keys )
+		{
+			V value = doGet( key );
+			if ( value != null )
+			{
+				result.put( key, value );
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Removes all the given keys, in one transaction.
+	 * 
+	 * @param keys the keys to remove.
+	 * @return the number of keys which were removed.
+	 */
+	public int removeAll( Collection<?> keys )
+	{
+		Transaction tx = beginTx();
 		try
 		{
-			int hashCode = key.hashCode();
-			KeyEntry entry = bTree.getAsKeyEntry( hashCode );
-			if ( entry != null )
+			int removed = 0;
+			for ( Object key : keys )
 			{
-				Object goOtherNode = entry.getKeyValue();
-				if ( !goOtherNode.equals( GOTO_NODE ) )
+				if ( doRemove( key ) != null )
 				{
-					if ( goOtherNode.equals( key ) )
-					{
-						tx.success();
-						return (V) entry.getValue();
-					}
+					keyRemoved();
+					removed++;
 				}
-				else
+			}
+			success( tx );
+			return removed;
+		}
+		finally
+		{
+			finish( tx );
+		}
+	}
+	
+	private V doGet( Object key )
+	{
+		long hash = hash( key );
+		PersistentBloomFilter filter = bloomFilter();
+		if ( filter != null && !filter.mightContain( hash ) )
+		{
+			return null;
+		}
+		KeyEntry entry = bTree.getAsKeyEntry( hash );
+		if ( entry == null )
+		{
+			return null;
+		}
+		if ( isInlineBucket( entry ) )
+		{
+			Object keys = entry.getUnderlyingRelationship().getProperty( 
+				MAP_KEYS );
+			for ( int i = 0; i < Array.getLength( keys ); i++ )
+			{
+				if ( Array.get( keys, i ).equals( key ) )
 				{
-					Node bucketNode = graphDb.getNodeById( 
-						(Long) entry.getValue() );
-					for ( Relationship rel : bucketNode.getRelationships( 
-						RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
-					{
-						Node entryNode = rel.getEndNode();
-						if ( entryNode.getProperty( MAP_KEY ).equals( key ) )
-						{
-							tx.success();
-							return (V) entryNode.getProperty( MAP_VALUE );
-						}
-					}
+					return castValue( Array.get( entry.getValue(), i ) );
 				}
 			}
-			tx.success();
 			return null;
 		}
-		finally
+		if ( !isBucket( entry.getUnderlyingRelationship() ) )
 		{
-			tx.finish();
+			return entry.getKeyValue().equals( key ) ? 
+				castValue( entry.getValue() ) : null;
+		}
+		Node bucketNode = graphDb.getNodeById( (Long) entry.getValue() );
+		for ( Relationship rel : bucketNode.getRelationships( 
+			RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
+		{
+			Node entryNode = rel.getEndNode();
+			if ( entryNode.getProperty( MAP_KEY ).equals( key ) )
+			{
+				return castValue( entryNode.getProperty( MAP_VALUE ) );
+			}
 		}
+		return null;
+	}
+	
+	private void adjustSize( long delta )
+	{
+		Long size = (Long) underlyingNode.getProperty( MAP_SIZE, null );
+		// maps created before the size was stored are counted once, the
+		// count already includes this change
+		underlyingNode.setProperty( MAP_SIZE, 
+			size != null ? size + delta : countEntries() );
+	}
+	
+	private long countEntries()
+	{
+		long count = 0;
+		for ( KeyEntry entry : bTree.entries() )
+		{
+			if ( isInlineBucket( entry ) )
+			{
+				count += Array.getLength( entry.getValue() );
+			}
+			else if ( isBucket( entry.getUnderlyingRelationship() ) )
+			{
+				Node bucketNode = graphDb.getNodeById( 
+					(Long) entry.getValue() );
+				for ( Relationship rel : bucketNode.getRelationships( 
+					RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
+				{
+					count++;
+				}
+			}
+			else
+			{
+				count++;
+			}
+		}
+		return count;
 	}
 	
 	public void clear()
 	{
-		deleteBuckets();
-		bTree.delete();
-		Node bTreeNode = graphDb.createNode();
-		underlyingNode.createRelationshipTo( bTreeNode, 
-			BTree.RelTypes.TREE_ROOT );
-		bTree = new BTree( graphDb, bTreeNode );
+		Transaction tx = beginTx();
+		try
+		{
+			deleteBuckets();
+			bTree.delete();
+			Node bTreeNode = graphDb.createNode();
+			underlyingNode.createRelationshipTo( bTreeNode, 
+				BTree.RelTypes.TREE_ROOT );
+			bTree = new BTree( graphDb, bTreeNode );
+			underlyingNode.setProperty( MAP_SIZE, 0L );
+			PersistentBloomFilter filter = bloomFilter();
+			if ( filter != null )
+			{
+				filter.clear();
+			}
+			success( tx );
+		}
+		finally
+		{
+			finish( tx );
+		}
+	}
+	
+	/**
+	 * Adds a {@link PersistentBloomFilter} to this map, so that lookups of
+	 * keys which aren't in the map usually can be answered without
+	 * descending the tree. The filter is filled with the keys already in
+	 * the map, is kept up to date by {@link #put(Object, Object)} and is
+	 * rebuilt by removals when enough keys have been removed. The filter is
+	 * stored on nodes of its own, related to the underlying node, and is
+	 * looked up by every operation so that other instances of this map
+	 * use it as well. Calling this again replaces the filter.
+	 * 
+	 * @param expectedKeys the number of keys the filter is sized for.
+	 * @param falsePositiveRate the wanted rate of lookups of missing keys
+	 * which still have to descend the tree, f.ex. {@code 0.01}.
+	 */
+	public void enableBloomFilter( long expectedKeys, 
+		double falsePositiveRate )
+	{
+		Transaction tx = beginTx();
+		try
+		{
+			// writers load the filter after they have locked the
+			// underlying node, so they either see the new filter or have
+			// committed their keys before it's filled
+			GraphDatabaseUtil.acquireWriteLock( underlyingNode );
+			PersistentBloomFilter filter = PersistentBloomFilter.create( 
+				graphDb, underlyingNode, expectedKeys, falsePositiveRate );
+			rebuildBloomFilter( filter );
+			success( tx );
+		}
+		finally
+		{
+			finish( tx );
+		}
+	}
+	
+	private PersistentBloomFilter bloomFilter()
+	{
+		bloomFilter = PersistentBloomFilter.load( graphDb, underlyingNode, 
+			bloomFilter );
+		return bloomFilter;
+	}
+	
+	private void rebuildBloomFilter( PersistentBloomFilter filter )
+	{
+		filter.clear();
+		for ( KeyEntry entry : bTree.entries() )
+		{
+			filter.add( entry.getKey() );
+		}
+	}
+	
+	private void keyRemoved()
+	{
+		PersistentBloomFilter filter = bloomFilter();
+		if ( filter != null )
+		{
+			filter.removed();
+			if ( filter.needsRebuild( 
+				(Long) underlyingNode.getProperty( MAP_SIZE ) ) )
+			{
+				rebuildBloomFilter( filter );
+			}
+		}
 	}
 	
 	/**
@@ -344,80 +828,405 @@ public class BTreeMap<K,V> implements Map<K,V>
 	{
 		deleteBuckets();
 		bTree.delete();
+		PersistentBloomFilter filter = bloomFilter();
+		if ( filter != null )
+		{
+			filter.delete();
+		}
 		underlyingNode.delete();
 	}
 
-    private void deleteBuckets()
-    {
-        for ( KeyEntry entry : bTree.entries() )
+	private void deleteBuckets()
+	{
+		for ( KeyEntry entry : bTree.entries() )
 		{
-			Object goOtherNode = entry.getKeyValue();
-			if ( goOtherNode.equals( GOTO_NODE ) )
-			{
-				Node bucketNode = graphDb.getNodeById( 
-					(Long) entry.getValue() );
-				for ( Relationship rel : bucketNode.getRelationships( 
-					RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
-				{
-					Node entryNode = rel.getEndNode();
-					rel.delete();
-					entryNode.delete();
-				}
-				bucketNode.delete();
-			}
+			deleteBucket( entry.getUnderlyingRelationship() );
 		}
-    }
+	}
+	
+	// returns the number of deleted nodes and relationships
+	private int deleteBucket( Relationship entry )
+	{
+		if ( format == FORMAT_HASH64 && entry.hasProperty( MAP_KEYS ) )
+		{
+			return 0;
+		}
+		if ( !isBucket( entry ) )
+		{
+			return 0;
+		}
+		int count = 0;
+		Node bucketNode = graphDb.getNodeById( 
+			(Long) entry.getProperty( KeyEntry.VALUE ) );
+		for ( Relationship rel : bucketNode.getRelationships( 
+			RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
+		{
+			Node entryNode = rel.getEndNode();
+			rel.delete();
+			entryNode.delete();
+			count += 2;
+		}
+		bucketNode.delete();
+		return count + 1;
+	}
 
 	/**
-     * Deletes this map and all its entries, even the underlyingNode.
-     * 
-	 * @param commitInterval commits the transaction 
+	 * Deletes this map and all its entries, even the underlyingNode, see
+	 * {@link BTreeDeleter#deleteAllCommittingCurrentTransaction()}.
+	 * 
+	 * @param commitInterval number of nodes and relationships to delete 
+	 * before the current transaction is committed and a new one is started
+	 * @deprecated Commits the transaction of the caller. Use
+	 * {@link #deleteInBatches(int)}, which runs in transactions of its own
+	 * and can be resumed, instead.
 	 */
+	@Deprecated
 	public void delete( int commitInterval )
 	{
-		deleteBuckets();
-		bTree.delete( commitInterval );
+		newDeleter( commitInterval ).deleteAllCommittingCurrentTransaction();
 		underlyingNode.delete();
 	}
 	
+	/**
+	 * Deletes this map and all its entries, even the underlyingNode. The
+	 * entries are deleted by a {@link BTreeDeleter}, which deletes the
+	 * collision buckets in the same transactions as the tree entries
+	 * referring to them. Transactions are started and committed internally
+	 * so this method must not be called from within a transaction. If it's
+	 * interrupted it can be resumed by calling it again.
+	 * 
+	 * @param commitInterval number of nodes and relationships to delete
+	 * before the transaction is committed and a new one is started
+	 */
+	public void deleteInBatches( int commitInterval )
+	{
+		newDeleter( commitInterval ).deleteAll();
+		PersistentBloomFilter.deleteInBatches( graphDb, underlyingNode, 
+			commitInterval );
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			underlyingNode.delete();
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	private BTreeDeleter newDeleter( int commitInterval )
+	{
+		BTreeDeleter.EntryHandler bucketDeleter = 
+			new BTreeDeleter.EntryHandler()
+		{
+			public int entryDeleted( Relationship entry )
+			{
+				return deleteBucket( entry );
+			}
+		};
+		return new BTreeDeleter( graphDb, underlyingNode, commitInterval, 
+			bucketDeleter );
+	}
+	
 	public Collection<V> values()
     {
-	    throw new UnsupportedOperationException();
+		return new AbstractCollection<V>()
+		{
+			@Override
+			public Iterator<V> iterator()
+			{
+				final Iterator<Map.Entry<K,V>> entries = 
+					new EntryIterator();
+				return new Iterator<V>()
+				{
+					public boolean hasNext()
+					{
+						return entries.hasNext();
+					}
+
+					public V next()
+					{
+						return entries.next().getValue();
+					}
+
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return BTreeMap.this.size();
+			}
+		};
     }
 
 	public Set<K> keySet()
     {
-	    throw new UnsupportedOperationException();
+		return new AbstractSet<K>()
+		{
+			@Override
+			public Iterator<K> iterator()
+			{
+				final Iterator<Map.Entry<K,V>> entries = 
+					new EntryIterator();
+				return new Iterator<K>()
+				{
+					public boolean hasNext()
+					{
+						return entries.hasNext();
+					}
+
+					public K next()
+					{
+						return entries.next().getKey();
+					}
+
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public boolean contains( Object key )
+			{
+				return containsKey( key );
+			}
+
+			@Override
+			public int size()
+			{
+				return BTreeMap.this.size();
+			}
+		};
     }
 
 	public boolean containsKey( Object key )
     {
-		throw new UnsupportedOperationException();
+		return key != null && doGet( key ) != null;
     }
 
 	public boolean containsValue( Object value )
     {
-		throw new UnsupportedOperationException();
+		if ( value == null )
+		{
+			return false;
+		}
+		for ( V existingValue : values() )
+		{
+			if ( existingValue.equals( value ) )
+			{
+				return true;
+			}
+		}
+		return false;
     }
 
+	/**
+	 * Returns a view of the entries in this map. The entries are read
+	 * lazily from the underlying b-tree (and its collision buckets) while
+	 * iterating, in no particular order.
+	 */
 	public Set<java.util.Map.Entry<K, V>> entrySet()
     {
-		throw new UnsupportedOperationException();
+		return new AbstractSet<Map.Entry<K,V>>()
+		{
+			@Override
+			public Iterator<Map.Entry<K,V>> iterator()
+			{
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size()
+			{
+				return BTreeMap.this.size();
+			}
+		};
     }
 
 	public boolean isEmpty()
     {
-	    // TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
+		return size() == 0;
     }
 
+	/**
+	 * Puts all the entries in {@code t} into this map, all in one
+	 * transaction.
+	 */
 	public void putAll( Map<? extends K, ? extends V> t )
     {
-		throw new UnsupportedOperationException();
+		Transaction tx = beginTx();
+		try
+		{
+			for ( Map.Entry<? extends K, ? extends V> entry : t.entrySet() )
+			{
+				if ( entry.getKey() == null || entry.getValue() == null )
+				{
+					throw new IllegalArgumentException( "Null node" );
+				}
+				doPut( entry.getKey(), entry.getValue() );
+			}
+			success( tx );
+		}
+		finally
+		{
+			finish( tx );
+		}
     }
 
+	/**
+	 * Returns the number of entries in this map. The count is kept on the
+	 * underlying node, so this is a constant time operation, unless this
+	 * map was created before the size was stored and hasn't been modified
+	 * since.
+	 */
 	public int size()
     {
-		throw new UnsupportedOperationException();
+		Long storedSize = (Long) underlyingNode.getProperty( MAP_SIZE, null );
+		long size = storedSize != null ? storedSize : countEntries();
+		return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
     }
+	
+	@SuppressWarnings( "unchecked" )
+	private K castKey( Object key )
+	{
+		return (K) key;
+	}
+	
+	@SuppressWarnings( "unchecked" )
+	private V castValue( Object value )
+	{
+		return (V) value;
+	}
+	
+	private class EntryIterator implements Iterator<Map.Entry<K,V>>
+	{
+		// in key (hash) order, so that f.ex. an export can be imported
+		// by inserting into the tree in order
+		private final Iterator<Relationship> treeEntries = 
+			new KeyRangeIterator( bTree, null, null );
+		private Iterator<MapEntry> collisions;
+		private MapEntry next;
+		
+		public boolean hasNext()
+		{
+			while ( next == null )
+			{
+				if ( collisions != null && collisions.hasNext() )
+				{
+					next = collisions.next();
+				}
+				else if ( treeEntries.hasNext() )
+				{
+					KeyEntry entry = TreeNode.toKeyEntry( bTree, 
+						treeEntries.next() );
+					if ( isInlineBucket( entry ) )
+					{
+						collisions = inlineEntries( entry );
+					}
+					else if ( isBucket( entry.getUnderlyingRelationship() ) )
+					{
+						collisions = bucketEntries( entry );
+					}
+					else
+					{
+						next = new MapEntry( castKey( entry.getKeyValue() ), 
+							castValue( entry.getValue() ) );
+					}
+				}
+				else
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private Iterator<MapEntry> inlineEntries( KeyEntry entry )
+		{
+			Object[] keys = toObjectArray( entry.getUnderlyingRelationship().
+				getProperty( MAP_KEYS ) );
+			Object[] values = toObjectArray( entry.getValue() );
+			List<MapEntry> result = new ArrayList<MapEntry>( keys.length );
+			for ( int i = 0; i < keys.length; i++ )
+			{
+				result.add( new MapEntry( castKey( keys[i] ), 
+					castValue( values[i] ) ) );
+			}
+			return result.iterator();
+		}
+		
+		private Iterator<MapEntry> bucketEntries( KeyEntry entry )
+		{
+			Node bucketNode = graphDb.getNodeById( (Long) entry.getValue() );
+			List<MapEntry> result = new ArrayList<MapEntry>();
+			for ( Relationship rel : bucketNode.getRelationships( 
+				RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
+			{
+				Node entryNode = rel.getEndNode();
+				result.add( new MapEntry( 
+					castKey( entryNode.getProperty( MAP_KEY ) ), 
+					castValue( entryNode.getProperty( MAP_VALUE ) ) ) );
+			}
+			return result.iterator();
+		}
+
+		public Map.Entry<K,V> next()
+		{
+			if ( !hasNext() )
+			{
+				throw new NoSuchElementException();
+			}
+			MapEntry result = next;
+			next = null;
+			return result;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	private class MapEntry implements Map.Entry<K,V>
+	{
+		private final K key;
+		private V value;
+		
+		MapEntry( K key, V value )
+		{
+			this.key = key;
+			this.value = value;
+		}
+
+		public K getKey()
+		{
+			return key;
+		}
+
+		public V getValue()
+		{
+			return value;
+		}
+
+		public V setValue( V value )
+		{
+			V oldValue = put( key, value );
+			this.value = value;
+			return oldValue;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return key + "=" + value;
+		}
+	}
 }
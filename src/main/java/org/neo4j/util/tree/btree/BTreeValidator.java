@@ -0,0 +1,326 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Validates that a {@link BTree} is balanced and consistent and gathers
+ * {@link TreeStatistics} about it at the same time. Sub trees can be
+ * validated in parallel by passing in an {@link ExecutorService}. The
+ * upper levels of the tree are then validated in the calling thread, level
+ * by level, until there are at least four sub trees per available
+ * processor (or the leaves are reached) and one task is submitted per
+ * sub tree of the last such level.
+ * <p>
+ * Each entry is checked against both the lower and upper bound given by
+ * its ancestors, every tree node except the root must hold between
+ * {@code order / 2 - 1} and {@code order - 1} entries and all leaves must
+ * be at the same depth. Any inconsistency results in a
+ * {@link RuntimeException}. Removals keep the tree nodes at
+ * {@code order / 2} entries or more, which can be required instead of the
+ * lenient minimum, see {@link #BTreeValidator(BTree, ExecutorService,
+ * boolean)}.
+ * <p>
+ * Validation only reads from the graph and runs without a transaction.
+ * The tree shouldn't be modified while it's being validated.
+ */
+public class BTreeValidator
+{
+	private static final int TASKS_PER_PROCESSOR = 4;
+	
+	private final BTree bTree;
+	private final ExecutorService executor;
+	private final int minEntryCount;
+	
+	/**
+	 * Creates a validator which validates the whole tree in the calling
+	 * thread.
+	 * 
+	 * @param bTree the tree to validate.
+	 */
+	public BTreeValidator( BTree bTree )
+	{
+		this( bTree, null );
+	}
+	
+	/**
+	 * @param bTree the tree to validate.
+	 * @param executor executes the validation of the sub trees, or
+	 * {@code null} to validate everything in the calling thread.
+	 */
+	public BTreeValidator( BTree bTree, ExecutorService executor )
+	{
+		this( bTree, executor, false );
+	}
+	
+	/**
+	 * @param bTree the tree to validate.
+	 * @param executor executes the validation of the sub trees, or
+	 * {@code null} to validate everything in the calling thread.
+	 * @param requireHalfFull whether or not tree nodes other than the root
+	 * must hold at least {@code order / 2} entries instead of
+	 * {@code order / 2 - 1}.
+	 */
+	public BTreeValidator( BTree bTree, ExecutorService executor, 
+		boolean requireHalfFull )
+	{
+		this.bTree = bTree;
+		this.executor = executor;
+		this.minEntryCount = requireHalfFull ? bTree.getOrder() / 2 : 
+			bTree.getOrder() / 2 - 1;
+	}
+	
+	/**
+	 * Validates the tree.
+	 * 
+	 * @return statistics about the tree.
+	 * @throws RuntimeException if the tree is inconsistent.
+	 */
+	public TreeStatistics validate()
+	{
+		TreeStatistics statistics = new TreeStatistics( bTree.getOrder() );
+		List<SubTreeTask> tasks = new ArrayList<SubTreeTask>();
+		int entryCount = validateEntries( bTree.getRoot(), null, null, 
+			tasks );
+		if ( entryCount >= bTree.getOrder() )
+		{
+			throw new RuntimeException( "Too many entries" );
+		}
+		statistics.addTreeNode( 0, entryCount );
+		int level = 1;
+		int taskCount = executor == null ? 0 : 
+			Runtime.getRuntime().availableProcessors() * TASKS_PER_PROCESSOR;
+		while ( !tasks.isEmpty() && tasks.size() < taskCount )
+		{
+			tasks = validateLevel( tasks, level++, statistics );
+		}
+		int height = -1;
+		for ( TreeStatistics subTreeStatistics : execute( tasks ) )
+		{
+			if ( height != -1 && height != subTreeStatistics.getDepth() )
+			{
+				throw new RuntimeException( "Leaf depth inconsistency" );
+			}
+			height = subTreeStatistics.getDepth();
+			statistics.add( subTreeStatistics, level );
+		}
+		return statistics;
+	}
+	
+	/**
+	 * Validates the tree nodes of one level in the calling thread.
+	 * 
+	 * @return the sub trees of the tree nodes, i.e. the next level, or an
+	 * empty list if {@code tasks} are leaves.
+	 */
+	private List<SubTreeTask> validateLevel( List<SubTreeTask> tasks, 
+		int level, TreeStatistics statistics )
+	{
+		List<SubTreeTask> nextLevel = new ArrayList<SubTreeTask>();
+		int leafCount = 0;
+		for ( SubTreeTask task : tasks )
+		{
+			int subTreeCount = nextLevel.size();
+			int entryCount = validateEntries( task.treeNode, task.lower, 
+				task.upper, nextLevel );
+			validateEntryCount( entryCount );
+			statistics.addTreeNode( level, entryCount );
+			if ( nextLevel.size() == subTreeCount )
+			{
+				leafCount++;
+			}
+		}
+		if ( leafCount != 0 && leafCount != tasks.size() )
+		{
+			throw new RuntimeException( "Leaf depth inconsistency" );
+		}
+		return nextLevel;
+	}
+	
+	private void validateEntryCount( int entryCount )
+	{
+		if ( entryCount < minEntryCount )
+		{
+			throw new RuntimeException( "Too few entries" );
+		}
+		if ( entryCount >= bTree.getOrder() )
+		{
+			throw new RuntimeException( "Too many entries" );
+		}
+	}
+	
+	private List<TreeStatistics> execute( List<SubTreeTask> tasks )
+	{
+		List<TreeStatistics> result = new ArrayList<TreeStatistics>();
+		if ( executor == null )
+		{
+			for ( SubTreeTask task : tasks )
+			{
+				result.add( task.call() );
+			}
+			return result;
+		}
+		List<Future<TreeStatistics>> futures = 
+			new ArrayList<Future<TreeStatistics>>();
+		for ( SubTreeTask task : tasks )
+		{
+			futures.add( executor.submit( task ) );
+		}
+		try
+		{
+			for ( Future<TreeStatistics> future : futures )
+			{
+				result.add( future.get() );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( ExecutionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException )
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			for ( Future<TreeStatistics> future : futures )
+			{
+				future.cancel( true );
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Validates the ordering of the entries in {@code treeNode}, that they
+	 * are within {@code lower} and {@code upper} (exclusive, {@code null}
+	 * means unbounded) and that either all or none of them have sub trees.
+	 * The sub trees are added to {@code subTrees} together with their bounds.
+	 * 
+	 * @return the number of entries in {@code treeNode}.
+	 */
+	private int validateEntries( TreeNode treeNode, Object lower, Object upper,
+		List<SubTreeTask> subTrees )
+	{
+		KeyEntry entry = null;
+		KeyEntry keyEntry = treeNode.getFirstEntry();
+		Object previousKey = lower;
+		boolean hasSubTree = false;
+		int entryCount = 0;
+		while ( keyEntry != null )
+		{
+			entryCount++;
+			entry = keyEntry;
+			Object key = entry.getStoredKey();
+			if ( upper != null && bTree.compareKeys( key, upper ) >= 0 )
+			{
+				throw new RuntimeException( "Depth key inconsistency" );
+			}
+			if ( previousKey != null && 
+				bTree.compareKeys( key, previousKey ) <= 0 )
+			{
+				throw new RuntimeException( entryCount == 1 ? 
+					"Depth key inconsistency" : 
+					"Key entry ordering inconsistency" );
+			}
+			TreeNode subTree = entry.getBeforeSubTree();
+			if ( subTree != null )
+			{
+				if ( entryCount > 1 && !hasSubTree )
+				{
+					throw new RuntimeException( "Leaf/no leaf inconsistency");
+				}
+				hasSubTree = true;
+				subTrees.add( new SubTreeTask( subTree, previousKey, key ) );
+			}
+			else if ( hasSubTree )
+			{
+				throw new RuntimeException( "Leaf/no leaf inconsistency");
+			}
+			previousKey = key;
+			keyEntry = keyEntry.getNextKey();
+		}
+		if ( hasSubTree )
+		{
+			TreeNode subTree = entry.getAfterSubTree();
+			if ( subTree == null )
+			{
+				throw new RuntimeException( "Leaf/no leaf inconsistency" );
+			}
+			subTrees.add( new SubTreeTask( subTree, previousKey, upper ) );
+		}
+		return entryCount;
+	}
+	
+	// returns the height of the sub tree, 1 for a leaf
+	private int validateSubTree( TreeNode treeNode, Object lower, Object upper, 
+		int level, TreeStatistics statistics )
+	{
+		List<SubTreeTask> subTrees = new ArrayList<SubTreeTask>();
+		int entryCount = validateEntries( treeNode, lower, upper, subTrees );
+		validateEntryCount( entryCount );
+		statistics.addTreeNode( level, entryCount );
+		int height = -1;
+		for ( SubTreeTask subTree : subTrees )
+		{
+			int subTreeHeight = validateSubTree( subTree.treeNode, 
+				subTree.lower, subTree.upper, level + 1, statistics );
+			if ( height != -1 && height != subTreeHeight )
+			{
+				throw new RuntimeException( "Leaf depth inconsistency" );
+			}
+			height = subTreeHeight;
+		}
+		return height == -1 ? 1 : height + 1;
+	}
+	
+	private class SubTreeTask implements Callable<TreeStatistics>
+	{
+		private final TreeNode treeNode;
+		private final Object lower;
+		private final Object upper;
+		
+		SubTreeTask( TreeNode treeNode, Object lower, Object upper )
+		{
+			this.treeNode = treeNode;
+			this.lower = lower;
+			this.upper = upper;
+		}
+		
+		public TreeStatistics call()
+		{
+			TreeStatistics statistics = new TreeStatistics( 
+				bTree.getOrder() );
+			validateSubTree( treeNode, lower, upper, 0, statistics );
+			return statistics;
+		}
+	}
+}
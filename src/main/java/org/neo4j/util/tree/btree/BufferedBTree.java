@@ -0,0 +1,627 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.neo4j.graphdb.NotInTransactionException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.kernel.AbstractGraphDatabase;
+
+/**
+ * Buffers writes to a {@link BTree} in memory and writes them to the tree
+ * in key order, in batches. Random inserts into a b-tree each descend the
+ * tree from the root and touch a different part of it. Applying a batch
+ * in key order instead lets consecutive keys which fall within the same
+ * leaf be written straight into that leaf, without descending the tree
+ * again, and splits happen once per batch region instead of being spread
+ * out over time.
+ * <p>
+ * Reads look in the buffer first, then in the flushed writes which aren't
+ * known to be committed yet and then in the tree, so that buffered writes
+ * are visible through this instance, also when iterating with
+ * {@link #entries()}, {@link #values()} and {@link #range(long, long)}.
+ * Removals are buffered as tombstones. The buffer is written to the tree
+ * when it holds {@code maxBufferSize} entries or when {@link #flush()} is
+ * called, in the transaction of the caller, like the other write
+ * operations of a {@link BTree}.
+ * <p>
+ * Each flush registers a {@link Synchronization} with the flushing
+ * transaction and the flushed writes are kept in memory until it has
+ * completed. If it's rolled back the writes go back into the buffer,
+ * unless they have been overwritten since, and are written again by the
+ * next flush. The buffer itself is thread safe and the tree is written to
+ * without holding its monitor, but {@link BTree} has no concurrency
+ * control of its own, so flushes from different threads must not run at
+ * the same time.
+ * <p>
+ * The buffer lives in memory only. Buffered writes are lost if the JVM
+ * dies before they are flushed and committed, and they aren't visible to
+ * other users of the tree until then. Only use this where the input can
+ * be replayed.
+ * <p>
+ * This class isn't ready for general usage yet and use of it is discouraged.
+ */
+public class BufferedBTree
+{
+	private static final Object TOMBSTONE = new Object();
+	
+	private final BTree bTree;
+	private final int maxBufferSize;
+	private TreeMap<Long,Object> buffer = new TreeMap<Long,Object>();
+	// flushed writes, oldest first, kept until their transaction and the
+	// transactions of all earlier flushes have completed
+	private final LinkedList<Flush> flushes = new LinkedList<Flush>();
+	
+	/**
+	 * @param bTree the tree to buffer writes for.
+	 * @param maxBufferSize the number of buffered writes which triggers a
+	 * flush.
+	 */
+	public BufferedBTree( BTree bTree, int maxBufferSize )
+	{
+		if ( maxBufferSize < 1 )
+		{
+			throw new IllegalArgumentException( "Invalid buffer size " + 
+				maxBufferSize );
+		}
+		this.bTree = bTree;
+		this.maxBufferSize = maxBufferSize;
+	}
+	
+	/**
+	 * Sets the value of the entry with {@code key}, adding it if it doesn't
+	 * exist. The {@code value} has to be a valid neo4j property.
+	 * 
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 */
+	public void setEntry( long key, Object value )
+	{
+		if ( value == null )
+		{
+			throw new IllegalArgumentException( "Null value" );
+		}
+		if ( bufferWrite( key, value ) )
+		{
+			flush();
+		}
+	}
+	
+	/**
+	 * Removes the entry with {@code key}, if it exists.
+	 * 
+	 * @param key the key
+	 */
+	public void removeEntry( long key )
+	{
+		if ( bufferWrite( key, TOMBSTONE ) )
+		{
+			flush();
+		}
+	}
+	
+	// returns true if the buffer is full
+	private synchronized boolean bufferWrite( long key, Object value )
+	{
+		buffer.put( key, value );
+		return buffer.size() >= maxBufferSize;
+	}
+	
+	/**
+	 * Returns the value of an entry or {@code null} if no such entry exist,
+	 * including buffered writes.
+	 * 
+	 * @param key for the entry
+	 * @return value of the entry
+	 */
+	public Object getEntry( long key )
+	{
+		Object value = getWrite( key );
+		if ( value != null )
+		{
+			return value == TOMBSTONE ? null : value;
+		}
+		return bTree.getEntry( key );
+	}
+	
+	private synchronized Object getWrite( long key )
+	{
+		Object value = buffer.get( key );
+		for ( Iterator<Flush> newestFirst = flushes.descendingIterator(); 
+			value == null && newestFirst.hasNext(); )
+		{
+			value = newestFirst.next().writes.get( key );
+		}
+		return value;
+	}
+	
+	/**
+	 * Returns all entries in key order, including buffered writes. The
+	 * buffered writes are copied when the iteration starts and the entries
+	 * in the tree are read lazily, so the tree must not be modified during
+	 * the iteration. The returned entries are copies.
+	 * 
+	 * @return all entries in key order.
+	 */
+	public Iterable<Map.Entry<Long,Object>> entries()
+	{
+		return mergedRange( null, null );
+	}
+	
+	/**
+	 * Returns the entries with keys from {@code fromKey} (inclusive) to 
+	 * {@code toKey} (exclusive) in key order, including buffered writes,
+	 * see {@link #entries()}.
+	 * 
+	 * @param fromKey the first key of the range.
+	 * @param toKey the key to end the range at.
+	 * @return the entries in the range, in key order.
+	 */
+	public Iterable<Map.Entry<Long,Object>> range( long fromKey, long toKey )
+	{
+		return mergedRange( fromKey, toKey );
+	}
+	
+	/**
+	 * Returns the values of all entries in key order, including buffered
+	 * writes, see {@link #entries()}.
+	 * 
+	 * @return the values of all entries in key order.
+	 */
+	public Iterable<Object> values()
+	{
+		return new Iterable<Object>()
+		{
+			public Iterator<Object> iterator()
+			{
+				final Iterator<Map.Entry<Long,Object>> entries = 
+					entries().iterator();
+				return new Iterator<Object>()
+				{
+					public boolean hasNext()
+					{
+						return entries.hasNext();
+					}
+					
+					public Object next()
+					{
+						return entries.next().getValue();
+					}
+					
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	
+	private Iterable<Map.Entry<Long,Object>> mergedRange( final Long fromKey, 
+		final Long toKey )
+	{
+		return new Iterable<Map.Entry<Long,Object>>()
+		{
+			public Iterator<Map.Entry<Long,Object>> iterator()
+			{
+				return new MergingIterator( new KeyRangeIterator( bTree, 
+					fromKey, toKey ), copyWrites( fromKey, toKey ) );
+			}
+		};
+	}
+	
+	private synchronized Iterator<Map.Entry<Long,Object>> copyWrites( 
+		Long fromKey, Long toKey )
+	{
+		TreeMap<Long,Object> writes = new TreeMap<Long,Object>();
+		for ( Flush flush : flushes )
+		{
+			writes.putAll( flush.writes );
+		}
+		writes.putAll( buffer );
+		SortedMap<Long,Object> range = writes;
+		if ( fromKey != null )
+		{
+			range = range.tailMap( fromKey );
+		}
+		if ( toKey != null )
+		{
+			range = range.headMap( toKey );
+		}
+		return range.entrySet().iterator();
+	}
+	
+	/**
+	 * @return the number of buffered writes.
+	 */
+	public synchronized int getBufferSize()
+	{
+		return buffer.size();
+	}
+	
+	/**
+	 * @return the number of flushed writes kept until the transactions
+	 * which flushed them have completed.
+	 */
+	synchronized int getPendingSize()
+	{
+		int size = 0;
+		for ( Flush flush : flushes )
+		{
+			size += flush.writes.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Writes all buffered writes to the tree, in key order, and empties the
+	 * buffer. Must be called within a transaction. If that transaction is
+	 * rolled back the writes are put back into the buffer.
+	 */
+	public void flush()
+	{
+		Flush flush;
+		synchronized ( this )
+		{
+			if ( buffer.isEmpty() )
+			{
+				return;
+			}
+			flush = new Flush( buffer );
+			buffer = new TreeMap<Long,Object>();
+			flushes.add( flush );
+		}
+		try
+		{
+			Transaction tx = ( (AbstractGraphDatabase) bTree.getGraphDb() ).
+				getTxManager().getTransaction();
+			if ( tx == null )
+			{
+				throw new NotInTransactionException();
+			}
+			tx.registerSynchronization( flush );
+		}
+		catch ( Exception e )
+		{
+			completed( flush, false );
+			if ( e instanceof RuntimeException )
+			{
+				throw (RuntimeException) e;
+			}
+			throw new RuntimeException( e );
+		}
+		write( flush.writes );
+	}
+	
+	/**
+	 * Writes {@code writes} to the tree in key order. The leaf found for a
+	 * key is kept and the following keys are written straight into it as
+	 * long as they fall within its key range and the write can't split or
+	 * rebalance it. Other writes descend the tree from the root, so do all
+	 * writes to a tree with {@link BTree#hasOrderStatistics() order
+	 * statistics}, since those update the counts along the path from the
+	 * root.
+	 */
+	private void write( SortedMap<Long,Object> writes )
+	{
+		boolean useLeaves = !bTree.hasOrderStatistics();
+		Leaf leaf = null;
+		for ( Map.Entry<Long,Object> write : writes.entrySet() )
+		{
+			Long key = write.getKey();
+			Object value = write.getValue();
+			if ( useLeaves && ( leaf == null || !leaf.contains( key ) ) )
+			{
+				leaf = findLeaf( key );
+			}
+			if ( leaf == null || !leaf.write( key, value ) )
+			{
+				leaf = null;
+				if ( value == TOMBSTONE )
+				{
+					bTree.removeEntry( key );
+				}
+				else
+				{
+					KeyEntry existing = bTree.addOrGetEntry( key, value );
+					if ( existing != null )
+					{
+						existing.setValue( value );
+					}
+				}
+			}
+		}
+	}
+	
+	// returns the leaf which key belongs in, or null if key is in a tree
+	// node above the leaves
+	private Leaf findLeaf( long key )
+	{
+		TreeNode treeNode = bTree.getRoot();
+		Long lower = null;
+		Long upper = null;
+		while ( true )
+		{
+			KeyEntry entry = treeNode.getFirstEntry();
+			if ( entry == null || entry.isLeaf() )
+			{
+				return new Leaf( treeNode, lower, upper );
+			}
+			TreeNode subTree = null;
+			while ( subTree == null )
+			{
+				long entryKey = entry.getKey();
+				if ( key == entryKey )
+				{
+					return null;
+				}
+				if ( key < entryKey )
+				{
+					upper = entryKey;
+					subTree = entry.getBeforeSubTree();
+				}
+				else
+				{
+					lower = entryKey;
+					KeyEntry next = entry.getNextKey();
+					if ( next == null )
+					{
+						subTree = entry.getAfterSubTree();
+					}
+					entry = next;
+				}
+			}
+			treeNode = subTree;
+		}
+	}
+	
+	private synchronized void completed( Flush flush, boolean committed )
+	{
+		int index = flushes.indexOf( flush );
+		if ( committed )
+		{
+			flush.committed = true;
+		}
+		else
+		{
+			// the writes of this flush go back into the buffer, unless a
+			// later write to the same key has been buffered or flushed
+			for ( Map.Entry<Long,Object> write : flush.writes.entrySet() )
+			{
+				Long key = write.getKey();
+				if ( !buffer.containsKey( key ) && 
+					!isFlushedAfter( index, key ) )
+				{
+					buffer.put( key, write.getValue() );
+				}
+			}
+			flushes.remove( index );
+		}
+		while ( !flushes.isEmpty() && flushes.getFirst().committed )
+		{
+			flushes.removeFirst();
+		}
+	}
+	
+	private boolean isFlushedAfter( int index, Long key )
+	{
+		for ( Flush later : flushes.subList( index + 1, flushes.size() ) )
+		{
+			if ( later.writes.containsKey( key ) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the tree the writes are buffered for.
+	 */
+	public BTree getBTree()
+	{
+		return bTree;
+	}
+	
+	/**
+	 * The writes of one flush, notified when the flushing transaction has
+	 * completed. That happens in the thread which completes the
+	 * transaction, which may hold locks a flushing thread waits for, so
+	 * this buffer never holds its monitor while writing to the tree.
+	 */
+	private class Flush implements Synchronization
+	{
+		private final SortedMap<Long,Object> writes;
+		// guarded by the monitor of the buffer
+		private boolean committed;
+		
+		Flush( SortedMap<Long,Object> writes )
+		{
+			this.writes = writes;
+		}
+		
+		public void beforeCompletion()
+		{
+		}
+		
+		public void afterCompletion( int status )
+		{
+			completed( this, status == Status.STATUS_COMMITTED );
+		}
+	}
+	
+	/**
+	 * A leaf and the range of keys which belong in it, given by the entries
+	 * passed on the way down to it.
+	 */
+	private class Leaf
+	{
+		private final TreeNode treeNode;
+		private final Long lower;
+		private final Long upper;
+		private int entryCount;
+		
+		Leaf( TreeNode treeNode, Long lower, Long upper )
+		{
+			this.treeNode = treeNode;
+			this.lower = lower;
+			this.upper = upper;
+			for ( KeyEntry entry = treeNode.getFirstEntry(); entry != null; 
+				entry = entry.getNextKey() )
+			{
+				entryCount++;
+			}
+		}
+		
+		boolean contains( long key )
+		{
+			return ( lower == null || key > lower ) && 
+				( upper == null || key < upper );
+		}
+		
+		// returns false, without writing, if the write could split or
+		// rebalance this leaf
+		boolean write( Long key, Object value )
+		{
+			KeyEntry entry = treeNode.getFirstEntry();
+			while ( entry != null && entry.getKey() < key )
+			{
+				entry = entry.getNextKey();
+			}
+			boolean exists = entry != null && entry.getKey() == key;
+			// only the root has neither a lower nor an upper bound
+			boolean isRoot = lower == null && upper == null;
+			if ( value == TOMBSTONE )
+			{
+				if ( !exists )
+				{
+					return true;
+				}
+				if ( !isRoot && entryCount <= bTree.getOrder() / 2 )
+				{
+					return false;
+				}
+				treeNode.removeEntry( key );
+				entryCount--;
+				return true;
+			}
+			if ( exists )
+			{
+				entry.setValue( value );
+				return true;
+			}
+			if ( entryCount >= bTree.getOrder() - 1 )
+			{
+				return false;
+			}
+			treeNode.addEntry( key, value );
+			entryCount++;
+			return true;
+		}
+	}
+	
+	/**
+	 * Merges the entries of the tree with the buffered writes, where the
+	 * buffered writes replace the entries with the same keys.
+	 */
+	private static class MergingIterator 
+		implements Iterator<Map.Entry<Long,Object>>
+	{
+		private final Iterator<Relationship> treeEntries;
+		private final Iterator<Map.Entry<Long,Object>> writes;
+		private Relationship nextTreeEntry;
+		private Map.Entry<Long,Object> nextWrite;
+		private Map.Entry<Long,Object> next;
+		
+		MergingIterator( Iterator<Relationship> treeEntries, 
+			Iterator<Map.Entry<Long,Object>> writes )
+		{
+			this.treeEntries = treeEntries;
+			this.writes = writes;
+		}
+		
+		public boolean hasNext()
+		{
+			while ( next == null )
+			{
+				if ( nextTreeEntry == null && treeEntries.hasNext() )
+				{
+					nextTreeEntry = treeEntries.next();
+				}
+				if ( nextWrite == null && writes.hasNext() )
+				{
+					nextWrite = writes.next();
+				}
+				if ( nextTreeEntry == null && nextWrite == null )
+				{
+					return false;
+				}
+				Long treeKey = nextTreeEntry != null ? 
+					(Long) nextTreeEntry.getProperty( KeyEntry.KEY ) : null;
+				if ( nextWrite == null || ( treeKey != null && 
+					treeKey < nextWrite.getKey() ) )
+				{
+					next = new AbstractMap.SimpleImmutableEntry<Long,Object>( 
+						treeKey, nextTreeEntry.getProperty( KeyEntry.VALUE ) );
+					nextTreeEntry = null;
+					continue;
+				}
+				if ( treeKey != null && treeKey.equals( nextWrite.getKey() ) )
+				{
+					nextTreeEntry = null;
+				}
+				if ( nextWrite.getValue() != TOMBSTONE )
+				{
+					next = new AbstractMap.SimpleImmutableEntry<Long,Object>( 
+						nextWrite );
+				}
+				nextWrite = null;
+			}
+			return true;
+		}
+		
+		public Map.Entry<Long,Object> next()
+		{
+			if ( !hasNext() )
+			{
+				throw new NoSuchElementException();
+			}
+			Map.Entry<Long,Object> entry = next;
+			next = null;
+			return entry;
+		}
+		
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+/**
+ * Converts keys of a {@link BTree} to and from the values stored as the
+ * key property of the entries and defines the order of the stored values.
+ * The order must be consistent with the order of the keys themselves for
+ * range scans to make sense, see {@link KeyCodecs} for the default
+ * implementations.
+ * 
+ * @param <K> the key type.
+ */
+public interface KeyCodec<K>
+{
+	/**
+	 * @param key the key to encode.
+	 * @return the value to store for {@code key}, must be a valid neo4j
+	 * property value.
+	 */
+	Object encode( K key );
+	
+	/**
+	 * @param storedKey a value returned from {@link #encode(Object)}.
+	 * @return the key {@code storedKey} was encoded from.
+	 */
+	K decode( Object storedKey );
+	
+	/**
+	 * Compares two stored keys.
+	 * 
+	 * @param storedKey1 a value returned from {@link #encode(Object)}.
+	 * @param storedKey2 a value returned from {@link #encode(Object)}.
+	 * @return a negative integer, zero or a positive integer if 
+	 * {@code storedKey1} is less than, equal to or greater than
+	 * {@code storedKey2}.
+	 */
+	int compare( Object storedKey1, Object storedKey2 );
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+/**
+ * The {@link KeyCodec}s which comes with the b-tree implementation.
+ */
+public final class KeyCodecs
+{
+	private KeyCodecs()
+	{
+	}
+	
+	/**
+	 * {@code long} keys, stored as they are. This is the codec
+	 * {@link BTree} uses unless another one is given.
+	 */
+	public static final KeyCodec<Long> LONG = new KeyCodec<Long>()
+	{
+		public Object encode( Long key )
+		{
+			return key;
+		}
+		
+		public Long decode( Object storedKey )
+		{
+			return (Long) storedKey;
+		}
+		
+		public int compare( Object storedKey1, Object storedKey2 )
+		{
+			long key1 = (Long) storedKey1;
+			long key2 = (Long) storedKey2;
+			return key1 < key2 ? -1 : ( key1 == key2 ? 0 : 1 );
+		}
+	};
+	
+	/**
+	 * String keys, stored as they are and ordered as by 
+	 * {@link String#compareTo(String)}. All strings with a given prefix
+	 * {@code p} are in the range from {@code p} (inclusive) to {@code p}
+	 * followed by {@link Character#MAX_VALUE} (exclusive).
+	 */
+	public static final KeyCodec<String> STRING = new KeyCodec<String>()
+	{
+		public Object encode( String key )
+		{
+			return key;
+		}
+		
+		public String decode( Object storedKey )
+		{
+			return (String) storedKey;
+		}
+		
+		public int compare( Object storedKey1, Object storedKey2 )
+		{
+			return ( (String) storedKey1 ).compareTo( (String) storedKey2 );
+		}
+	};
+	
+	/**
+	 * Composite keys of {@code long}s, f.ex. (long, long) tuples, stored as
+	 * {@code long[]}. Ordered by the first element, then by the second and
+	 * so on. A tuple which is a prefix of another tuple comes before it.
+	 */
+	public static final KeyCodec<long[]> LONG_TUPLE = new KeyCodec<long[]>()
+	{
+		public Object encode( long[] key )
+		{
+			return key.clone();
+		}
+		
+		public long[] decode( Object storedKey )
+		{
+			return (long[]) storedKey;
+		}
+		
+		public int compare( Object storedKey1, Object storedKey2 )
+		{
+			long[] key1 = (long[]) storedKey1;
+			long[] key2 = (long[]) storedKey2;
+			int length = Math.min( key1.length, key2.length );
+			for ( int i = 0; i < length; i++ )
+			{
+				if ( key1[i] != key2[i] )
+				{
+					return key1[i] < key2[i] ? -1 : 1;
+				}
+			}
+			return key1.length - key2.length;
+		}
+	};
+	
+	/**
+	 * Byte array keys, stored as {@code byte[]} and ordered byte by byte
+	 * where each byte is treated as unsigned. An array which is a prefix of
+	 * another array comes before it. This is the order to use for
+	 * byte-wise order preserving encodings of other types, f.ex. big-endian
+	 * numbers or UTF-8 strings.
+	 */
+	public static final KeyCodec<byte[]> BYTES = new KeyCodec<byte[]>()
+	{
+		public Object encode( byte[] key )
+		{
+			return key.clone();
+		}
+		
+		public byte[] decode( Object storedKey )
+		{
+			return (byte[]) storedKey;
+		}
+		
+		public int compare( Object storedKey1, Object storedKey2 )
+		{
+			byte[] key1 = (byte[]) storedKey1;
+			byte[] key2 = (byte[]) storedKey2;
+			int length = Math.min( key1.length, key2.length );
+			for ( int i = 0; i < length; i++ )
+			{
+				int byte1 = key1[i] & 0xff;
+				int byte2 = key2[i] & 0xff;
+				if ( byte1 != byte2 )
+				{
+					return byte1 - byte2;
+				}
+			}
+			return key1.length - key2.length;
+		}
+	};
+}
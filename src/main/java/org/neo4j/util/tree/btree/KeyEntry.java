@@ -116,7 +116,19 @@ public class KeyEntry
 		return (Long) entryRelationship.getProperty( KEY );
 	}
 	
-	void setKey( long key )
+	/**
+	 * Returns the key for this entry as it is stored, i.e. encoded by the
+	 * {@link KeyCodec} of the b-tree. For a b-tree with {@code long} keys
+	 * this is a {@link Long}.
+	 * 
+	 * @return the stored key for this entry.
+	 */
+	public Object getStoredKey()
+	{
+		return entryRelationship.getProperty( KEY );
+	}
+	
+	void setKey( Object key )
 	{
 		entryRelationship.setProperty( KEY, key );
 	}
@@ -172,13 +184,13 @@ public class KeyEntry
 	 */
 	public void remove()
 	{
-		treeNode.removeEntry( this.getKey() );
+		getBTree().removeStoredEntry( this.getStoredKey() );
 	}
 	
 	@Override
 	public String toString()
 	{
-		return "Entry[" + getKey() + "," + getValue() + "]";
+		return "Entry[" + getStoredKey() + "," + getValue() + "]";
 	}
 	
 	boolean isLeaf()
@@ -205,22 +217,4 @@ public class KeyEntry
 	{
 		return entryRelationship.getEndNode();
 	}
-
-	void move( TreeNode node, Node startNode, Node endNode )
-    {
-		assert node != null;
-		this.treeNode = node;
-		long key = getKey();
-		Object value = getValue();
-		Object keyValue = getKeyValue();
-		entryRelationship.delete();
-		entryRelationship = startNode.createRelationshipTo( endNode, 
-			RelTypes.KEY_ENTRY );
-		setKey( key );
-		setValue( value );
-		if ( keyValue != null )
-		{
-			setKeyValue( keyValue );
-		}
-    }
 }
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+/**
+ * 64-bit hashing of keys which are valid neo4j property values, spreading
+ * them over the whole {@code long} key space of a {@link BTree}. Keys which
+ * are equal will always get the same hash.
+ */
+final class KeyHashing
+{
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private KeyHashing()
+	{
+	}
+
+	static long hash64( Object key )
+	{
+		if ( key instanceof String )
+		{
+			String string = (String) key;
+			long hash = FNV_OFFSET_BASIS;
+			for ( int i = 0; i < string.length(); i++ )
+			{
+				char c = string.charAt( i );
+				hash = ( hash ^ ( c & 0xff ) ) * FNV_PRIME;
+				hash = ( hash ^ ( c >>> 8 ) ) * FNV_PRIME;
+			}
+			return mix( hash ^ string.length() );
+		}
+		if ( key instanceof Long || key instanceof Integer ||
+			key instanceof Short || key instanceof Byte )
+		{
+			return mix( ( (Number) key ).longValue() );
+		}
+		if ( key instanceof Double || key instanceof Float )
+		{
+			return mix( Double.doubleToLongBits(
+				( (Number) key ).doubleValue() ) );
+		}
+		if ( key instanceof Character )
+		{
+			return mix( (Character) key );
+		}
+		if ( key instanceof Boolean )
+		{
+			return mix( (Boolean) key ? 1 : 0 );
+		}
+		return mix( key.hashCode() );
+	}
+
+	/**
+	 * The finalization step of MurmurHash3, every input bit affects every
+	 * output bit.
+	 */
+	static long mix( long hash )
+	{
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.util.tree.btree.BTree.RelTypes;
+
+/**
+ * Iterates over the entry relationships of a {@link BTree} in key order,
+ * lazily, using a stack of the nodes left to visit instead of collecting
+ * the entries first.
+ * <p>
+ * In the chain of nodes making up a tree node the sub tree with the keys
+ * less than an entry hangs off the start node of that entry and the last
+ * sub tree off the last node of the chain. The stack holds chain nodes
+ * whose sub tree has been visited and whose outgoing entry is next.
+ */
+class KeyRangeIterator implements Iterator<Relationship>
+{
+	private final BTree bTree;
+	private final Object toKey;
+	private final Deque<Node> stack = new ArrayDeque<Node>();
+	private Relationship next;
+	
+	/**
+	 * @param bTree the tree to iterate over.
+	 * @param fromKey the stored key to start at (inclusive) or {@code null}
+	 * to start at the first entry.
+	 * @param toKey the stored key to stop at (exclusive) or {@code null}
+	 * to continue to the last entry.
+	 */
+	KeyRangeIterator( BTree bTree, Object fromKey, Object toKey )
+	{
+		this.bTree = bTree;
+		this.toKey = toKey;
+		Node root = bTree.getRoot().getUnderlyingNode();
+		if ( fromKey == null )
+		{
+			pushLeftmost( root );
+		}
+		else
+		{
+			seek( root, fromKey );
+		}
+	}
+	
+	private void pushLeftmost( Node chainNode )
+	{
+		while ( chainNode != null )
+		{
+			stack.push( chainNode );
+			Relationship subTree = chainNode.getSingleRelationship( 
+				RelTypes.SUB_TREE, Direction.OUTGOING );
+			chainNode = subTree != null ? subTree.getEndNode() : null;
+		}
+	}
+	
+	private void seek( Node chainNode, Object fromKey )
+	{
+		while ( chainNode != null )
+		{
+			Relationship entry = chainNode.getSingleRelationship( 
+				RelTypes.KEY_ENTRY, Direction.OUTGOING );
+			if ( entry != null && bTree.compareKeys( 
+				entry.getProperty( KeyEntry.KEY ), fromKey ) < 0 )
+			{
+				// this entry and the sub tree before it are out of range
+				chainNode = entry.getEndNode();
+				continue;
+			}
+			if ( entry != null )
+			{
+				stack.push( chainNode );
+			}
+			Relationship subTree = chainNode.getSingleRelationship( 
+				RelTypes.SUB_TREE, Direction.OUTGOING );
+			chainNode = subTree != null ? subTree.getEndNode() : null;
+		}
+	}
+	
+	public boolean hasNext()
+	{
+		while ( next == null && !stack.isEmpty() )
+		{
+			Relationship entry = stack.pop().getSingleRelationship( 
+				RelTypes.KEY_ENTRY, Direction.OUTGOING );
+			if ( entry == null )
+			{
+				// last node in the chain, the tree node is done
+				continue;
+			}
+			if ( toKey != null && bTree.compareKeys( 
+				entry.getProperty( KeyEntry.KEY ), toKey ) >= 0 )
+			{
+				stack.clear();
+				break;
+			}
+			next = entry;
+			pushLeftmost( entry.getEndNode() );
+		}
+		return next != null;
+	}
+	
+	public Relationship next()
+	{
+		if ( !hasNext() )
+		{
+			throw new NoSuchElementException();
+		}
+		Relationship entry = next;
+		next = null;
+		return entry;
+	}
+	
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
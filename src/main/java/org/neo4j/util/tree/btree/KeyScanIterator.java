@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Iterates over the entries of a {@link BTree} in key order, reading
+ * {@code batchSize} entries at a time. Each batch is read by descending
+ * from the current root to the key after the last key of the previous
+ * batch, so splits and merges between batches can never make the
+ * iteration skip or repeat an entry. The keys and values are copied when
+ * read, so the returned entries stay valid whatever happens to the tree.
+ * <p>
+ * Like the other readers of a {@link BTree} the scan takes no locks, so
+ * it never holds up writers. If a writer commits a split or merge which
+ * removes a tree node in the middle of a batch that batch is read again
+ * from the new root, starting after the same key.
+ * <p>
+ * The result isn't a snapshot of the tree as it was when the iteration
+ * started, the kernel only offers read committed isolation. An entry
+ * which exists during the whole iteration is returned exactly once,
+ * entries added or removed during the iteration may or may not be.
+ */
+class KeyScanIterator implements Iterator<Map.Entry<Object,Object>>
+{
+	private final BTree bTree;
+	private final Object toKey;
+	private final int batchSize;
+	private final List<Map.Entry<Object,Object>> batch = 
+		new ArrayList<Map.Entry<Object,Object>>();
+	private int position;
+	private Object lastKey;
+	private boolean lastBatch;
+	
+	KeyScanIterator( BTree bTree, Object fromKey, Object toKey, 
+		int batchSize )
+	{
+		if ( batchSize < 1 )
+		{
+			throw new IllegalArgumentException( "Invalid batch size " + 
+				batchSize );
+		}
+		this.bTree = bTree;
+		this.lastKey = fromKey;
+		this.toKey = toKey;
+		this.batchSize = batchSize;
+		// the first batch includes fromKey, following ones start after
+		// lastKey
+		readBatch( true );
+	}
+	
+	private void readBatch( boolean includeLastKey )
+	{
+		while ( true )
+		{
+			batch.clear();
+			position = 0;
+			try
+			{
+				doReadBatch( includeLastKey );
+				return;
+			}
+			catch ( NotFoundException e )
+			{
+				// A tree node was deleted by a committed merge or split,
+				// lastKey is still the last key returned so just retry
+			}
+		}
+	}
+	
+	private void doReadBatch( boolean includeLastKey )
+	{
+		Iterator<Relationship> entries = 
+			new KeyRangeIterator( bTree, lastKey, toKey );
+		while ( batch.size() < batchSize && entries.hasNext() )
+		{
+			Relationship entry = entries.next();
+			Object key = entry.getProperty( KeyEntry.KEY );
+			if ( !includeLastKey && lastKey != null && 
+				bTree.compareKeys( key, lastKey ) <= 0 )
+			{
+				continue;
+			}
+			batch.add( new AbstractMap.SimpleImmutableEntry<Object,Object>( 
+				key, entry.getProperty( KeyEntry.VALUE ) ) );
+		}
+		lastBatch = !entries.hasNext();
+		if ( !batch.isEmpty() )
+		{
+			lastKey = batch.get( batch.size() - 1 ).getKey();
+		}
+	}
+	
+	public boolean hasNext()
+	{
+		if ( position < batch.size() )
+		{
+			return true;
+		}
+		if ( lastBatch )
+		{
+			return false;
+		}
+		readBatch( false );
+		return position < batch.size();
+	}
+	
+	public Map.Entry<Object,Object> next()
+	{
+		if ( !hasNext() )
+		{
+			throw new NoSuchElementException();
+		}
+		return batch.get( position++ );
+	}
+	
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.tree.btree.BTreeMap.TransactionMode;
+
+/**
+ * A persistent {@code long} to {@code long} map, f.ex. node id to node id
+ * or node id to counter. The key is used directly as the key in the
+ * underlying {@link BTree}, so each entry is stored as just a key and a
+ * value on the entry relationship.
+ * <p>
+ * This class isn't ready for general usage yet and use of it is discouraged.
+ */
+public class LongLongBTreeMap extends AbstractLongBTreeMap
+{
+	/**
+	 * Creates/loads a persistent map based on a b-tree. 
+	 * The {@code underlyingNode} can either be a new (just created) node 
+	 * or a node that already represents a previously created map.
+	 *
+	 * @param name The unique name of the map or null if map already
+	 * created (using specified underlying node).
+	 * @param underlyingNode The underlying node representing the map
+	 * @param graphDb The {@link GraphDatabaseService} instance.
+	 * @throws IllegalArgumentException if the underlying node is a map with
+	 * a different name set.
+	 */
+	public LongLongBTreeMap( String name, Node underlyingNode, 
+		GraphDatabaseService graphDb )
+	{
+		this( name, underlyingNode, graphDb, TransactionMode.PER_OPERATION );
+	}
+	
+	/**
+	 * Creates/loads a persistent map based on a b-tree. 
+	 *
+	 * @param name The unique name of the map or null if map already
+	 * created (using specified underlying node).
+	 * @param underlyingNode The underlying node representing the map
+	 * @param graphDb The {@link GraphDatabaseService} instance.
+	 * @param transactionMode which transactions the map operations run in.
+	 */
+	public LongLongBTreeMap( String name, Node underlyingNode, 
+		GraphDatabaseService graphDb, TransactionMode transactionMode )
+	{
+		super( name, underlyingNode, graphDb, transactionMode );
+	}
+	
+	/**
+	 * Sets the value for {@code key}.
+	 * 
+	 * @param key the key.
+	 * @param value the value.
+	 * @return {@code true} if the key was added, {@code false} if an
+	 * existing value was replaced.
+	 */
+	public boolean put( long key, long value )
+	{
+		return putValue( key, value ) == null;
+	}
+	
+	/**
+	 * @param key the key.
+	 * @param defaultValue returned if there's no entry for {@code key}.
+	 * @return the value for {@code key}, or {@code defaultValue} if there's
+	 * no such entry.
+	 */
+	public long get( long key, long defaultValue )
+	{
+		Object value = getValue( key );
+		return value != null ? (Long) value : defaultValue;
+	}
+	
+	/**
+	 * Adds {@code delta} to the value for {@code key}, treating a missing
+	 * entry as zero.
+	 * 
+	 * @param key the key.
+	 * @param delta the amount to add.
+	 * @return the new value.
+	 */
+	public long increment( long key, long delta )
+	{
+		Transaction tx = beginTx();
+		try
+		{
+			KeyEntry entry = addOrGetEntry( key, delta );
+			long value = delta;
+			if ( entry != null )
+			{
+				value += (Long) entry.getValue();
+				entry.setValue( value );
+			}
+			BTreeMap.success( tx );
+			return value;
+		}
+		finally
+		{
+			BTreeMap.finish( tx );
+		}
+	}
+	
+	/**
+	 * @param key the key of the entry to remove.
+	 * @return {@code true} if there was an entry for {@code key}.
+	 */
+	public boolean remove( long key )
+	{
+		return removeValue( key ) != null;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.tree.btree.BTreeMap.TransactionMode;
+
+/**
+ * A persistent map from {@code long} keys to values which are valid neo4j
+ * properties. The key is used directly as the key in the underlying
+ * {@link BTree}, so each entry is stored as just a key and a value on the
+ * entry relationship.
+ * <p>
+ * This class isn't ready for general usage yet and use of it is discouraged.
+ * 
+ * @param <V> The value type
+ */
+public class LongObjectBTreeMap<V> extends AbstractLongBTreeMap
+{
+	/**
+	 * Creates/loads a persistent map based on a b-tree. 
+	 * The {@code underlyingNode} can either be a new (just created) node 
+	 * or a node that already represents a previously created map.
+	 *
+	 * @param name The unique name of the map or null if map already
+	 * created (using specified underlying node).
+	 * @param underlyingNode The underlying node representing the map
+	 * @param graphDb The {@link GraphDatabaseService} instance.
+	 * @throws IllegalArgumentException if the underlying node is a map with
+	 * a different name set.
+	 */
+	public LongObjectBTreeMap( String name, Node underlyingNode, 
+		GraphDatabaseService graphDb )
+	{
+		this( name, underlyingNode, graphDb, TransactionMode.PER_OPERATION );
+	}
+	
+	/**
+	 * Creates/loads a persistent map based on a b-tree. 
+	 *
+	 * @param name The unique name of the map or null if map already
+	 * created (using specified underlying node).
+	 * @param underlyingNode The underlying node representing the map
+	 * @param graphDb The {@link GraphDatabaseService} instance.
+	 * @param transactionMode which transactions the map operations run in.
+	 */
+	public LongObjectBTreeMap( String name, Node underlyingNode, 
+		GraphDatabaseService graphDb, TransactionMode transactionMode )
+	{
+		super( name, underlyingNode, graphDb, transactionMode );
+	}
+	
+	/**
+	 * Sets the value for {@code key}. If value is {@code null}
+	 * {@link IllegalArgumentException} is thrown.
+	 * 
+	 * @param key the key.
+	 * @param value the value, must be a valid neo4j property.
+	 * @return the previous value for {@code key} or {@code null}.
+	 */
+	public V put( long key, V value )
+	{
+		if ( value == null )
+		{
+			throw new IllegalArgumentException( "Null value" );
+		}
+		return castValue( putValue( key, value ) );
+	}
+	
+	/**
+	 * @param key the key.
+	 * @return the value for {@code key} or {@code null} if there's no such
+	 * entry.
+	 */
+	public V get( long key )
+	{
+		return castValue( getValue( key ) );
+	}
+	
+	/**
+	 * @param key the key of the entry to remove.
+	 * @return the value of the removed entry or {@code null} if there was
+	 * no entry for {@code key}.
+	 */
+	public V remove( long key )
+	{
+		return castValue( removeValue( key ) );
+	}
+	
+	@SuppressWarnings( "unchecked" )
+	private V castValue( Object value )
+	{
+		return (V) value;
+	}
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * A {@link BTree} with keys of any type which a {@link KeyCodec} can
+ * encode, f.ex. strings, composite {@code long} keys or byte arrays, see
+ * {@link KeyCodecs}. The entries are kept in the order defined by the
+ * codec so that they can be scanned by range, which isn't possible with
+ * hashed keys like the ones {@link BTreeMap} uses.
+ * <p>
+ * This class isn't ready for general usage yet and use of it is discouraged.
+ * 
+ * @param <K> the key type.
+ */
+public class OrderedBTree<K>
+{
+	private final BTree bTree;
+	private final KeyCodec<K> keyCodec;
+	
+	/**
+	 * Creates an ordered b-tree using {@code rootNode} as root. The root 
+	 * node must have an incoming relationship of
+	 * {@link BTree.RelTypes TREE_ROOT} else a runtime exception will be
+	 * thrown.
+	 * 
+	 * @param graphDb the embedded graph database instance
+	 * @param rootNode root node with incoming {@code TREE_ROOT} relationship.
+	 * @param keyCodec encodes and orders the keys, must be the same every
+	 * time the tree is opened.
+	 */
+	public OrderedBTree( GraphDatabaseService graphDb, Node rootNode, 
+		KeyCodec<K> keyCodec )
+	{
+		this.bTree = new BTree( graphDb, rootNode, keyCodec );
+		this.keyCodec = keyCodec;
+	}
+	
+	/**
+	 * Adds a entry to this b-tree. If key already exist a runtime exception
+	 * is thrown. The {@code value} has to be a valid neo4j property.
+	 * 
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 * @return the added entry
+	 */
+	public KeyEntry addEntry( K key, Object value )
+	{
+		return bTree.addStoredEntry( keyCodec.encode( key ), value, false );
+	}
+	
+	/**
+	 * Adds the entry to this b-tree if the key doesn't already exist.
+	 * 
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 * @return the added entry or {@code null} if it already existed
+	 */
+	public KeyEntry addIfAbsent( K key, Object value )
+	{
+		return bTree.addStoredEntry( keyCodec.encode( key ), value, true );
+	}
+	
+	/**
+	 * Returns the value of an entry or {@code null} if no such entry exist.
+	 * 
+	 * @param key for the entry
+	 * @return value of the entry
+	 */
+	public Object getEntry( K key )
+	{
+		Relationship entry = bTree.getRoot().findEntry( 
+			keyCodec.encode( key ) );
+		return entry != null ? entry.getProperty( KeyEntry.VALUE ) : null;
+	}
+	
+	/**
+	 * Returns the {@code KeyEntry} for a key or null if it doesn't exist.
+	 * 
+	 * @param key the key
+	 * @return the entry connected to the key
+	 */
+	public KeyEntry getAsKeyEntry( K key )
+	{
+		return bTree.getRoot().getEntry( keyCodec.encode( key ) );
+	}
+	
+	/**
+	 * Returns the entry with the largest key less than or equal to 
+	 * {@code key} or {@code null} if no such entry exist.
+	 * 
+	 * @param key the key
+	 * @return the closest lower entry
+	 */
+	public KeyEntry getClosestLowerEntry( K key )
+	{
+		return toKeyEntry( bTree.getRoot().findClosestLowerEntry( 
+			keyCodec.encode( key ) ) );
+	}
+	
+	/**
+	 * Returns the entry with the smallest key greater than or equal to 
+	 * {@code key} or {@code null} if no such entry exist.
+	 * 
+	 * @param key the key
+	 * @return the closest higher entry
+	 */
+	public KeyEntry getClosestHigherEntry( K key )
+	{
+		return toKeyEntry( bTree.getRoot().findClosestHigherEntry( 
+			keyCodec.encode( key ) ) );
+	}
+	
+	private KeyEntry toKeyEntry( Relationship entry )
+	{
+		return entry != null ? TreeNode.toKeyEntry( bTree, entry ) : null;
+	}
+	
+	/**
+	 * Removes a entry and returns the value of the entry. If entry doesn't
+	 * exist {@code null} is returned.
+	 * 
+	 * @param key the key
+	 * @return value of removed entry
+	 */
+	public Object removeEntry( K key )
+	{
+		return bTree.removeStoredEntry( keyCodec.encode( key ) );
+	}
+	
+	/**
+	 * Decodes the key of an entry in this tree.
+	 * 
+	 * @param entry an entry of this tree.
+	 * @return the key of {@code entry}.
+	 */
+	public K getKey( KeyEntry entry )
+	{
+		return keyCodec.decode( entry.getStoredKey() );
+	}
+	
+	/**
+	 * Returns all entries in key order. The entries are read lazily while
+	 * iterating and the tree must not be modified during the iteration.
+	 * 
+	 * @return all entries in key order.
+	 */
+	public Iterable<KeyEntry> entries()
+	{
+		return range( null, null );
+	}
+	
+	/**
+	 * Returns the entries with keys from {@code fromKey} (inclusive) to 
+	 * {@code toKey} (exclusive) in key order. The entries are read lazily
+	 * while iterating and the tree must not be modified during the
+	 * iteration.
+	 * 
+	 * @param fromKey the first key of the range or {@code null} to start 
+	 * at the first entry.
+	 * @param toKey the key to end the range at or {@code null} to continue
+	 * to the last entry.
+	 * @return the entries in the range, in key order.
+	 */
+	public Iterable<KeyEntry> range( K fromKey, K toKey )
+	{
+		final Object from = fromKey != null ? keyCodec.encode( fromKey ) : null;
+		final Object to = toKey != null ? keyCodec.encode( toKey ) : null;
+		return new Iterable<KeyEntry>()
+		{
+			public Iterator<KeyEntry> iterator()
+			{
+				final Iterator<Relationship> entries = 
+					new KeyRangeIterator( bTree, from, to );
+				return new Iterator<KeyEntry>()
+				{
+					public boolean hasNext()
+					{
+						return entries.hasNext();
+					}
+					
+					public KeyEntry next()
+					{
+						return TreeNode.toKeyEntry( bTree, entries.next() );
+					}
+					
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * Returns the entries with keys from {@code fromKey} (inclusive) to 
+	 * {@code toKey} (exclusive) in key order, read {@code batchSize} entries
+	 * at a time so that long scans can run alongside writers, see
+	 * {@link BTree#scan(int)}. The returned entries are copies.
+	 * 
+	 * @param fromKey the first key of the range or {@code null} to start 
+	 * at the first entry.
+	 * @param toKey the key to end the range at or {@code null} to continue
+	 * to the last entry.
+	 * @param batchSize the number of entries to read at a time.
+	 * @return the entries in the range, in key order.
+	 */
+	public Iterable<Map.Entry<K,Object>> scan( K fromKey, K toKey, 
+		final int batchSize )
+	{
+		final Object from = fromKey != null ? keyCodec.encode( fromKey ) : null;
+		final Object to = toKey != null ? keyCodec.encode( toKey ) : null;
+		return new Iterable<Map.Entry<K,Object>>()
+		{
+			public Iterator<Map.Entry<K,Object>> iterator()
+			{
+				final Iterator<Map.Entry<Object,Object>> entries = 
+					new KeyScanIterator( bTree, from, to, batchSize );
+				return new Iterator<Map.Entry<K,Object>>()
+				{
+					public boolean hasNext()
+					{
+						return entries.hasNext();
+					}
+					
+					public Map.Entry<K,Object> next()
+					{
+						Map.Entry<Object,Object> entry = entries.next();
+						return new AbstractMap.SimpleImmutableEntry<K,Object>( 
+							keyCodec.decode( entry.getKey() ), 
+							entry.getValue() );
+					}
+					
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * Deletes this b-tree.
+	 */
+	public void delete()
+	{
+		bTree.delete();
+	}
+	
+	/**
+	 * Deletes this b-tree using a commit interval, see
+	 * {@link BTree#delete(int)}.
+	 * 
+	 * @param commitInterval number of nodes and relationships to delete 
+	 * before the current transaction is committed and a new one is started
+	 * @deprecated Commits the transaction of the caller. Use
+	 * {@link #deleteInBatches(int)}, which runs in transactions of its own
+	 * and can be resumed, instead.
+	 */
+	@Deprecated
+	public void delete( int commitInterval )
+	{
+		bTree.delete( commitInterval );
+	}
+	
+	/**
+	 * Deletes this b-tree in bounded transactions, see
+	 * {@link BTree#deleteInBatches(int)}.
+	 * 
+	 * @param commitInterval number of nodes and relationships to delete
+	 * before the transaction is committed and a new one is started
+	 */
+	public void deleteInBatches( int commitInterval )
+	{
+		bTree.deleteInBatches( commitInterval );
+	}
+	
+	/**
+	 * Validates this b-tree making sure it is balanced and consistent.
+	 */
+	public void validateTree()
+	{
+		bTree.validateTree();
+	}
+}
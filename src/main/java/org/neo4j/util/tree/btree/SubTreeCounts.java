@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.util.tree.btree.BTree.RelTypes;
+
+/**
+ * Maintains and queries the number of entries in each sub tree of a
+ * {@link BTree}, stored as a property on the first node of each tree node.
+ * Only the first node of a tree node (the one with the incoming
+ * {@link RelTypes#SUB_TREE SUB_TREE} or {@link RelTypes#TREE_ROOT
+ * TREE_ROOT} relationship) is ever read.
+ * <p>
+ * An insert or remove which doesn't rebalance the tree changes the count
+ * of each tree node on the path from the root down to the leaf where the
+ * entry was added or removed by one. When the tree was rebalanced only
+ * the tree nodes on that path and their children can have been changed
+ * (sub trees which were moved are moved as a whole, with their counts),
+ * so those are recomputed bottom up from their entries and the counts of
+ * their children. The exception is a split which propagates more than one
+ * level up, where a new tree node can end up off the path, so both halves
+ * of each split tree node are recomputed as the split is done.
+ */
+class SubTreeCounts
+{
+	static final String SUBTREE_COUNT = "subtree_count";
+	
+	private final BTree bTree;
+	
+	SubTreeCounts( BTree bTree )
+	{
+		this.bTree = bTree;
+	}
+	
+	static long getCount( Node treeNode )
+	{
+		return treeNode != null ? 
+			(Long) treeNode.getProperty( SUBTREE_COUNT, 0L ) : 0;
+	}
+	
+	private static Node getSubTree( Node chainNode )
+	{
+		Relationship subTree = chainNode.getSingleRelationship( 
+			RelTypes.SUB_TREE, Direction.OUTGOING );
+		return subTree != null ? subTree.getEndNode() : null;
+	}
+	
+	private static Relationship getEntry( Node chainNode )
+	{
+		return chainNode.getSingleRelationship( RelTypes.KEY_ENTRY, 
+			Direction.OUTGOING );
+	}
+	
+	/**
+	 * Recomputes the count of {@code treeNode} from its entries and the
+	 * counts of its sub trees.
+	 */
+	static long recompute( Node treeNode )
+	{
+		long count = 0;
+		Node chainNode = treeNode;
+		while ( chainNode != null )
+		{
+			count += getCount( getSubTree( chainNode ) );
+			Relationship entry = getEntry( chainNode );
+			if ( entry == null )
+			{
+				break;
+			}
+			count++;
+			chainNode = entry.getEndNode();
+		}
+		treeNode.setProperty( SUBTREE_COUNT, count );
+		return count;
+	}
+	
+	/**
+	 * Computes the counts of all tree nodes in the sub tree of
+	 * {@code treeNode}.
+	 */
+	static long rebuild( Node treeNode )
+	{
+		Node chainNode = treeNode;
+		while ( chainNode != null )
+		{
+			Node subTree = getSubTree( chainNode );
+			if ( subTree != null )
+			{
+				rebuild( subTree );
+			}
+			Relationship entry = getEntry( chainNode );
+			chainNode = entry != null ? entry.getEndNode() : null;
+		}
+		return recompute( treeNode );
+	}
+	
+	/**
+	 * Updates the counts after an entry was added ({@code delta} 1) or
+	 * removed ({@code delta} -1).
+	 * 
+	 * @param pathKey the stored key which leads to the leaf where the entry
+	 * was physically added or removed, see {@link #getPath(Object)}.
+	 * @param rebalanced whether or not the tree was rebalanced by the
+	 * operation.
+	 */
+	void update( Object pathKey, int delta, boolean rebalanced )
+	{
+		List<Node> path = getPath( pathKey );
+		if ( !rebalanced )
+		{
+			for ( Node treeNode : path )
+			{
+				treeNode.setProperty( SUBTREE_COUNT, 
+					getCount( treeNode ) + delta );
+			}
+			return;
+		}
+		for ( int i = path.size() - 1; i >= 0; i-- )
+		{
+			Node treeNode = path.get( i );
+			Node onPath = i + 1 < path.size() ? path.get( i + 1 ) : null;
+			Node chainNode = treeNode;
+			while ( chainNode != null )
+			{
+				Node subTree = getSubTree( chainNode );
+				if ( subTree != null && !subTree.equals( onPath ) )
+				{
+					recompute( subTree );
+				}
+				Relationship entry = getEntry( chainNode );
+				chainNode = entry != null ? entry.getEndNode() : null;
+			}
+			recompute( treeNode );
+		}
+	}
+	
+	/**
+	 * Returns the tree nodes from the root down to a leaf, following
+	 * {@code key}. If {@code key} is found in a tree node the path continues
+	 * down the leftmost side of the sub tree after it, i.e. to the leaf
+	 * holding the successor of {@code key}.
+	 */
+	List<Node> getPath( Object key )
+	{
+		List<Node> path = new ArrayList<Node>();
+		boolean leftmost = false;
+		Node treeNode = bTree.getRoot().getUnderlyingNode();
+		while ( treeNode != null )
+		{
+			path.add( treeNode );
+			Node chainNode = treeNode;
+			Relationship entry = getEntry( chainNode );
+			while ( !leftmost && entry != null )
+			{
+				int compare = bTree.compareKeys( key, 
+					entry.getProperty( KeyEntry.KEY ) );
+				if ( compare < 0 )
+				{
+					break;
+				}
+				chainNode = entry.getEndNode();
+				if ( compare == 0 )
+				{
+					leftmost = true;
+					break;
+				}
+				entry = getEntry( chainNode );
+			}
+			treeNode = getSubTree( chainNode );
+		}
+		return path;
+	}
+	
+	/**
+	 * @return the number of entries with a stored key less than 
+	 * {@code key}.
+	 */
+	long rank( Object key )
+	{
+		long rank = 0;
+		Node treeNode = bTree.getRoot().getUnderlyingNode();
+		while ( treeNode != null )
+		{
+			Node chainNode = treeNode;
+			Relationship entry = getEntry( chainNode );
+			while ( entry != null )
+			{
+				int compare = bTree.compareKeys( key, 
+					entry.getProperty( KeyEntry.KEY ) );
+				if ( compare < 0 )
+				{
+					break;
+				}
+				rank += getCount( getSubTree( chainNode ) );
+				if ( compare == 0 )
+				{
+					return rank;
+				}
+				rank++;
+				chainNode = entry.getEndNode();
+				entry = getEntry( chainNode );
+			}
+			treeNode = getSubTree( chainNode );
+		}
+		return rank;
+	}
+	
+	/**
+	 * @return the entry relationship at {@code index} in key order, or
+	 * {@code null} if there are no more than {@code index} entries.
+	 */
+	Relationship select( long index )
+	{
+		Node treeNode = bTree.getRoot().getUnderlyingNode();
+		if ( index < 0 || index >= getCount( treeNode ) )
+		{
+			return null;
+		}
+		while ( treeNode != null )
+		{
+			Node chainNode = treeNode;
+			Relationship entry = getEntry( chainNode );
+			Node subTree = null;
+			while ( true )
+			{
+				subTree = getSubTree( chainNode );
+				long subTreeCount = getCount( subTree );
+				if ( index < subTreeCount || entry == null )
+				{
+					break;
+				}
+				if ( index == subTreeCount )
+				{
+					return entry;
+				}
+				index -= subTreeCount + 1;
+				chainNode = entry.getEndNode();
+				entry = getEntry( chainNode );
+			}
+			treeNode = subTree;
+		}
+		return null;
+	}
+}
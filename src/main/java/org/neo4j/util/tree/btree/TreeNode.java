@@ -19,14 +19,20 @@
  */
 package org.neo4j.util.tree.btree;
 
-import javax.transaction.Transaction;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
-import org.neo4j.kernel.AbstractGraphDatabase;
+import org.neo4j.util.tree.TreeEngine;
 import org.neo4j.util.tree.btree.BTree.RelTypes;
 
+/**
+ * A tree node of a {@link BTree}. The structural changes, splits and
+ * rebalancing, are done by the {@link TreeEngine} of the tree, this class
+ * knows about the keys and values.
+ */
 class TreeNode
 {
 	private BTree bTree;
@@ -45,141 +51,19 @@ class TreeNode
 	
 	TreeNode getParent()
 	{
-		Relationship toParentNode = treeNode.getSingleRelationship( 
-			RelTypes.SUB_TREE, Direction.INCOMING );
-		if ( toParentNode != null )
-		{
-			Node parentNode = toParentNode.getStartNode();
-			Relationship prevEntry = parentNode.getSingleRelationship( 
-				RelTypes.KEY_ENTRY, Direction.INCOMING );
-			while ( prevEntry != null )
-			{
-				parentNode = prevEntry.getStartNode();
-				prevEntry = parentNode.getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.INCOMING );
-			}
-			return new TreeNode( bTree, parentNode );
-		}
-		return null;
-	}
-	
-	// returns the old parent node
-	private Node disconnectFromParent()
-	{
-		Relationship toParentNode = treeNode.getSingleRelationship( 
-			RelTypes.SUB_TREE, Direction.INCOMING );
-		Node parentNode = toParentNode.getStartNode();
-		toParentNode.delete();
-		return parentNode;
-	}
-	
-	private void connectToParent( Node parent )
-	{
-		assert treeNode.getSingleRelationship( 
-			RelTypes.SUB_TREE, Direction.INCOMING ) == null;
-		parent.createRelationshipTo( treeNode, RelTypes.SUB_TREE );
+		Node parent = bTree.getEngine().getParent( treeNode );
+		return parent != null ? new TreeNode( bTree, parent ) : null;
 	}
 	
 	void delete()
 	{
-		if ( !isRoot() )
-		{
-			disconnectFromParent();
-		}
-		KeyEntry entry = getFirstEntry();
-		if ( entry == null )
-		{
-			getUnderlyingNode().delete();
-			return;
-		}
-		TreeNode subTree = entry.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.delete();
-		}
-		Node lastNode = null;
-		while ( entry != null )
-		{
-			subTree = entry.getAfterSubTree();
-			if ( subTree != null )
-			{
-				subTree.delete();
-			}
-			KeyEntry nextEntry = entry.getNextKey();
-			lastNode = entry.getEndNode();
-			entry.getStartNode().delete();
-			entry.getUnderlyingRelationship().delete();
-			entry = nextEntry;
-		}
-		if ( lastNode != null )
-		{
-			lastNode.delete();
-		}
-	}
-	
-	int delete( int commitInterval, int count )
-	{
-		if ( !isRoot() )
-		{
-			disconnectFromParent();
-			count++;
-		}
-		KeyEntry entry = getFirstEntry();
-		if ( entry == null )
-		{
-			getUnderlyingNode().delete();
-			return count++;
-		}
-		TreeNode subTree = entry.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.delete( commitInterval, count );
-		}
-		Node lastNode = null;
-		while ( entry != null )
-		{
-			subTree = entry.getAfterSubTree();
-			if ( subTree != null )
-			{
-				subTree.delete( commitInterval, count );
-			}
-			KeyEntry nextEntry = entry.getNextKey();
-			lastNode = entry.getEndNode();
-			entry.getStartNode().delete();
-			entry.getUnderlyingRelationship().delete();
-			count++;
-			entry = nextEntry;
-		}
-		if ( lastNode != null )
-		{
-			lastNode.delete();
-			count++;
-		}
-		if ( count >= commitInterval )
-		{
-		    AbstractGraphDatabase graphDb = (AbstractGraphDatabase) bTree.getGraphDb();
-            try
-            {
-                Transaction tx = graphDb.getTxManager().getTransaction();
-                if ( tx != null )
-                {
-                    tx.commit();
-                }
-            }
-            catch ( Exception e )
-            {
-                throw new RuntimeException( e );
-            }
-            graphDb.beginTx();
-			count = 0;
-		}
-		return count;
+		bTree.getEngine().delete( treeNode );
 	}
 	
 	KeyEntry getFirstEntry()
 	{
-		Relationship keyEntryRel = treeNode.getSingleRelationship( 
-			RelTypes.KEY_ENTRY, Direction.OUTGOING );
+		Relationship keyEntryRel = bTree.getEngine().getFirstEntry( 
+			treeNode );
 		assert treeNode.getSingleRelationship( RelTypes.KEY_ENTRY, 
 			Direction.INCOMING ) == null;
 		if ( keyEntryRel != null )
@@ -191,647 +75,268 @@ class TreeNode
 	
 	KeyEntry getLastEntry()
 	{
-		Relationship keyEntryRel = treeNode.getSingleRelationship( 
-			RelTypes.KEY_ENTRY, Direction.OUTGOING );
-		KeyEntry last = null;
-		while ( keyEntryRel != null )
-		{
-			last = new KeyEntry( this, keyEntryRel );
-			keyEntryRel = keyEntryRel.getEndNode().getSingleRelationship( 
-				RelTypes.KEY_ENTRY, Direction.OUTGOING );
-		}
-		return last;
+		Relationship keyEntryRel = bTree.getEngine().getLastEntry( 
+			treeNode );
+		return keyEntryRel != null ? new KeyEntry( this, keyEntryRel ) : null;
 	}
 	
-	private int getEntryCount()
-	{
-		int entryCount = 0;
-		KeyEntry entry = getFirstEntry();
-		while ( entry != null )
-		{
-			entryCount++;
-			entry = entry.getNextKey();
-		}
-		return entryCount;
-	}
-	
-	KeyEntry addEntry( long key, Object value )
+	KeyEntry addEntry( Object key, Object value )
 	{
 		return addEntry( key, value, false );
 	}
 	
-	KeyEntry addEntry( long key, Object value, boolean ignoreIfExist )
+	KeyEntry addEntry( Object key, Object value, boolean ignoreIfExist )
 	{
-		int entryCount = 0;
-		KeyEntry keyEntry = getFirstEntry();
-		while ( keyEntry != null )
+		Relationship entry = bTree.getEngine().addEntry( treeNode, 
+			keyTarget( key ), entryProperties( key, value ) );
+		if ( entry == null )
 		{
-			long currentKey = keyEntry.getKey();
-			if ( currentKey == key )
-			{
-				if ( ignoreIfExist )
-				{
-					return null;
-				}
-				throw new RuntimeException( "Key already exist:" + key );
-			}
-			entryCount++;
-			if ( key < currentKey )
+			if ( ignoreIfExist )
 			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getBeforeSubTree();
-				if ( subTree != null )
-				{
-					return subTree.addEntry( key, value, ignoreIfExist );
-				}
-				// no sub tree so we insert here
-				// get current amount of entries
-				KeyEntry entry = keyEntry.getNextKey();
-				while ( entry != null )
-				{
-					entryCount++;
-					entry = entry.getNextKey();
-				}
-				// create new blank node for key entry relationship
-				Node blankNode = bTree.getGraphDb().createNode();
-				KeyEntry createdEntry = createEntry( keyEntry.getStartNode(), 
-					blankNode, key, value, null );
-				// move previous keyEntry to start at blank node
-				keyEntry.move( this, blankNode, keyEntry.getEndNode() );
-				entryCount++;
-				assert entryCount <= bTree.getOrder();
-				if ( bTree.getOrder() == entryCount )
-				{
-					moveMiddleUp();
-					return bTree.getAsKeyEntry( key );
-				}
-				return createdEntry;
-			}
-			// else if last entry, check for sub tree or add last
-			if ( keyEntry.getNextKey() == null )
-			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getAfterSubTree();
-				if ( subTree != null )
-				{
-					return subTree.addEntry( key, value, ignoreIfExist );
-				}
-				// ok just append the element
-				Node blankNode = bTree.getGraphDb().createNode();				
-				KeyEntry createdEntry = createEntry( keyEntry.getEndNode(), 
-					blankNode, key, value, null );
-				entryCount++;
-				assert entryCount <= bTree.getOrder();
-				if ( bTree.getOrder() == entryCount )
-				{
-					moveMiddleUp();
-					return bTree.getAsKeyEntry( key );
-				}
-				return createdEntry;
+				return null;
 			}
-			keyEntry = keyEntry.getNextKey();
+			throw new RuntimeException( "Key already exist:" + key );
 		}
-		// we should never reach here unless root node is empty
-		// sanity checks
-		assert isRoot();
-		assert !treeNode.getRelationships( 
-			RelTypes.SUB_TREE ).iterator().hasNext();
-		// ok add first entry in root
-		Node blankNode = bTree.getGraphDb().createNode();
-		return createEntry( treeNode, blankNode, key, value, null );
+		return toKeyEntry( bTree, entry );
 	}
 	
-	private KeyEntry createEntry( Node startNode, Node endNode, long key, 
-		Object value, Object keyValue )
+	/**
+	 * Adds the entry unless there already is an entry for {@code key}.
+	 * 
+	 * @return the existing entry, or {@code null} if the entry was added.
+	 */
+	KeyEntry addOrGetEntry( Object key, Object value )
 	{
-		KeyEntry newEntry = new KeyEntry( this, startNode.createRelationshipTo( 
-			endNode, RelTypes.KEY_ENTRY ) );
-		newEntry.setKey( key );
-		newEntry.setValue( value );
-		if ( keyValue != null )
-		{
-			newEntry.setKeyValue( keyValue );
-		}
-		return newEntry;
+		Relationship existing = bTree.getEngine().addOrGetEntry( treeNode, 
+			keyTarget( key ), entryProperties( key, value ) );
+		return existing != null ? toKeyEntry( bTree, existing ) : null;
 	}
 	
-	boolean isRoot()
+	private static Map<String, Object> entryProperties( Object key, 
+		Object value )
 	{
-		return treeNode.getSingleRelationship( RelTypes.TREE_ROOT, 
-			Direction.INCOMING ) != null;
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put( KeyEntry.KEY, key );
+		properties.put( KeyEntry.VALUE, value );
+		return properties;
 	}
 	
-	private KeyEntry insertEntry( long key, Object value, Object keyValue )
+	private TreeEngine.Target keyTarget( final Object key )
 	{
-		KeyEntry keyEntry = getFirstEntry();
-		while ( keyEntry != null )
+		return new TreeEngine.Target()
 		{
-			long currentKey = keyEntry.getKey();
-			assert currentKey != key; // should never happen here
-			if ( key < currentKey )
-			{
-				// create new blank node for key entry relationship
-				Node blankNode = bTree.getGraphDb().createNode();
-				KeyEntry newEntry = createEntry( keyEntry.getStartNode(), 
-					blankNode, key, value, keyValue );
-				// move previous keyEntry to start at blank node
-				keyEntry.move( this, blankNode, keyEntry.getEndNode() );
-				return newEntry;
-			}
-			// else if last entry
-			if ( keyEntry.getNextKey() == null )
+			public int compareTo( Relationship entry )
 			{
-				// just append the element
-				Node blankNode = bTree.getGraphDb().createNode();
-				return createEntry( keyEntry.getEndNode(), blankNode, key, 
-					value, keyValue );
+				return bTree.compareKeys( key, 
+					entry.getProperty( KeyEntry.KEY ) );
 			}
-			keyEntry = keyEntry.getNextKey();
-		}
-		// ok insert first entry (in new root)
-		Node blankNode = bTree.getGraphDb().createNode();
-		return createEntry( treeNode, blankNode, key, value, keyValue );
+		};
 	}
 	
-	private void moveMiddleUp()
+	boolean isRoot()
 	{
-		TreeNode parent = getParent();
-		if ( parent == null )
-		{
-			assert isRoot();
-			// make new root
-			parent = new TreeNode( bTree, bTree.getGraphDb().createNode() );
-			bTree.makeRoot( parent );
-		}
-		else
-		{
-			// temporary disconnect this from parent
-			disconnectFromParent();
-		}
-		// split the entries and move middle to parent
-		KeyEntry middleEntry = getFirstEntry();
-		for ( int i = 0; i < bTree.getOrder() / 2; i++ )
-		{
-			middleEntry = middleEntry.getNextKey();
-		}
-		TreeNode newTreeToTheRight = new TreeNode( bTree, 
-			middleEntry.getEndNode() );
-		// copy middle entry values to parent then remove it from this tree
-		KeyEntry movedMiddleEntry = parent.insertEntry( middleEntry.getKey(), 
-			middleEntry.getValue(), middleEntry.getKeyValue() );
-		middleEntry.getUnderlyingRelationship().delete();
-		// connect left (this) and new right tree with new parent
-		movedMiddleEntry.getStartNode().createRelationshipTo( 
-			this.getUnderlyingNode(), RelTypes.SUB_TREE );
-		movedMiddleEntry.getEndNode().createRelationshipTo( 
-			newTreeToTheRight.getUnderlyingNode(), RelTypes.SUB_TREE );
-		int parentEntryCount = parent.getEntryCount();
-		if ( parentEntryCount == bTree.getOrder() )
-		{
-			parent.moveMiddleUp();
-		}
-        assert parent.getEntryCount() <= bTree.getOrder();
+		return bTree.getEngine().isRoot( treeNode );
 	}
 	
-	KeyEntry getEntry( long key )
+	/**
+	 * Returns the entry for {@code key} in this sub tree or {@code null}.
+	 * The tree is descended by reading the raw relationships and keys, a
+	 * {@link KeyEntry} is only created for the entry found.
+	 */
+	KeyEntry getEntry( Object key )
 	{
-		KeyEntry keyEntry = getFirstEntry();
-		while ( keyEntry != null )
-		{
-			long currentKey = keyEntry.getKey();
-			if ( currentKey == key )
-			{
-				return keyEntry;
-			}
-			if ( key < currentKey )
-			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getBeforeSubTree();
-				if ( subTree != null )
-				{
-					// go down in tree
-					return subTree.getEntry( key );
-				}
-				return null;
-			}
-			// else if last entry, check for sub tree or add last
-			if ( keyEntry.getNextKey() == null )
-			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getAfterSubTree();
-				if ( subTree != null )
-				{
-					// go down in tree
-					return subTree.getEntry( key );
-				}
-				return null;
-			}
-			keyEntry = keyEntry.getNextKey();
-		}
-		return null;
+		Relationship entry = findEntry( key );
+		return entry != null ? toKeyEntry( bTree, entry ) : null;
 	}
 	
-	KeyEntry getClosestLowerEntry( KeyEntry prevEntry, long key )
+	/**
+	 * Wraps an entry relationship in a {@link KeyEntry}, finding the tree
+	 * node it belongs to by walking back to the start of its chain.
+	 */
+	static KeyEntry toKeyEntry( BTree bTree, Relationship entry )
 	{
-		KeyEntry keyEntry = getFirstEntry();
-		while ( keyEntry != null )
-		{
-			long currentKey = keyEntry.getKey();
-			if ( currentKey == key )
-			{
-				return keyEntry;
-			}
-			if ( key < currentKey )
-			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getBeforeSubTree();
-				if ( subTree != null )
-				{
-					// go down in tree
-					return subTree.getClosestLowerEntry( prevEntry, key );
-				}
-				return prevEntry;
-			}
-			// else if last entry, check for sub tree or add last
-			if ( keyEntry.getNextKey() == null )
-			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getAfterSubTree();
-				if ( subTree != null )
-				{
-					// go down in tree
-					return subTree.getClosestLowerEntry( keyEntry, key );
-				}
-				return keyEntry;
-			}
-			prevEntry = keyEntry;
-			keyEntry = keyEntry.getNextKey();
-		}
-		return prevEntry;
+		Node treeNode = bTree.getEngine().getTreeNode( entry.getStartNode() );
+		return new KeyEntry( new TreeNode( bTree, treeNode ), entry );
 	}
 	
-	KeyEntry getClosestHigherEntry( KeyEntry nextEntry, long key )
+	/**
+	 * Returns the entry relationship for {@code key} in this sub tree or 
+	 * {@code null}.
+	 */
+	Relationship findEntry( Object key )
 	{
-		KeyEntry keyEntry = getFirstEntry();
-		while ( keyEntry != null )
+		return bTree.getEngine().findEntry( treeNode, keyTarget( key ) );
+	}
+	
+	/**
+	 * Returns the entry relationship with the largest key which is less than
+	 * or equal to {@code key} in this sub tree or {@code null}.
+	 */
+	Relationship findClosestLowerEntry( Object key )
+	{
+		Relationship closest = null;
+		Relationship entry = treeNode.getSingleRelationship( 
+			RelTypes.KEY_ENTRY, Direction.OUTGOING );
+		while ( entry != null )
 		{
-			long currentKey = keyEntry.getKey();
-			if ( currentKey == key )
+			int compare = bTree.compareKeys( key, 
+				entry.getProperty( KeyEntry.KEY ) );
+			if ( compare == 0 )
 			{
-				return keyEntry;
+				return entry;
 			}
-			if ( key < currentKey )
+			Node subTreeParent = entry.getStartNode();
+			if ( compare > 0 )
 			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getBeforeSubTree();
-				if ( subTree != null )
+				closest = entry;
+				subTreeParent = entry.getEndNode();
+				Relationship nextEntry = subTreeParent.getSingleRelationship( 
+					RelTypes.KEY_ENTRY, Direction.OUTGOING );
+				if ( nextEntry != null )
 				{
-					// go down in tree
-					return subTree.getClosestHigherEntry( keyEntry, key );
+					entry = nextEntry;
+					continue;
 				}
-				return keyEntry;
 			}
-			// else if last entry, check for sub tree or add last
-			if ( keyEntry.getNextKey() == null )
-			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getAfterSubTree();
-				if ( subTree != null )
-				{
-					// go down in tree
-					return subTree.getClosestHigherEntry( nextEntry, key );
-				}
-				return nextEntry;
-			}
-			keyEntry = keyEntry.getNextKey();
+			entry = getFirstEntryOfSubTree( subTreeParent );
 		}
-		return nextEntry;
+		return closest;
 	}
 	
-	public Object removeEntry( long key )
+	/**
+	 * Returns the entry relationship with the smallest key which is greater
+	 * than or equal to {@code key} in this sub tree or {@code null}.
+	 */
+	Relationship findClosestHigherEntry( Object key )
 	{
-		KeyEntry entry = null;
-		KeyEntry keyEntry = getFirstEntry();
-		if ( keyEntry == null )
-		{
-			return null;
-		}
-		int entryCount = 0;
-		// see if key is in this node else go down in tree
-		while ( keyEntry != null )
+		Relationship closest = null;
+		Relationship entry = treeNode.getSingleRelationship( 
+			RelTypes.KEY_ENTRY, Direction.OUTGOING );
+		while ( entry != null )
 		{
-			entryCount++;
-			long currentKey = keyEntry.getKey();
-			if ( currentKey == key )
-			{
-				entry = keyEntry;
-				// ok got the key, get total number of entries
-				keyEntry = keyEntry.getNextKey();
-				while ( keyEntry != null )
-				{
-					entryCount++;
-					keyEntry = keyEntry.getNextKey();
-				}
-				break; // need to break since we don't have if else bellow
-			}
-			if ( key < currentKey )
+			int compare = bTree.compareKeys( key, 
+				entry.getProperty( KeyEntry.KEY ) );
+			if ( compare == 0 )
 			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getBeforeSubTree();
-				if ( subTree != null )
-				{
-					// go down in tree
-					return subTree.removeEntry( key );
-				}
-				return null;
+				return entry;
 			}
-			// else if last entry, check for sub tree or add last
-			if ( keyEntry.getNextKey() == null )
+			Node subTreeParent = entry.getStartNode();
+			if ( compare > 0 )
 			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getAfterSubTree();
-				if ( subTree != null )
+				subTreeParent = entry.getEndNode();
+				Relationship nextEntry = subTreeParent.getSingleRelationship( 
+					RelTypes.KEY_ENTRY, Direction.OUTGOING );
+				if ( nextEntry != null )
 				{
-					// go down in tree
-					return subTree.removeEntry( key );
+					entry = nextEntry;
+					continue;
 				}
-				return null;
-			}
-			keyEntry = keyEntry.getNextKey();
-		}
-		assert entry != null;
-		// remove the found key
-		if ( entry.isLeaf() )
-		{
-			// we can just remove it
-			KeyEntry nextEntry = entry.getNextKey();
-			if ( nextEntry != null )
-			{
-				nextEntry.move( this, entry.getStartNode(), 
-					nextEntry.getEndNode() );
-			}
-			Object value = entry.getValue();
-			entry.getEndNode().delete();
-			entry.getUnderlyingRelationship().delete();
-			entryCount--;
-			if ( entryCount < ( bTree.getOrder() / 2 ) && !isRoot() )
-			{
-				tryBorrowFromSibling();
-			}
-			return value;
-		}
-		else
-		{
-			// while not leaf find first successor and move it to replace the 
-			// current entry
-			KeyEntry successor = entry.getAfterSubTree().getFirstEntry();
-			while ( !successor.isLeaf() )
-			{
-				successor = successor.getBeforeSubTree().getFirstEntry();
 			}
-			TreeNode leafTree = successor.getTreeNode();
-			KeyEntry next = successor.getNextKey();
-			next.move( leafTree, successor.getStartNode(), next.getEndNode() );
-			successor.move( this, entry.getStartNode(), entry.getEndNode() );
-			Object value = entry.getValue();
-			entry.getUnderlyingRelationship().delete();
-			// verify subTree entryCount
-			entryCount = leafTree.getEntryCount();
-			if ( entryCount < ( bTree.getOrder() / 2 ) && !leafTree.isRoot() )
+			else
 			{
-				leafTree.tryBorrowFromSibling();
+				closest = entry;
 			}
-			return value;
-		}
-	}
-	
-	private void tryBorrowFromSibling()
-	{
-		TreeNode leftSibling = getLeftSibbling();
-		TreeNode rightSibling = getRightSibbling();
-		if ( leftSibling != null && ( leftSibling.getEntryCount() > 
-			( bTree.getOrder() / 2 ) ) )
-		{
-			borrowFromLeftSibling( leftSibling );
-		}
-		else if ( rightSibling != null && ( rightSibling.getEntryCount() > 
-			( bTree.getOrder() / 2 ) ) )
-		{
-			borrowFromRightSibling( rightSibling );
-		}
-		else if ( leftSibling != null )
-		{
-			mergeWithLeftSibling( leftSibling );
-		}
-		else if ( rightSibling != null )
-		{
-			mergeWithRightSibling( rightSibling );
-		}
-		else
-		{
-			throw new RuntimeException();
+			entry = getFirstEntryOfSubTree( subTreeParent );
 		}
+		return closest;
 	}
 	
-	private void borrowFromLeftSibling( TreeNode leftSibling )
+	static Relationship getFirstEntryOfSubTree( Node subTreeParent )
 	{
-		// get last entry from sibling and set it as new parent, move parent 
-		// down to fill upp for deleted entry
-		// get after subtree from last entry in sibling and add it as
-		// before subtree in in moved down parent
-		TreeNode parentNode = getParent();
-		KeyEntry entryToMoveDown = new KeyEntry( parentNode, 
-			this.treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-				Direction.INCOMING ).getStartNode().getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.INCOMING ) );
-		KeyEntry entryToMoveUp = leftSibling.getLastEntry();
-		TreeNode subTree = entryToMoveUp.getAfterSubTree();
-		if ( subTree != null )
+		Relationship subTree = subTreeParent.getSingleRelationship( 
+			RelTypes.SUB_TREE, Direction.OUTGOING );
+		if ( subTree == null )
 		{
-			subTree.disconnectFromParent();
-		}
-		entryToMoveUp.getEndNode().delete();
-		entryToMoveUp.move( parentNode, entryToMoveDown.getStartNode(), 
-			entryToMoveDown.getEndNode() );
-		Node newStartNode = bTree.getGraphDb().createNode();
-		entryToMoveDown.move( this, newStartNode, treeNode );
-		Node parentToReAttachTo = disconnectFromParent();
-		treeNode = newStartNode;
-		connectToParent( parentToReAttachTo );
-		if ( subTree != null )
-		{
-			subTree.connectToParent( newStartNode );
-		}
-	}
-	
-	private void borrowFromRightSibling( TreeNode rightSibling )
-	{
-		// get first entry from sibling and set it as new parent, move 
-		// parent down to fill upp for deleted entry
-		// get before subtree from first entry in sibling and add it as
-		// after subtree in in moved down parent
-		TreeNode parentNode = getParent();
-		KeyEntry entryToMoveDown = new KeyEntry( parentNode, 
-			this.treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-				Direction.INCOMING ).getStartNode().getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.OUTGOING ) );
-		KeyEntry entryToMoveUp = rightSibling.getFirstEntry();
-		TreeNode subTree = entryToMoveUp.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.disconnectFromParent();
-		}
-		Node rightParentToReAttachTo = rightSibling.disconnectFromParent();
-		rightSibling.treeNode = entryToMoveUp.getEndNode();
-		rightSibling.connectToParent( rightParentToReAttachTo );
-		entryToMoveUp.getStartNode().delete();
-		entryToMoveUp.move( parentNode, entryToMoveDown.getStartNode(), 
-			entryToMoveDown.getEndNode() );
-		Node newLastNode = bTree.getGraphDb().createNode();
-		entryToMoveDown.move( this, this.getLastEntry().getEndNode(), 
-			newLastNode );
-		if ( subTree != null )
-		{
-			subTree.connectToParent( newLastNode );
-		}
-	}
-	
-	private void mergeWithLeftSibling( TreeNode leftSibling )
-	{
-		// disconnect this from parent,
-		// move entry after entry to move down in parent if exist
-		// use parent to move down values to connect left subtree with this
-		// check entry count in parent
-		TreeNode parentNode = getParent();
-		KeyEntry entryToMoveDown = new KeyEntry( parentNode, 
-			this.treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-				Direction.INCOMING ).getStartNode().getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.INCOMING ) );
-		KeyEntry nextParentEntry = entryToMoveDown.getNextKey();
-		if ( nextParentEntry != null )
-		{
-			nextParentEntry.move( parentNode, entryToMoveDown.getStartNode(), 
-				nextParentEntry.getEndNode() );
-		}
-		KeyEntry entry = this.getFirstEntry();
-		TreeNode subTree = entry.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.disconnectFromParent();
-		}
-		this.disconnectFromParent();
-		entryToMoveDown.getEndNode().delete();
-		Node blankNode = bTree.getGraphDb().createNode();
-		entryToMoveDown.move( leftSibling, 
-			leftSibling.getLastEntry().getEndNode(), blankNode );
-		entry.getStartNode().delete();
-		entry.move( leftSibling, blankNode, entry.getEndNode() );
-		this.treeNode = leftSibling.treeNode;
-		if ( subTree != null )
-		{
-			subTree.connectToParent( blankNode );
-		}
-		// validate parent
-		int entryCount = parentNode.getEntryCount();
-		if ( entryCount < bTree.getOrder() / 2 && !parentNode.isRoot() )
-		{
-			assert entryCount > 0;
-			parentNode.tryBorrowFromSibling();
-		}
-		else if ( entryCount == 0 )
-		{
-			assert parentNode.isRoot();
-			this.disconnectFromParent();
-			bTree.makeRoot( this );
+			return null;
 		}
+		return subTree.getEndNode().getSingleRelationship( 
+			RelTypes.KEY_ENTRY, Direction.OUTGOING );
 	}
 	
-	private void mergeWithRightSibling( TreeNode rightSibling )
+	public Object removeEntry( Object key )
 	{
-		// disconnect right sibling from parent,
-		// move entry after entry to move down in parent if exist
-		// use parent to move down values to connect this with right subtree
-		// check entry count in parent
-		TreeNode parentNode = getParent();
-		KeyEntry entryToMoveDown = new KeyEntry( parentNode, 
-			this.treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-				Direction.INCOMING ).getStartNode().getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.OUTGOING ) );
-		KeyEntry nextInParent = entryToMoveDown.getNextKey();
-		if ( nextInParent != null )
-		{
-			nextInParent.move( parentNode, entryToMoveDown.getStartNode(), 
-				nextInParent.getEndNode() );
-		}
-		KeyEntry entry = rightSibling.getFirstEntry();
-		TreeNode subTree = entry.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.disconnectFromParent();
-		}
-		rightSibling.disconnectFromParent();
-		entryToMoveDown.getEndNode().delete();
-		Node blankNode = bTree.getGraphDb().createNode();
-		entryToMoveDown.move( this, this.getLastEntry().getEndNode(), 
-			blankNode );
-		entry.getStartNode().delete();
-		entry.move( this, blankNode, entry.getEndNode() );
-		rightSibling.treeNode = this.treeNode;
-		if ( subTree != null )
-		{
-			subTree.connectToParent( blankNode );
-		}
-		// validate parent
-		int entryCount = parentNode.getEntryCount();
-		if ( entryCount < bTree.getOrder() / 2 && !parentNode.isRoot() )
-		{
-			assert entryCount > 0;
-			parentNode.tryBorrowFromSibling();
-		}
-		else if ( entryCount == 0 )
+		Relationship entry = findEntry( key );
+		if ( entry == null )
 		{
-			assert parentNode.isRoot();
-			this.disconnectFromParent();
-			bTree.makeRoot( this );
+			return null;
 		}
+		Object value = entry.getProperty( KeyEntry.VALUE );
+		bTree.getEngine().removeEntry( entry );
+		return value;
 	}
 	
-	TreeNode getLeftSibbling()
+	/**
+	 * Packs the entries of the sub trees of this tree node into as few sub
+	 * trees as possible. Adjacent sub trees are merged when their entries
+	 * and the entry between them fit in one tree node. Otherwise entries are
+	 * moved to the left so that the next two sub trees can be merged.
+	 * 
+	 * @return {@code false} if a merge left this tree node underfull (or
+	 * the root empty) so that the tree was rebalanced further up, meaning
+	 * this {@link TreeNode} may no longer be valid.
+	 */
+	boolean compactSubTrees()
 	{
-		Relationship parent = treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-			Direction.INCOMING );
-		if ( parent == null )
+		TreeEngine engine = bTree.getEngine();
+		Node child = engine.getSubTree( treeNode );
+		if ( child == null )
 		{
-			return null;
+			return true;
 		}
-		Relationship prevEntry = parent.getStartNode().getSingleRelationship( 
-			RelTypes.KEY_ENTRY, Direction.INCOMING );
-		if ( prevEntry == null )
+		int maxEntries = bTree.getOrder() - 1;
+		int entryCount = engine.getEntryCount( treeNode );
+		boolean isRoot = isRoot();
+		while ( true )
 		{
-			return null;
+			Node right = engine.getRightSibling( child );
+			if ( right == null )
+			{
+				return true;
+			}
+			int childCount = engine.getEntryCount( child );
+			int rightCount = engine.getEntryCount( right );
+			if ( childCount + rightCount + 1 <= maxEntries )
+			{
+				entryCount--;
+				engine.mergeWithRightSibling( child, right );
+				if ( isRebalanced( entryCount, isRoot ) )
+				{
+					return false;
+				}
+				continue;
+			}
+			Node farRight = engine.getRightSibling( right );
+			if ( farRight != null )
+			{
+				// move just enough entries to the left to be able to merge
+				// right with far right
+				int toMove = rightCount + engine.getEntryCount( farRight ) + 
+					1 - maxEntries;
+				if ( toMove > 0 && toMove <= maxEntries - childCount && 
+					toMove < rightCount )
+				{
+					for ( int i = 0; i < toMove; i++ )
+					{
+						right = engine.borrowFromRightSibling( child, right );
+					}
+					entryCount--;
+					engine.mergeWithRightSibling( right, farRight );
+					if ( isRebalanced( entryCount, isRoot ) )
+					{
+						return false;
+					}
+					continue;
+				}
+			}
+			child = right;
 		}
-		return new TreeNode( getBTree(), 
-			prevEntry.getStartNode().getSingleRelationship( 
-				RelTypes.SUB_TREE, Direction.OUTGOING ).getEndNode() );
 	}
 	
-	TreeNode getRightSibbling()
+	// same conditions as the ones TreeEngine uses to rebalance the parent
+	// after a merge
+	private boolean isRebalanced( int entryCount, boolean isRoot )
 	{
-		Relationship parent = treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-			Direction.INCOMING );
-		if ( parent == null )
-		{
-			return null;
-		}
-		Relationship nextEntry = parent.getStartNode().getSingleRelationship( 
-			RelTypes.KEY_ENTRY, Direction.OUTGOING );
-		if ( nextEntry == null )
-		{
-			return null;
-		}
-		return new TreeNode( getBTree(), 
-			nextEntry.getEndNode().getSingleRelationship( 
-				RelTypes.SUB_TREE, Direction.OUTGOING ).getEndNode() );
+		return isRoot ? entryCount == 0 : entryCount < bTree.getOrder() / 2;
 	}
 	
 	BTree getBTree()
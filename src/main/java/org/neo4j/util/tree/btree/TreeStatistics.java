@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Structural statistics of a {@link BTree}, gathered by a
+ * {@link BTreeValidator}. Level {@code 0} is the root level and the leaves
+ * are at level {@code getDepth() - 1}.
+ */
+public class TreeStatistics
+{
+	private final int order;
+	// each element is { tree nodes, entries } for that level
+	private final List<long[]> levels = new ArrayList<long[]>();
+	
+	TreeStatistics( int order )
+	{
+		this.order = order;
+	}
+	
+	void addTreeNode( int level, int entryCount )
+	{
+		while ( levels.size() <= level )
+		{
+			levels.add( new long[2] );
+		}
+		long[] counts = levels.get( level );
+		counts[0]++;
+		counts[1] += entryCount;
+	}
+	
+	void add( TreeStatistics other, int levelOffset )
+	{
+		for ( int i = 0; i < other.levels.size(); i++ )
+		{
+			long[] counts = other.levels.get( i );
+			int level = i + levelOffset;
+			while ( levels.size() <= level )
+			{
+				levels.add( new long[2] );
+			}
+			levels.get( level )[0] += counts[0];
+			levels.get( level )[1] += counts[1];
+		}
+	}
+	
+	/**
+	 * @return the number of levels in the tree, {@code 1} if the root is
+	 * the only tree node.
+	 */
+	public int getDepth()
+	{
+		return levels.size();
+	}
+	
+	/**
+	 * @param level the level, where {@code 0} is the root.
+	 * @return the number of tree nodes at {@code level}.
+	 */
+	public long getTreeNodeCount( int level )
+	{
+		return levels.get( level )[0];
+	}
+	
+	/**
+	 * @param level the level, where {@code 0} is the root.
+	 * @return the number of entries at {@code level}.
+	 */
+	public long getEntryCount( int level )
+	{
+		return levels.get( level )[1];
+	}
+	
+	/**
+	 * @param level the level, where {@code 0} is the root.
+	 * @return how full the tree nodes at {@code level} are on average, where
+	 * {@code 1.0} means that they all hold the maximum number of entries.
+	 */
+	public double getFillFactor( int level )
+	{
+		long[] counts = levels.get( level );
+		return counts[0] == 0 ? 0 : 
+			(double) counts[1] / ( counts[0] * ( order - 1 ) );
+	}
+	
+	/**
+	 * @return the total number of tree nodes.
+	 */
+	public long getTreeNodeCount()
+	{
+		long count = 0;
+		for ( long[] counts : levels )
+		{
+			count += counts[0];
+		}
+		return count;
+	}
+	
+	/**
+	 * @return the total number of entries in the tree.
+	 */
+	public long getEntryCount()
+	{
+		long count = 0;
+		for ( long[] counts : levels )
+		{
+			count += counts[1];
+		}
+		return count;
+	}
+	
+	/**
+	 * A tree node with {@code n} entries is a chain of {@code n + 1} neo4j
+	 * nodes.
+	 * 
+	 * @return the number of neo4j nodes used by the tree, not counting the
+	 * anchor node.
+	 */
+	public long getNodeCount()
+	{
+		return getEntryCount() + getTreeNodeCount();
+	}
+	
+	/**
+	 * Each entry is a relationship and each tree node has one incoming
+	 * relationship from its parent (or from the anchor node for the root).
+	 * 
+	 * @return the number of neo4j relationships used by the tree.
+	 */
+	public long getRelationshipCount()
+	{
+		return getEntryCount() + getTreeNodeCount();
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder( "TreeStatistics[depth=" + 
+			getDepth() + ", entries=" + getEntryCount() + ", nodes=" + 
+			getNodeCount() + ", relationships=" + getRelationshipCount() );
+		for ( int i = 0; i < levels.size(); i++ )
+		{
+			builder.append( ", level" + i + "=" + getTreeNodeCount( i ) + 
+				"/" + getEntryCount( i ) + "/" + 
+				(int) ( getFillFactor( i ) * 100 ) + "%" );
+		}
+		return builder.append( "]" ).toString();
+	}
+}
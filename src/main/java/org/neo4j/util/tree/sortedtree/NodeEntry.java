@@ -27,6 +27,7 @@ import org.neo4j.util.tree.sortedtree.SortedTree.RelTypes;
 class NodeEntry
 {
 	static final String NODE_ID = "node_id";
+	static final String SORT_KEY = "sort_key";
 	
 	private Relationship entryRelationship;
 	private TreeNode treeNode;
@@ -102,7 +103,7 @@ class NodeEntry
 	
 	public void remove()
 	{
-        treeNode.removeEntry( this.getTheNode() );
+        treeNode.removeEntry( this.getTheNode(), this.getSortKey() );
 	}
     
 	@Override
@@ -128,8 +129,12 @@ class NodeEntry
 	
     Node getTheNode()
     {
-        return getBTree().getGraphDb().getNodeById( 
-            (Long) getUnderlyingRelationship().getProperty( NODE_ID ) ); 
+        return getBTree().getNode( getUnderlyingRelationship() ); 
+    }
+    
+    long getNodeId()
+    {
+        return (Long) getUnderlyingRelationship().getProperty( NODE_ID );
     }
     
     void setTheNode( Node node )
@@ -137,6 +142,16 @@ class NodeEntry
         getUnderlyingRelationship().setProperty( NODE_ID, node.getId() );
     }
     
+    long getSortKey()
+    {
+        return getBTree().getSortKey( getUnderlyingRelationship() );
+    }
+    
+    void setSortKey( long sortKey )
+    {
+        getUnderlyingRelationship().setProperty( SORT_KEY, sortKey );
+    }
+    
     
 	Node getStartNode()
 	{
@@ -147,15 +162,4 @@ class NodeEntry
 	{
 		return entryRelationship.getEndNode();
 	}
-
-	void move( TreeNode node, Node startNode, Node endNode )
-    {
-		assert node != null;
-		this.treeNode = node;
-		Node theNode = getTheNode();
-		entryRelationship.delete();
-		entryRelationship = startNode.createRelationshipTo( endNode, 
-			RelTypes.KEY_ENTRY );
-        setTheNode( theNode );
-    }
-}
\ No newline at end of file
+}
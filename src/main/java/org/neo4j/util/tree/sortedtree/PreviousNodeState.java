@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+
+/**
+ * A view of a node as it was before some of its properties changed, used
+ * to find the node in a {@link SortedTree} where it was sorted with its
+ * previous property values. Reading a changed property returns its 
+ * previous value, everything else goes to the node itself.
+ */
+class PreviousNodeState implements InvocationHandler
+{
+	private final Node node;
+	private final Map<String, Object> previousProperties;
+	
+	private PreviousNodeState( Node node, 
+		Map<String, Object> previousProperties )
+	{
+		this.node = node;
+		this.previousProperties = previousProperties;
+	}
+	
+	/**
+	 * @param node the node whose properties changed.
+	 * @param previousProperties the changed properties with their previous
+	 * values, {@code null} for properties which didn't exist.
+	 * @return a {@link Node} which reads the previous property values.
+	 */
+	static Node of( Node node, Map<String, Object> previousProperties )
+	{
+		return (Node) Proxy.newProxyInstance( Node.class.getClassLoader(),
+			new Class<?>[] { Node.class }, 
+			new PreviousNodeState( node, previousProperties ) );
+	}
+	
+	public Object invoke( Object proxy, Method method, Object[] args )
+		throws Throwable
+	{
+		String name = method.getName();
+		if ( args != null && args.length > 0 && args[0] instanceof String &&
+			previousProperties.containsKey( args[0] ) )
+		{
+			Object value = previousProperties.get( args[0] );
+			if ( name.equals( "getProperty" ) )
+			{
+				if ( value != null )
+				{
+					return value;
+				}
+				if ( args.length == 2 )
+				{
+					return args[1];
+				}
+				throw new NotFoundException( args[0].toString() );
+			}
+			if ( name.equals( "hasProperty" ) )
+			{
+				return value != null;
+			}
+		}
+		if ( name.equals( "equals" ) && args.length == 1 && 
+			args[0] == proxy )
+		{
+			return true;
+		}
+		try
+		{
+			return method.invoke( node, args );
+		}
+		catch ( InvocationTargetException e )
+		{
+			throw e.getTargetException();
+		}
+	}
+}
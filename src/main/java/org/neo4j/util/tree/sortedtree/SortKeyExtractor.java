@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * Extracts a sort key from a node in a {@link SortedTree}. The sort key is
+ * stored on the entry of the node when it's added, so that going down the
+ * tree compares sort keys instead of reading properties from the nodes
+ * already in the tree.
+ * <p>
+ * The sort keys must preserve the order of the {@link java.util.Comparator}
+ * of the tree: if {@code getSortKey(a) < getSortKey(b)} then {@code a} must
+ * sort before {@code b}. Nodes with equal sort keys are ordered by the
+ * {@link java.util.Comparator}, so a key which is only a prefix of the
+ * order, f.ex. the first characters of a name, still saves most of the
+ * comparator calls. The sort key of a node must not change while it's in
+ * the tree.
+ */
+public interface SortKeyExtractor
+{
+	/**
+	 * @param node the node to get the sort key for.
+	 * @return the sort key of {@code node}.
+	 */
+	long getSortKey( Node node );
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.util.tree.sortedtree.SortedTree.RelTypes;
+
+/**
+ * Iterates over the nodes of a {@link SortedTree} in sorted or reverse
+ * sorted order, lazily, using a stack of the chain nodes left to visit
+ * instead of collecting the nodes first.
+ * <p>
+ * In the chain of nodes making up a tree node the sub tree with the nodes
+ * sorted before an entry hangs off the start node of that entry and the
+ * last sub tree off the last node of the chain. Going forward the stack
+ * holds chain nodes whose sub tree has been visited and whose outgoing
+ * entry is next. Going backwards it holds chain nodes whose sub tree has
+ * been visited and whose incoming entry is next.
+ */
+class SortedNodeIterator implements Iterator<Node>
+{
+	private final SortedTree bTree;
+	private final Node fromNode;
+	private final long fromSortKey;
+	private final long fromNodeId;
+	private final Node toNode;
+	private final long toSortKey;
+	private final long toNodeId;
+	private final boolean descending;
+	private final Deque<Node> stack = new ArrayDeque<Node>();
+	private Relationship next;
+	
+	/**
+	 * @param bTree the tree to iterate over.
+	 * @param root the root node of the tree.
+	 * @param fromNode the lower bound of the range or {@code null} for
+	 * no lower bound.
+	 * @param fromInclusive whether nodes equal to {@code fromNode}, 
+	 * according to the {@link java.util.Comparator}, are in the range.
+	 * @param toNode the upper bound of the range or {@code null} for no 
+	 * upper bound.
+	 * @param toInclusive whether nodes equal to {@code toNode}, according
+	 * to the {@link java.util.Comparator}, are in the range.
+	 * @param descending {@code true} to iterate from the upper bound down
+	 * to the lower bound.
+	 */
+	SortedNodeIterator( SortedTree bTree, Node root, Node fromNode, 
+		boolean fromInclusive, Node toNode, boolean toInclusive, 
+		boolean descending )
+	{
+		this.bTree = bTree;
+		this.fromNode = fromNode;
+		this.fromSortKey = fromNode != null ? bTree.sortKeyOf( fromNode ) : 0;
+		this.fromNodeId = fromInclusive ? SortedTree.BELOW_EQUAL : 
+			SortedTree.ABOVE_EQUAL;
+		this.toNode = toNode;
+		this.toSortKey = toNode != null ? bTree.sortKeyOf( toNode ) : 0;
+		this.toNodeId = toInclusive ? SortedTree.ABOVE_EQUAL : 
+			SortedTree.BELOW_EQUAL;
+		this.descending = descending;
+		if ( descending )
+		{
+			seekBackwards( root );
+		}
+		else
+		{
+			seek( root );
+		}
+	}
+	
+	private boolean isBelowRange( Relationship entry )
+	{
+		if ( fromNode == null )
+		{
+			return false;
+		}
+		return bTree.compare( fromNode, fromSortKey, fromNodeId, entry ) > 0;
+	}
+	
+	private boolean isAboveRange( Relationship entry )
+	{
+		if ( toNode == null )
+		{
+			return false;
+		}
+		return bTree.compare( toNode, toSortKey, toNodeId, entry ) < 0;
+	}
+	
+	private void seek( Node chainNode )
+	{
+		while ( chainNode != null )
+		{
+			Relationship entry = chainNode.getSingleRelationship( 
+				RelTypes.KEY_ENTRY, Direction.OUTGOING );
+			if ( entry != null && isBelowRange( entry ) )
+			{
+				// this entry and the sub tree before it are out of range
+				chainNode = entry.getEndNode();
+				continue;
+			}
+			if ( entry != null )
+			{
+				stack.push( chainNode );
+			}
+			chainNode = getSubTree( chainNode );
+		}
+	}
+	
+	private void seekBackwards( Node chainNode )
+	{
+		while ( chainNode != null )
+		{
+			Relationship entry = chainNode.getSingleRelationship( 
+				RelTypes.KEY_ENTRY, Direction.OUTGOING );
+			if ( entry != null && !isAboveRange( entry ) )
+			{
+				// this entry and the sub tree before it are in range
+				chainNode = entry.getEndNode();
+				continue;
+			}
+			if ( chainNode.hasRelationship( RelTypes.KEY_ENTRY, 
+				Direction.INCOMING ) )
+			{
+				stack.push( chainNode );
+			}
+			chainNode = getSubTree( chainNode );
+		}
+	}
+	
+	private void pushLeftmost( Node chainNode )
+	{
+		while ( chainNode != null )
+		{
+			stack.push( chainNode );
+			chainNode = getSubTree( chainNode );
+		}
+	}
+	
+	private void pushRightmost( Node chainNode )
+	{
+		while ( chainNode != null )
+		{
+			Relationship entry = chainNode.getSingleRelationship( 
+				RelTypes.KEY_ENTRY, Direction.OUTGOING );
+			if ( entry != null )
+			{
+				chainNode = entry.getEndNode();
+				continue;
+			}
+			stack.push( chainNode );
+			chainNode = getSubTree( chainNode );
+		}
+	}
+	
+	private Node getSubTree( Node chainNode )
+	{
+		Relationship subTree = chainNode.getSingleRelationship( 
+			RelTypes.SUB_TREE, Direction.OUTGOING );
+		return subTree != null ? subTree.getEndNode() : null;
+	}
+	
+	public boolean hasNext()
+	{
+		while ( next == null && !stack.isEmpty() )
+		{
+			Relationship entry = stack.pop().getSingleRelationship( 
+				RelTypes.KEY_ENTRY, descending ? Direction.INCOMING : 
+					Direction.OUTGOING );
+			if ( entry == null )
+			{
+				// end of the chain, the tree node is done
+				continue;
+			}
+			if ( descending ? isBelowRange( entry ) : isAboveRange( entry ) )
+			{
+				stack.clear();
+				break;
+			}
+			next = entry;
+			if ( descending )
+			{
+				stack.push( entry.getStartNode() );
+				pushRightmost( getSubTree( entry.getStartNode() ) );
+			}
+			else
+			{
+				pushLeftmost( entry.getEndNode() );
+			}
+		}
+		return next != null;
+	}
+	
+	public Node next()
+	{
+		if ( !hasNext() )
+		{
+			throw new NoSuchElementException();
+		}
+		Relationship entry = next;
+		next = null;
+		return bTree.getNode( entry );
+	}
+	
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
@@ -19,19 +19,37 @@
  */
 package org.neo4j.util.tree.sortedtree;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.GraphDatabaseUtil;
+import org.neo4j.util.tree.PersistentBloomFilter;
+import org.neo4j.util.tree.TreeDeleter;
+import org.neo4j.util.tree.TreeEngine;
 
 /**
  * A sorted list of nodes (structured as a tree in neo4j).
  * 
+ * Nodes which are equal according to the {@link Comparator} can all be
+ * added, they are ordered by node id among themselves.
+ * 
  * This class isn't ready for general usage yet and use of it is discouraged.
  */
 public class SortedTree
@@ -44,9 +62,58 @@ public class SortedTree
 		KEY_ENTRY 
 	};
 	
+	/**
+	 * The number of nodes in the tree, stored on the node with the
+	 * {@code TREE_ROOT} relationship to the root.
+	 */
+	static final String TREE_SIZE = "tree_size";
+	
+	/**
+	 * The max number of nodes in a bounded tree, see 
+	 * {@link #setMaxSize(long)}, stored on the node with the
+	 * {@code TREE_ROOT} relationship to the root.
+	 */
+	static final String MAX_SIZE = "tree_max_size";
+	
+	private static final long UNBOUNDED = -1;
+	
+	/**
+	 * Node ids for bounds which sort before, or after, all nodes equal to
+	 * them according to the {@link Comparator}, node ids are never 
+	 * negative.
+	 */
+	static final long BELOW_EQUAL = -1;
+	static final long ABOVE_EQUAL = Long.MAX_VALUE;
+	
 	private final GraphDatabaseService graphDb;
     private final Comparator<Node> nodeComparator;
+    private final SortKeyExtractor sortKeyExtractor;
 	private TreeNode treeRoot;
+	private final TreeEngine engine = new Engine();
+	private final Node anchorNode;
+	// the last loaded filter, it's looked up again by every operation
+	private PersistentBloomFilter bloomFilter;
+	private long maxSize;
+	/**
+	 * The previous states of the nodes being repositioned by
+	 * {@link #update(Map)} in the current thread, by node id.
+	 */
+	private final ThreadLocal<Map<Long, Node>> previousStates = 
+		new ThreadLocal<Map<Long, Node>>();
+	private final Comparator<SortKeyedNode> sortKeyedNodeComparator = 
+		new Comparator<SortKeyedNode>()
+	{
+		public int compare( SortKeyedNode o1, SortKeyedNode o2 )
+		{
+			if ( sortKeyExtractor != null && o1.sortKey != o2.sortKey )
+			{
+				return o1.sortKey < o2.sortKey ? -1 : 1;
+			}
+			int result = nodeComparator.compare( o1.node, o2.node );
+			return result != 0 ? result : 
+				compareIds( o1.node.getId(), o2.node.getId() );
+		}
+	};
 	
 	/**
 	 * @param graphDb the {@link GraphDatabaseService} instance.
@@ -57,57 +124,316 @@ public class SortedTree
 	 */
 	public SortedTree( GraphDatabaseService graphDb, Node rootNode, 
         Comparator<Node> nodeComparator )
+	{
+		this( graphDb, rootNode, nodeComparator, null );
+	}
+	
+	/**
+	 * @param graphDb the {@link GraphDatabaseService} instance.
+	 * @param rootNode the root of this tree.
+	 * @param nodeComparator the {@link Comparator} to use to sort nodes
+	 * with equal sort keys.
+	 * @param sortKeyExtractor the {@link SortKeyExtractor} for the sort keys
+	 * stored on the entries, or {@code null} to only use
+	 * {@code nodeComparator}. It's important to use the same 
+	 * {@link SortKeyExtractor} and {@link Comparator} for a given root node
+	 * to get the expected results.
+	 */
+	public SortedTree( GraphDatabaseService graphDb, Node rootNode, 
+        Comparator<Node> nodeComparator, SortKeyExtractor sortKeyExtractor )
 	{
 		this.graphDb = graphDb;
         this.nodeComparator = nodeComparator;
+        this.sortKeyExtractor = sortKeyExtractor;
 		this.treeRoot = new TreeNode( this, rootNode );
+		this.anchorNode = rootNode.getSingleRelationship( RelTypes.TREE_ROOT,
+			Direction.INCOMING ).getStartNode();
+		this.maxSize = (Long) anchorNode.getProperty( MAX_SIZE, UNBOUNDED );
 	}
 	
-	void makeRoot( TreeNode newRoot )
+	/**
+	 * Adds a {@link PersistentBloomFilter} over the node ids in this tree,
+	 * so that {@link #containsNode(Node)} usually can answer {@code false}
+	 * without descending the tree. The filter is filled with the nodes
+	 * already in this tree and is kept up to date by
+	 * {@link #addNode(Node)} and {@link #removeNode(Node)}. It's stored on
+	 * nodes of its own, related to the node with the {@code TREE_ROOT}
+	 * relationship to the root, and is looked up by every operation so
+	 * that other instances of this tree use it as well. Calling this again
+	 * replaces the filter. Must be called within a transaction.
+	 * 
+	 * @param expectedNodes the number of nodes the filter is sized for.
+	 * @param falsePositiveRate the wanted rate of checks for missing nodes
+	 * which still have to descend the tree, f.ex. {@code 0.01}.
+	 */
+	public void enableBloomFilter( long expectedNodes, 
+		double falsePositiveRate )
+	{
+		// writers load the filter after they have locked the anchor, so
+		// they either see the new filter or have committed their nodes
+		// before it's filled
+		GraphDatabaseUtil.acquireWriteLock( anchorNode );
+		PersistentBloomFilter filter = PersistentBloomFilter.create( graphDb,
+			anchorNode, expectedNodes, falsePositiveRate );
+		rebuildBloomFilter( filter );
+	}
+	
+	private PersistentBloomFilter bloomFilter()
+	{
+		bloomFilter = PersistentBloomFilter.load( graphDb, anchorNode, 
+			bloomFilter );
+		return bloomFilter;
+	}
+	
+	private void rebuildBloomFilter( PersistentBloomFilter filter )
+	{
+		filter.clear();
+		for ( Node node : getSortedNodes() )
+		{
+			filter.add( node.getId() );
+		}
+	}
+	
+	private void nodesRemoved( PersistentBloomFilter filter, int count )
+	{
+		if ( filter == null || count == 0 )
+		{
+			return;
+		}
+		for ( int i = 0; i < count; i++ )
+		{
+			filter.removed();
+		}
+		if ( filter.needsRebuild( size() ) )
+		{
+			rebuildBloomFilter( filter );
+		}
+	}
+	
+	/**
+	 * Makes this list keep at most {@code maxSize} nodes, the highest ones
+	 * according to the order of this list. When a node is added to a full
+	 * list the first node is evicted and {@link #nodeEvicted(Node)} is 
+	 * called for it. A node which would be first in a full list, and 
+	 * therefore evicted right away, isn't added at all and nothing is
+	 * written. If the list already has more nodes than {@code maxSize} the
+	 * first ones are evicted by this call. {@link #addAll(Iterable)} adds
+	 * the nodes to a bounded list highest first, so that the lower ones 
+	 * are rejected rather than added and evicted. The max size is stored
+	 * on the node with the {@code TREE_ROOT} relationship to the root. 
+	 * Must be called within a transaction.
+	 * 
+	 * @param maxSize the max number of nodes in this list.
+	 */
+	public void setMaxSize( long maxSize )
+	{
+		if ( maxSize < 1 )
+		{
+			throw new IllegalArgumentException( "Invalid max size " + 
+				maxSize );
+		}
+		anchorNode.setProperty( MAX_SIZE, maxSize );
+		this.maxSize = maxSize;
+		long size = size();
+		for ( ; size > maxSize; size-- )
+		{
+			evictFirst();
+		}
+		anchorNode.setProperty( TREE_SIZE, size );
+	}
+	
+	/**
+	 * Makes this list unbounded again, see {@link #setMaxSize(long)}. Must
+	 * be called within a transaction.
+	 */
+	public void removeMaxSize()
+	{
+		anchorNode.removeProperty( MAX_SIZE );
+		this.maxSize = UNBOUNDED;
+	}
+	
+	/**
+	 * @return the max number of nodes in this list, or {@code -1} if it's
+	 * unbounded, see {@link #setMaxSize(long)}.
+	 */
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+	
+	/**
+	 * Called when {@code node} has been evicted from this bounded list, see
+	 * {@link #setMaxSize(long)}, within the same transaction. Does nothing
+	 * by default, the node itself is left as it is.
+	 * 
+	 * @param node the evicted node.
+	 */
+	protected void nodeEvicted( Node node )
+	{
+	}
+	
+	// whether or not node would be evicted right away from a list of size
+	private boolean isRejected( Node node, long sortKey, long size )
+	{
+		if ( maxSize == UNBOUNDED || size < maxSize )
+		{
+			return false;
+		}
+		NodeEntry first = getFirstEntry();
+		return first != null && compare( node, sortKey, 
+			first.getUnderlyingRelationship() ) < 0;
+	}
+	
+	// removes the first node without updating the size
+	private void evictFirst()
+	{
+		NodeEntry first = getFirstEntry();
+		Node node = first.getTheNode();
+		engine.removeEntry( first.getUnderlyingRelationship() );
+		// the size isn't updated, so lock the anchor like an update would
+		GraphDatabaseUtil.acquireWriteLock( anchorNode );
+		nodesRemoved( bloomFilter(), 1 );
+		nodeEvicted( node );
+	}
+	
+	TreeEngine getEngine()
+	{
+		return engine;
+	}
+	
+	/**
+	 * Deletes this sorted tree, and the size, max size and
+	 * {@link PersistentBloomFilter} stored with it.
+	 */
+	public void delete()
 	{
 		Relationship rel = treeRoot.getUnderlyingNode().getSingleRelationship( 
 			RelTypes.TREE_ROOT, Direction.INCOMING );
-		Node startNode = rel.getStartNode();
+		treeRoot.delete();
 		rel.delete();
-		startNode.createRelationshipTo( newRoot.getUnderlyingNode(), 
-			RelTypes.TREE_ROOT );
-		treeRoot = newRoot;
+		anchorNode.removeProperty( TREE_SIZE );
+		removeMaxSize();
+		PersistentBloomFilter filter = bloomFilter();
+		if ( filter != null )
+		{
+			filter.delete();
+		}
 	}
 	
 	/**
-	 * Deletes this sorted tree.
+	 * Removes all nodes from this list. Unlike {@link #delete()} the max 
+	 * size and the {@link PersistentBloomFilter}, which is cleared, are
+	 * kept. Must be called within a transaction.
 	 */
-	public void delete()
+	public void clear()
 	{
 		Relationship rel = treeRoot.getUnderlyingNode().getSingleRelationship( 
 			RelTypes.TREE_ROOT, Direction.INCOMING );
 		treeRoot.delete();
 		rel.delete();
+		Node newRoot = graphDb.createNode();
+		anchorNode.createRelationshipTo( newRoot, RelTypes.TREE_ROOT );
+		treeRoot = new TreeNode( this, newRoot );
+		anchorNode.setProperty( TREE_SIZE, 0L );
+		PersistentBloomFilter filter = bloomFilter();
+		if ( filter != null )
+		{
+			filter.clear();
+		}
 	}
 	
 	/**
-	 * Deletes this sorted tree using a commit interval.
+	 * Deletes this sorted tree, like {@link #delete()}, using a commit
+	 * interval, see
+	 * {@link TreeDeleter#deleteAllCommittingCurrentTransaction()}.
 	 * 
-	 * @param commitInterval number of entries to remove before a new 
-	 * transaction is started
+	 * @param commitInterval number of nodes and relationships to delete 
+	 * before the current transaction is committed and a new one is started
+	 * @deprecated Commits the transaction of the caller. Use
+	 * {@link #deleteInBatches(int)}, which runs in transactions of its own
+	 * and can be resumed, instead.
 	 */
+	@Deprecated
 	public void delete( int commitInterval )
 	{
-		Relationship rel = treeRoot.getUnderlyingNode().getSingleRelationship( 
-			RelTypes.TREE_ROOT, Direction.INCOMING );
-		treeRoot.delete( commitInterval, 0);
-		rel.delete();
+		newDeleter( commitInterval ).deleteAllCommittingCurrentTransaction();
+		anchorNode.removeProperty( TREE_SIZE );
+		removeMaxSize();
+		PersistentBloomFilter filter = bloomFilter();
+		if ( filter != null )
+		{
+			filter.delete();
+		}
+	}
+	
+	/**
+	 * Deletes this sorted tree, like {@link #delete()}, in bounded
+	 * transactions using a {@link TreeDeleter}. Transactions are started
+	 * and committed internally so this method must not be called from
+	 * within a transaction. If it's interrupted it can be resumed by
+	 * calling it again.
+	 * 
+	 * @param commitInterval number of nodes and relationships to delete
+	 * before the transaction is committed and a new one is started
+	 */
+	public void deleteInBatches( int commitInterval )
+	{
+		newDeleter( commitInterval ).deleteAll();
+		PersistentBloomFilter.deleteInBatches( graphDb, anchorNode, 
+			commitInterval );
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			anchorNode.removeProperty( TREE_SIZE );
+			removeMaxSize();
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	private TreeDeleter newDeleter( int commitInterval )
+	{
+		return new TreeDeleter( graphDb, anchorNode, RelTypes.KEY_ENTRY, 
+			RelTypes.SUB_TREE, RelTypes.TREE_ROOT, commitInterval, null );
 	}
 	
 	/**
 	 * Adds a {@link Node} to this list.
 	 * @param node the {@link Node} to add.
 	 * @return {@code true} if this call modified the tree, i.e. if the node
-	 * wasn't already added.
+	 * wasn't already added (or rejected by a bounded list, see
+	 * {@link #setMaxSize(long)}).
 	 */
 	public boolean addNode( Node node )
 	{
-		return treeRoot.addEntry( node, true );
+		long sortKey = sortKeyOf( node );
+		long size = maxSize != UNBOUNDED ? size() : 0;
+		if ( isRejected( node, sortKey, size ) )
+		{
+			return false;
+		}
+		boolean added = treeRoot.addEntry( node, sortKey, true );
+		if ( added )
+		{
+			if ( maxSize != UNBOUNDED && size >= maxSize )
+			{
+				evictFirst();
+			}
+			else
+			{
+				sizeChanged( 1 );
+			}
+			// loaded after the anchor has been locked
+			PersistentBloomFilter filter = bloomFilter();
+			if ( filter != null )
+			{
+				filter.add( node.getId() );
+			}
+		}
+		return added;
 	}
     
     /**
@@ -117,7 +443,12 @@ public class SortedTree
      */
     public boolean containsNode( Node node )
     {
-        return treeRoot.containsEntry( node );
+        PersistentBloomFilter filter = bloomFilter();
+        if ( filter != null && !filter.mightContain( node.getId() ) )
+        {
+            return false;
+        }
+        return treeRoot.containsEntry( node, sortKeyOf( node ) );
     }
 	
 	/**
@@ -128,7 +459,688 @@ public class SortedTree
 	 */
 	public boolean removeNode( Node node )
 	{
-		return treeRoot.removeEntry( node );
+		boolean removed = treeRoot.removeEntry( node, sortKeyOf( node ) );
+		if ( removed )
+		{
+			sizeChanged( -1 );
+			nodesRemoved( bloomFilter(), 1 );
+		}
+		return removed;
+	}
+	
+	/**
+	 * Adds all the nodes to this list, in sorted order, within the current
+	 * transaction. Adding the nodes in order means that consecutive adds go
+	 * down the same paths of the tree, which already are cached, and the
+	 * size of the list is only updated once.
+	 * 
+	 * @param nodes the nodes to add.
+	 * @return the number of nodes which weren't already in this list.
+	 */
+	public long addAll( Iterable<Node> nodes )
+	{
+		return addAll( nodes, 0 );
+	}
+	
+	/**
+	 * Adds all the nodes to this list, in sorted order, see
+	 * {@link #addAll(Iterable)}. A transaction is started and committed for
+	 * every {@code commitInterval} nodes, so this must not be called within
+	 * a transaction.
+	 * 
+	 * @param nodes the nodes to add.
+	 * @param commitInterval the number of nodes to add in each transaction,
+	 * or {@code 0} to add all of them in the current transaction.
+	 * @return the number of nodes which weren't already in this list.
+	 */
+	public long addAll( Iterable<Node> nodes, int commitInterval )
+	{
+		return bulkUpdate( nodes, true, commitInterval );
+	}
+	
+	/**
+	 * Removes all the nodes from this list, in sorted order, within the
+	 * current transaction.
+	 * 
+	 * @param nodes the nodes to remove.
+	 * @return the number of nodes which were in this list.
+	 */
+	public long removeAll( Iterable<Node> nodes )
+	{
+		return removeAll( nodes, 0 );
+	}
+	
+	/**
+	 * Removes all the nodes from this list, in sorted order. A transaction
+	 * is started and committed for every {@code commitInterval} nodes, so
+	 * this must not be called within a transaction.
+	 * 
+	 * @param nodes the nodes to remove.
+	 * @param commitInterval the number of nodes to remove in each
+	 * transaction, or {@code 0} to remove all of them in the current 
+	 * transaction.
+	 * @return the number of nodes which were in this list.
+	 */
+	public long removeAll( Iterable<Node> nodes, int commitInterval )
+	{
+		return bulkUpdate( nodes, false, commitInterval );
+	}
+	
+	private long bulkUpdate( Iterable<Node> nodes, boolean add, 
+		int commitInterval )
+	{
+		List<SortKeyedNode> sorted = new ArrayList<SortKeyedNode>();
+		for ( Node node : nodes )
+		{
+			sorted.add( new SortKeyedNode( node, sortKeyOf( node ) ) );
+		}
+		Collections.sort( sorted, sortKeyedNodeComparator );
+		if ( add && maxSize != UNBOUNDED )
+		{
+			// highest first, so that once the list is full the lower nodes
+			// are rejected without being written
+			Collections.reverse( sorted );
+		}
+		int chunkSize = commitInterval > 0 ? commitInterval : sorted.size();
+		long total = 0;
+		for ( int start = 0; start < sorted.size(); start += chunkSize )
+		{
+			List<SortKeyedNode> chunk = sorted.subList( start, 
+				Math.min( start + chunkSize, sorted.size() ) );
+			Transaction tx = commitInterval > 0 ? graphDb.beginTx() : null;
+			try
+			{
+				total += add ? addChunk( chunk ) : removeChunk( chunk );
+				if ( tx != null )
+				{
+					tx.success();
+				}
+			}
+			finally
+			{
+				if ( tx != null )
+				{
+					tx.finish();
+				}
+			}
+		}
+		return total;
+	}
+	
+	private int addChunk( List<SortKeyedNode> chunk )
+	{
+		int count = 0;
+		long size = maxSize != UNBOUNDED ? size() : 0;
+		long sizeBefore = size;
+		// the size is updated at the end, lock the anchor before the
+		// filter is loaded
+		GraphDatabaseUtil.acquireWriteLock( anchorNode );
+		PersistentBloomFilter filter = bloomFilter();
+		for ( SortKeyedNode sortKeyedNode : chunk )
+		{
+			if ( isRejected( sortKeyedNode.node, sortKeyedNode.sortKey, 
+				size ) )
+			{
+				continue;
+			}
+			if ( treeRoot.addEntry( sortKeyedNode.node, sortKeyedNode.sortKey,
+				true ) )
+			{
+				count++;
+				if ( filter != null )
+				{
+					filter.add( sortKeyedNode.node.getId() );
+				}
+				if ( maxSize != UNBOUNDED && size >= maxSize )
+				{
+					evictFirst();
+				}
+				else
+				{
+					size++;
+				}
+			}
+		}
+		if ( maxSize != UNBOUNDED )
+		{
+			if ( size != sizeBefore )
+			{
+				anchorNode.setProperty( TREE_SIZE, size );
+			}
+		}
+		else if ( count > 0 )
+		{
+			sizeChanged( count );
+		}
+		return count;
+	}
+	
+	private int removeChunk( List<SortKeyedNode> chunk )
+	{
+		int count = 0;
+		for ( SortKeyedNode sortKeyedNode : chunk )
+		{
+			if ( treeRoot.removeEntry( sortKeyedNode.node, 
+				sortKeyedNode.sortKey ) )
+			{
+				count++;
+			}
+		}
+		if ( count > 0 )
+		{
+			sizeChanged( -count );
+			nodesRemoved( bloomFilter(), count );
+		}
+		return count;
+	}
+	
+	private static class SortKeyedNode
+	{
+		private final Node node;
+		private final long nodeId;
+		private final long sortKey;
+		
+		SortKeyedNode( Node node, long sortKey )
+		{
+			this.node = node;
+			this.nodeId = node.getId();
+			this.sortKey = sortKey;
+		}
+	}
+	
+	/**
+	 * Adds all the nodes to this list by building the tree bottom up, see
+	 * {@link TreeEngine#load(Node, List)}, which for many nodes is a lot
+	 * faster than adding them one at a time.
+	 * <p>
+	 * Only the sort is done in parallel. The nodes are read, i.e. their
+	 * sort keys extracted and the {@link Comparator} called, in the
+	 * calling thread, since other threads don't see what the current
+	 * transaction has written. Reading the nodes therefore isn't any
+	 * faster with an {@code executor}. If there's a
+	 * {@link SortKeyExtractor} the extracted sort keys are sorted in one
+	 * partition per processor by {@code executor}, the sorted partitions
+	 * merged and only the nodes with equal sort keys are then sorted with
+	 * the {@link Comparator}, in the calling thread.
+	 * <p>
+	 * The tree can only be built like this when this list is empty and
+	 * unbounded, otherwise the nodes are added with 
+	 * {@link #addAll(Iterable)}. Everything is written in the current 
+	 * transaction.
+	 * 
+	 * @param nodes the nodes to add.
+	 * @param executor sorts the partitions of the sort keys, or {@code null}
+	 * to sort everything in the calling thread. It isn't used without a
+	 * {@link SortKeyExtractor}.
+	 * @return the number of nodes which weren't already in this list.
+	 */
+	public long load( Iterable<Node> nodes, ExecutorService executor )
+	{
+		if ( !isEmpty() || maxSize != UNBOUNDED )
+		{
+			return addAll( nodes );
+		}
+		final List<SortKeyedNode> sorted = sort( nodes, executor );
+		engine.load( treeRoot.getUnderlyingNode(), 
+			new AbstractList<Map<String, Object>>()
+		{
+			@Override
+			public Map<String, Object> get( int index )
+			{
+				SortKeyedNode sortKeyedNode = sorted.get( index );
+				return entryProperties( sortKeyedNode.node, 
+					sortKeyedNode.sortKey );
+			}
+			
+			@Override
+			public int size()
+			{
+				return sorted.size();
+			}
+		} );
+		if ( bloomFilter != null )
+		{
+			for ( SortKeyedNode sortKeyedNode : sorted )
+			{
+				bloomFilter.add( sortKeyedNode.node.getId() );
+			}
+		}
+		if ( !sorted.isEmpty() )
+		{
+			anchorNode.setProperty( TREE_SIZE, (long) sorted.size() );
+		}
+		return sorted.size();
+	}
+	
+	private List<SortKeyedNode> sort( Iterable<Node> nodes, 
+		ExecutorService executor )
+	{
+		// the nodes are only read in the calling thread, other threads can't
+		// see what the current transaction has written
+		List<SortKeyedNode> all = new ArrayList<SortKeyedNode>();
+		for ( Node node : nodes )
+		{
+			all.add( new SortKeyedNode( node, sortKeyOf( node ) ) );
+		}
+		if ( executor == null || sortKeyExtractor == null )
+		{
+			Collections.sort( all, sortKeyedNodeComparator );
+			return removeDuplicates( all );
+		}
+		int partitions = Runtime.getRuntime().availableProcessors();
+		int partitionSize = Math.max( 1, 
+			( all.size() + partitions - 1 ) / partitions );
+		List<SortTask> tasks = new ArrayList<SortTask>();
+		for ( int start = 0; start < all.size(); start += partitionSize )
+		{
+			tasks.add( new SortTask( all.subList( start, 
+				Math.min( start + partitionSize, all.size() ) ) ) );
+		}
+		List<SortKeyedNode> sorted = merge( execute( tasks, executor ) );
+		sortEqualSortKeys( sorted );
+		return sorted;
+	}
+	
+	// equal nodes are next to each other once sorted
+	private static List<SortKeyedNode> removeDuplicates( 
+		List<SortKeyedNode> sorted )
+	{
+		int kept = 0;
+		for ( SortKeyedNode sortKeyedNode : sorted )
+		{
+			if ( kept == 0 || 
+				sorted.get( kept - 1 ).nodeId != sortKeyedNode.nodeId )
+			{
+				sorted.set( kept++, sortKeyedNode );
+			}
+		}
+		return sorted.subList( 0, kept );
+	}
+	
+	// the partitions are only sorted by sort key, so nodes with equal sort
+	// keys are sorted with the node comparator here in the calling thread
+	private void sortEqualSortKeys( List<SortKeyedNode> sorted )
+	{
+		int start = 0;
+		while ( start < sorted.size() )
+		{
+			int end = start + 1;
+			while ( end < sorted.size() && 
+				sorted.get( end ).sortKey == sorted.get( start ).sortKey )
+			{
+				end++;
+			}
+			if ( end - start > 1 )
+			{
+				Collections.sort( sorted.subList( start, end ), 
+					sortKeyedNodeComparator );
+			}
+			start = end;
+		}
+	}
+	
+	private List<List<SortKeyedNode>> execute( List<SortTask> tasks, 
+		ExecutorService executor )
+	{
+		List<List<SortKeyedNode>> result = new ArrayList<List<SortKeyedNode>>();
+		List<Future<List<SortKeyedNode>>> futures = 
+			new ArrayList<Future<List<SortKeyedNode>>>();
+		for ( SortTask task : tasks )
+		{
+			futures.add( executor.submit( task ) );
+		}
+		try
+		{
+			for ( Future<List<SortKeyedNode>> future : futures )
+			{
+				result.add( future.get() );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( ExecutionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException )
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			for ( Future<List<SortKeyedNode>> future : futures )
+			{
+				future.cancel( true );
+			}
+		}
+		return result;
+	}
+	
+	// merges the partitions sorted by sort key and node id, a node which is
+	// in the nodes more than once is only kept once
+	private List<SortKeyedNode> merge( List<List<SortKeyedNode>> partitions )
+	{
+		if ( partitions.size() == 1 )
+		{
+			return partitions.get( 0 );
+		}
+		PriorityQueue<Partition> heads = new PriorityQueue<Partition>( 
+			Math.max( 1, partitions.size() ), new Comparator<Partition>()
+		{
+			public int compare( Partition o1, Partition o2 )
+			{
+				return SORT_KEY_ORDER.compare( o1.head, o2.head );
+			}
+		} );
+		int size = 0;
+		for ( List<SortKeyedNode> partition : partitions )
+		{
+			size += partition.size();
+			if ( !partition.isEmpty() )
+			{
+				heads.add( new Partition( partition ) );
+			}
+		}
+		List<SortKeyedNode> result = new ArrayList<SortKeyedNode>( size );
+		SortKeyedNode last = null;
+		while ( !heads.isEmpty() )
+		{
+			Partition partition = heads.poll();
+			if ( last == null || last.nodeId != partition.head.nodeId )
+			{
+				last = partition.head;
+				result.add( last );
+			}
+			if ( partition.next() )
+			{
+				heads.add( partition );
+			}
+		}
+		return result;
+	}
+	
+	// only compares the values extracted in the calling thread, so that it
+	// can be used by the executor threads
+	private static final Comparator<SortKeyedNode> SORT_KEY_ORDER = 
+		new Comparator<SortKeyedNode>()
+	{
+		public int compare( SortKeyedNode o1, SortKeyedNode o2 )
+		{
+			if ( o1.sortKey != o2.sortKey )
+			{
+				return o1.sortKey < o2.sortKey ? -1 : 1;
+			}
+			return compareIds( o1.nodeId, o2.nodeId );
+		}
+	};
+	
+	private static class SortTask implements Callable<List<SortKeyedNode>>
+	{
+		private final List<SortKeyedNode> nodes;
+		
+		SortTask( List<SortKeyedNode> nodes )
+		{
+			this.nodes = nodes;
+		}
+		
+		public List<SortKeyedNode> call()
+		{
+			List<SortKeyedNode> sorted = new ArrayList<SortKeyedNode>( nodes );
+			Collections.sort( sorted, SORT_KEY_ORDER );
+			return removeDuplicates( sorted );
+		}
+	}
+	
+	private static class Partition
+	{
+		private final Iterator<SortKeyedNode> nodes;
+		private SortKeyedNode head;
+		
+		Partition( List<SortKeyedNode> sorted )
+		{
+			this.nodes = sorted.iterator();
+			next();
+		}
+		
+		boolean next()
+		{
+			head = nodes.hasNext() ? nodes.next() : null;
+			return head != null;
+		}
+	}
+	
+	private class Engine extends TreeEngine
+	{
+		Engine()
+		{
+			super( RelTypes.KEY_ENTRY, RelTypes.SUB_TREE, RelTypes.TREE_ROOT );
+		}
+		
+		@Override
+		protected GraphDatabaseService getGraphDb()
+		{
+			return graphDb;
+		}
+		
+		@Override
+		protected int getOrder()
+		{
+			return SortedTree.this.getOrder();
+		}
+		
+		@Override
+		protected void rootChanged( Node newRoot )
+		{
+			treeRoot = new TreeNode( SortedTree.this, newRoot );
+		}
+	}
+	
+	/**
+	 * Moves a node to its correct position in this list after properties
+	 * used by the {@link Comparator} or {@link SortKeyExtractor} have
+	 * changed, see {@link #update(Map)}.
+	 * 
+	 * @param node the node whose properties changed.
+	 * @param previousProperties the changed properties with their values
+	 * before the change, {@code null} for properties which didn't exist.
+	 * @return {@code true} if the node was in this list.
+	 */
+	public boolean update( Node node, Map<String, Object> previousProperties )
+	{
+		Map<Node, Map<String, Object>> changes = 
+			new HashMap<Node, Map<String, Object>>();
+		changes.put( node, previousProperties );
+		return update( changes ) > 0;
+	}
+	
+	/**
+	 * Moves nodes to their correct positions in this list after properties
+	 * used by the {@link Comparator} or {@link SortKeyExtractor} have
+	 * changed. A node with changed properties can't be found by going down
+	 * the tree with its current property values, so the nodes are first
+	 * removed while they, and the other changed nodes in the tree, are
+	 * read with their previous property values and then added again. Nodes
+	 * not in this list are ignored. Must be called within a transaction.
+	 * 
+	 * @param changes the nodes whose properties changed, with the changed
+	 * properties and their values before the change, {@code null} for
+	 * properties which didn't exist.
+	 * @return the number of nodes which were in this list.
+	 * @see SortedTreeUpdater
+	 */
+	public int update( Map<Node, Map<String, Object>> changes )
+	{
+		Map<Long, Node> states = new HashMap<Long, Node>();
+		for ( Map.Entry<Node, Map<String, Object>> change : 
+			changes.entrySet() )
+		{
+			states.put( change.getKey().getId(), PreviousNodeState.of( 
+				change.getKey(), change.getValue() ) );
+		}
+		List<Node> removed = new ArrayList<Node>();
+		previousStates.set( states );
+		try
+		{
+			for ( Node node : changes.keySet() )
+			{
+				Node previousState = states.get( node.getId() );
+				if ( treeRoot.removeEntry( previousState, 
+					sortKeyOf( previousState ) ) )
+				{
+					removed.add( node );
+				}
+			}
+		}
+		finally
+		{
+			previousStates.remove();
+		}
+		for ( Node node : removed )
+		{
+			treeRoot.addEntry( node, sortKeyOf( node ), true );
+		}
+		return removed.size();
+	}
+	
+	private void sizeChanged( int delta )
+	{
+		Long size = (Long) anchorNode.getProperty( TREE_SIZE, null );
+		// trees created before the size was stored are counted once, the 
+		// count already includes this change
+		anchorNode.setProperty( TREE_SIZE, 
+			size != null ? size + delta : countNodes() );
+	}
+	
+	private long countNodes()
+	{
+		long count = 0;
+		for ( Iterator<Node> nodes = getSortedNodes().iterator(); 
+			nodes.hasNext(); )
+		{
+			nodes.next();
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the number of nodes in this list. The size is stored with the
+	 * list so this doesn't go through the nodes, unless this list was
+	 * created before the size was stored and hasn't been modified since.
+	 * 
+	 * @return the number of nodes in this list.
+	 */
+	public long size()
+	{
+		Long size = (Long) anchorNode.getProperty( TREE_SIZE, null );
+		return size != null ? size : countNodes();
+	}
+	
+	/**
+	 * @return {@code true} if this list contains no nodes.
+	 */
+	public boolean isEmpty()
+	{
+		return treeRoot.getFirstEntry() == null;
+	}
+	
+	/**
+	 * @return the first node in this list, or {@code null} if it's empty.
+	 */
+	public Node getFirstNode()
+	{
+		NodeEntry entry = getFirstEntry();
+		return entry != null ? entry.getTheNode() : null;
+	}
+	
+	private NodeEntry getFirstEntry()
+	{
+		NodeEntry entry = treeRoot.getFirstEntry();
+		if ( entry == null )
+		{
+			return null;
+		}
+		for ( TreeNode subTree = entry.getBeforeSubTree(); subTree != null;
+			subTree = entry.getBeforeSubTree() )
+		{
+			entry = subTree.getFirstEntry();
+		}
+		return entry;
+	}
+	
+	/**
+	 * @return the last node in this list, or {@code null} if it's empty.
+	 */
+	public Node getLastNode()
+	{
+		NodeEntry entry = treeRoot.getLastEntry();
+		if ( entry == null )
+		{
+			return null;
+		}
+		for ( TreeNode subTree = entry.getAfterSubTree(); subTree != null;
+			subTree = entry.getAfterSubTree() )
+		{
+			entry = subTree.getLastEntry();
+		}
+		return entry.getTheNode();
+	}
+	
+	/**
+	 * Public for testing purpose. Validates this tree making sure it is 
+	 * balanced and consistent and that its nodes are in order.
+	 */
+	public void validateTree()
+	{
+		validateSubTree( treeRoot.getUnderlyingNode(), true, 
+			new Relationship[1] );
+	}
+	
+	// returns the height of the sub tree, 1 for a leaf. previous holds the
+	// entry before this sub tree, in order
+	private int validateSubTree( Node treeNode, boolean isRoot, 
+		Relationship[] previous )
+	{
+		int entryCount = engine.getEntryCount( treeNode );
+		if ( entryCount >= getOrder() )
+		{
+			throw new RuntimeException( "Too many entries" );
+		}
+		if ( !isRoot && entryCount < getOrder() / 2 )
+		{
+			throw new RuntimeException( "Too few entries" );
+		}
+		int height = -1;
+		Node chainNode = treeNode;
+		Relationship entry;
+		do
+		{
+			Node subTree = engine.getSubTree( chainNode );
+			int subTreeHeight = subTree != null ? 
+				validateSubTree( subTree, false, previous ) : 0;
+			if ( height != -1 && height != subTreeHeight )
+			{
+				throw new RuntimeException( "Leaf depth inconsistency" );
+			}
+			height = subTreeHeight;
+			entry = engine.getFirstEntry( chainNode );
+			if ( entry != null )
+			{
+				if ( previous[0] != null && compare( getNode( previous[0] ), 
+					getSortKey( previous[0] ), entry ) >= 0 )
+				{
+					throw new RuntimeException( 
+						"Node ordering inconsistency" );
+				}
+				previous[0] = entry;
+				chainNode = entry.getEndNode();
+			}
+		}
+		while ( entry != null );
+		return height + 1;
 	}
 	
 	int getOrder()
@@ -148,38 +1160,264 @@ public class SortedTree
     {
         return nodeComparator;
     }
+    
+    /**
+     * @return the {@link SortKeyExtractor} used for this list, or 
+     * {@code null} if it only uses the {@link Comparator}.
+     */
+    public SortKeyExtractor getSortKeyExtractor()
+    {
+        return sortKeyExtractor;
+    }
+    
+    /**
+     * @return the properties of the entry for {@code node}.
+     */
+    Map<String, Object> entryProperties( Node node, long sortKey )
+    {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put( NodeEntry.NODE_ID, node.getId() );
+        if ( sortKeyExtractor != null )
+        {
+            properties.put( NodeEntry.SORT_KEY, sortKey );
+        }
+        return properties;
+    }
+    
+    long sortKeyOf( Node node )
+    {
+        return sortKeyExtractor != null ? sortKeyExtractor.getSortKey( node ) : 0;
+    }
+    
+    /**
+     * Compares {@code node}, with the sort key {@code sortKey}, to the node
+     * of {@code entry}. The node of the entry is only read if there's no
+     * {@link SortKeyExtractor} or if the sort keys are equal. Nodes which
+     * are equal according to the {@link Comparator} are ordered by node 
+     * id, so this only returns {@code 0} for the node of the entry itself.
+     */
+    int compare( Node node, long sortKey, Relationship entry )
+    {
+        return compare( node, sortKey, node.getId(), entry );
+    }
+    
+    /**
+     * Compares like {@link #compare(Node, long, Relationship)}, but uses
+     * {@code nodeId} as the node id of {@code node} when the nodes are 
+     * equal according to the {@link Comparator}. With {@link #BELOW_EQUAL}
+     * or {@link #ABOVE_EQUAL} {@code node} is a bound before or after all 
+     * nodes equal to it.
+     */
+    int compare( Node node, long sortKey, long nodeId, Relationship entry )
+    {
+        if ( sortKeyExtractor != null )
+        {
+            long entrySortKey = getSortKey( entry );
+            if ( sortKey != entrySortKey )
+            {
+                return sortKey < entrySortKey ? -1 : 1;
+            }
+        }
+        int result = nodeComparator.compare( node, getNode( entry ) );
+        return result != 0 ? result : compareIds( nodeId, 
+            (Long) entry.getProperty( NodeEntry.NODE_ID ) );
+    }
+    
+    private static int compareIds( long id1, long id2 )
+    {
+        return id1 < id2 ? -1 : ( id1 == id2 ? 0 : 1 );
+    }
+    
+    /**
+     * Returns the sort key stored on an entry. Entries added before the
+     * tree got a {@link SortKeyExtractor} have no stored sort key, for them
+     * it's extracted from the node instead.
+     */
+    long getSortKey( Relationship entry )
+    {
+        if ( sortKeyExtractor == null )
+        {
+            return 0;
+        }
+        Object sortKey = entry.getProperty( NodeEntry.SORT_KEY, null );
+        return sortKey != null ? (Long) sortKey : 
+            sortKeyExtractor.getSortKey( getNode( entry ) );
+    }
+    
+    Node getNode( Relationship entry )
+    {
+        long nodeId = (Long) entry.getProperty( NodeEntry.NODE_ID );
+        Map<Long, Node> states = previousStates.get();
+        if ( states != null && states.containsKey( nodeId ) )
+        {
+            return states.get( nodeId );
+        }
+        return graphDb.getNodeById( nodeId );
+    }
 	
     /**
+     * Returns all the nodes in this list, in order. The nodes are read from
+     * the tree as they are iterated over, so iterating while modifying the
+     * list gives undefined results.
+     * 
      * @return all the nodes in this list.
      */
     public Iterable<Node> getSortedNodes()
     {
-        List<Node> nodeList = new ArrayList<Node>();
-        traverseTreeNode( treeRoot, nodeList );
-        return nodeList;
+        return getSortedNodes( null, null );
+    }
+    
+    /**
+     * Returns the nodes in this list from {@code fromNode} up to
+     * {@code toNode}, in order. Neither node has to be in the list. The
+     * nodes are read from the tree as they are iterated over, so iterating
+     * while modifying the list gives undefined results.
+     * 
+     * @param fromNode the first node in the range (inclusive), or 
+     * {@code null} to start at the first node in this list.
+     * @param toNode the end of the range (exclusive), or {@code null} to
+     * continue to the last node in this list.
+     * @return the nodes in the range.
+     */
+    public Iterable<Node> getSortedNodes( Node fromNode, Node toNode )
+    {
+        return getSortedNodes( fromNode, true, toNode, false, false );
+    }
+    
+    /**
+     * Returns the nodes in this list between {@code fromNode} and 
+     * {@code toNode}, in order or in reverse order. Neither node has to be
+     * in the list. The nodes are read from the tree as they are iterated 
+     * over, so iterating while modifying the list gives undefined results.
+     * 
+     * @param fromNode the lower bound of the range, or {@code null} to 
+     * start at the first node in this list.
+     * @param fromInclusive whether nodes equal to {@code fromNode} are in
+     * the range.
+     * @param toNode the upper bound of the range, or {@code null} to 
+     * continue to the last node in this list.
+     * @param toInclusive whether nodes equal to {@code toNode} are in the
+     * range.
+     * @param descending {@code true} to return the nodes from the upper
+     * bound down to the lower bound.
+     * @return the nodes in the range.
+     */
+    public Iterable<Node> getSortedNodes( final Node fromNode, 
+        final boolean fromInclusive, final Node toNode, 
+        final boolean toInclusive, final boolean descending )
+    {
+        return new Iterable<Node>()
+        {
+            public Iterator<Node> iterator()
+            {
+                return new SortedNodeIterator( SortedTree.this, 
+                    treeRoot.getUnderlyingNode(), fromNode, fromInclusive, 
+                    toNode, toInclusive, descending );
+            }
+        };
     }
     
-    private void traverseTreeNode( TreeNode currentNode, List<Node> nodeList )
+    /**
+     * Returns the nodes in this list which are equal to {@code node} 
+     * according to the {@link Comparator}, and have the same sort key, in
+     * node id order. The iteration starts with a single descent to the
+     * first of them and ends at the first node after them.
+     * 
+     * @param node the node to search for, doesn't have to be in this list.
+     * @return the nodes in this list equal to {@code node}.
+     */
+    public Iterable<Node> getEqualNodes( Node node )
     {
-        NodeEntry entry = currentNode.getFirstEntry();
-        while ( entry != null )
+        return getSortedNodes( node, true, node, true, false );
+    }
+    
+    /**
+     * @param node the node to search for, doesn't have to be in this list.
+     * @return the first node in this list equal to or sorted after 
+     * {@code node}, or {@code null} if there is none.
+     */
+    public Node getCeilingNode( Node node )
+    {
+        return searchUp( node, true );
+    }
+    
+    /**
+     * @param node the node to search for, doesn't have to be in this list.
+     * @return the first node in this list sorted after {@code node}, or
+     * {@code null} if there is none.
+     */
+    public Node getHigherNode( Node node )
+    {
+        return searchUp( node, false );
+    }
+    
+    /**
+     * @param node the node to search for, doesn't have to be in this list.
+     * @return the last node in this list equal to or sorted before 
+     * {@code node}, or {@code null} if there is none.
+     */
+    public Node getFloorNode( Node node )
+    {
+        return searchDown( node, true );
+    }
+    
+    /**
+     * @param node the node to search for, doesn't have to be in this list.
+     * @return the last node in this list sorted before {@code node}, or
+     * {@code null} if there is none.
+     */
+    public Node getLowerNode( Node node )
+    {
+        return searchDown( node, false );
+    }
+    
+    // one descent, remembering the last entry found to be above the node
+    private Node searchUp( Node node, boolean inclusive )
+    {
+        long sortKey = sortKeyOf( node );
+        long nodeId = inclusive ? BELOW_EQUAL : ABOVE_EQUAL;
+        Relationship found = null;
+        Node chainNode = treeRoot.getUnderlyingNode();
+        while ( chainNode != null )
         {
-            TreeNode beforeTree = entry.getBeforeSubTree();
-            if ( beforeTree != null )
+            Relationship entry = chainNode.getSingleRelationship( 
+                RelTypes.KEY_ENTRY, Direction.OUTGOING );
+            if ( entry != null )
             {
-                traverseTreeNode( beforeTree, nodeList );
+                if ( compare( node, sortKey, nodeId, entry ) > 0 )
+                {
+                    chainNode = entry.getEndNode();
+                    continue;
+                }
+                found = entry;
             }
-            nodeList.add( entry.getTheNode() );
-            NodeEntry nextEntry = entry.getNextKey();
-            if ( nextEntry == null )
+            chainNode = engine.getSubTree( chainNode );
+        }
+        return found != null ? getNode( found ) : null;
+    }
+    
+    // one descent, remembering the last entry found to be below the node
+    private Node searchDown( Node node, boolean inclusive )
+    {
+        long sortKey = sortKeyOf( node );
+        long nodeId = inclusive ? ABOVE_EQUAL : BELOW_EQUAL;
+        Relationship found = null;
+        Node chainNode = treeRoot.getUnderlyingNode();
+        while ( chainNode != null )
+        {
+            Relationship entry = chainNode.getSingleRelationship( 
+                RelTypes.KEY_ENTRY, Direction.OUTGOING );
+            if ( entry != null )
             {
-                TreeNode afterTree = entry.getAfterSubTree();
-                if ( afterTree != null )
+                if ( compare( node, sortKey, nodeId, entry ) > 0 )
                 {
-                    traverseTreeNode( afterTree, nodeList );
+                    found = entry;
+                    chainNode = entry.getEndNode();
+                    continue;
                 }
             }
-            entry = nextEntry;
+            chainNode = engine.getSubTree( chainNode );
         }
+        return found != null ? getNode( found ) : null;
     }
-}
\ No newline at end of file
+}
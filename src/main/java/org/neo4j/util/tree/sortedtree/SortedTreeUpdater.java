@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Keeps a {@link SortedTree} sorted when properties of its nodes change.
+ * When registered with
+ * {@link org.neo4j.graphdb.GraphDatabaseService#registerTransactionEventHandler(TransactionEventHandler)}
+ * it looks, before every commit, for changes to the properties the tree
+ * is sorted by and repositions the changed nodes with
+ * {@link SortedTree#update(Map)}, in the same transaction. Nodes created
+ * in the transaction are skipped, since the values they had when they
+ * were added to the tree aren't known. A node which is created, added and
+ * then changed in the same transaction therefore stays where it was
+ * added; set its properties before adding it, or call
+ * {@link SortedTree#update(Node, Map)} for it yourself.
+ * <p>
+ * Until the commit the changed nodes are out of place in the tree. Nodes
+ * added or removed in the same transaction, which the tree has to compare
+ * with a changed node (with the {@link java.util.Comparator}, sort keys
+ * are read from the entries), may therefore end up in the wrong place.
+ * Call {@link SortedTree#update(Map)} before such writes instead.
+ * <p>
+ * The {@link SortedTree} instance is shared by the committing threads, so
+ * it should be one which isn't modified by other threads without the
+ * nodes being locked, as for any other shared {@link SortedTree}.
+ */
+public class SortedTreeUpdater implements TransactionEventHandler<Void>
+{
+	private final SortedTree tree;
+	private final Set<String> sortProperties;
+	
+	/**
+	 * @param tree the tree to keep sorted.
+	 * @param sortProperties the keys of the properties read by the
+	 * {@link java.util.Comparator} and {@link SortKeyExtractor} of 
+	 * {@code tree}.
+	 */
+	public SortedTreeUpdater( SortedTree tree, String... sortProperties )
+	{
+		this.tree = tree;
+		this.sortProperties = new HashSet<String>( 
+			Arrays.asList( sortProperties ) );
+	}
+	
+	public Void beforeCommit( TransactionData data ) throws Exception
+	{
+		Map<Node, Map<String, Object>> changes = 
+			new HashMap<Node, Map<String, Object>>();
+		Set<Node> created = new HashSet<Node>();
+		for ( Node node : data.createdNodes() )
+		{
+			created.add( node );
+		}
+		gatherChanges( data, created, data.assignedNodeProperties(), 
+			changes );
+		gatherChanges( data, created, data.removedNodeProperties(), 
+			changes );
+		if ( !changes.isEmpty() )
+		{
+			tree.update( changes );
+		}
+		return null;
+	}
+	
+	private void gatherChanges( TransactionData data, Set<Node> created,
+		Iterable<PropertyEntry<Node>> properties, 
+		Map<Node, Map<String, Object>> changes )
+	{
+		for ( PropertyEntry<Node> property : properties )
+		{
+			Node node = property.entity();
+			if ( !sortProperties.contains( property.key() ) || 
+				data.isDeleted( node ) || created.contains( node ) )
+			{
+				continue;
+			}
+			Map<String, Object> previousProperties = changes.get( node );
+			if ( previousProperties == null )
+			{
+				previousProperties = new HashMap<String, Object>();
+				changes.put( node, previousProperties );
+			}
+			previousProperties.put( property.key(), 
+				property.previouslyCommitedValue() );
+		}
+	}
+	
+	public void afterCommit( TransactionData data, Void state )
+	{
+	}
+	
+	public void afterRollback( TransactionData data, Void state )
+	{
+	}
+}
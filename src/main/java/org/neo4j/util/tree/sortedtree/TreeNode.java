@@ -19,14 +19,17 @@
  */
 package org.neo4j.util.tree.sortedtree;
 
-import javax.transaction.Transaction;
-
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
-import org.neo4j.kernel.AbstractGraphDatabase;
+import org.neo4j.util.tree.TreeEngine;
 import org.neo4j.util.tree.sortedtree.SortedTree.RelTypes;
 
+/**
+ * A tree node of a {@link SortedTree}. The structural changes, splits and
+ * rebalancing, are done by the {@link TreeEngine} of the tree, this class
+ * knows about the nodes and how they are ordered.
+ */
 class TreeNode
 {
 	private SortedTree bTree;
@@ -43,143 +46,15 @@ class TreeNode
 		return treeNode;
 	}
 	
-	TreeNode getParent()
-	{
-		Relationship toParentNode = treeNode.getSingleRelationship( 
-			RelTypes.SUB_TREE, Direction.INCOMING );
-		if ( toParentNode != null )
-		{
-			Node parentNode = toParentNode.getStartNode();
-			Relationship prevEntry = parentNode.getSingleRelationship( 
-				RelTypes.KEY_ENTRY, Direction.INCOMING );
-			while ( prevEntry != null )
-			{
-				parentNode = prevEntry.getStartNode();
-				prevEntry = parentNode.getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.INCOMING );
-			}
-			return new TreeNode( bTree, parentNode );
-		}
-		return null;
-	}
-	
-	// returns the old parent node
-	private Node disconnectFromParent()
-	{
-		Relationship toParentNode = treeNode.getSingleRelationship( 
-			RelTypes.SUB_TREE, Direction.INCOMING );
-		Node parentNode = toParentNode.getStartNode();
-		toParentNode.delete();
-		return parentNode;
-	}
-	
-	private void connectToParent( Node parent )
-	{
-		assert treeNode.getSingleRelationship( 
-			RelTypes.SUB_TREE, Direction.INCOMING ) == null;
-		parent.createRelationshipTo( treeNode, RelTypes.SUB_TREE );
-	}
-	
 	void delete()
 	{
-		if ( !isRoot() )
-		{
-			disconnectFromParent();
-		}
-		NodeEntry entry = getFirstEntry();
-		if ( entry == null )
-		{
-			getUnderlyingNode().delete();
-			return;
-		}
-		TreeNode subTree = entry.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.delete();
-		}
-		Node lastNode = null;
-		while ( entry != null )
-		{
-			subTree = entry.getAfterSubTree();
-			if ( subTree != null )
-			{
-				subTree.delete();
-			}
-			NodeEntry nextEntry = entry.getNextKey();
-			lastNode = entry.getEndNode();
-			entry.getStartNode().delete();
-			entry.getUnderlyingRelationship().delete();
-			entry = nextEntry;
-		}
-		if ( lastNode != null )
-		{
-			lastNode.delete();
-		}
-	}
-	
-	int delete( int commitInterval, int count )
-	{
-		if ( !isRoot() )
-		{
-			disconnectFromParent();
-			count++;
-		}
-		NodeEntry entry = getFirstEntry();
-		if ( entry == null )
-		{
-			getUnderlyingNode().delete();
-			return count++;
-		}
-		TreeNode subTree = entry.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.delete( commitInterval, count );
-		}
-		Node lastNode = null;
-		while ( entry != null )
-		{
-			subTree = entry.getAfterSubTree();
-			if ( subTree != null )
-			{
-				subTree.delete( commitInterval, count );
-			}
-			NodeEntry nextEntry = entry.getNextKey();
-			lastNode = entry.getEndNode();
-			entry.getStartNode().delete();
-			entry.getUnderlyingRelationship().delete();
-			count++;
-			entry = nextEntry;
-		}
-		if ( lastNode != null )
-		{
-			lastNode.delete();
-			count++;
-		}
-		if ( count >= commitInterval )
-		{
-            AbstractGraphDatabase graphDb = ( AbstractGraphDatabase ) bTree.getGraphDb();
-            try
-            {
-                Transaction tx = graphDb.getTxManager().getTransaction();
-                if ( tx != null )
-                {
-                    tx.commit();
-                }
-            }
-            catch ( Exception e )
-            {
-                throw new RuntimeException( e );
-            }
-            graphDb.beginTx();
-			count = 0;
-		}
-		return count;
+		bTree.getEngine().delete( treeNode );
 	}
 	
 	NodeEntry getFirstEntry()
 	{
-		Relationship keyEntryRel = treeNode.getSingleRelationship( 
-			RelTypes.KEY_ENTRY, Direction.OUTGOING );
+		Relationship keyEntryRel = bTree.getEngine().getFirstEntry( 
+			treeNode );
 		assert treeNode.getSingleRelationship( RelTypes.KEY_ENTRY, 
 			Direction.INCOMING ) == null;
 		if ( keyEntryRel != null )
@@ -191,555 +66,62 @@ class TreeNode
 	
 	NodeEntry getLastEntry()
 	{
-		Relationship keyEntryRel = treeNode.getSingleRelationship( 
-			RelTypes.KEY_ENTRY, Direction.OUTGOING );
-		NodeEntry last = null;
-		while ( keyEntryRel != null )
-		{
-			last = new NodeEntry( this, keyEntryRel );
-			keyEntryRel = keyEntryRel.getEndNode().getSingleRelationship( 
-				RelTypes.KEY_ENTRY, Direction.OUTGOING );
-		}
-		return last;
+		Relationship keyEntryRel = bTree.getEngine().getLastEntry( 
+			treeNode );
+		return keyEntryRel != null ? new NodeEntry( this, keyEntryRel ) : 
+			null;
 	}
 	
-	private int getEntryCount()
+	boolean addEntry( Node theNode, long sortKey, boolean ignoreIfExist )
 	{
-		int entryCount = 0;
-		NodeEntry entry = getFirstEntry();
-		while ( entry != null )
+		if ( bTree.getEngine().addEntry( treeNode, 
+			nodeTarget( theNode, sortKey ), 
+			bTree.entryProperties( theNode, sortKey ) ) != null )
 		{
-			entryCount++;
-			entry = entry.getNextKey();
+			return true;
 		}
-		return entryCount;
-	}
-	
-	boolean addEntry( Node theNode, boolean ignoreIfExist )
-	{
-		int entryCount = 0;
-		NodeEntry keyEntry = getFirstEntry();
-		while ( keyEntry != null )
+		if ( ignoreIfExist )
 		{
-			Node currentNode = keyEntry.getTheNode();
-			if ( currentNode.equals( theNode ) )
-			{
-				if ( ignoreIfExist )
-				{
-					return false;
-				}
-				throw new RuntimeException( "Node already exist:" + theNode );
-			}
-			entryCount++;
-			if ( bTree.getComparator().compare( theNode, currentNode ) < 0 )
-			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getBeforeSubTree();
-				if ( subTree != null )
-				{
-					return subTree.addEntry( theNode, ignoreIfExist );
-				}
-				// no sub tree so we insert here
-				// get current amount of entries
-				NodeEntry entry = keyEntry.getNextKey();
-				while ( entry != null )
-				{
-					entryCount++;
-					entry = entry.getNextKey();
-				}
-				// create new blank node for key entry relationship
-				Node blankNode = bTree.getGraphDb().createNode();
-				createEntry( keyEntry.getStartNode(), blankNode, theNode );
-				// move previous keyEntry to start at blank node
-				keyEntry.move( this, blankNode, keyEntry.getEndNode() );
-				entryCount++;
-				assert entryCount <= bTree.getOrder();
-				if ( bTree.getOrder() == entryCount )
-				{
-					moveMiddleUp();
-				}
-				return true;
-			}
-			// else if last entry, check for sub tree or add last
-			if ( keyEntry.getNextKey() == null )
-			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getAfterSubTree();
-				if ( subTree != null )
-				{
-					return subTree.addEntry( theNode, ignoreIfExist );
-				}
-				// ok just append the element
-				Node blankNode = bTree.getGraphDb().createNode();				
-				createEntry( keyEntry.getEndNode(), blankNode, theNode );
-				entryCount++;
-				assert entryCount <= bTree.getOrder();
-				if ( bTree.getOrder() == entryCount )
-				{
-					moveMiddleUp();
-				}
-				return true;
-			}
-			keyEntry = keyEntry.getNextKey();
+			return false;
 		}
-		// we should never reach here unless root node is empty
-		// sanity checks
-		assert isRoot();
-		assert !treeNode.getRelationships( 
-			RelTypes.SUB_TREE ).iterator().hasNext();
-		// ok add first entry in root
-		Node blankNode = bTree.getGraphDb().createNode();
-		createEntry( treeNode, blankNode, theNode );
-        return true;
-	}
-	
-    boolean containsEntry( Node theNode )
-    {
-        int entryCount = 0;
-        NodeEntry keyEntry = getFirstEntry();
-        while ( keyEntry != null )
-        {
-            Node currentNode = keyEntry.getTheNode();
-            if ( currentNode.equals( theNode ) )
-            {
-                return true;
-            }
-            entryCount++;
-            if ( bTree.getComparator().compare( theNode, currentNode ) < 0 )
-            {
-                // check if we have subtree
-                TreeNode subTree = keyEntry.getBeforeSubTree();
-                if ( subTree != null )
-                {
-                    return subTree.containsEntry( theNode );
-                }
-                return false;
-            }
-            // else if last entry, check for sub tree or add last
-            if ( keyEntry.getNextKey() == null )
-            {
-                // check if we have subtree
-                TreeNode subTree = keyEntry.getAfterSubTree();
-                if ( subTree != null )
-                {
-                    return subTree.containsEntry( theNode );
-                }
-                // ok just append the element
-                return false;
-            }
-            keyEntry = keyEntry.getNextKey();
-        }
-        return false;
-    }
-    
-	private NodeEntry createEntry( Node startNode, Node endNode, Node theNode )
-	{
-		NodeEntry newEntry = new NodeEntry( this, startNode.createRelationshipTo( 
-			endNode, RelTypes.KEY_ENTRY ) );
-		newEntry.setTheNode( theNode );
-		return newEntry;
+		throw new RuntimeException( "Node already exist:" + theNode );
 	}
 	
-	boolean isRoot()
+	boolean containsEntry( Node theNode, long sortKey )
 	{
-		return treeNode.getSingleRelationship( RelTypes.TREE_ROOT, 
-			Direction.INCOMING ) != null;
+		return bTree.getEngine().findEntry( treeNode, 
+			nodeTarget( theNode, sortKey ) ) != null;
 	}
 	
-	private NodeEntry insertEntry( Node theNode )
+	boolean removeEntry( Node theNode, long sortKey )
 	{
-		NodeEntry keyEntry = getFirstEntry();
-		while ( keyEntry != null )
-		{
-			Node currentNode = keyEntry.getTheNode();
-			assert !currentNode.equals( theNode );
-			if ( bTree.getComparator().compare( theNode, currentNode ) < 0 )
-			{
-				// create new blank node for key entry relationship
-				Node blankNode = bTree.getGraphDb().createNode();
-				NodeEntry newEntry = createEntry( keyEntry.getStartNode(), 
-					blankNode, theNode );
-				// move previous keyEntry to start at blank node
-				keyEntry.move( this, blankNode, keyEntry.getEndNode() );
-				return newEntry;
-			}
-			// else if last entry
-			if ( keyEntry.getNextKey() == null )
-			{
-				// just append the element
-				Node blankNode = bTree.getGraphDb().createNode();
-				return createEntry( keyEntry.getEndNode(), blankNode, theNode );
-			}
-			keyEntry = keyEntry.getNextKey();
-		}
-		// ok insert first entry (in new root)
-		Node blankNode = bTree.getGraphDb().createNode();
-		return createEntry( treeNode, blankNode, theNode );
-	}
-	
-	private void moveMiddleUp()
-	{
-		TreeNode parent = getParent();
-		if ( parent == null )
-		{
-			assert isRoot();
-			// make new root
-			parent = new TreeNode( bTree, bTree.getGraphDb().createNode() );
-			bTree.makeRoot( parent );
-		}
-		else
-		{
-			// temporary disconnect this from parent
-			disconnectFromParent();
-		}
-		// split the entries and move middle to parent
-		NodeEntry middleEntry = getFirstEntry();
-		for ( int i = 0; i < bTree.getOrder() / 2; i++ )
-		{
-			middleEntry = middleEntry.getNextKey();
-		}
-		TreeNode newTreeToTheRight = new TreeNode( bTree, 
-			middleEntry.getEndNode() );
-		// copy middle entry values to parent then remove it from this tree
-		NodeEntry movedMiddleEntry = parent.insertEntry( 
-            middleEntry.getTheNode() );
-		middleEntry.getUnderlyingRelationship().delete();
-		// connect left (this) and new right tree with new parent
-		movedMiddleEntry.getStartNode().createRelationshipTo( 
-			this.getUnderlyingNode(), RelTypes.SUB_TREE );
-		movedMiddleEntry.getEndNode().createRelationshipTo( 
-			newTreeToTheRight.getUnderlyingNode(), RelTypes.SUB_TREE );
-		int parentEntryCount = parent.getEntryCount();
-		if ( parentEntryCount == bTree.getOrder() )
+		Relationship entry = bTree.getEngine().findEntry( treeNode, 
+			nodeTarget( theNode, sortKey ) );
+		if ( entry == null )
 		{
-			parent.moveMiddleUp();
+			return false;
 		}
-        assert parent.getEntryCount() <= bTree.getOrder();
+		bTree.getEngine().removeEntry( entry );
+		return true;
 	}
 	
-	public boolean removeEntry( Node theNode )
+	// the entry of theNode itself is recognized by its node id, without
+	// reading the node of the entry
+	private TreeEngine.Target nodeTarget( final Node theNode, 
+		final long sortKey )
 	{
-		NodeEntry entry = null;
-		NodeEntry keyEntry = getFirstEntry();
-		if ( keyEntry == null )
+		return new TreeEngine.Target()
 		{
-			return false;
-		}
-		int entryCount = 0;
-		// see if key is in this node else go down in tree
-		while ( keyEntry != null )
-		{
-			entryCount++;
-			Node currentNode = keyEntry.getTheNode();
-			if ( currentNode.equals( theNode ) )
-			{
-				entry = keyEntry;
-				// ok got the key, get total number of entries
-				keyEntry = keyEntry.getNextKey();
-				while ( keyEntry != null )
-				{
-					entryCount++;
-					keyEntry = keyEntry.getNextKey();
-				}
-				break; // need to break since we don't have if else bellow
-			}
-			if ( bTree.getComparator().compare( theNode, currentNode ) < 0  )
-			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getBeforeSubTree();
-				if ( subTree != null )
-				{
-					// go down in tree
-					return subTree.removeEntry( theNode );
-				}
-				return false;
-			}
-			// else if last entry, check for sub tree or add last
-			if ( keyEntry.getNextKey() == null )
+			public int compareTo( Relationship entry )
 			{
-				// check if we have subtree
-				TreeNode subTree = keyEntry.getAfterSubTree();
-				if ( subTree != null )
+				if ( (Long) entry.getProperty( NodeEntry.NODE_ID ) == 
+					theNode.getId() )
 				{
-					// go down in tree
-					return subTree.removeEntry( theNode );
+					return 0;
 				}
-				return false;
-			}
-			keyEntry = keyEntry.getNextKey();
-		}
-		assert entry != null;
-		// remove the found key
-		if ( entry.isLeaf() )
-		{
-			// we can just remove it
-			NodeEntry nextEntry = entry.getNextKey();
-			if ( nextEntry != null )
-			{
-				nextEntry.move( this, entry.getStartNode(), 
-					nextEntry.getEndNode() );
-			}
-//			Node value = entry.getTheNode();
-			entry.getEndNode().delete();
-			entry.getUnderlyingRelationship().delete();
-			entryCount--;
-			if ( entryCount < ( bTree.getOrder() / 2 ) && !isRoot() )
-			{
-				tryBorrowFromSibling();
-			}
-		}
-		else
-		{
-			// while not leaf find first successor and move it to replace the 
-			// current entry
-			NodeEntry successor = entry.getAfterSubTree().getFirstEntry();
-			while ( !successor.isLeaf() )
-			{
-				successor = successor.getBeforeSubTree().getFirstEntry();
-			}
-			TreeNode leafTree = successor.getTreeNode();
-			NodeEntry next = successor.getNextKey();
-			next.move( leafTree, successor.getStartNode(), next.getEndNode() );
-			successor.move( this, entry.getStartNode(), entry.getEndNode() );
-//			Node value = entry.getTheNode();
-			entry.getUnderlyingRelationship().delete();
-			// verify subTree entryCount
-			entryCount = leafTree.getEntryCount();
-			if ( entryCount < ( bTree.getOrder() / 2 ) && !leafTree.isRoot() )
-			{
-				leafTree.tryBorrowFromSibling();
+				return bTree.compare( theNode, sortKey, entry );
 			}
-		}
-        return true;
-	}
-	
-	private void tryBorrowFromSibling()
-	{
-		TreeNode leftSibling = getLeftSibbling();
-		TreeNode rightSibling = getRightSibbling();
-		if ( leftSibling != null && ( leftSibling.getEntryCount() > 
-			( bTree.getOrder() / 2 ) ) )
-		{
-			borrowFromLeftSibling( leftSibling );
-		}
-		else if ( rightSibling != null && ( rightSibling.getEntryCount() > 
-			( bTree.getOrder() / 2 ) ) )
-		{
-			borrowFromRightSibling( rightSibling );
-		}
-		else if ( leftSibling != null )
-		{
-			mergeWithLeftSibling( leftSibling );
-		}
-		else if ( rightSibling != null )
-		{
-			mergeWithRightSibling( rightSibling );
-		}
-		else
-		{
-			throw new RuntimeException();
-		}
-	}
-	
-	private void borrowFromLeftSibling( TreeNode leftSibling )
-	{
-		// get last entry from sibling and set it as new parent, move parent 
-		// down to fill upp for deleted entry
-		// get after subtree from last entry in sibling and add it as
-		// before subtree in in moved down parent
-		TreeNode parentNode = getParent();
-		NodeEntry entryToMoveDown = new NodeEntry( parentNode, 
-			this.treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-				Direction.INCOMING ).getStartNode().getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.INCOMING ) );
-		NodeEntry entryToMoveUp = leftSibling.getLastEntry();
-		TreeNode subTree = entryToMoveUp.getAfterSubTree();
-		if ( subTree != null )
-		{
-			subTree.disconnectFromParent();
-		}
-		entryToMoveUp.getEndNode().delete();
-		entryToMoveUp.move( parentNode, entryToMoveDown.getStartNode(), 
-			entryToMoveDown.getEndNode() );
-		Node newStartNode = bTree.getGraphDb().createNode();
-		entryToMoveDown.move( this, newStartNode, treeNode );
-		Node parentToReAttachTo = disconnectFromParent();
-		treeNode = newStartNode;
-		connectToParent( parentToReAttachTo );
-		if ( subTree != null )
-		{
-			subTree.connectToParent( newStartNode );
-		}
-	}
-	
-	private void borrowFromRightSibling( TreeNode rightSibling )
-	{
-		// get first entry from sibling and set it as new parent, move 
-		// parent down to fill upp for deleted entry
-		// get before subtree from first entry in sibling and add it as
-		// after subtree in in moved down parent
-		TreeNode parentNode = getParent();
-		NodeEntry entryToMoveDown = new NodeEntry( parentNode, 
-			this.treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-				Direction.INCOMING ).getStartNode().getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.OUTGOING ) );
-		NodeEntry entryToMoveUp = rightSibling.getFirstEntry();
-		TreeNode subTree = entryToMoveUp.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.disconnectFromParent();
-		}
-		Node rightParentToReAttachTo = rightSibling.disconnectFromParent();
-		rightSibling.treeNode = entryToMoveUp.getEndNode();
-		rightSibling.connectToParent( rightParentToReAttachTo );
-		entryToMoveUp.getStartNode().delete();
-		entryToMoveUp.move( parentNode, entryToMoveDown.getStartNode(), 
-			entryToMoveDown.getEndNode() );
-		Node newLastNode = bTree.getGraphDb().createNode();
-		entryToMoveDown.move( this, this.getLastEntry().getEndNode(), 
-			newLastNode );
-		if ( subTree != null )
-		{
-			subTree.connectToParent( newLastNode );
-		}
-	}
-	
-	private void mergeWithLeftSibling( TreeNode leftSibling )
-	{
-		// disconnect this from parent,
-		// move entry after entry to move down in parent if exist
-		// use parent to move down values to connect left subtree with this
-		// check entry count in parent
-		TreeNode parentNode = getParent();
-		NodeEntry entryToMoveDown = new NodeEntry( parentNode, 
-			this.treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-				Direction.INCOMING ).getStartNode().getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.INCOMING ) );
-		NodeEntry nextParentEntry = entryToMoveDown.getNextKey();
-		if ( nextParentEntry != null )
-		{
-			nextParentEntry.move( parentNode, entryToMoveDown.getStartNode(), 
-				nextParentEntry.getEndNode() );
-		}
-		NodeEntry entry = this.getFirstEntry();
-		TreeNode subTree = entry.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.disconnectFromParent();
-		}
-		this.disconnectFromParent();
-		entryToMoveDown.getEndNode().delete();
-		Node blankNode = bTree.getGraphDb().createNode();
-		entryToMoveDown.move( leftSibling, 
-			leftSibling.getLastEntry().getEndNode(), blankNode );
-		entry.getStartNode().delete();
-		entry.move( leftSibling, blankNode, entry.getEndNode() );
-		this.treeNode = leftSibling.treeNode;
-		if ( subTree != null )
-		{
-			subTree.connectToParent( blankNode );
-		}
-		// validate parent
-		int entryCount = parentNode.getEntryCount();
-		if ( entryCount < bTree.getOrder() / 2 && !parentNode.isRoot() )
-		{
-			assert entryCount > 0;
-			parentNode.tryBorrowFromSibling();
-		}
-		else if ( entryCount == 0 )
-		{
-			assert parentNode.isRoot();
-			this.disconnectFromParent();
-			bTree.makeRoot( this );
-		}
-	}
-	
-	private void mergeWithRightSibling( TreeNode rightSibling )
-	{
-		// disconnect right sibling from parent,
-		// move entry after entry to move down in parent if exist
-		// use parent to move down values to connect this with right subtree
-		// check entry count in parent
-		TreeNode parentNode = getParent();
-		NodeEntry entryToMoveDown = new NodeEntry( parentNode, 
-			this.treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-				Direction.INCOMING ).getStartNode().getSingleRelationship( 
-					RelTypes.KEY_ENTRY, Direction.OUTGOING ) );
-		NodeEntry nextInParent = entryToMoveDown.getNextKey();
-		if ( nextInParent != null )
-		{
-			nextInParent.move( parentNode, entryToMoveDown.getStartNode(), 
-				nextInParent.getEndNode() );
-		}
-		NodeEntry entry = rightSibling.getFirstEntry();
-		TreeNode subTree = entry.getBeforeSubTree();
-		if ( subTree != null )
-		{
-			subTree.disconnectFromParent();
-		}
-		rightSibling.disconnectFromParent();
-		entryToMoveDown.getEndNode().delete();
-		Node blankNode = bTree.getGraphDb().createNode();
-		entryToMoveDown.move( this, this.getLastEntry().getEndNode(), 
-			blankNode );
-		entry.getStartNode().delete();
-		entry.move( this, blankNode, entry.getEndNode() );
-		rightSibling.treeNode = this.treeNode;
-		if ( subTree != null )
-		{
-			subTree.connectToParent( blankNode );
-		}
-		// validate parent
-		int entryCount = parentNode.getEntryCount();
-		if ( entryCount < bTree.getOrder() / 2 && !parentNode.isRoot() )
-		{
-			assert entryCount > 0;
-			parentNode.tryBorrowFromSibling();
-		}
-		else if ( entryCount == 0 )
-		{
-			assert parentNode.isRoot();
-			this.disconnectFromParent();
-			bTree.makeRoot( this );
-		}
-	}
-	
-	TreeNode getLeftSibbling()
-	{
-		Relationship parent = treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-			Direction.INCOMING );
-		if ( parent == null )
-		{
-			return null;
-		}
-		Relationship prevEntry = parent.getStartNode().getSingleRelationship( 
-			RelTypes.KEY_ENTRY, Direction.INCOMING );
-		if ( prevEntry == null )
-		{
-			return null;
-		}
-		return new TreeNode( getBTree(), 
-			prevEntry.getStartNode().getSingleRelationship( 
-				RelTypes.SUB_TREE, Direction.OUTGOING ).getEndNode() );
-	}
-	
-	TreeNode getRightSibbling()
-	{
-		Relationship parent = treeNode.getSingleRelationship( RelTypes.SUB_TREE, 
-			Direction.INCOMING );
-		if ( parent == null )
-		{
-			return null;
-		}
-		Relationship nextEntry = parent.getStartNode().getSingleRelationship( 
-			RelTypes.KEY_ENTRY, Direction.OUTGOING );
-		if ( nextEntry == null )
-		{
-			return null;
-		}
-		return new TreeNode( getBTree(), 
-			nextEntry.getEndNode().getSingleRelationship( 
-				RelTypes.SUB_TREE, Direction.OUTGOING ).getEndNode() );
+		};
 	}
 	
 	SortedTree getBTree()
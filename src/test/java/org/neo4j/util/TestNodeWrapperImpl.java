@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+public class TestNodeWrapperImpl extends Neo4jTest
+{
+	public static class Wrapper extends NodeWrapperImpl
+	{
+		public Wrapper( Node node )
+		{
+			super( node );
+		}
+	}
+	
+	public static class GraphDbWrapper extends NodeWrapperImpl
+	{
+		private final GraphDatabaseService graphDb;
+		
+		public GraphDbWrapper( GraphDatabaseService graphDb, Node node )
+		{
+			super( node );
+			this.graphDb = graphDb;
+		}
+	}
+	
+	public static class UncheckedFailingWrapper extends NodeWrapperImpl
+	{
+		static final IllegalStateException FAILURE = 
+			new IllegalStateException( "unchecked" );
+		
+		public UncheckedFailingWrapper( Node node )
+		{
+			super( node );
+			throw FAILURE;
+		}
+	}
+	
+	public static class CheckedFailingWrapper extends NodeWrapperImpl
+	{
+		static final IOException FAILURE = new IOException( "checked" );
+		
+		public CheckedFailingWrapper( Node node ) throws IOException
+		{
+			super( node );
+			throw FAILURE;
+		}
+	}
+	
+	public static class NoConstructorWrapper extends NodeWrapperImpl
+	{
+		public NoConstructorWrapper( String name )
+		{
+			super( null );
+		}
+	}
+	
+    @Test
+    public void testNewInstance() throws Exception
+	{
+		Node node = graphDb().createNode();
+		Wrapper wrapper = NodeWrapperImpl.newInstance( Wrapper.class, node );
+		assertEquals( node, wrapper.getUnderlyingNode() );
+		// the second time the constructor is cached
+		assertEquals( wrapper, NodeWrapperImpl.newInstance( Wrapper.class, 
+			graphDb(), node.getId() ) );
+		node.delete();
+	}
+	
+    @Test
+    public void testNewInstanceWithGraphDb() throws Exception
+	{
+		Node node = graphDb().createNode();
+		GraphDbWrapper wrapper = NodeWrapperImpl.newInstance( 
+			GraphDbWrapper.class, node );
+		assertEquals( node, wrapper.getUnderlyingNode() );
+		assertEquals( graphDb(), wrapper.graphDb );
+		node.delete();
+	}
+	
+    @Test
+    public void testUncheckedExceptionIsRethrown() throws Exception
+	{
+		Node node = graphDb().createNode();
+		try
+		{
+			NodeWrapperImpl.newInstance( UncheckedFailingWrapper.class, node );
+			fail( "Should have thrown" );
+		}
+		catch ( IllegalStateException e )
+		{
+			assertSame( UncheckedFailingWrapper.FAILURE, e );
+		}
+		node.delete();
+	}
+	
+    @Test
+    public void testCheckedExceptionIsWrapped() throws Exception
+	{
+		Node node = graphDb().createNode();
+		try
+		{
+			NodeWrapperImpl.newInstance( CheckedFailingWrapper.class, node );
+			fail( "Should have thrown" );
+		}
+		catch ( RuntimeException e )
+		{
+			assertSame( CheckedFailingWrapper.FAILURE, e.getCause() );
+		}
+		node.delete();
+	}
+	
+    @Test
+    public void testNoConstructor() throws Exception
+	{
+		Node node = graphDb().createNode();
+		try
+		{
+			NodeWrapperImpl.newInstance( NoConstructorWrapper.class, node );
+			fail( "Should have thrown" );
+		}
+		catch ( RuntimeException e )
+		{
+			// good
+		}
+		node.delete();
+	}
+}
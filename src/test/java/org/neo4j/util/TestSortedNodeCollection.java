@@ -0,0 +1,367 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+
+public class TestSortedNodeCollection extends Neo4jTest
+{
+	public static class Item extends NodeWrapperImpl
+	{
+		public Item( Node node )
+		{
+			super( node );
+		}
+		
+		int getValue()
+		{
+			return (Integer) getUnderlyingNode().getProperty( "value" );
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "Item[" + getValue() + "]";
+		}
+	}
+	
+	public static class OtherItem extends NodeWrapperImpl
+	{
+		public OtherItem( Node node )
+		{
+			super( node );
+		}
+	}
+	
+	static final Comparator<Item> VALUE_ORDER = new Comparator<Item>()
+	{
+		public int compare( Item o1, Item o2 )
+		{
+			return o1.getValue() < o2.getValue() ? -1 : 
+				( o1.getValue() > o2.getValue() ? 1 : 0 );
+		}
+	};
+	
+	static Item createItem( int value )
+	{
+		Node node = graphDb().createNode();
+		node.setProperty( "value", value );
+		return new Item( node );
+	}
+	
+	static SortedNodeCollection<Item> createCollection()
+	{
+		return new SortedNodeCollection<Item>( graphDb().createNode(), 
+			VALUE_ORDER, Item.class );
+	}
+	
+	static void delete( SortedNodeCollection<Item> collection, 
+		List<Item> items )
+	{
+		Node rootNode = collection.rootNode();
+		collection.delete();
+		rootNode.delete();
+		for ( Item item : items )
+		{
+			item.getUnderlyingNode().delete();
+		}
+	}
+	
+    @Test
+    public void testForeignElements() throws Exception
+	{
+		SortedNodeCollection<Item> collection = createCollection();
+		List<Item> items = new ArrayList<Item>();
+		for ( int i = 0; i < 10; i++ )
+		{
+			items.add( createItem( i ) );
+		}
+		collection.addAll( items );
+		// the same node, wrapped by another class
+		OtherItem other = new OtherItem( items.get( 3 ).getUnderlyingNode() );
+		
+		assertFalse( collection.contains( "not an item" ) );
+		assertFalse( collection.contains( other ) );
+		assertFalse( collection.contains( null ) );
+		assertFalse( collection.remove( "not an item" ) );
+		assertFalse( collection.remove( other ) );
+		assertTrue( collection.contains( items.get( 3 ) ) );
+		
+		NavigableSet<Item> subSet = collection.subSet( items.get( 2 ), true, 
+			items.get( 6 ), true );
+		assertFalse( subSet.contains( other ) );
+		assertFalse( subSet.remove( other ) );
+		assertTrue( subSet.contains( items.get( 3 ) ) );
+		
+		assertTrue( collection.removeAll( Arrays.asList( "not an item", 
+			other, items.get( 4 ) ) ) );
+		assertFalse( collection.removeAll( Arrays.asList( other ) ) );
+		assertEquals( 9, collection.size() );
+		assertFalse( collection.contains( items.get( 4 ) ) );
+		assertTrue( collection.containsAll( Arrays.asList( items.get( 3 ), 
+			items.get( 5 ) ) ) );
+		assertFalse( collection.containsAll( Arrays.asList( items.get( 3 ), 
+			other ) ) );
+		delete( collection, items );
+	}
+	
+    @Test
+    public void testIterationAndSize() throws Exception
+	{
+		SortedNodeCollection<Item> collection = createCollection();
+		List<Item> items = new ArrayList<Item>();
+		for ( int i = 0; i < 100; i++ )
+		{
+			Item item = createItem( i * 37 % 100 );
+			items.add( item );
+			assertTrue( collection.add( item ) );
+		}
+		assertFalse( collection.add( items.get( 0 ) ) );
+		assertEquals( 100, collection.size() );
+		int expected = 0;
+		for ( Item item : collection )
+		{
+			assertEquals( expected++, item.getValue() );
+		}
+		assertEquals( 100, expected );
+		
+		// removing while iterating needs the items collected first
+		List<Item> odd = new ArrayList<Item>();
+		for ( Item item : collection )
+		{
+			if ( item.getValue() % 2 == 1 )
+			{
+				odd.add( item );
+			}
+		}
+		assertTrue( collection.removeAll( odd ) );
+		assertEquals( 50, collection.size() );
+		expected = 0;
+		for ( Item item : collection )
+		{
+			assertEquals( expected, item.getValue() );
+			expected += 2;
+		}
+		commitTx();
+		beginTx();
+		assertEquals( 50, collection.size() );
+		delete( collection, items );
+	}
+	
+	private static void assertSetEquals( NavigableSet<Item> expected, 
+		NavigableSet<Item> set )
+	{
+		assertEquals( new ArrayList<Item>( expected ), 
+			new ArrayList<Item>( set ) );
+		assertEquals( expected.size(), set.size() );
+		assertEquals( expected.isEmpty(), set.isEmpty() );
+		List<Item> descending = new ArrayList<Item>();
+		for ( Iterator<Item> iterator = set.descendingIterator(); 
+			iterator.hasNext(); )
+		{
+			descending.add( iterator.next() );
+		}
+		assertEquals( new ArrayList<Item>( expected.descendingSet() ), 
+			descending );
+	}
+	
+	private static void assertNavigationEquals( NavigableSet<Item> expected,
+		NavigableSet<Item> set, List<Item> probes )
+	{
+		assertSetEquals( expected, set );
+		for ( Item probe : probes )
+		{
+			assertEquals( expected.ceiling( probe ), set.ceiling( probe ) );
+			assertEquals( expected.floor( probe ), set.floor( probe ) );
+			assertEquals( expected.higher( probe ), set.higher( probe ) );
+			assertEquals( expected.lower( probe ), set.lower( probe ) );
+		}
+		if ( !expected.isEmpty() )
+		{
+			assertEquals( expected.first(), set.first() );
+			assertEquals( expected.last(), set.last() );
+		}
+	}
+	
+    @Test
+    public void testNavigation() throws Exception
+	{
+		SortedNodeCollection<Item> collection = createCollection();
+		TreeSet<Item> expected = new TreeSet<Item>( VALUE_ORDER );
+		List<Item> items = new ArrayList<Item>();
+		List<Item> probes = new ArrayList<Item>();
+		for ( int i = -1; i <= 100; i++ )
+		{
+			Item item = createItem( i );
+			items.add( item );
+			if ( i % 2 == 0 )
+			{
+				collection.add( item );
+				expected.add( item );
+			}
+			if ( i % 5 == 0 || i == -1 || i == 100 )
+			{
+				probes.add( item );
+			}
+		}
+		assertNavigationEquals( expected, collection, probes );
+		assertNavigationEquals( expected.descendingSet(), 
+			collection.descendingSet(), probes );
+		
+		Item from = items.get( 21 );
+		Item to = items.get( 71 );
+		for ( boolean fromInclusive : new boolean[] { true, false } )
+		{
+			for ( boolean toInclusive : new boolean[] { true, false } )
+			{
+				NavigableSet<Item> subSet = collection.subSet( from, 
+					fromInclusive, to, toInclusive );
+				assertNavigationEquals( expected.subSet( from, fromInclusive, 
+					to, toInclusive ), subSet, probes );
+				assertNavigationEquals( expected.subSet( from, fromInclusive, 
+					to, toInclusive ).descendingSet(), 
+					subSet.descendingSet(), probes );
+			}
+		}
+		assertNavigationEquals( expected.headSet( to, false ), 
+			collection.headSet( to, false ), probes );
+		assertNavigationEquals( expected.tailSet( from, true ), 
+			collection.tailSet( from, true ), probes );
+		assertNavigationEquals( expected.tailSet( from, true ).headSet( 
+			items.get( 41 ), true ), collection.tailSet( from, true ).headSet( 
+			items.get( 41 ), true ), probes );
+		delete( collection, items );
+	}
+	
+    @Test
+    public void testPollAndViewWrites() throws Exception
+	{
+		SortedNodeCollection<Item> collection = createCollection();
+		TreeSet<Item> expected = new TreeSet<Item>( VALUE_ORDER );
+		List<Item> items = new ArrayList<Item>();
+		for ( int i = 0; i < 30; i++ )
+		{
+			Item item = createItem( i );
+			items.add( item );
+			collection.add( item );
+			expected.add( item );
+		}
+		assertEquals( expected.pollFirst(), collection.pollFirst() );
+		assertEquals( expected.pollLast(), collection.pollLast() );
+		NavigableSet<Item> subSet = collection.subSet( items.get( 10 ), true,
+			items.get( 20 ), false );
+		NavigableSet<Item> expectedSubSet = expected.subSet( items.get( 10 ),
+			true, items.get( 20 ), false );
+		assertEquals( expectedSubSet.pollFirst(), subSet.pollFirst() );
+		assertEquals( expectedSubSet.pollLast(), subSet.pollLast() );
+		assertEquals( expectedSubSet.descendingSet().pollFirst(), 
+			subSet.descendingSet().pollFirst() );
+		assertSetEquals( expected, collection );
+		
+		// views write through to the collection, within their range
+		assertTrue( subSet.remove( items.get( 15 ) ) );
+		expected.remove( items.get( 15 ) );
+		assertFalse( subSet.remove( items.get( 25 ) ) );
+		assertTrue( subSet.add( items.get( 15 ) ) );
+		expected.add( items.get( 15 ) );
+		try
+		{
+			subSet.add( items.get( 25 ) );
+			fail( "Item out of range should be rejected" );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			// good
+		}
+		assertSetEquals( expected, collection );
+		assertSetEquals( expectedSubSet, subSet );
+		
+		while ( !expected.isEmpty() )
+		{
+			assertEquals( expected.pollFirst(), collection.pollFirst() );
+		}
+		assertNull( collection.pollFirst() );
+		assertNull( collection.pollLast() );
+		assertNull( collection.ceiling( items.get( 0 ) ) );
+		try
+		{
+			collection.first();
+			fail( "Empty collection has no first item" );
+		}
+		catch ( NoSuchElementException e )
+		{
+			// good
+		}
+		delete( collection, items );
+	}
+	
+    @Test
+    public void testEqualRange() throws Exception
+	{
+		SortedNodeCollection<Item> collection = createCollection();
+		List<Item> items = new ArrayList<Item>();
+		for ( int i = 0; i < 60; i++ )
+		{
+			items.add( createItem( i % 3 ) );
+		}
+		// added in reverse so that node id order differs from add order
+		for ( int i = items.size() - 1; i >= 0; i-- )
+		{
+			assertTrue( collection.add( items.get( i ) ) );
+		}
+		assertEquals( 60, collection.size() );
+		Item probe = createItem( 1 );
+		List<Item> expected = new ArrayList<Item>();
+		for ( Item item : items )
+		{
+			if ( item.getValue() == 1 )
+			{
+				expected.add( item );
+			}
+		}
+		NavigableSet<Item> equal = collection.equalRange( probe );
+		assertEquals( expected, new ArrayList<Item>( equal ) );
+		assertEquals( 20, equal.size() );
+		assertFalse( equal.contains( probe ) );
+		assertTrue( equal.contains( items.get( 1 ) ) );
+		assertFalse( equal.contains( items.get( 2 ) ) );
+		Item missing = createItem( 3 );
+		assertTrue( collection.equalRange( missing ).isEmpty() );
+		items.add( probe );
+		items.add( missing );
+		delete( collection, items );
+	}
+}
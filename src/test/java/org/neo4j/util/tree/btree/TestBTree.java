@@ -0,0 +1,269 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.Neo4jTest;
+
+public class TestBTree extends Neo4jTest
+{
+	static BTree createTree()
+	{
+		Node anchor = graphDb().createNode();
+		Node root = graphDb().createNode();
+		anchor.createRelationshipTo( root, BTree.RelTypes.TREE_ROOT );
+		return new BTree( graphDb(), root );
+	}
+	
+	private void assertTreeEquals( TreeMap<Long, Integer> expected, 
+		BTree tree )
+	{
+		new BTreeValidator( tree, null, true ).validate();
+		Iterator<Map.Entry<Long, Integer>> expectedEntries = 
+			expected.entrySet().iterator();
+		for ( KeyEntry entry : tree.entries() )
+		{
+			Map.Entry<Long, Integer> expectedEntry = expectedEntries.next();
+			assertEquals( (long) expectedEntry.getKey(), entry.getKey() );
+			assertEquals( expectedEntry.getValue(), entry.getValue() );
+		}
+		assertEquals( false, expectedEntries.hasNext() );
+	}
+	
+    @Test
+    public void testRandomAddAndRemove() throws Exception
+	{
+		BTree tree = createTree();
+		TreeMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+		Random random = new Random( 1234 );
+		for ( int batch = 0; batch < 20; batch++ )
+		{
+			// Add more than is removed the first half, then shrink again
+			int addPercentage = batch < 10 ? 70 : 30;
+			for ( int i = 0; i < 100; i++ )
+			{
+				long key = random.nextInt( 500 );
+				if ( random.nextInt( 100 ) < addPercentage )
+				{
+					int value = random.nextInt();
+					if ( !expected.containsKey( key ) )
+					{
+						tree.addEntry( key, value );
+					}
+					else
+					{
+						tree.getAsKeyEntry( key ).setValue( value );
+					}
+					expected.put( key, value );
+				}
+				else
+				{
+					assertEquals( expected.remove( key ), 
+						tree.removeEntry( key ) );
+				}
+			}
+			assertTreeEquals( expected, tree );
+			for ( int i = 0; i < 20; i++ )
+			{
+				long key = random.nextInt( 500 );
+				assertEquals( expected.get( key ), tree.getEntry( key ) );
+			}
+			commitTx();
+			beginTx();
+		}
+		
+		for ( Long key : expected.keySet().toArray( new Long[0] ) )
+		{
+			assertEquals( expected.remove( key ), tree.removeEntry( key ) );
+		}
+		assertTreeEquals( expected, tree );
+		assertNull( tree.getEntry( 1 ) );
+		tree.delete();
+	}
+	
+    @Test
+    public void testAscendingAndDescendingAdds() throws Exception
+	{
+		BTree tree = createTree();
+		TreeMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+		for ( int i = 0; i < 300; i++ )
+		{
+			// Keys from both ends, meeting in the middle
+			long key = i % 2 == 0 ? i : 1000 - i;
+			tree.addEntry( key, i );
+			expected.put( key, i );
+			if ( i % 50 == 0 )
+			{
+				assertTreeEquals( expected, tree );
+			}
+		}
+		assertTreeEquals( expected, tree );
+		for ( long key = 0; key < 1000; key += 3 )
+		{
+			assertEquals( expected.remove( key ), tree.removeEntry( key ) );
+		}
+		assertTreeEquals( expected, tree );
+		tree.delete();
+	}
+	
+    @Test
+    public void testScanIsNotBlockedByWriter() throws Exception
+	{
+		final BTree tree = createTree();
+		for ( long key = 0; key < 100; key++ )
+		{
+			tree.addEntry( key, key );
+		}
+		commitTx();
+		
+		// This transaction holds write locks on the tree until it commits
+		beginTx();
+		tree.addEntry( 1000, 1000L );
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<List<Long>> scan = executor.submit( 
+				new Callable<List<Long>>()
+			{
+				public List<Long> call()
+				{
+					List<Long> keys = new ArrayList<Long>();
+					for ( Map.Entry<Long, Object> entry : tree.scan( 7 ) )
+					{
+						keys.add( entry.getKey() );
+					}
+					return keys;
+				}
+			} );
+			List<Long> keys = scan.get( 10, TimeUnit.SECONDS );
+			assertEquals( 100, keys.size() );
+			for ( int i = 0; i < keys.size(); i++ )
+			{
+				assertEquals( (long) i, (long) keys.get( i ) );
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		tree.delete();
+	}
+	
+    @Test
+    public void testLookups() throws Exception
+	{
+		BTree tree = createTree();
+		TreeMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+		Random random = new Random( 9753 );
+		for ( int i = 0; i < 300; i++ )
+		{
+			long key = random.nextInt( 3000 ) * 2;
+			if ( !expected.containsKey( key ) )
+			{
+				tree.addEntry( key, i );
+				expected.put( key, i );
+			}
+		}
+		// Also below the lowest and above the highest key
+		for ( long key = -5; key < 6005; key++ )
+		{
+			assertEquals( expected.get( key ), tree.getEntry( key ) );
+			Map.Entry<Long, Integer> floor = expected.floorEntry( key );
+			assertEquals( floor != null ? floor.getValue() : null, 
+				tree.getClosestLowerEntry( key ) );
+			Map.Entry<Long, Integer> ceiling = expected.ceilingEntry( key );
+			assertEquals( ceiling != null ? ceiling.getValue() : null, 
+				tree.getClosestHigherEntry( key ) );
+			KeyEntry entry = tree.getAsKeyEntry( key );
+			if ( expected.containsKey( key ) )
+			{
+				assertEquals( key, entry.getKey() );
+				assertEquals( expected.get( key ), entry.getValue() );
+			}
+			else
+			{
+				assertNull( entry );
+			}
+		}
+		tree.delete();
+	}
+	
+    @Test
+    public void testScanWhileModifying() throws Exception
+	{
+		BTree tree = createTree();
+		// Even keys stay during the whole scan, odd keys come and go
+		for ( long key = 0; key < 1000; key += 2 )
+		{
+			tree.addEntry( key, key );
+		}
+		Random random = new Random( 7788 );
+		List<Long> scanned = new ArrayList<Long>();
+		for ( Map.Entry<Long, Object> entry : tree.scan( 5 ) )
+		{
+			scanned.add( entry.getKey() );
+			assertEquals( entry.getKey(), entry.getValue() );
+			// Splits and merges all over the tree in between batches
+			for ( int i = 0; i < 3; i++ )
+			{
+				long key = random.nextInt( 500 ) * 2 + 1;
+				if ( tree.getEntry( key ) == null )
+				{
+					tree.addEntry( key, key );
+				}
+				else
+				{
+					tree.removeEntry( key );
+				}
+			}
+		}
+		long previous = -1;
+		List<Long> evenKeys = new ArrayList<Long>();
+		for ( long key : scanned )
+		{
+			assertTrue( key > previous );
+			previous = key;
+			if ( key % 2 == 0 )
+			{
+				evenKeys.add( key );
+			}
+		}
+		assertEquals( 500, evenKeys.size() );
+		tree.validateTree();
+		tree.delete();
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.neo4j.util.Neo4jTest;
+
+public class TestBTreeCompactor extends Neo4jTest
+{
+	private BTree createSparseTree( TreeMap<Long, Long> expected )
+	{
+		BTree tree = TestBTree.createTree();
+		for ( long key = 0; key < 2000; key++ )
+		{
+			tree.addEntry( key, key );
+			expected.put( key, key );
+		}
+		// Removes most entries, but few enough per tree node that a lot of
+		// them stay half full
+		Random random = new Random( 1357 );
+		for ( long key = 0; key < 2000; key++ )
+		{
+			if ( random.nextInt( 10 ) < 4 )
+			{
+				tree.removeEntry( key );
+				expected.remove( key );
+			}
+		}
+		return tree;
+	}
+	
+	private void assertTreeEquals( TreeMap<Long, Long> expected, BTree tree )
+	{
+		tree.validateTree();
+		Iterator<Map.Entry<Long, Long>> expectedEntries = 
+			expected.entrySet().iterator();
+		for ( KeyEntry entry : tree.entries() )
+		{
+			Map.Entry<Long, Long> expectedEntry = expectedEntries.next();
+			assertEquals( (long) expectedEntry.getKey(), entry.getKey() );
+			assertEquals( expectedEntry.getValue(), entry.getValue() );
+		}
+		assertEquals( false, expectedEntries.hasNext() );
+	}
+	
+	private TreeStatistics statistics( BTree tree )
+	{
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			return tree.validateTree( executor );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+	
+    @Test
+    public void testCompactAll() throws Exception
+	{
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		BTree tree = createSparseTree( expected );
+		commitTx();
+		TreeStatistics before = statistics( tree );
+		
+		BTreeCompactor compactor = new BTreeCompactor( tree, 10 );
+		assertTrue( compactor.compactAll() );
+		
+		TreeStatistics after = statistics( tree );
+		assertTrue( after.getTreeNodeCount() < before.getTreeNodeCount() );
+		int leaves = after.getDepth() - 1;
+		assertTrue( after.getFillFactor( leaves ) > 
+			before.getFillFactor( leaves ) );
+		assertTrue( compactor.getCompactedCount() > 0 );
+		beginTx();
+		assertTreeEquals( expected, tree );
+		tree.delete();
+	}
+	
+    @Test
+    public void testCompactBetweenWrites() throws Exception
+	{
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		BTree tree = createSparseTree( expected );
+		commitTx();
+		
+		BTreeCompactor compactor = new BTreeCompactor( tree, 1 );
+		long key = 2000;
+		while ( compactor.compactBatch() )
+		{
+			beginTx();
+			tree.addEntry( key, key );
+			expected.put( key, key );
+			key++;
+			commitTx();
+		}
+		assertTrue( key > 2000 );
+		beginTx();
+		assertTreeEquals( expected, tree );
+		tree.delete();
+	}
+	
+    @Test
+    public void testCompactInBackground() throws Exception
+	{
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		BTree tree = createSparseTree( expected );
+		commitTx();
+		
+		BTreeCompactor compactor = new BTreeCompactor( tree, 1 );
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			executor.submit( compactor ).get( 60, TimeUnit.SECONDS );
+			assertTrue( compactor.getCompactedCount() > 0 );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		beginTx();
+		assertTreeEquals( expected, tree );
+		tree.delete();
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.Neo4jTest;
+
+public class TestBTreeDeleter extends Neo4jTest
+{
+	private static List<Node> treeNodes( Node anchor )
+	{
+		List<Node> result = new ArrayList<Node>();
+		Relationship rootRel = anchor.getSingleRelationship( 
+			BTree.RelTypes.TREE_ROOT, Direction.OUTGOING );
+		collectTreeNodes( rootRel.getEndNode(), result );
+		return result;
+	}
+	
+	private static void collectTreeNodes( Node node, List<Node> result )
+	{
+		if ( result.contains( node ) )
+		{
+			return;
+		}
+		result.add( node );
+		for ( Relationship rel : node.getRelationships( Direction.OUTGOING ) )
+		{
+			collectTreeNodes( rel.getEndNode(), result );
+		}
+	}
+	
+	private static void assertDeleted( List<Node> nodes )
+	{
+		for ( Node node : nodes )
+		{
+			try
+			{
+				graphDb().getNodeById( node.getId() );
+				fail( node + " should have been deleted" );
+			}
+			catch ( NotFoundException e )
+			{
+				// Good
+			}
+		}
+	}
+	
+    @Test
+    public void testDeleteInBatches() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		Node anchor = tree.getAnchorNode();
+		for ( long key = 0; key < 500; key++ )
+		{
+			tree.addEntry( key, key );
+		}
+		List<Node> treeNodes = treeNodes( anchor );
+		commitTx();
+		
+		tree.deleteInBatches( 10 );
+		
+		beginTx();
+		assertFalse( anchor.hasRelationship() );
+		assertFalse( BTreeDeleter.isDeleteInProgress( anchor ) );
+		assertDeleted( treeNodes );
+		anchor.delete();
+	}
+	
+    @Test
+    public void testStopAndResume() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		Node anchor = tree.getAnchorNode();
+		for ( long key = 0; key < 500; key++ )
+		{
+			tree.addEntry( key, key );
+		}
+		List<Node> treeNodes = treeNodes( anchor );
+		commitTx();
+		
+		final BTreeDeleter[] stoppable = new BTreeDeleter[1];
+		BTreeDeleter deleter = new BTreeDeleter( graphDb(), anchor, 5,
+			new BTreeDeleter.EntryHandler()
+		{
+			private int entries;
+			
+			public int entryDeleted( Relationship entry )
+			{
+				// Stops after some entries, in the middle of a batch
+				if ( ++entries == 100 )
+				{
+					stoppable[0].stop();
+				}
+				return 0;
+			}
+		} );
+		stoppable[0] = deleter;
+		assertFalse( deleter.deleteAll() );
+		assertTrue( BTreeDeleter.isDeleteInProgress( anchor ) );
+		assertTrue( deleter.getDeletedCount() >= 100 );
+		assertTrue( anchor.hasRelationship( BTree.RelTypes.TREE_ROOT, 
+			Direction.OUTGOING ) );
+		
+		BTreeDeleter resumed = new BTreeDeleter( graphDb(), anchor, 50 );
+		assertTrue( resumed.deleteAll() );
+		assertFalse( BTreeDeleter.isDeleteInProgress( anchor ) );
+		// Each tree node has one incoming relationship
+		assertEquals( treeNodes.size() * 2, 
+			deleter.getDeletedCount() + resumed.getDeletedCount() );
+		
+		beginTx();
+		assertFalse( anchor.hasRelationship() );
+		assertDeleted( treeNodes );
+		anchor.delete();
+	}
+	
+    @Test
+    public void testDeprecatedDeleteCommitsCallerTransaction() 
+		throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		Node anchor = tree.getAnchorNode();
+		for ( long key = 0; key < 100; key++ )
+		{
+			tree.addEntry( key, key );
+		}
+		List<Node> treeNodes = treeNodes( anchor );
+		commitTx();
+		
+		Transaction tx = graphDb().beginTx();
+		tree.delete( 10 );
+		assertFalse( anchor.hasRelationship() );
+		tx.failure();
+		tx.finish();
+		
+		// Only the last batch is rolled back with the transaction of the 
+		// caller, the others were committed on the way
+		assertTrue( BTreeDeleter.isDeleteInProgress( anchor ) );
+		assertTrue( anchor.hasRelationship( BTree.RelTypes.TREE_ROOT, 
+			Direction.OUTGOING ) );
+		assertTrue( treeNodes( anchor ).size() < treeNodes.size() );
+		assertTrue( new BTreeDeleter( graphDb(), anchor, 10 ).deleteAll() );
+		
+		beginTx();
+		assertFalse( anchor.hasRelationship() );
+		assertDeleted( treeNodes );
+		anchor.delete();
+	}
+	
+    @Test
+    public void testDeleteMapInBatches() throws Exception
+	{
+		Node node = graphDb().createNode();
+		BTreeMap<Object, Integer> map = new BTreeMap<Object, Integer>( 
+			"deleted", node, graphDb() );
+		for ( int i = 0; i < 200; i++ )
+		{
+			map.put( i, i );
+			// Long and int keys collide and go into bucket nodes
+			map.put( (long) i, i );
+		}
+		List<Node> nodes = treeNodes( node );
+		commitTx();
+		
+		map.deleteInBatches( 20 );
+		
+		beginTx();
+		nodes.add( node );
+		assertDeleted( nodes );
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.neo4j.util.Neo4jTest;
+
+public class TestBTreeExporter extends Neo4jTest
+{
+	private static Object valueOf( long key )
+	{
+		switch ( (int) ( key % 4 ) )
+		{
+		case 0: return (int) key;
+		case 1: return "value" + key;
+		case 2: return new long[] { key, -key };
+		default: return new String[] { "a" + key, "b" };
+		}
+	}
+	
+	private static void assertValueEquals( Object expected, Object value )
+	{
+		if ( expected instanceof long[] )
+		{
+			assertArrayEquals( (long[]) expected, (long[]) value );
+		}
+		else if ( expected instanceof String[] )
+		{
+			assertArrayEquals( (String[]) expected, (String[]) value );
+		}
+		else
+		{
+			assertEquals( expected, value );
+		}
+	}
+	
+	private static void assertTreeEquals( TreeMap<Long, Object> expected, 
+		BTree tree )
+	{
+		tree.validateTree();
+		Iterator<Map.Entry<Long, Object>> expectedEntries = 
+			expected.entrySet().iterator();
+		for ( KeyEntry entry : tree.entries() )
+		{
+			Map.Entry<Long, Object> expectedEntry = expectedEntries.next();
+			assertEquals( (long) expectedEntry.getKey(), entry.getKey() );
+			assertValueEquals( expectedEntry.getValue(), entry.getValue() );
+		}
+		assertEquals( false, expectedEntries.hasNext() );
+	}
+	
+	private static File tempFile() throws Exception
+	{
+		File file = File.createTempFile( "btree", ".export" );
+		file.deleteOnExit();
+		return file;
+	}
+	
+    @Test
+    public void testImportIntoEmptyTree() throws Exception
+	{
+		BTree source = TestBTree.createTree();
+		TreeMap<Long, Object> expected = new TreeMap<Long, Object>();
+		for ( long i = 0; i < 1000; i++ )
+		{
+			long key = i * 7 % 1000 - 300;
+			source.addEntry( key, valueOf( key ) );
+			expected.put( key, valueOf( key ) );
+		}
+		BTree target = TestBTree.createTree();
+		target.enableOrderStatistics();
+		commitTx();
+		
+		File file = tempFile();
+		assertEquals( 1000, BTreeExporter.exportTree( source, file ) );
+		assertEquals( 1000, BTreeExporter.importTree( file, target, 100 ) );
+		
+		beginTx();
+		assertTreeEquals( expected, target );
+		assertEquals( 1000, target.size() );
+		assertEquals( 300, target.rank( 0 ) );
+		source.delete();
+		target.delete();
+	}
+	
+    @Test
+    public void testImportIntoTreeWithEntries() throws Exception
+	{
+		BTree source = TestBTree.createTree();
+		BTree target = TestBTree.createTree();
+		TreeMap<Long, Object> expected = new TreeMap<Long, Object>();
+		for ( long key = 0; key < 300; key++ )
+		{
+			source.addEntry( key * 2, valueOf( key * 2 ) );
+			expected.put( key * 2, valueOf( key * 2 ) );
+			// every other one of these is replaced by the import
+			target.addEntry( key * 3, "old" );
+			if ( !expected.containsKey( key * 3 ) )
+			{
+				expected.put( key * 3, "old" );
+			}
+		}
+		commitTx();
+		
+		File file = tempFile();
+		BTreeExporter.exportTree( source, file );
+		assertEquals( 300, BTreeExporter.importTree( file, target, 7 ) );
+		
+		beginTx();
+		assertTreeEquals( expected, target );
+		source.delete();
+		target.delete();
+	}
+	
+    @Test
+    public void testImportMap() throws Exception
+	{
+		BTreeMap<Object, Object> source = new BTreeMap<Object, Object>( 
+			"source", graphDb().createNode(), graphDb() );
+		Map<Object, Object> expected = new HashMap<Object, Object>();
+		for ( int i = 0; i < 200; i++ )
+		{
+			expected.put( "key" + i, i );
+		}
+		// colliding keys, see TestBTreeMap
+		expected.put( 7L, "long" );
+		expected.put( 7, "int" );
+		source.putAll( expected );
+		BTreeMap<Object, Object> target = new BTreeMap<Object, Object>( 
+			"target", graphDb().createNode(), graphDb() );
+		commitTx();
+		
+		File file = tempFile();
+		assertEquals( 202, BTreeExporter.exportMap( source, file ) );
+		assertEquals( 202, BTreeExporter.importMap( file, target, 50 ) );
+		
+		beginTx();
+		TestBTreeMap.assertMapEquals( expected, target );
+		source.delete();
+		target.delete();
+	}
+	
+    @Test
+    public void testInvalidCommitInterval() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		tree.addEntry( 1, "one" );
+		BTreeMap<String, String> map = new BTreeMap<String, String>( 
+			"interval", graphDb().createNode(), graphDb() );
+		commitTx();
+		
+		File file = tempFile();
+		BTreeExporter.exportTree( tree, file );
+		try
+		{
+			BTreeExporter.importTree( file, tree, 0 );
+			fail( "Commit interval 0 should be rejected" );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			// good
+		}
+		try
+		{
+			BTreeExporter.importMap( file, map, 0 );
+			fail( "Commit interval 0 should be rejected" );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			// good
+		}
+		
+		beginTx();
+		assertEquals( "one", tree.getEntry( 1 ) );
+		tree.delete();
+		map.delete();
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.NotInTransactionException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.Neo4jTest;
+
+public class TestBTreeMap extends Neo4jTest
+{
+	static void assertMapEquals( Map<?, ?> expected, BTreeMap<?, ?> map )
+	{
+		map.validate();
+		assertEquals( expected.size(), map.size() );
+		assertEquals( expected.isEmpty(), map.isEmpty() );
+		assertEquals( expected, new HashMap<Object, Object>( map ) );
+		assertEquals( expected.keySet(), new HashSet<Object>( map.keySet() ) );
+		assertEquals( expected.size(), map.values().size() );
+		for ( Map.Entry<?, ?> entry : expected.entrySet() )
+		{
+			assertTrue( map.containsKey( entry.getKey() ) );
+			assertEquals( entry.getValue(), map.get( entry.getKey() ) );
+		}
+	}
+	
+    @Test
+    public void testMapSemantics() throws Exception
+	{
+		BTreeMap<String, Integer> map = new BTreeMap<String, Integer>( 
+			"semantics", graphDb().createNode(), graphDb() );
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		assertMapEquals( expected, map );
+		
+		Random random = new Random( 5678 );
+		for ( int batch = 0; batch < 10; batch++ )
+		{
+			for ( int i = 0; i < 50; i++ )
+			{
+				String key = "key" + random.nextInt( 200 );
+				if ( random.nextInt( 3 ) > 0 )
+				{
+					int value = random.nextInt( 1000 );
+					assertEquals( expected.put( key, value ), 
+						map.put( key, value ) );
+				}
+				else
+				{
+					assertEquals( expected.remove( key ), map.remove( key ) );
+				}
+			}
+			assertMapEquals( expected, map );
+		}
+		
+		assertFalse( map.containsKey( "missing" ) );
+		assertNull( map.get( "missing" ) );
+		Integer someValue = expected.values().iterator().next();
+		assertTrue( map.containsValue( someValue ) );
+		assertFalse( map.containsValue( -1 ) );
+		
+		Map<String, Integer> more = new HashMap<String, Integer>();
+		for ( int i = 0; i < 30; i++ )
+		{
+			more.put( "more" + i, i );
+		}
+		map.putAll( more );
+		expected.putAll( more );
+		assertMapEquals( expected, map );
+		
+		map.clear();
+		expected.clear();
+		assertMapEquals( expected, map );
+		map.put( "after clear", 1 );
+		expected.put( "after clear", 1 );
+		assertMapEquals( expected, map );
+		map.delete();
+	}
+	
+    @Test
+    public void testSizeOfMapWithoutStoredSize() throws Exception
+	{
+		Node node = graphDb().createNode();
+		BTreeMap<Integer, Integer> map = new BTreeMap<Integer, Integer>( 
+			"legacy", node, graphDb() );
+		for ( int i = 0; i < 20; i++ )
+		{
+			map.put( i, i );
+		}
+		// Like a map created before the size was stored
+		node.removeProperty( "map_size" );
+		
+		map = new BTreeMap<Integer, Integer>( null, node, graphDb() );
+		assertFalse( node.hasProperty( "map_size" ) );
+		assertEquals( 20, map.size() );
+		map.put( 20, 20 );
+		assertEquals( 21L, node.getProperty( "map_size" ) );
+		assertEquals( 21, map.size() );
+		map.remove( 0 );
+		assertEquals( 20, map.size() );
+		map.delete();
+	}
+	
+    @Test
+    public void testCallerTransactionMode() throws Exception
+	{
+		Node node = graphDb().createNode();
+		BTreeMap<Integer, String> map = new BTreeMap<Integer, String>( 
+			"caller", node, graphDb(), 
+			BTreeMap.TransactionMode.CALLER );
+		for ( int i = 0; i < 10; i++ )
+		{
+			map.put( i, "value" + i );
+		}
+		commitTx();
+		
+		// Rolling back the transaction of the caller rolls back the map
+		Transaction tx = graphDb().beginTx();
+		map.put( 100, "rolled back" );
+		assertEquals( 3, map.removeAll( Arrays.asList( 1, 2, 3, 1000 ) ) );
+		tx.failure();
+		tx.finish();
+		assertEquals( 10, map.size() );
+		assertNull( map.get( 100 ) );
+		assertEquals( "value1", map.get( 1 ) );
+		
+		try
+		{
+			map.put( 200, "no transaction" );
+			fail( "Should need the transaction of the caller" );
+		}
+		catch ( NotInTransactionException e )
+		{
+			// Good
+		}
+		
+		beginTx();
+		assertEquals( 3, map.removeAll( Arrays.asList( 1, 2, 3, 1000 ) ) );
+		Map<Integer, String> found = map.getAll( Arrays.asList( 0, 1, 4, 
+			1000 ) );
+		assertEquals( 2, found.size() );
+		assertEquals( "value0", found.get( 0 ) );
+		assertEquals( "value4", found.get( 4 ) );
+		assertEquals( 7, map.size() );
+		map.delete();
+	}
+	
+    @Test
+    public void testCollisionsAndMinValueKey() throws Exception
+	{
+		BTreeMap<Object, String> map = new BTreeMap<Object, String>( 
+			"collisions", graphDb().createNode(), graphDb() );
+		Map<Object, String> expected = new HashMap<Object, String>();
+		// A real key which the older format uses as bucket marker
+		expected.put( Long.MIN_VALUE, "min" );
+		// Equal numbers of different types get the same 64-bit hash and
+		// since the types differ they go into a bucket node
+		expected.put( 7L, "long" );
+		expected.put( 7, "int" );
+		expected.put( (short) 7, "short" );
+		expected.put( (byte) 7, "byte" );
+		for ( Map.Entry<Object, String> entry : expected.entrySet() )
+		{
+			assertNull( map.put( entry.getKey(), entry.getValue() ) );
+		}
+		assertMapEquals( expected, map );
+		assertEquals( "min", map.put( Long.MIN_VALUE, "new min" ) );
+		expected.put( Long.MIN_VALUE, "new min" );
+		assertEquals( "int", map.put( 7, "new int" ) );
+		expected.put( 7, "new int" );
+		assertMapEquals( expected, map );
+		
+		assertEquals( "short", map.remove( (short) 7 ) );
+		expected.remove( (short) 7 );
+		assertEquals( "new min", map.remove( Long.MIN_VALUE ) );
+		expected.remove( Long.MIN_VALUE );
+		assertNull( map.remove( Long.MIN_VALUE ) );
+		assertMapEquals( expected, map );
+		map.delete();
+	}
+	
+    @Test
+    public void testBloomFilterIsSharedByInstances() throws Exception
+	{
+		Node node = graphDb().createNode();
+		BTreeMap<String, Integer> map = new BTreeMap<String, Integer>( 
+			"bloom", node, graphDb() );
+		// created before the filter is enabled
+		BTreeMap<String, Integer> other = new BTreeMap<String, Integer>( 
+			null, node, graphDb() );
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		for ( int i = 0; i < 50; i++ )
+		{
+			map.put( "key" + i, i );
+			expected.put( "key" + i, i );
+		}
+		map.enableBloomFilter( 200, 0.01 );
+		for ( int i = 50; i < 100; i++ )
+		{
+			other.put( "key" + i, i );
+			expected.put( "key" + i, i );
+		}
+		assertMapEquals( expected, map );
+		assertMapEquals( expected, other );
+		for ( String key : node.getPropertyKeys() )
+		{
+			assertFalse( key, key.startsWith( "bloom_filter" ) );
+		}
+		
+		// enough removals to rebuild the filter
+		for ( int i = 0; i < 80; i++ )
+		{
+			assertEquals( (Integer) i, other.remove( "key" + i ) );
+			expected.remove( "key" + i );
+		}
+		assertMapEquals( expected, map );
+		map.clear();
+		assertNull( other.get( "key90" ) );
+		other.put( "key90", 90 );
+		assertEquals( (Integer) 90, map.get( "key90" ) );
+		
+		Node filterNode = node.getSingleRelationship( 
+			DynamicRelationshipType.withName( "BLOOM_FILTER" ), 
+			Direction.OUTGOING ).getEndNode();
+		map.delete();
+		commitTx();
+		beginTx();
+		try
+		{
+			graphDb().getNodeById( filterNode.getId() );
+			fail( "The filter should have been deleted with the map" );
+		}
+		catch ( NotFoundException e )
+		{
+			// good
+		}
+	}
+	
+    @Test
+    public void testBloomFilterEnabledDuringWrite() throws Exception
+	{
+		final BTreeMap<String, Integer> map = new BTreeMap<String, Integer>( 
+			"bloom write", graphDb().createNode(), graphDb() );
+		commitTx();
+		Transaction tx = graphDb().beginTx();
+		map.put( "written", 1 );
+		Thread enabler = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				map.enableBloomFilter( 100, 0.01 );
+			}
+		};
+		enabler.start();
+		// the filter can't be filled until the write is committed
+		enabler.join( 200 );
+		assertTrue( enabler.isAlive() );
+		tx.success();
+		tx.finish();
+		enabler.join();
+		assertEquals( (Integer) 1, map.get( "written" ) );
+		beginTx();
+		map.delete();
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.util.Neo4jTest;
+
+public class TestBTreeValidator extends Neo4jTest
+{
+    @Test
+    public void testStatistics() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		for ( long key = 0; key < 1000; key++ )
+		{
+			tree.addEntry( key * 7 % 1000, key );
+		}
+		commitTx();
+		
+		ExecutorService executor = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			TreeStatistics statistics = tree.validateTree( executor );
+			assertEquals( 1000, statistics.getEntryCount() );
+			assertEquals( 1, statistics.getTreeNodeCount( 0 ) );
+			assertTrue( statistics.getDepth() >= 3 );
+			long treeNodes = 0;
+			for ( int level = 0; level < statistics.getDepth(); level++ )
+			{
+				treeNodes += statistics.getTreeNodeCount( level );
+			}
+			assertEquals( treeNodes, statistics.getTreeNodeCount() );
+			double leafFill = statistics.getFillFactor( 
+				statistics.getDepth() - 1 );
+			assertTrue( leafFill >= 0.5 && leafFill <= 1.0 );
+			assertEquals( new BTreeValidator( tree ).validate().toString(), 
+				statistics.toString() );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		beginTx();
+		tree.delete();
+	}
+	
+    @Test
+    public void testTooFewEntries() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		// Ascending keys leave the leftmost leaf with order / 2 entries
+		for ( long key = 0; key < 100; key++ )
+		{
+			tree.addEntry( key, key );
+		}
+		tree.validateTree();
+		Node leaf = tree.getRoot().getUnderlyingNode();
+		while ( leaf.hasRelationship( BTree.RelTypes.SUB_TREE, 
+			Direction.OUTGOING ) )
+		{
+			leaf = leaf.getSingleRelationship( BTree.RelTypes.SUB_TREE, 
+				Direction.OUTGOING ).getEndNode();
+		}
+		List<Relationship> entries = new ArrayList<Relationship>();
+		for ( Relationship entry = leaf.getSingleRelationship( 
+			BTree.RelTypes.KEY_ENTRY, Direction.OUTGOING ); entry != null; 
+			entry = entry.getEndNode().getSingleRelationship( 
+			BTree.RelTypes.KEY_ENTRY, Direction.OUTGOING ) )
+		{
+			entries.add( entry );
+		}
+		assertEquals( tree.getOrder() / 2, entries.size() );
+		
+		// Unlinks the last entry of the leaf
+		Relationship last = entries.get( entries.size() - 1 );
+		Node lastNode = last.getEndNode();
+		last.delete();
+		lastNode.delete();
+		tree.validateTree();
+		try
+		{
+			new BTreeValidator( tree, null, true ).validate();
+			fail( "Should have too few entries" );
+		}
+		catch ( RuntimeException e )
+		{
+			assertEquals( "Too few entries", e.getMessage() );
+		}
+	}
+	
+    @Test
+    public void testEntryOutOfOrder() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		for ( long key = 0; key < 100; key++ )
+		{
+			tree.addEntry( key, key );
+		}
+		tree.getAsKeyEntry( 50 ).getUnderlyingRelationship().setProperty( 
+			KeyEntry.KEY, 500L );
+		try
+		{
+			tree.validateTree();
+			fail( "Should find the misplaced key" );
+		}
+		catch ( RuntimeException e )
+		{
+			// Good
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.Neo4jTest;
+
+public class TestBufferedBTree extends Neo4jTest
+{
+	private static void assertEntries( Map<Long, Object> expected, 
+		Iterable<Map.Entry<Long, Object>> entries )
+	{
+		Iterator<Map.Entry<Long, Object>> expectedEntries = 
+			expected.entrySet().iterator();
+		for ( Map.Entry<Long, Object> entry : entries )
+		{
+			assertEquals( expectedEntries.next(), entry );
+		}
+		assertEquals( false, expectedEntries.hasNext() );
+	}
+	
+    @Test
+    public void testReadsMergeBufferAndTree() throws Exception
+	{
+		BufferedBTree buffered = new BufferedBTree( TestBTree.createTree(), 
+			50 );
+		TreeMap<Long, Object> expected = new TreeMap<Long, Object>();
+		Random random = new Random( 1122 );
+		for ( int i = 0; i < 500; i++ )
+		{
+			long key = random.nextInt( 300 );
+			if ( random.nextInt( 4 ) > 0 )
+			{
+				buffered.setEntry( key, i );
+				expected.put( key, i );
+			}
+			else
+			{
+				buffered.removeEntry( key );
+				expected.remove( key );
+			}
+		}
+		// Some writes are still only in the buffer
+		assertEquals( true, buffered.getBufferSize() > 0 );
+		for ( long key = 0; key < 300; key++ )
+		{
+			assertEquals( expected.get( key ), buffered.getEntry( key ) );
+		}
+		assertEntries( expected, buffered.entries() );
+		assertEntries( expected.subMap( 100L, 200L ), 
+			buffered.range( 100, 200 ) );
+		List<Object> values = new ArrayList<Object>();
+		for ( Object value : buffered.values() )
+		{
+			values.add( value );
+		}
+		assertEquals( new ArrayList<Object>( expected.values() ), values );
+		
+		buffered.flush();
+		assertEquals( 0, buffered.getBufferSize() );
+		assertEntries( expected, buffered.entries() );
+		new BTreeValidator( buffered.getBTree(), null, true ).validate();
+		buffered.getBTree().delete();
+	}
+	
+    @Test
+    public void testSortedFlushesMatchTree() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		BufferedBTree buffered = new BufferedBTree( tree, 200 );
+		TreeMap<Long, Object> expected = new TreeMap<Long, Object>();
+		Random random = new Random( 3344 );
+		for ( int i = 0; i < 3000; i++ )
+		{
+			// Dense runs of keys which end up in the same leaves, updates
+			// of existing keys and removals which empty out leaves
+			long key = random.nextInt( 1000 );
+			if ( random.nextInt( 3 ) > 0 )
+			{
+				buffered.setEntry( key, i );
+				expected.put( key, i );
+			}
+			else
+			{
+				buffered.removeEntry( key );
+				expected.remove( key );
+			}
+		}
+		buffered.flush();
+		new BTreeValidator( tree, null, true ).validate();
+		Iterator<Map.Entry<Long, Object>> expectedEntries = 
+			expected.entrySet().iterator();
+		for ( KeyEntry entry : tree.entries() )
+		{
+			Map.Entry<Long, Object> expectedEntry = expectedEntries.next();
+			assertEquals( (long) expectedEntry.getKey(), entry.getKey() );
+			assertEquals( expectedEntry.getValue(), entry.getValue() );
+		}
+		assertEquals( false, expectedEntries.hasNext() );
+		tree.delete();
+	}
+	
+    @Test
+    public void testRolledBackFlushIsBufferedAgain() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		tree.addEntry( 1, "committed" );
+		commitTx();
+		BufferedBTree buffered = new BufferedBTree( tree, 1000 );
+		
+		Transaction tx = graphDb().beginTx();
+		for ( long key = 2; key < 100; key++ )
+		{
+			buffered.setEntry( key, "value" + key );
+		}
+		buffered.removeEntry( 1 );
+		buffered.flush();
+		assertEquals( 0, buffered.getBufferSize() );
+		assertEquals( 99, buffered.getPendingSize() );
+		// Written after the flush, so it wins over the rolled back write
+		buffered.setEntry( 50, "newer" );
+		tx.failure();
+		tx.finish();
+		
+		// The tree is rolled back, but the writes are buffered again
+		assertEquals( "committed", tree.getEntry( 1 ) );
+		assertNull( tree.getEntry( 50 ) );
+		assertNull( buffered.getEntry( 1 ) );
+		assertEquals( "newer", buffered.getEntry( 50 ) );
+		assertEquals( "value51", buffered.getEntry( 51 ) );
+		assertEquals( 0, buffered.getPendingSize() );
+		assertEquals( 99, buffered.getBufferSize() );
+		
+		tx = graphDb().beginTx();
+		buffered.setEntry( 100, "value100" );
+		buffered.flush();
+		tx.success();
+		tx.finish();
+		
+		assertEquals( 0, buffered.getPendingSize() );
+		assertEquals( 0, buffered.getBufferSize() );
+		assertNull( tree.getEntry( 1 ) );
+		assertEquals( "newer", tree.getEntry( 50 ) );
+		assertEquals( "value51", tree.getEntry( 51 ) );
+		assertEquals( "value100", tree.getEntry( 100 ) );
+		beginTx();
+		tree.validateTree();
+		tree.delete();
+	}
+	
+    @Test
+    public void testCommitForgetsFlushedWrites() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		commitTx();
+		BufferedBTree buffered = new BufferedBTree( tree, 10 );
+		
+		Transaction tx = graphDb().beginTx();
+		for ( long key = 0; key < 25; key++ )
+		{
+			buffered.setEntry( key, key );
+		}
+		// Two flushes when the buffer got full, kept until the commit
+		assertEquals( 20, buffered.getPendingSize() );
+		assertEquals( 5, buffered.getBufferSize() );
+		buffered.flush();
+		tx.success();
+		tx.finish();
+		
+		assertEquals( 0, buffered.getPendingSize() );
+		for ( long key = 0; key < 25; key++ )
+		{
+			assertEquals( key, tree.getEntry( key ) );
+		}
+		beginTx();
+		tree.delete();
+	}
+}
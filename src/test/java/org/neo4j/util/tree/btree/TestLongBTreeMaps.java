@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.Neo4jTest;
+
+public class TestLongBTreeMaps extends Neo4jTest
+{
+    @Test
+    public void testLongLongMap() throws Exception
+	{
+		Node node = graphDb().createNode();
+		LongLongBTreeMap map = new LongLongBTreeMap( "longs", node, 
+			graphDb() );
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random( 2468 );
+		for ( int batch = 0; batch < 10; batch++ )
+		{
+			for ( int i = 0; i < 50; i++ )
+			{
+				long key = random.nextInt( 200 ) - 100;
+				int operation = random.nextInt( 3 );
+				if ( operation == 0 )
+				{
+					long value = random.nextLong();
+					assertEquals( !expected.containsKey( key ), 
+						map.put( key, value ) );
+					expected.put( key, value );
+				}
+				else if ( operation == 1 )
+				{
+					long value = expected.containsKey( key ) ? 
+						expected.get( key ) + 3 : 3;
+					assertEquals( value, map.increment( key, 3 ) );
+					expected.put( key, value );
+				}
+				else
+				{
+					assertEquals( expected.remove( key ) != null, 
+						map.remove( key ) );
+				}
+			}
+			assertMapEquals( expected, map );
+		}
+		
+		// The extremes of the key space are ordinary keys
+		map.put( Long.MIN_VALUE, 1 );
+		map.put( Long.MAX_VALUE, 2 );
+		expected.put( Long.MIN_VALUE, 1L );
+		expected.put( Long.MAX_VALUE, 2L );
+		assertMapEquals( expected, map );
+		
+		map = new LongLongBTreeMap( null, node, graphDb() );
+		assertEquals( "longs", map.getName() );
+		assertMapEquals( expected, map );
+		
+		map.clear();
+		expected.clear();
+		assertMapEquals( expected, map );
+		assertTrue( map.isEmpty() );
+		map.delete();
+	}
+	
+	private void assertMapEquals( Map<Long, Long> expected, 
+		LongLongBTreeMap map )
+	{
+		map.getBTree().validateTree();
+		assertEquals( expected.size(), map.size() );
+		for ( long key = -100; key < 100; key++ )
+		{
+			assertEquals( expected.containsKey( key ), map.containsKey( key ) );
+		}
+		for ( Map.Entry<Long, Long> entry : expected.entrySet() )
+		{
+			assertEquals( (long) entry.getValue(), 
+				map.get( entry.getKey(), -1 ) );
+		}
+	}
+	
+    @Test
+    public void testLongObjectMap() throws Exception
+	{
+		LongObjectBTreeMap<String> map = new LongObjectBTreeMap<String>( 
+			"objects", graphDb().createNode(), graphDb() );
+		for ( long key = 0; key < 100; key++ )
+		{
+			assertNull( map.put( key, "value" + key ) );
+		}
+		assertEquals( "value10", map.put( 10, "ten" ) );
+		assertEquals( "ten", map.get( 10 ) );
+		assertEquals( "value11", map.remove( 11 ) );
+		assertNull( map.remove( 11 ) );
+		assertNull( map.get( 11 ) );
+		assertFalse( map.containsKey( 11 ) );
+		assertEquals( 99, map.size() );
+		map.getBTree().validateTree();
+		try
+		{
+			map.put( 12, null );
+			fail( "Null values aren't allowed" );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			// Good
+		}
+		assertEquals( "value12", map.get( 12 ) );
+		map.delete();
+	}
+}
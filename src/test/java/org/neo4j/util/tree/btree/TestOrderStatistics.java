@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.neo4j.util.Neo4jTest;
+
+public class TestOrderStatistics extends Neo4jTest
+{
+	private static void assertOrderStatistics( TreeSet<Long> expected, 
+		BTree tree )
+	{
+		tree.validateTree();
+		assertEquals( expected.size(), tree.size() );
+		List<Long> keys = new ArrayList<Long>( expected );
+		for ( int i = 0; i < keys.size(); i++ )
+		{
+			assertEquals( (long) keys.get( i ), tree.select( i ).getKey() );
+			assertEquals( i, tree.rank( keys.get( i ) ) );
+		}
+		assertNull( tree.select( keys.size() ) );
+		for ( long key = -1; key < 1001; key += 7 )
+		{
+			assertEquals( expected.headSet( key ).size(), tree.rank( key ) );
+			assertEquals( expected.subSet( key, key + 50 ).size(), 
+				tree.count( key, key + 50 ) );
+		}
+		assertEquals( 0, tree.count( 500, 400 ) );
+	}
+	
+    @Test
+    public void testRankSelectAndCount() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		Random random = new Random( 3344 );
+		// Entries added before the statistics are enabled are counted then
+		for ( int i = 0; i < 200; i++ )
+		{
+			long key = random.nextInt( 1000 );
+			if ( expected.add( key ) )
+			{
+				tree.addEntry( key, key );
+			}
+		}
+		assertFalse( tree.hasOrderStatistics() );
+		try
+		{
+			tree.rank( 1 );
+			fail( "Order statistics not enabled yet" );
+		}
+		catch ( IllegalStateException e )
+		{
+			// Good
+		}
+		tree.enableOrderStatistics();
+		assertTrue( tree.hasOrderStatistics() );
+		assertOrderStatistics( expected, tree );
+		
+		// Counts are kept up to date through splits and merges
+		for ( int batch = 0; batch < 5; batch++ )
+		{
+			for ( int i = 0; i < 100; i++ )
+			{
+				long key = random.nextInt( 1000 );
+				if ( random.nextBoolean() )
+				{
+					if ( expected.add( key ) )
+					{
+						tree.addEntry( key, key );
+					}
+				}
+				else if ( expected.remove( key ) )
+				{
+					tree.removeEntry( key );
+				}
+			}
+			assertOrderStatistics( expected, tree );
+		}
+		
+		// Reopening the tree keeps the statistics enabled
+		tree = new BTree( graphDb(), tree.getRoot().getUnderlyingNode() );
+		assertTrue( tree.hasOrderStatistics() );
+		commitTx();
+		
+		// And so does compaction
+		new BTreeCompactor( tree, 5 ).compactAll();
+		beginTx();
+		assertOrderStatistics( expected, tree );
+		tree.delete();
+	}
+	
+    @Test
+    public void testBufferedWritesKeepCounts() throws Exception
+	{
+		BTree tree = TestBTree.createTree();
+		tree.enableOrderStatistics();
+		BufferedBTree buffered = new BufferedBTree( tree, 100 );
+		TreeSet<Long> expected = new TreeSet<Long>();
+		Random random = new Random( 5566 );
+		for ( int i = 0; i < 1000; i++ )
+		{
+			long key = random.nextInt( 1000 );
+			if ( random.nextInt( 3 ) > 0 )
+			{
+				buffered.setEntry( key, key );
+				expected.add( key );
+			}
+			else
+			{
+				buffered.removeEntry( key );
+				expected.remove( key );
+			}
+		}
+		buffered.flush();
+		assertOrderStatistics( expected, tree );
+		tree.delete();
+	}
+}
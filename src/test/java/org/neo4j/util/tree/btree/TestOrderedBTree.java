@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.Neo4jTest;
+
+public class TestOrderedBTree extends Neo4jTest
+{
+	private <K> OrderedBTree<K> createTree( KeyCodec<K> keyCodec )
+	{
+		Node anchor = graphDb().createNode();
+		Node root = graphDb().createNode();
+		anchor.createRelationshipTo( root, BTree.RelTypes.TREE_ROOT );
+		return new OrderedBTree<K>( graphDb(), root, keyCodec );
+	}
+	
+	private static <K> List<K> keys( OrderedBTree<K> tree, 
+		Iterable<KeyEntry> entries )
+	{
+		List<K> result = new ArrayList<K>();
+		for ( KeyEntry entry : entries )
+		{
+			result.add( tree.getKey( entry ) );
+		}
+		return result;
+	}
+	
+    @Test
+    public void testStringKeys() throws Exception
+	{
+		OrderedBTree<String> tree = createTree( KeyCodecs.STRING );
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		Random random = new Random( 8642 );
+		for ( int i = 0; i < 400; i++ )
+		{
+			String key = Integer.toString( random.nextInt( 1000 ), 36 );
+			if ( random.nextInt( 4 ) > 0 )
+			{
+				if ( !expected.containsKey( key ) )
+				{
+					tree.addEntry( key, i );
+					expected.put( key, i );
+				}
+			}
+			else
+			{
+				assertEquals( expected.remove( key ), tree.removeEntry( key ) );
+			}
+		}
+		tree.validateTree();
+		assertEquals( new ArrayList<String>( expected.keySet() ), 
+			keys( tree, tree.entries() ) );
+		for ( String key : expected.keySet() )
+		{
+			assertEquals( expected.get( key ), tree.getEntry( key ) );
+		}
+		
+		// All keys with a given prefix
+		String prefix = "1";
+		assertEquals( new ArrayList<String>( expected.subMap( prefix, 
+			prefix + Character.MAX_VALUE ).keySet() ), keys( tree, 
+			tree.range( prefix, prefix + Character.MAX_VALUE ) ) );
+		
+		String missing = "1_";
+		assertNull( tree.getEntry( missing ) );
+		assertEquals( expected.floorKey( missing ), 
+			tree.getKey( tree.getClosestLowerEntry( missing ) ) );
+		assertEquals( expected.ceilingKey( missing ), 
+			tree.getKey( tree.getClosestHigherEntry( missing ) ) );
+		
+		List<String> scanned = new ArrayList<String>();
+		for ( Map.Entry<String, Object> entry : tree.scan( "a", null, 5 ) )
+		{
+			scanned.add( entry.getKey() );
+			assertEquals( expected.get( entry.getKey() ), entry.getValue() );
+		}
+		assertEquals( new ArrayList<String>( expected.tailMap( "a" ).
+			keySet() ), scanned );
+		tree.delete();
+	}
+	
+    @Test
+    public void testLongTupleKeys() throws Exception
+	{
+		OrderedBTree<long[]> tree = createTree( KeyCodecs.LONG_TUPLE );
+		long[][] keys = { { 2, 1 }, { 1, 5 }, { 1 }, { 1, 5, 0 }, 
+			{ -3, 100 }, { 2 }, { 1, -5 } };
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			tree.addEntry( keys[i], i );
+		}
+		tree.validateTree();
+		List<long[]> ordered = keys( tree, tree.entries() );
+		long[][] expected = { { -3, 100 }, { 1 }, { 1, -5 }, { 1, 5 }, 
+			{ 1, 5, 0 }, { 2 }, { 2, 1 } };
+		assertEquals( expected.length, ordered.size() );
+		for ( int i = 0; i < expected.length; i++ )
+		{
+			assertArrayEquals( expected[i], ordered.get( i ) );
+		}
+		// All tuples starting with 1
+		assertEquals( 4, keys( tree, tree.range( new long[] { 1 }, 
+			new long[] { 2 } ) ).size() );
+		assertEquals( 3, tree.getEntry( new long[] { 1, 5, 0 } ) );
+		tree.delete();
+	}
+	
+    @Test
+    public void testByteKeysAreUnsigned() throws Exception
+	{
+		OrderedBTree<byte[]> tree = createTree( KeyCodecs.BYTES );
+		byte[][] keys = { { (byte) 0xff }, { 0x7f }, { 0 }, { 0, 1 }, 
+			{ (byte) 0x80 } };
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			tree.addEntry( keys[i], i );
+		}
+		List<byte[]> ordered = keys( tree, tree.entries() );
+		byte[][] expected = { { 0 }, { 0, 1 }, { 0x7f }, { (byte) 0x80 }, 
+			{ (byte) 0xff } };
+		for ( int i = 0; i < expected.length; i++ )
+		{
+			assertEquals( Arrays.toString( expected[i] ), 
+				Arrays.toString( ordered.get( i ) ) );
+		}
+		tree.delete();
+	}
+}
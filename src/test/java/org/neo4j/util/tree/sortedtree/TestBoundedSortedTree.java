@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE_COMPARATOR;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE_SORT_KEY;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.assertTreeEquals;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createNode;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.newReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.Neo4jTest;
+
+public class TestBoundedSortedTree extends Neo4jTest
+{
+	private static class EvictionRecordingTree extends SortedTree
+	{
+		private final List<Node> evicted = new ArrayList<Node>();
+		
+		EvictionRecordingTree( Node root )
+		{
+			super( graphDb(), root, VALUE_COMPARATOR, VALUE_SORT_KEY );
+		}
+		
+		@Override
+		protected void nodeEvicted( Node node )
+		{
+			evicted.add( node );
+		}
+	}
+	
+	private static Node createRoot( Node anchor )
+	{
+		Node root = graphDb().createNode();
+		anchor.createRelationshipTo( root, SortedTree.RelTypes.TREE_ROOT );
+		return root;
+	}
+	
+	private static List<Node> createNodes( int count )
+	{
+		List<Node> nodes = new ArrayList<Node>();
+		for ( int i = 0; i < count; i++ )
+		{
+			nodes.add( createNode( i / 2 ) );
+		}
+		Collections.shuffle( nodes, new Random( 8642 ) );
+		return nodes;
+	}
+	
+	// the highest maxSize nodes
+	private static TreeSet<Node> top( Iterable<Node> nodes, int maxSize )
+	{
+		TreeSet<Node> top = newReference();
+		for ( Node node : nodes )
+		{
+			top.add( node );
+			if ( top.size() > maxSize )
+			{
+				top.pollFirst();
+			}
+		}
+		return top;
+	}
+	
+	private static void delete( SortedTree tree, Node anchor, 
+		List<Node> nodes )
+	{
+		tree.delete();
+		for ( Node node : nodes )
+		{
+			node.delete();
+		}
+		anchor.delete();
+	}
+	
+    @Test
+    public void testEvictionAndRejection() throws Exception
+	{
+		Node anchor = graphDb().createNode();
+		EvictionRecordingTree tree = new EvictionRecordingTree( 
+			createRoot( anchor ) );
+		tree.setMaxSize( 10 );
+		assertEquals( 10, tree.getMaxSize() );
+		List<Node> nodes = createNodes( 100 );
+		TreeSet<Node> expected = newReference();
+		int rejected = 0;
+		for ( Node node : nodes )
+		{
+			boolean wouldBeFirst = expected.size() == 10 && 
+				expected.comparator().compare( node, expected.first() ) < 0;
+			Node first = expected.size() == 10 && !wouldBeFirst ? 
+				expected.first() : null;
+			int evictedBefore = tree.evicted.size();
+			assertEquals( !wouldBeFirst, tree.addNode( node ) );
+			if ( wouldBeFirst )
+			{
+				rejected++;
+				assertEquals( evictedBefore, tree.evicted.size() );
+				assertFalse( tree.containsNode( node ) );
+				continue;
+			}
+			expected.add( node );
+			if ( first != null )
+			{
+				expected.remove( first );
+				assertEquals( first, 
+					tree.evicted.get( tree.evicted.size() - 1 ) );
+			}
+			assertEquals( expected.size(), tree.size() );
+		}
+		assertTrue( rejected > 0 );
+		assertEquals( 100 - 10 - rejected, tree.evicted.size() );
+		assertTreeEquals( top( nodes, 10 ), tree );
+		
+		// the max size is stored with the tree
+		commitTx();
+		beginTx();
+		SortedTree loaded = new SortedTree( graphDb(), 
+			anchor.getSingleRelationship( SortedTree.RelTypes.TREE_ROOT, 
+			Direction.OUTGOING ).getEndNode(), VALUE_COMPARATOR, 
+			VALUE_SORT_KEY );
+		assertEquals( 10, loaded.getMaxSize() );
+		
+		// shrinking evicts the lowest nodes
+		tree.setMaxSize( 4 );
+		assertTreeEquals( top( nodes, 4 ), tree );
+		tree.removeMaxSize();
+		assertEquals( -1, tree.getMaxSize() );
+		// unbounded again, so the lowest node isn't rejected
+		assertTrue( tree.addNode( top( nodes, 100 ).first() ) );
+		assertEquals( 5, tree.size() );
+		delete( tree, anchor, nodes );
+	}
+	
+    @Test
+    public void testBoundedAddAll() throws Exception
+	{
+		Node anchor = graphDb().createNode();
+		EvictionRecordingTree tree = new EvictionRecordingTree( 
+			createRoot( anchor ) );
+		List<Node> nodes = createNodes( 200 );
+		tree.addAll( nodes.subList( 0, 20 ) );
+		tree.setMaxSize( 15 );
+		assertEquals( 5, tree.evicted.size() );
+		
+		// highest first, so that the lower ones are rejected, not evicted
+		tree.evicted.clear();
+		tree.addAll( nodes.subList( 20, 200 ) );
+		assertTreeEquals( top( nodes, 15 ), tree );
+		assertTrue( tree.evicted.size() <= 15 );
+		delete( tree, anchor, nodes );
+	}
+	
+    @Test
+    public void testDeleteAndClear() throws Exception
+	{
+		Node anchor = graphDb().createNode();
+		SortedTree tree = new SortedTree( graphDb(), createRoot( anchor ), 
+			VALUE_COMPARATOR, VALUE_SORT_KEY );
+		tree.setMaxSize( 5 );
+		tree.enableBloomFilter( 100, 0.01 );
+		List<Node> nodes = createNodes( 20 );
+		tree.addAll( nodes );
+		assertEquals( 5, tree.size() );
+		
+		// clearing keeps the max size and the filter
+		tree.clear();
+		assertEquals( 0, tree.size() );
+		assertEquals( 5, tree.getMaxSize() );
+		for ( Node node : nodes )
+		{
+			assertFalse( tree.containsNode( node ) );
+		}
+		tree.addAll( nodes );
+		assertTreeEquals( top( nodes, 5 ), tree );
+		for ( Node node : top( nodes, 5 ) )
+		{
+			assertTrue( tree.containsNode( node ) );
+		}
+		
+		// deleting removes everything stored on the anchor
+		tree.delete();
+		assertEquals( -1, tree.getMaxSize() );
+		assertFalse( anchor.getRelationships().iterator().hasNext() );
+		assertFalse( anchor.getPropertyKeys().iterator().hasNext() );
+		for ( Node node : nodes )
+		{
+			node.delete();
+		}
+		anchor.delete();
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE_SORT_KEY;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.assertTreeEquals;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createNode;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createTree;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.newReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.Neo4jTest;
+
+public class TestBulkUpdate extends Neo4jTest
+{
+	private static List<Node> createNodes( int count, Random random )
+	{
+		List<Node> nodes = new ArrayList<Node>();
+		for ( int i = 0; i < count; i++ )
+		{
+			// few distinct values so that many nodes are equal
+			nodes.add( createNode( random.nextInt( count / 4 ) ) );
+		}
+		return nodes;
+	}
+	
+	private static void delete( SortedTree tree, List<Node> nodes )
+	{
+		tree.delete();
+		for ( Node node : nodes )
+		{
+			node.delete();
+		}
+	}
+	
+    @Test
+    public void testAddAllAndRemoveAll() throws Exception
+	{
+		bulkUpdate( null );
+	}
+	
+    @Test
+    public void testAddAllAndRemoveAllWithSortKeys() throws Exception
+	{
+		bulkUpdate( VALUE_SORT_KEY );
+	}
+	
+	private void bulkUpdate( SortKeyExtractor sortKeyExtractor )
+	{
+		Random random = new Random( 2468 );
+		SortedTree tree = createTree( sortKeyExtractor );
+		List<Node> nodes = createNodes( 400, random );
+		TreeSet<Node> expected = newReference();
+		
+		List<Node> toAdd = new ArrayList<Node>( nodes.subList( 0, 100 ) );
+		for ( Node node : toAdd )
+		{
+			expected.add( node );
+		}
+		assertEquals( 100, tree.addAll( toAdd ) );
+		assertTreeEquals( expected, tree );
+		
+		// already added nodes, and the same node twice, are only added once
+		toAdd = new ArrayList<Node>( nodes.subList( 50, 300 ) );
+		toAdd.add( nodes.get( 200 ) );
+		Collections.shuffle( toAdd, random );
+		int added = 0;
+		for ( Node node : toAdd )
+		{
+			added += expected.add( node ) ? 1 : 0;
+		}
+		assertEquals( 200, added );
+		assertEquals( added, tree.addAll( toAdd ) );
+		assertTreeEquals( expected, tree );
+		
+		List<Node> toRemove = new ArrayList<Node>();
+		for ( int i = 0; i < nodes.size(); i += 3 )
+		{
+			toRemove.add( nodes.get( i ) );
+		}
+		int removed = 0;
+		for ( Node node : toRemove )
+		{
+			removed += expected.remove( node ) ? 1 : 0;
+		}
+		assertEquals( removed, tree.removeAll( toRemove ) );
+		assertTreeEquals( expected, tree );
+		assertEquals( 0, tree.removeAll( toRemove ) );
+		delete( tree, nodes );
+	}
+	
+    @Test
+    public void testBulkUpdateInChunks() throws Exception
+	{
+		Random random = new Random( 1234 );
+		SortedTree tree = createTree( VALUE_SORT_KEY );
+		List<Node> nodes = createNodes( 500, random );
+		TreeSet<Node> expected = newReference();
+		expected.addAll( nodes );
+		commitTx();
+		
+		assertEquals( 500, tree.addAll( nodes, 64 ) );
+		beginTx();
+		assertTreeEquals( expected, tree );
+		commitTx();
+		
+		List<Node> toRemove = new ArrayList<Node>( nodes.subList( 100, 400 ) );
+		Collections.shuffle( toRemove, random );
+		assertEquals( 300, tree.removeAll( toRemove, 64 ) );
+		beginTx();
+		expected.removeAll( toRemove );
+		assertTreeEquals( expected, tree );
+		delete( tree, nodes );
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE_SORT_KEY;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.assertTreeEquals;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createNode;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createTree;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.newReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.Neo4jTest;
+
+public class TestEqualNodes extends Neo4jTest
+{
+	private static final int VALUES = 5;
+	
+	private static List<Node> list( Iterable<Node> nodes )
+	{
+		List<Node> result = new ArrayList<Node>();
+		for ( Node node : nodes )
+		{
+			result.add( node );
+		}
+		return result;
+	}
+	
+	// the nodes with value, in node id order
+	private static List<Node> run( TreeSet<Node> expected, int value )
+	{
+		List<Node> result = new ArrayList<Node>();
+		for ( Node node : expected )
+		{
+			if ( (Integer) node.getProperty( VALUE ) == value )
+			{
+				result.add( node );
+			}
+		}
+		return result;
+	}
+	
+    @Test
+    public void testEqualNodes() throws Exception
+	{
+		equalNodes( null );
+	}
+	
+    @Test
+    public void testEqualNodesWithSortKeys() throws Exception
+	{
+		equalNodes( VALUE_SORT_KEY );
+	}
+	
+	private void equalNodes( SortKeyExtractor sortKeyExtractor )
+	{
+		SortedTree tree = createTree( sortKeyExtractor );
+		List<Node> nodes = new ArrayList<Node>();
+		for ( int i = 0; i < 200; i++ )
+		{
+			// even values only, so that odd ones are between the runs
+			nodes.add( createNode( i % VALUES * 2 ) );
+		}
+		List<Node> shuffled = new ArrayList<Node>( nodes );
+		Collections.shuffle( shuffled, new Random( 9753 ) );
+		TreeSet<Node> expected = newReference();
+		for ( Node node : shuffled )
+		{
+			tree.addNode( node );
+			expected.add( node );
+		}
+		// equal nodes are ordered by node id
+		assertTreeEquals( expected, tree );
+		
+		List<Node> probes = new ArrayList<Node>();
+		for ( int value = -1; value <= VALUES * 2; value++ )
+		{
+			Node probe = createNode( value );
+			probes.add( probe );
+			List<Node> run = run( expected, value );
+			assertEquals( run, list( tree.getEqualNodes( probe ) ) );
+			if ( run.isEmpty() )
+			{
+				assertEquals( expected.ceiling( probe ), 
+					tree.getCeilingNode( probe ) );
+				assertEquals( expected.floor( probe ), 
+					tree.getFloorNode( probe ) );
+				continue;
+			}
+			// navigation resolves to the ends of a run
+			Node first = run.get( 0 );
+			Node last = run.get( run.size() - 1 );
+			assertEquals( first, tree.getCeilingNode( probe ) );
+			assertEquals( last, tree.getFloorNode( probe ) );
+			assertEquals( expected.higher( last ), 
+				tree.getHigherNode( probe ) );
+			assertEquals( expected.lower( first ), 
+				tree.getLowerNode( probe ) );
+			// an inclusive bound covers the run, an exclusive one skips it
+			assertEquals( list( expected.tailSet( first, true ) ), 
+				list( tree.getSortedNodes( probe, true, null, false, 
+				false ) ) );
+			assertEquals( list( expected.tailSet( last, false ) ), 
+				list( tree.getSortedNodes( probe, false, null, false, 
+				false ) ) );
+			assertEquals( list( expected.headSet( last, true ) ), 
+				list( tree.getSortedNodes( null, false, probe, true, 
+				false ) ) );
+			assertEquals( list( expected.headSet( first, false ) ), 
+				list( tree.getSortedNodes( null, false, probe, false, 
+				false ) ) );
+		}
+		assertNull( tree.getLowerNode( probes.get( 0 ) ) );
+		assertNull( tree.getHigherNode( probes.get( probes.size() - 1 ) ) );
+		
+		// the exact node is removed from its run
+		for ( int i = 0; i < nodes.size(); i += 3 )
+		{
+			assertTrue( tree.removeNode( nodes.get( i ) ) );
+			expected.remove( nodes.get( i ) );
+		}
+		assertTreeEquals( expected, tree );
+		for ( int value = 0; value < VALUES * 2; value += 2 )
+		{
+			assertEquals( run( expected, value ), list( tree.getEqualNodes( 
+				probes.get( value + 1 ) ) ) );
+		}
+		
+		tree.delete();
+		nodes.addAll( probes );
+		for ( Node node : nodes )
+		{
+			node.delete();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE_COMPARATOR;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.assertTreeEquals;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createNode;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.newReference;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.util.Neo4jTest;
+
+public class TestSortKeys extends Neo4jTest
+{
+	private static class CountingComparator implements Comparator<Node>
+	{
+		private int count;
+		
+		public int compare( Node o1, Node o2 )
+		{
+			count++;
+			return VALUE_COMPARATOR.compare( o1, o2 );
+		}
+	}
+	
+	private static SortedTree createTree( Node anchor, 
+		Comparator<Node> comparator, SortKeyExtractor sortKeyExtractor )
+	{
+		Node root = graphDb().createNode();
+		anchor.createRelationshipTo( root, SortedTree.RelTypes.TREE_ROOT );
+		return new SortedTree( graphDb(), root, comparator, 
+			sortKeyExtractor );
+	}
+	
+	private static List<Node> createNodes( int count, int distinctValues )
+	{
+		Random random = new Random( 1357 );
+		List<Node> nodes = new ArrayList<Node>();
+		for ( int i = 0; i < count; i++ )
+		{
+			nodes.add( createNode( random.nextInt( distinctValues ) ) );
+		}
+		return nodes;
+	}
+	
+	private static void deleteAll( SortedTree tree, Node anchor, 
+		List<Node> nodes )
+	{
+		tree.delete();
+		for ( Node node : nodes )
+		{
+			node.delete();
+		}
+		anchor.delete();
+	}
+	
+	// returns the number of checked entries
+	private static int assertStoredSortKeys( Node anchor, 
+		SortKeyExtractor sortKeyExtractor )
+	{
+		int count = 0;
+		List<Node> chainNodes = new ArrayList<Node>();
+		chainNodes.add( anchor.getSingleRelationship( 
+			SortedTree.RelTypes.TREE_ROOT, Direction.OUTGOING ).getEndNode() );
+		while ( !chainNodes.isEmpty() )
+		{
+			Node chainNode = chainNodes.remove( chainNodes.size() - 1 );
+			for ( Relationship rel : chainNode.getRelationships( 
+				Direction.OUTGOING ) )
+			{
+				chainNodes.add( rel.getEndNode() );
+				if ( rel.isType( SortedTree.RelTypes.KEY_ENTRY ) )
+				{
+					Node node = graphDb().getNodeById( 
+						(Long) rel.getProperty( NodeEntry.NODE_ID ) );
+					assertEquals( sortKeyExtractor.getSortKey( node ), 
+						rel.getProperty( NodeEntry.SORT_KEY ) );
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+    @Test
+    public void testDistinctSortKeysNeverUseComparator() throws Exception
+	{
+		Node anchor = graphDb().createNode();
+		CountingComparator comparator = new CountingComparator();
+		SortedTree tree = createTree( anchor, comparator, 
+			TestSortedTree.VALUE_SORT_KEY );
+		List<Node> nodes = new ArrayList<Node>();
+		TreeSet<Node> expected = newReference();
+		for ( int i = 0; i < 200; i++ )
+		{
+			Node node = createNode( i * 37 % 200 );
+			nodes.add( node );
+			assertTrue( tree.addNode( node ) );
+			expected.add( node );
+		}
+		for ( int i = 0; i < 200; i += 3 )
+		{
+			assertTrue( tree.containsNode( nodes.get( i ) ) );
+			assertTrue( tree.removeNode( nodes.get( i ) ) );
+			assertFalse( tree.containsNode( nodes.get( i ) ) );
+			expected.remove( nodes.get( i ) );
+		}
+		assertEquals( 0, comparator.count );
+		assertTreeEquals( expected, tree );
+		deleteAll( tree, anchor, nodes );
+	}
+	
+    @Test
+    public void testPrefixSortKeys() throws Exception
+	{
+		Node anchor = graphDb().createNode();
+		SortKeyExtractor tens = new SortKeyExtractor()
+		{
+			public long getSortKey( Node node )
+			{
+				return (Integer) node.getProperty( TestSortedTree.VALUE ) / 10;
+			}
+		};
+		SortedTree tree = createTree( anchor, VALUE_COMPARATOR, tens );
+		List<Node> nodes = createNodes( 300, 1000 );
+		TreeSet<Node> expected = newReference();
+		for ( Node node : nodes )
+		{
+			assertEquals( expected.add( node ), tree.addNode( node ) );
+		}
+		assertTreeEquals( expected, tree );
+		assertEquals( expected.size(), assertStoredSortKeys( anchor, tens ) );
+		for ( int i = 0; i < nodes.size(); i += 2 )
+		{
+			assertEquals( expected.remove( nodes.get( i ) ), 
+				tree.removeNode( nodes.get( i ) ) );
+		}
+		assertTreeEquals( expected, tree );
+		deleteAll( tree, anchor, nodes );
+	}
+	
+    @Test
+    public void testEntriesWithoutStoredSortKeys() throws Exception
+	{
+		Node anchor = graphDb().createNode();
+		SortedTree tree = createTree( anchor, VALUE_COMPARATOR, null );
+		List<Node> nodes = createNodes( 200, 100 );
+		TreeSet<Node> expected = newReference();
+		for ( Node node : nodes.subList( 0, 100 ) )
+		{
+			assertEquals( expected.add( node ), tree.addNode( node ) );
+		}
+		
+		// the same tree, now with sort keys for new entries
+		tree = new SortedTree( graphDb(), anchor.getSingleRelationship( 
+			SortedTree.RelTypes.TREE_ROOT, Direction.OUTGOING ).getEndNode(),
+			VALUE_COMPARATOR, TestSortedTree.VALUE_SORT_KEY );
+		for ( Node node : nodes.subList( 100, 200 ) )
+		{
+			assertEquals( expected.add( node ), tree.addNode( node ) );
+		}
+		assertTreeEquals( expected, tree );
+		for ( Node node : nodes.subList( 0, 100 ) )
+		{
+			assertTrue( tree.containsNode( node ) );
+		}
+		for ( int i = 0; i < nodes.size(); i += 3 )
+		{
+			assertEquals( expected.remove( nodes.get( i ) ), 
+				tree.removeNode( nodes.get( i ) ) );
+		}
+		assertTreeEquals( expected, tree );
+		deleteAll( tree, anchor, nodes );
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.Neo4jTest;
+
+public class TestSortedTree extends Neo4jTest
+{
+	static final String VALUE = "value";
+	
+	/**
+	 * Orders nodes on their {@link #VALUE}, equal values on node id like
+	 * the {@link SortedTree} does.
+	 */
+	static final Comparator<Node> VALUE_COMPARATOR = new Comparator<Node>()
+	{
+		public int compare( Node o1, Node o2 )
+		{
+			int value1 = (Integer) o1.getProperty( VALUE );
+			int value2 = (Integer) o2.getProperty( VALUE );
+			return value1 < value2 ? -1 : ( value1 > value2 ? 1 : 0 );
+		}
+	};
+	
+	static final SortKeyExtractor VALUE_SORT_KEY = new SortKeyExtractor()
+	{
+		public long getSortKey( Node node )
+		{
+			return (Integer) node.getProperty( VALUE );
+		}
+	};
+	
+	static SortedTree createTree( SortKeyExtractor sortKeyExtractor )
+	{
+		return createTree( graphDb().createNode(), sortKeyExtractor );
+	}
+	
+	static SortedTree createTree( Node anchor, 
+		SortKeyExtractor sortKeyExtractor )
+	{
+		Node root = graphDb().createNode();
+		anchor.createRelationshipTo( root, SortedTree.RelTypes.TREE_ROOT );
+		return new SortedTree( graphDb(), root, VALUE_COMPARATOR, 
+			sortKeyExtractor );
+	}
+	
+	static TreeSet<Node> newReference()
+	{
+		return new TreeSet<Node>( new Comparator<Node>()
+		{
+			public int compare( Node o1, Node o2 )
+			{
+				int result = VALUE_COMPARATOR.compare( o1, o2 );
+				return result != 0 ? result : 
+					( o1.getId() < o2.getId() ? -1 : 
+					( o1.getId() > o2.getId() ? 1 : 0 ) );
+			}
+		} );
+	}
+	
+	static Node createNode( int value )
+	{
+		Node node = graphDb().createNode();
+		node.setProperty( VALUE, value );
+		return node;
+	}
+	
+	static void assertTreeEquals( TreeSet<Node> expected, SortedTree tree )
+	{
+		tree.validateTree();
+		Iterator<Node> expectedNodes = expected.iterator();
+		for ( Node node : tree.getSortedNodes() )
+		{
+			assertEquals( expectedNodes.next(), node );
+		}
+		assertEquals( false, expectedNodes.hasNext() );
+		assertEquals( expected.size(), tree.size() );
+	}
+	
+    @Test
+    public void testRandomAddAndRemove() throws Exception
+	{
+		randomAddAndRemove( null );
+	}
+	
+    @Test
+    public void testRandomAddAndRemoveWithSortKeys() throws Exception
+	{
+		randomAddAndRemove( VALUE_SORT_KEY );
+	}
+	
+	private void randomAddAndRemove( SortKeyExtractor sortKeyExtractor )
+	{
+		SortedTree tree = createTree( sortKeyExtractor );
+		TreeSet<Node> expected = newReference();
+		List<Node> nodes = new ArrayList<Node>();
+		Random random = new Random( 4321 );
+		for ( int i = 0; i < 300; i++ )
+		{
+			// Few distinct values so that many nodes are equal
+			nodes.add( createNode( random.nextInt( 50 ) ) );
+		}
+		for ( int batch = 0; batch < 20; batch++ )
+		{
+			int addPercentage = batch < 10 ? 70 : 30;
+			for ( int i = 0; i < 100; i++ )
+			{
+				Node node = nodes.get( random.nextInt( nodes.size() ) );
+				if ( random.nextInt( 100 ) < addPercentage )
+				{
+					assertEquals( expected.add( node ), tree.addNode( node ) );
+				}
+				else
+				{
+					assertEquals( expected.remove( node ), 
+						tree.removeNode( node ) );
+				}
+			}
+			assertTreeEquals( expected, tree );
+			for ( int i = 0; i < 20; i++ )
+			{
+				Node node = nodes.get( random.nextInt( nodes.size() ) );
+				assertEquals( expected.contains( node ), 
+					tree.containsNode( node ) );
+			}
+			commitTx();
+			beginTx();
+		}
+		
+		for ( Node node : expected )
+		{
+			assertEquals( true, tree.removeNode( node ) );
+		}
+		expected.clear();
+		assertTreeEquals( expected, tree );
+		tree.delete();
+		for ( Node node : nodes )
+		{
+			node.delete();
+		}
+	}
+	
+    @Test
+    public void testDeleteInBatches() throws Exception
+	{
+		Node anchor = graphDb().createNode();
+		SortedTree tree = createTree( anchor, VALUE_SORT_KEY );
+		List<Node> nodes = new ArrayList<Node>();
+		for ( int i = 0; i < 200; i++ )
+		{
+			Node node = createNode( i );
+			nodes.add( node );
+			tree.addNode( node );
+		}
+		// a filter with more chunk nodes than one batch deletes
+		tree.enableBloomFilter( 10000, 0.01 );
+		tree.setMaxSize( 1000 );
+		tree.validateTree();
+		commitTx();
+		
+		tree.deleteInBatches( 10 );
+		
+		beginTx();
+		assertEquals( false, anchor.getRelationships().iterator().hasNext() );
+		assertEquals( false, anchor.getPropertyKeys().iterator().hasNext() );
+		for ( Node node : nodes )
+		{
+			node.delete();
+		}
+		anchor.delete();
+	}
+	
+    @Test
+    public void testBloomFilterIsSharedByInstances() throws Exception
+	{
+		Node anchor = graphDb().createNode();
+		SortedTree tree = createTree( anchor, VALUE_SORT_KEY );
+		// created before the filter is enabled
+		SortedTree other = new SortedTree( graphDb(), 
+			anchor.getSingleRelationship( SortedTree.RelTypes.TREE_ROOT, 
+			Direction.OUTGOING ).getEndNode(), VALUE_COMPARATOR, 
+			VALUE_SORT_KEY );
+		// few enough nodes for the root not to split, since each instance
+		// keeps its own root
+		TreeSet<Node> expected = newReference();
+		for ( int i = 0; i < 4; i++ )
+		{
+			Node node = createNode( i );
+			tree.addNode( node );
+			expected.add( node );
+		}
+		tree.enableBloomFilter( 100, 0.01 );
+		for ( int i = 4; i < 8; i++ )
+		{
+			Node node = createNode( i );
+			other.addNode( node );
+			expected.add( node );
+		}
+		for ( Node node : expected )
+		{
+			assertTrue( tree.containsNode( node ) );
+			assertTrue( other.containsNode( node ) );
+		}
+		for ( String key : anchor.getPropertyKeys() )
+		{
+			assertFalse( key, key.startsWith( "bloom_filter" ) );
+		}
+		
+		// enough removals to rebuild the filter
+		List<Node> removed = new ArrayList<Node>( expected ).subList( 0, 6 );
+		assertEquals( 6, other.removeAll( removed ) );
+		for ( Node node : removed )
+		{
+			assertFalse( tree.containsNode( node ) );
+		}
+		expected.removeAll( removed );
+		for ( Node node : expected )
+		{
+			assertTrue( tree.containsNode( node ) );
+		}
+		assertTreeEquals( expected, tree );
+		
+		tree.delete();
+		assertFalse( anchor.getRelationships().iterator().hasNext() );
+		for ( Node node : removed )
+		{
+			node.delete();
+		}
+		for ( Node node : expected )
+		{
+			node.delete();
+		}
+		anchor.delete();
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE_SORT_KEY;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.assertTreeEquals;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createNode;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createTree;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.newReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.Neo4jTest;
+
+public class TestSortedTreeLoad extends Neo4jTest
+{
+	/**
+	 * Coarser than the values so that many nodes have equal sort keys
+	 * but aren't equal.
+	 */
+	private static final SortKeyExtractor COARSE_SORT_KEY = 
+		new SortKeyExtractor()
+	{
+		public long getSortKey( Node node )
+		{
+			return (Integer) node.getProperty( VALUE ) / 10;
+		}
+	};
+	
+    @Test
+    public void testLoad() throws Exception
+	{
+		load( null, null );
+	}
+	
+    @Test
+    public void testLoadWithExecutor() throws Exception
+	{
+		load( null, Executors.newFixedThreadPool( 3 ) );
+	}
+	
+    @Test
+    public void testLoadWithSortKeys() throws Exception
+	{
+		load( VALUE_SORT_KEY, null );
+	}
+	
+    @Test
+    public void testLoadWithSortKeysAndExecutor() throws Exception
+	{
+		load( VALUE_SORT_KEY, Executors.newFixedThreadPool( 3 ) );
+	}
+	
+    @Test
+    public void testLoadWithEqualSortKeysAndExecutor() throws Exception
+	{
+		load( COARSE_SORT_KEY, Executors.newFixedThreadPool( 3 ) );
+	}
+	
+	private void load( SortKeyExtractor sortKeyExtractor, 
+		ExecutorService executor )
+	{
+		Random random = new Random( 1357 );
+		List<Node> nodes = new ArrayList<Node>();
+		for ( int i = 0; i < 300; i++ )
+		{
+			nodes.add( createNode( random.nextInt( 1000 ) ) );
+		}
+		commitTx();
+		beginTx();
+		
+		// the executor threads can't see what this transaction writes, so
+		// the changed values and the created nodes must be read here
+		for ( int i = 0; i < nodes.size(); i += 2 )
+		{
+			nodes.get( i ).setProperty( VALUE, random.nextInt( 1000 ) );
+		}
+		for ( int i = 0; i < 100; i++ )
+		{
+			nodes.add( createNode( random.nextInt( 1000 ) ) );
+		}
+		SortedTree tree = createTree( sortKeyExtractor );
+		TreeSet<Node> expected = newReference();
+		expected.addAll( nodes );
+		
+		// the same node twice is only added once
+		List<Node> toLoad = new ArrayList<Node>( nodes );
+		toLoad.addAll( nodes.subList( 100, 150 ) );
+		toLoad.add( nodes.get( 350 ) );
+		Collections.shuffle( toLoad, random );
+		try
+		{
+			assertEquals( 400, tree.load( toLoad, executor ) );
+		}
+		finally
+		{
+			if ( executor != null )
+			{
+				executor.shutdown();
+			}
+		}
+		assertTreeEquals( expected, tree );
+		commitTx();
+		
+		beginTx();
+		assertTreeEquals( expected, tree );
+		tree.delete();
+		for ( Node node : nodes )
+		{
+			node.delete();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util.tree.sortedtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.VALUE_SORT_KEY;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.assertTreeEquals;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createNode;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.createTree;
+import static org.neo4j.util.tree.sortedtree.TestSortedTree.newReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.util.Neo4jTest;
+
+public class TestSortedTreeUpdate extends Neo4jTest
+{
+	private static TreeSet<Node> reference( List<Node> nodes )
+	{
+		// built again since the reference can't reposition nodes either
+		TreeSet<Node> expected = newReference();
+		expected.addAll( nodes );
+		return expected;
+	}
+	
+	private static void delete( SortedTree tree, List<Node> nodes )
+	{
+		tree.delete();
+		for ( Node node : nodes )
+		{
+			node.delete();
+		}
+	}
+	
+    @Test
+    public void testUpdate() throws Exception
+	{
+		update( null );
+	}
+	
+    @Test
+    public void testUpdateWithSortKeys() throws Exception
+	{
+		update( VALUE_SORT_KEY );
+	}
+	
+	private void update( SortKeyExtractor sortKeyExtractor )
+	{
+		SortedTree tree = createTree( sortKeyExtractor );
+		List<Node> nodes = new ArrayList<Node>();
+		for ( int i = 0; i < 100; i++ )
+		{
+			Node node = createNode( i );
+			nodes.add( node );
+			tree.addNode( node );
+		}
+		
+		Node moved = nodes.get( 10 );
+		moved.setProperty( VALUE, 90 );
+		assertTrue( tree.update( moved, Collections.<String, Object>
+			singletonMap( VALUE, 10 ) ) );
+		assertTreeEquals( reference( nodes ), tree );
+		
+		// swapped values, each old position is the other's new one
+		Map<Node, Map<String, Object>> changes = 
+			new HashMap<Node, Map<String, Object>>();
+		for ( int i = 20; i < 40; i++ )
+		{
+			Node node = nodes.get( i );
+			changes.put( node, Collections.<String, Object>singletonMap( 
+				VALUE, node.getProperty( VALUE ) ) );
+			node.setProperty( VALUE, 59 - i );
+		}
+		Node notInTree = createNode( 5 );
+		notInTree.setProperty( VALUE, 6 );
+		changes.put( notInTree, Collections.<String, Object>singletonMap( 
+			VALUE, 5 ) );
+		assertEquals( 20, tree.update( changes ) );
+		assertTreeEquals( reference( nodes ), tree );
+		assertFalse( tree.containsNode( notInTree ) );
+		
+		for ( Node node : nodes.subList( 15, 45 ) )
+		{
+			assertTrue( tree.containsNode( node ) );
+			assertTrue( tree.removeNode( node ) );
+		}
+		nodes.subList( 15, 45 ).clear();
+		assertTreeEquals( reference( nodes ), tree );
+		nodes.add( notInTree );
+		delete( tree, nodes );
+	}
+	
+    @Test
+    public void testUpdater() throws Exception
+	{
+		SortedTree tree = createTree( VALUE_SORT_KEY );
+		List<Node> nodes = new ArrayList<Node>();
+		for ( int i = 0; i < 50; i++ )
+		{
+			Node node = createNode( i );
+			nodes.add( node );
+			tree.addNode( node );
+		}
+		commitTx();
+		SortedTreeUpdater updater = new SortedTreeUpdater( tree, VALUE );
+		graphDb().registerTransactionEventHandler( updater );
+		try
+		{
+			beginTx();
+			for ( int i = 0; i < 50; i += 5 )
+			{
+				nodes.get( i ).setProperty( VALUE, 100 - i );
+			}
+			// set twice in one transaction
+			nodes.get( 7 ).setProperty( VALUE, 70 );
+			nodes.get( 7 ).setProperty( VALUE, -7 );
+			// an unrelated property
+			nodes.get( 8 ).setProperty( "other", true );
+			// a new node, added with its value and equal to an unchanged
+			// node, since nodes compared with the changed ones may be
+			// misplaced before the commit
+			Node created = createNode( 42 );
+			nodes.add( created );
+			tree.addNode( created );
+			commitTx();
+			
+			beginTx();
+			assertTreeEquals( reference( nodes ), tree );
+			for ( Node node : nodes )
+			{
+				assertTrue( tree.containsNode( node ) );
+			}
+		}
+		finally
+		{
+			graphDb().unregisterTransactionEventHandler( updater );
+		}
+		delete( tree, nodes );
+	}
+}